@@ -714,14 +714,15 @@ class DocumentManager private constructor(private val context: Context) {
             override fun onMessageStaticAuthData(staticAuthDataList: MutableList<ByteArray>) {
                 Log.d(LOG_TAG, "\n- onMessageStaticAuthData ${staticAuthDataList.size} ")
 
-                dynAuthKeyCerts.forEachIndexed { i, cert ->
+                val certifications = dynAuthKeyCerts.mapIndexed { i, cert ->
                     Log.d(
                         LOG_TAG,
                         "Provisioned Issuer Auth ${FormatUtil.encodeToString(staticAuthDataList[i])} " +
                                 "for Device Key ${FormatUtil.encodeToString(cert.publicKey.encoded)}"
                     )
-                    credential.storeStaticAuthenticationData(cert, staticAuthDataList[i])
+                    AuthenticationKeyCertification(cert, null, staticAuthDataList[i])
                 }
+                credential.storeStaticAuthenticationData(certifications)
                 refreshAuthKeyFlow.sendMessageRequestEndSession()
 
             }
@@ -195,6 +195,7 @@ class TransferManager private constructor(private val context: Context) {
         issuerSignedEntriesToRequest: MutableMap<String, Collection<String>>,
         response: DeviceResponseGenerator,
         readerAuth: ByteArray?,
+        verifiedReaderAuth: VerifiedReaderAuthentication?,
         requestMessage: ByteArray?
     ): Boolean {
         session?.let {
@@ -202,7 +203,10 @@ class TransferManager private constructor(private val context: Context) {
                 .setIssuerSignedEntriesToRequest(issuerSignedEntriesToRequest)
                 .setAllowUsingExhaustedKeys(true)
                 .setAllowUsingExpiredKeys(true)
-            if (readerAuth != null && requestMessage != null) {
+            if (verifiedReaderAuth != null && requestMessage != null) {
+                credentialDataRequestBuilder.setVerifiedReaderAuthentication(verifiedReaderAuth)
+                credentialDataRequestBuilder.setRequestMessage(requestMessage)
+            } else if (readerAuth != null && requestMessage != null) {
                 credentialDataRequestBuilder.setReaderSignature(readerAuth)
                 credentialDataRequestBuilder.setRequestMessage(requestMessage)
             }
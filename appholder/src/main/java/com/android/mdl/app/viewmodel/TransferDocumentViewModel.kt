@@ -83,6 +83,7 @@ class TransferDocumentViewModel(val app: Application) : AndroidViewModel(app) {
                     issuerSignedEntriesToRequest,
                     response,
                     reqDoc.readerAuth,
+                    reqDoc.verifiedReaderAuthentication,
                     reqDoc.itemsRequest
                 )
                 if (authNeeded) {
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import static org.junit.Assert.assertEquals;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+@SuppressWarnings("deprecation")
+public class AccessControlCheckerTest {
+    private static final AccessControlProfileId READER_PROFILE = new AccessControlProfileId(0);
+    private static final AccessControlProfileId USER_AUTH_PROFILE = new AccessControlProfileId(1);
+    private static final AccessControlProfileId OTHER_READER_PROFILE =
+            new AccessControlProfileId(2);
+
+    private final HashMap<Integer, AccessControlProfile> mProfiles = new HashMap<>();
+    private boolean mUserAuthenticated;
+    private int mNumUserAuthenticationChecks;
+
+    private final X509Certificate mReaderCert = getCertificate(
+            TestVectors.ISO_18013_5_ANNEX_D_READER_CERT);
+    private final X509Certificate mOtherCert = getCertificate(
+            TestVectors.ISO_18013_5_ANNEX_D_DS_CERT);
+
+    private static X509Certificate getCertificate(String hex) {
+        byte[] encoded = Util.fromHex(hex);
+        try {
+            return CertificateCache.getCertificate(encoded, 0, encoded.length);
+        } catch (java.security.cert.CertificateException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private AccessControlChecker createChecker() {
+        mProfiles.put(READER_PROFILE.getId(), new AccessControlProfile.Builder(READER_PROFILE)
+                .setReaderCertificate(mReaderCert)
+                .setUserAuthenticationRequired(false)
+                .build());
+        mProfiles.put(USER_AUTH_PROFILE.getId(),
+                new AccessControlProfile.Builder(USER_AUTH_PROFILE)
+                        .setUserAuthenticationRequired(true)
+                        .setUserAuthenticationTimeout(30 * 1000)
+                        .build());
+        mProfiles.put(OTHER_READER_PROFILE.getId(),
+                new AccessControlProfile.Builder(OTHER_READER_PROFILE)
+                        .setReaderCertificate(mOtherCert)
+                        .setUserAuthenticationRequired(false)
+                        .build());
+        return new AccessControlChecker(
+                id -> mProfiles.get(id.getId()),
+                profile -> {
+                    mNumUserAuthenticationChecks++;
+                    return mUserAuthenticated;
+                });
+    }
+
+    @Test
+    public void testUserAuthenticationIsCheckedOncePerRetrieval() {
+        AccessControlChecker checker = createChecker();
+        List<AccessControlProfileId> ids = Collections.singletonList(USER_AUTH_PROFILE);
+
+        mUserAuthenticated = true;
+        assertEquals(ResultData.STATUS_OK, checker.checkAccess(ids, null));
+        assertEquals(ResultData.STATUS_OK, checker.checkAccess(ids, null));
+        assertEquals(1, mNumUserAuthenticationChecks);
+        checker.finishRetrieval();
+
+        // For example the timeout ran out.
+        mUserAuthenticated = false;
+        assertEquals(ResultData.STATUS_USER_AUTHENTICATION_FAILED, checker.checkAccess(ids, null));
+        assertEquals(ResultData.STATUS_USER_AUTHENTICATION_FAILED, checker.checkAccess(ids, null));
+        assertEquals(2, mNumUserAuthenticationChecks);
+        checker.finishRetrieval();
+
+        // For example the user authenticated without a new CryptoObject.
+        mUserAuthenticated = true;
+        assertEquals(ResultData.STATUS_OK, checker.checkAccess(ids, null));
+        assertEquals(3, mNumUserAuthenticationChecks);
+    }
+
+    @Test
+    public void testReaderAuthentication() {
+        AccessControlChecker checker = createChecker();
+        List<X509Certificate> readerChain = Collections.singletonList(mReaderCert);
+        List<X509Certificate> otherChain = Collections.singletonList(mOtherCert);
+
+        assertEquals(ResultData.STATUS_OK,
+                checker.checkAccess(Collections.singletonList(READER_PROFILE), readerChain));
+        assertEquals(ResultData.STATUS_READER_AUTHENTICATION_FAILED,
+                checker.checkAccess(Collections.singletonList(OTHER_READER_PROFILE),
+                        readerChain));
+        assertEquals(ResultData.STATUS_OK,
+                checker.checkAccess(Arrays.asList(OTHER_READER_PROFILE, READER_PROFILE),
+                        readerChain));
+
+        // Results for one chain aren't used for another.
+        assertEquals(ResultData.STATUS_READER_AUTHENTICATION_FAILED,
+                checker.checkAccess(Collections.singletonList(READER_PROFILE), otherChain));
+        assertEquals(ResultData.STATUS_OK,
+                checker.checkAccess(Collections.singletonList(OTHER_READER_PROFILE),
+                        otherChain));
+        assertEquals(ResultData.STATUS_READER_AUTHENTICATION_FAILED,
+                checker.checkAccess(Collections.singletonList(OTHER_READER_PROFILE), null));
+        assertEquals(ResultData.STATUS_OK,
+                checker.checkAccess(Collections.singletonList(READER_PROFILE),
+                        Collections.singletonList(mReaderCert)));
+        assertEquals(0, mNumUserAuthenticationChecks);
+    }
+
+    @Test
+    public void testNoProfiles() {
+        AccessControlChecker checker = createChecker();
+        assertEquals(ResultData.STATUS_NO_ACCESS_CONTROL_PROFILES,
+                checker.checkAccess(Collections.emptyList(), null));
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class AuthKeyPoolTest {
+    private static final long NOW = 1000000;
+
+    @Test
+    public void testLeastUsed() {
+        AuthKeyPool pool = new AuthKeyPool(AuthKeyPool.LEAST_USED, 2);
+        pool.add(0, 1, Long.MAX_VALUE, 0, NOW);
+        pool.add(1, 0, Long.MAX_VALUE, 0, NOW);
+        pool.add(2, 0, Long.MAX_VALUE, 0, NOW);
+        assertEquals(Arrays.asList(1, 2, 0), pool.getSlotsInOrder());
+
+        AuthKeyPool.Key key = pool.select(NOW, false, false);
+        assertEquals(1, key.mSlot);
+        pool.updateKey(key, 1, 1);
+        assertEquals(Arrays.asList(2, 0, 1), pool.getSlotsInOrder());
+
+        // Exhaust all keys.
+        for (int n = 0; n < 4; n++) {
+            key = pool.select(NOW, false, false);
+            pool.updateKey(key, key.mUseCount + 1, 0);
+        }
+        assertNull(pool.select(NOW, false, false));
+        assertEquals(0, pool.select(NOW, true, false).mSlot);
+    }
+
+    @Test
+    public void testRoundRobin() {
+        AuthKeyPool pool = new AuthKeyPool(AuthKeyPool.ROUND_ROBIN, 100);
+        pool.add(0, 5, Long.MAX_VALUE, 0, NOW);
+        pool.add(1, 0, Long.MAX_VALUE, 0, NOW);
+        pool.add(2, 3, Long.MAX_VALUE, 0, NOW);
+        long sequence = 0;
+        for (int n = 0; n < 6; n++) {
+            AuthKeyPool.Key key = pool.select(NOW, false, false);
+            assertEquals(n % 3, key.mSlot);
+            pool.updateKey(key, key.mUseCount + 1, ++sequence);
+        }
+    }
+
+    @Test
+    public void testSoonestExpiring() {
+        AuthKeyPool pool = new AuthKeyPool(AuthKeyPool.SOONEST_EXPIRING, 1);
+        pool.add(0, 0, Long.MAX_VALUE, 0, NOW);
+        pool.add(1, 0, NOW + 200, 0, NOW);
+        pool.add(2, 0, NOW + 100, 0, NOW);
+        assertEquals(Arrays.asList(2, 1, 0), pool.getSlotsInOrder());
+
+        // Exhausted keys are only used if nothing else is available.
+        AuthKeyPool.Key key = pool.select(NOW, false, false);
+        assertEquals(2, key.mSlot);
+        pool.updateKey(key, 1, 1);
+        assertEquals(1, pool.select(NOW, false, false).mSlot);
+    }
+
+    @Test
+    public void testExpiration() {
+        AuthKeyPool pool = new AuthKeyPool(AuthKeyPool.LEAST_USED, 10);
+        pool.add(0, 3, NOW + 100, 0, NOW);
+        pool.add(1, 0, NOW + 50, 0, NOW);
+        pool.add(2, 0, NOW - 1, 0, NOW);
+
+        assertEquals(1, pool.select(NOW, false, false).mSlot);
+        AuthKeyPool.Key key = pool.select(NOW + 51, false, false);
+        assertEquals(0, key.mSlot);
+        assertFalse(pool.isExpired(key));
+
+        // Once all keys have expired, the least used of them is used if allowed.
+        assertNull(pool.select(NOW + 101, false, false));
+        key = pool.select(NOW + 101, false, true);
+        assertEquals(1, key.mSlot);
+        assertTrue(pool.isExpired(key));
+        assertEquals(3, pool.size());
+    }
+
+    @Test
+    public void testExpiredPreferredOverExhausted() {
+        AuthKeyPool pool = new AuthKeyPool(AuthKeyPool.LEAST_USED, 1);
+        pool.add(0, 1, Long.MAX_VALUE, 0, NOW);
+        pool.add(1, 0, NOW - 1, 0, NOW);
+
+        assertNull(pool.select(NOW, false, false));
+        assertEquals(1, pool.select(NOW, false, true).mSlot);
+        // An unexpired key is used even if exhausted if that's allowed.
+        assertEquals(0, pool.select(NOW, true, true).mSlot);
+    }
+
+    @Test
+    public void testMetrics() {
+        AuthKeyPool.removeMetrics("AuthKeyPoolTest");
+        AuthKeyPool.Metrics metrics = AuthKeyPool.getMetrics("AuthKeyPoolTest", 0);
+        metrics.recordUse(false, false);
+        metrics.recordUse(true, false);
+        metrics.recordUse(false, true);
+        metrics.recordUse(false, false);
+        AuthenticationKeyMetrics snapshot = AuthKeyPool.getMetrics("AuthKeyPoolTest", 1000)
+                .getSnapshot(12 * 3600 * 1000);
+        assertEquals(4, snapshot.getNumKeysUsed());
+        assertEquals(1, snapshot.getNumExhaustedKeysUsed());
+        assertEquals(1, snapshot.getNumExpiredKeysUsed());
+        assertEquals(8.0, snapshot.getKeysUsedPerDay(), 0.001);
+        AuthKeyPool.removeMetrics("AuthKeyPoolTest");
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class AuthKeyUsageJournalTest {
+
+    private static SecretKey createKey() throws Exception {
+        KeyGenerator kg = KeyGenerator.getInstance("AES");
+        kg.init(128);
+        return kg.generateKey();
+    }
+
+    @Test
+    public void testAppendAndRead() throws Exception {
+        SecretKey key = createKey();
+        File file = File.createTempFile("journal", null);
+        file.delete();
+        AuthKeyUsageJournal journal = new AuthKeyUsageJournal(file);
+        assertFalse(journal.exists());
+        assertEquals(0, journal.read(key).mRecords.size());
+
+        journal.append(key, new AuthKeyUsageJournal.Record(1, 0, 1));
+        journal.append(key, new AuthKeyUsageJournal.Record(1, 2, 5, 7));
+        journal.append(key, new AuthKeyUsageJournal.Record(2, 0, 2));
+        assertTrue(journal.exists());
+        long sizeOfThreeRecords = file.length();
+
+        AuthKeyUsageJournal.Contents contents = journal.read(key);
+        assertFalse(contents.mDamaged);
+        assertEquals(3, contents.mRecords.size());
+        assertEquals(1, contents.mRecords.get(1).mGeneration);
+        assertEquals(2, contents.mRecords.get(1).mSlot);
+        assertEquals(5, contents.mRecords.get(1).mUseCount);
+        assertEquals(7, contents.mRecords.get(1).mLastUsedSequence);
+        assertEquals(0, contents.mRecords.get(2).mLastUsedSequence);
+        assertEquals(2, contents.mRecords.get(2).mGeneration);
+
+        // Records are of constant size.
+        journal.append(key, new AuthKeyUsageJournal.Record(2, 0, 3));
+        assertEquals(sizeOfThreeRecords / 3 * 4, file.length());
+
+        // Can't be read with another key.
+        contents = journal.read(createKey());
+        assertTrue(contents.mDamaged);
+        assertEquals(0, contents.mRecords.size());
+
+        journal.delete();
+        assertFalse(journal.exists());
+    }
+
+    @Test
+    public void testDamaged() throws Exception {
+        SecretKey key = createKey();
+        File file = File.createTempFile("journal", null);
+        file.delete();
+        AuthKeyUsageJournal journal = new AuthKeyUsageJournal(file);
+        journal.append(key, new AuthKeyUsageJournal.Record(1, 0, 1));
+        journal.append(key, new AuthKeyUsageJournal.Record(1, 0, 2));
+        long sizeOfTwoRecords = file.length();
+
+        // A partially written record at the end.
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(sizeOfTwoRecords - 3);
+        }
+        AuthKeyUsageJournal.Contents contents = journal.read(key);
+        assertTrue(contents.mDamaged);
+        assertEquals(1, contents.mRecords.size());
+        assertEquals(1, contents.mRecords.get(0).mUseCount);
+
+        // A corrupted record.
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(sizeOfTwoRecords / 2 - 1);
+            raf.write(0x42);
+        }
+        contents = journal.read(key);
+        assertTrue(contents.mDamaged);
+        assertEquals(0, contents.mRecords.size());
+
+        // Garbage which doesn't even have a valid length prefix.
+        try (FileOutputStream outputStream = new FileOutputStream(file)) {
+            outputStream.write(new byte[]{0x7f, 0x00});
+        }
+        contents = journal.read(key);
+        assertTrue(contents.mDamaged);
+        assertEquals(0, contents.mRecords.size());
+        journal.delete();
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.icu.util.Calendar;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class AuthenticationKeyReplenisherTest {
+    private static final long DAY_MILLIS = 24 * 3600 * 1000L;
+
+    @Test
+    public void testPolicyBuilder() {
+        AuthenticationKeyReplenisher.Policy.Builder builder =
+                new AuthenticationKeyReplenisher.Policy.Builder()
+                        .setMinAvailableKeys(2)
+                        .setRenewBeforeExpiryMillis(DAY_MILLIS);
+        AuthenticationKeyReplenisher.Policy policy = builder.build();
+
+        // Policies don't change when the builder is used again.
+        AuthenticationKeyReplenisher.Policy other = builder.setMinAvailableKeys(5).build();
+        assertEquals(2, policy.getMinAvailableKeys());
+        assertEquals(DAY_MILLIS, policy.getRenewBeforeExpiryMillis());
+        assertEquals(5, other.getMinAvailableKeys());
+        assertEquals(DAY_MILLIS, other.getRenewBeforeExpiryMillis());
+    }
+
+    @Test
+    public void testReplenish() throws Exception {
+        Context appContext = androidx.test.InstrumentationRegistry.getTargetContext();
+        IdentityCredentialStore store = IdentityCredentialStore.getSoftwareInstance(appContext);
+        store.deleteCredentialByName("test");
+        ProvisioningTest.createCredential(store, "test");
+        IdentityCredential credential = store.getCredentialByName("test",
+                IdentityCredentialStore.CIPHERSUITE_ECDHE_HKDF_ECDSA_WITH_AES_256_GCM_SHA256);
+        credential.setAvailableAuthenticationKeys(3, 1);
+
+        long[] now = new long[]{System.currentTimeMillis()};
+        List<Collection<X509Certificate>> keysToCertify = new ArrayList<>();
+        AuthenticationKeyReplenisher replenisher = new AuthenticationKeyReplenisher(store,
+                (credentialName, c, authenticationKeys) -> {
+                    assertEquals("test", credentialName);
+                    keysToCertify.add(authenticationKeys);
+                },
+                Runnable::run,
+                () -> now[0]);
+        replenisher.setPolicy("test", new AuthenticationKeyReplenisher.Policy.Builder()
+                .setMinAvailableKeys(2)
+                .setRenewBeforeExpiryMillis(DAY_MILLIS)
+                .build());
+
+        // No keys are certified yet.
+        assertTrue(replenisher.checkNow("test"));
+        assertEquals(1, keysToCertify.size());
+        assertEquals(3, keysToCertify.get(0).size());
+
+        // The keys remain pending until certified but aren't passed to the certifier again.
+        assertFalse(replenisher.checkNow("test"));
+        assertEquals(1, keysToCertify.size());
+
+        Calendar expirationDate = Calendar.getInstance();
+        expirationDate.setTimeInMillis(now[0] + 10 * DAY_MILLIS);
+        List<AuthenticationKeyCertification> certifications = new ArrayList<>();
+        for (X509Certificate authenticationKey : keysToCertify.get(0)) {
+            certifications.add(new AuthenticationKeyCertification(authenticationKey,
+                    expirationDate, new byte[]{1, 2}));
+        }
+        credential.storeStaticAuthenticationData(certifications);
+        keysToCertify.clear();
+        assertFalse(replenisher.checkNow("test"));
+
+        // Keys expiring within the renewal period are renewed before they expire.
+        now[0] += 9 * DAY_MILLIS + 1;
+        assertTrue(replenisher.checkNow("test"));
+        assertEquals(1, keysToCertify.size());
+        assertEquals(3, keysToCertify.get(0).size());
+
+        store.deleteCredentialByName("test");
+        assertFalse(replenisher.checkNow("test"));
+        replenisher.shutdown();
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BlobStoreTest {
+
+    private static BlobStore createBlobStore(File directory) {
+        SecretKey encryptionKey = new SecretKeySpec(new byte[16], "AES");
+        byte[] macKeyBytes = new byte[32];
+        Arrays.fill(macKeyBytes, (byte) 1);
+        SecretKey macKey = new SecretKeySpec(macKeyBytes, "HmacSHA256");
+        return new BlobStore(directory, encryptionKey, macKey);
+    }
+
+    @Test
+    public void testReferenceCounting() throws Exception {
+        File directory = Files.createTempDirectory("BlobStoreTest").toFile();
+        BlobStore store = createBlobStore(directory);
+
+        byte[] portrait = new byte[4096];
+        Arrays.fill(portrait, (byte) 42);
+        byte[] signature = new byte[1024];
+        Arrays.fill(signature, (byte) 43);
+
+        // The same content is stored once.
+        byte[] address = store.put("mDL", portrait);
+        assertArrayEquals(address, store.put("mVR", portrait.clone()));
+        byte[] signatureAddress = store.put("mDL", signature);
+        assertFalse(Arrays.equals(address, signatureAddress));
+        assertArrayEquals(portrait, store.get(address));
+        assertEquals(0, store.getReferenceCount(address));
+
+        store.addReferences("mDL", Arrays.asList(ByteBuffer.wrap(address),
+                ByteBuffer.wrap(signatureAddress)));
+        store.addReferences("mVR", Collections.singletonList(ByteBuffer.wrap(address)));
+        // Adding a reference again doesn't count twice.
+        store.addReferences("mVR", Collections.singletonList(ByteBuffer.wrap(address)));
+        assertEquals(2, store.getReferenceCount(address));
+        assertEquals(1, store.getReferenceCount(signatureAddress));
+
+        // The references are persisted.
+        store = createBlobStore(directory);
+        store.retainReferences("mDL", Collections.singletonList(ByteBuffer.wrap(address)));
+        assertEquals(2, store.getReferenceCount(address));
+        assertEquals(0, store.getReferenceCount(signatureAddress));
+        assertFalse(store.contains(signatureAddress));
+
+        store.retainReferences("mDL", Collections.emptySet());
+        assertEquals(1, store.getReferenceCount(address));
+        assertTrue(store.contains(address));
+        store.retainReferences("mVR", Collections.emptySet());
+        assertEquals(0, store.getReferenceCount(address));
+        assertFalse(store.contains(address));
+        try {
+            store.get(address);
+            fail("Expected IOException");
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testPutExistingBlob() throws Exception {
+        File directory = Files.createTempDirectory("BlobStoreTest").toFile();
+        BlobStore store = createBlobStore(directory);
+        byte[] portrait = new byte[4096];
+        Arrays.fill(portrait, (byte) 42);
+
+        byte[] address = store.put("mDL", portrait);
+        store.addReferences("mDL", Collections.singletonList(ByteBuffer.wrap(address)));
+
+        // A blob which is already stored isn't deleted when the other owner drops its
+        // reference between putting the blob and adding the reference.
+        assertArrayEquals(address, store.put("mVR", portrait));
+        store.retainReferences("mDL", Collections.emptySet());
+        assertEquals(0, store.getReferenceCount(address));
+        assertTrue(store.contains(address));
+        store.addReferences("mVR", Collections.singletonList(ByteBuffer.wrap(address)));
+        assertEquals(1, store.getReferenceCount(address));
+        assertArrayEquals(portrait, store.get(address));
+
+        // Once referenced it's deleted with the last reference as usual.
+        store.retainReferences("mVR", Collections.emptySet());
+        assertFalse(store.contains(address));
+
+        // A blob whose last reference was dropped is stored again.
+        assertArrayEquals(address, store.put("mDL", portrait));
+        assertArrayEquals(portrait, store.get(address));
+
+        // Dropping the references of an owner also gives up the blobs it put without adding
+        // a reference, so they're deleted with the last reference of another owner.
+        store.retainReferences("mDL", Collections.emptySet());
+        store.put("mVR", portrait);
+        store.addReferences("mVR", Collections.singletonList(ByteBuffer.wrap(address)));
+        store.retainReferences("mVR", Collections.emptySet());
+        assertFalse(store.contains(address));
+    }
+
+    @Test
+    public void testTamperedBlob() throws Exception {
+        File directory = Files.createTempDirectory("BlobStoreTest").toFile();
+        BlobStore store = createBlobStore(directory);
+        byte[] address = store.put("test", new byte[]{1, 2, 3});
+        byte[] otherAddress = store.put("test", new byte[]{4, 5, 6});
+
+        // A blob can't be passed off as another one.
+        File file = new File(directory, Util.toHex(address));
+        File otherFile = new File(directory, Util.toHex(otherAddress));
+        Files.copy(otherFile.toPath(), file.toPath(),
+                java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+        try {
+            store.get(address);
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+    }
+}
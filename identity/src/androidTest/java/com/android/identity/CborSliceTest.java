@@ -0,0 +1,248 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.util.Pair;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+import co.nstant.in.cbor.CborBuilder;
+import co.nstant.in.cbor.model.DataItem;
+import co.nstant.in.cbor.model.SimpleValue;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class CborSliceTest {
+
+    @Test
+    public void testScalars() {
+        assertEquals(42, CborSlice.of(Util.cborEncodeNumber(42)).getLong());
+        assertEquals(-42, CborSlice.of(Util.cborEncodeNumber(-42)).getLong());
+        assertEquals(Long.MAX_VALUE,
+                CborSlice.of(Util.cborEncodeNumber(Long.MAX_VALUE)).getLong());
+        assertEquals(Long.MIN_VALUE,
+                CborSlice.of(Util.cborEncodeNumber(Long.MIN_VALUE)).getLong());
+        assertEquals("Hello World", CborSlice.of(Util.cborEncodeString("Hello World"))
+                .getString());
+        assertEquals("æøå", CborSlice.of(Util.cborEncodeString("æøå"))
+                .getString());
+        assertArrayEquals(new byte[]{1, 2, 3},
+                CborSlice.of(Util.cborEncodeBytestring(new byte[]{1, 2, 3})).getByteString());
+        assertTrue(CborSlice.of(Util.cborEncodeBoolean(true)).getBoolean());
+        assertFalse(CborSlice.of(Util.cborEncodeBoolean(false)).getBoolean());
+        assertTrue(CborSlice.of(Util.cborEncode(SimpleValue.NULL)).isNull());
+    }
+
+    @Test
+    public void testMapAndArray() {
+        byte[] encoded = Util.cborEncode(new CborBuilder()
+                .addMap()
+                .put("foo", "bar")
+                .put(-2, 42)
+                .put("æøå", true)
+                .putArray("array")
+                .add(1)
+                .add("two")
+                .addMap()
+                .put(3, "three")
+                .end()
+                .end()
+                .end()
+                .build().get(0));
+        CborSlice map = CborSlice.of(encoded);
+        assertEquals(CborSlice.MAJOR_TYPE_MAP, map.getMajorType());
+        assertEquals("bar", map.getMapValue("foo").getString());
+        assertEquals(42, map.getMapValue(-2).getLong());
+        assertTrue(map.getMapValue("æøå").getBoolean());
+        assertNull(map.findMapValue("fo"));
+        assertNull(map.findMapValue("foo2"));
+        assertNull(map.findMapValue(2));
+        try {
+            map.getMapValue("does-not-exist");
+            fail("Expected exception");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        List<CborSlice> items = map.getMapValue("array").getArrayItems();
+        assertEquals(3, items.size());
+        assertEquals(1, items.get(0).getLong());
+        assertEquals("two", items.get(1).getString());
+        assertEquals("three", items.get(2).getMapValue(3).getString());
+
+        co.nstant.in.cbor.model.Map decodedMap =
+                (co.nstant.in.cbor.model.Map) Util.cborDecode(encoded);
+        List<Pair<CborSlice, CborSlice>> entries = map.getMapEntries();
+        assertEquals(4, entries.size());
+        for (Pair<CborSlice, CborSlice> entry : entries) {
+            // Check that views over sub-items decode the same as the generic decoder.
+            DataItem key = entry.first.toDataItem();
+            DataItem value = entry.second.toDataItem();
+            assertEquals(value, decodedMap.get(key));
+        }
+        assertArrayEquals(encoded, map.getEncoded());
+    }
+
+    @Test
+    public void testTaggedEncodedCbor() {
+        byte[] inner = Util.cborEncode(new CborBuilder()
+                .addMap()
+                .put("a", 1)
+                .end()
+                .build().get(0));
+        byte[] encoded = Util.cborEncode(new CborBuilder()
+                .addArray()
+                .add(Util.cborBuildTaggedByteString(inner))
+                .add(inner)
+                .end()
+                .build().get(0));
+        CborSlice array = CborSlice.of(encoded);
+        CborSlice tagged = array.getArrayItems().get(0);
+        assertTrue(tagged.hasTag());
+        assertEquals(24, tagged.getTag());
+        CborSlice embedded = tagged.getTaggedEncodedCbor();
+        assertEquals(1, embedded.getMapValue("a").getLong());
+        // The embedded view is over the same buffer, nothing is copied.
+        assertTrue(embedded.getBuffer() == encoded);
+        assertArrayEquals(inner, embedded.getEncoded());
+
+        CborSlice untagged = array.getArrayItems().get(1);
+        assertFalse(untagged.hasTag());
+        assertEquals(-1, untagged.getTag());
+        try {
+            untagged.getTaggedEncodedCbor();
+            fail("Expected exception");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(1, untagged.getByteStringAsCbor().getMapValue("a").getLong());
+    }
+
+    @Test
+    public void testIndefiniteLength() {
+        // {_ "a": [_ 1, 2], "b": (_ h'0102', h'03')}
+        byte[] encoded = Util.fromHex("bf61619f0102ff61625f4201024103ffff");
+        CborSlice map = CborSlice.of(encoded);
+        List<CborSlice> items = map.getMapValue("a").getArrayItems();
+        assertEquals(2, items.size());
+        assertEquals(2, items.get(1).getLong());
+        assertArrayEquals(new byte[]{1, 2, 3}, map.getMapValue("b").getByteString());
+        assertEquals(2, map.getMapEntries().size());
+    }
+
+    @Test
+    public void testMalformed() {
+        String[] malformed = new String[]{
+                "",          // no data
+                "0102",      // two items
+                "62",        // truncated string
+                "6261",      // truncated string
+                "82",        // truncated array
+                "a16161",    // truncated map
+                "1b0000",    // truncated head
+                "9f01",      // missing break
+                "ff",        // stray break
+                "1c",        // reserved additional info
+                "5f6161ff",  // wrong chunk type in indefinite-length string
+                "9bffffffffffffffff",  // absurd array length
+        };
+        for (String hex : malformed) {
+            try {
+                CborSlice.of(Util.fromHex(hex));
+                fail("Expected exception for " + hex);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testIsCanonical() {
+        String[] canonical = new String[]{
+                "00", "17", "1818", "190100", "1a00010000", "1b0000000100000000", "20",
+                "4401020304", "6161", "80", "a0", "f4", "f5", "f6", "f7",
+                "d818420102",  // 24(h'0102')
+                "a26161016162f5",  // {"a": 1, "b": true}
+                "a2016161616102",  // {1: "a", "a": 2}
+                "a2613f01617f02",  // {"?": 1, "\x7f": 2}
+        };
+        for (String hex : canonical) {
+            byte[] encoded = Util.fromHex(hex);
+            assertTrue(hex, CborSlice.of(encoded).isCanonical());
+            assertArrayEquals(hex, encoded, Util.cborEncode(Util.cborDecode(encoded)));
+        }
+
+        String[] nonCanonical = new String[]{
+                "1817",              // non-minimal head
+                "190001",            // non-minimal head
+                "5f4101ff",          // indefinite-length string
+                "9f01ff",            // indefinite-length array
+                "a26162016161f5",    // {"b": 1, "a": true}, keys not in order
+                "a2616101616102",    // duplicate keys
+                "a28201020f616101",  // {[1, 2]: 15, "a": 1}, longer key first
+                "62c3a6",            // non-ASCII string
+                "f93c00",            // half-precision float
+                "d8189f01ff",        // non-canonical item under tag
+                "c0c060",            // nested tags
+        };
+        for (String hex : nonCanonical) {
+            assertFalse(hex, CborSlice.of(Util.fromHex(hex)).isCanonical());
+        }
+    }
+
+    @Test
+    public void testWrongTypes() {
+        CborSlice slice = CborSlice.of(Util.cborEncodeString("foo"));
+        try {
+            slice.getLong();
+            fail("Expected exception");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            slice.getByteString();
+            fail("Expected exception");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            slice.getMapValue("foo");
+            fail("Expected exception");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            slice.getArrayItems();
+            fail("Expected exception");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class CborStreamReaderTest {
+
+    private static byte[] read(String hex, CborStreamReader.Limits limits) throws IOException {
+        byte[] data = Util.fromHex(hex);
+        return CborStreamReader.readDataItem(new ByteArrayInputStream(data), data.length,
+                limits);
+    }
+
+    @Test
+    public void testWellFormed() throws IOException {
+        String[] vectors = new String[]{
+                TestVectors.ISO_18013_5_ANNEX_D_SESSION_ESTABLISHMENT,
+                TestVectors.ISO_18013_5_ANNEX_D_SESSION_DATA,
+                TestVectors.ISO_18013_5_ANNEX_D_SESSION_TERMINATION,
+                TestVectors.ISO_18013_5_ANNEX_D_DEVICE_RESPONSE,
+                TestVectors.ISO_18013_5_ANNEX_D_DEVICE_REQUEST,
+                // [_ h'01', (_ "a" "b"), {_ 1: 2}, 1.5, true, -1]
+                "9f4101 7f61616162ff bf0102ff f93e00 f5 20 ff".replace(" ", ""),
+        };
+        for (String hex : vectors) {
+            assertArrayEquals(Util.fromHex(hex), read(hex, CborStreamReader.Limits.DEFAULT));
+        }
+    }
+
+    @Test
+    public void testMalformed() {
+        String[] vectors = new String[]{
+                "a16464617461",        // Map with a missing value.
+                "8201ff",              // Unexpected break.
+                "1c",                  // Reserved additional information.
+                "5f4101610100ff",      // Text string chunk in byte string of indefinite length.
+                "0101",                // Trailing data.
+                "1bffffffffffffffff",  // Argument too large.
+                "9bffffffff00000000",  // Array claims more items than remaining bytes.
+        };
+        for (String hex : vectors) {
+            assertThrows(hex, IllegalArgumentException.class,
+                    () -> read(hex, CborStreamReader.Limits.DEFAULT));
+        }
+    }
+
+    @Test
+    public void testLimits() throws IOException {
+        CborStreamReader.Limits limits = new CborStreamReader.Limits(2, 4, 3);
+        assertArrayEquals(Util.fromHex("818143010203"), read("818143010203", limits));
+
+        // Depth.
+        assertThrows(IllegalArgumentException.class, () -> read("81818100", limits));
+        // Nested tags count towards the depth.
+        assertThrows(IllegalArgumentException.class, () -> read("c0c0c000", limits));
+        // Number of items.
+        assertThrows(IllegalArgumentException.class, () -> read("8401020304", limits));
+        // String length, both definite and indefinite.
+        assertThrows(IllegalArgumentException.class, () -> read("440102030405", limits));
+        assertThrows(IllegalArgumentException.class, () -> read("7f626161626262ff", limits));
+    }
+
+    @Test
+    public void testFailsFast() {
+        // A byte string claiming to be 1 MiB long but with no content. The limit must be
+        // enforced after reading only the five bytes of the header.
+        byte[] header = Util.fromHex("5a00100000");
+        InputStream inputStream = new InputStream() {
+            int mOffset = 0;
+
+            @Override
+            public int read() {
+                if (mOffset >= header.length) {
+                    throw new AssertionError("Read past header");
+                }
+                return header[mOffset++] & 0xff;
+            }
+        };
+        assertThrows(IllegalArgumentException.class,
+                () -> CborStreamReader.readDataItem(inputStream, 2 * 1024 * 1024,
+                        new CborStreamReader.Limits(16, 16, 1024)));
+    }
+
+    @Test
+    public void testEndOfStream() throws IOException {
+        byte[] data = Util.fromHex("8301020304");
+        // The peer announces 5 bytes but only sends 3.
+        assertNull(CborStreamReader.readDataItem(new ByteArrayInputStream(data, 0, 3),
+                data.length, CborStreamReader.Limits.DEFAULT));
+
+        // Only the announced length is consumed from the stream.
+        ByteArrayInputStream inputStream = new ByteArrayInputStream(data);
+        assertArrayEquals(Util.fromHex("83010203"),
+                CborStreamReader.readDataItem(inputStream, 4, CborStreamReader.Limits.DEFAULT));
+        assertEquals(1, inputStream.available());
+    }
+}
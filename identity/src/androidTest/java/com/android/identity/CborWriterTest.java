@@ -0,0 +1,183 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.List;
+
+import co.nstant.in.cbor.CborBuilder;
+import co.nstant.in.cbor.builder.MapBuilder;
+import co.nstant.in.cbor.model.DataItem;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class CborWriterTest {
+
+    @Test
+    public void testScalars() {
+        long[] numbers = new long[]{0, 1, 23, 24, 255, 256, 65535, 65536, 0xffffffffL,
+                0x100000000L, Long.MAX_VALUE, -1, -24, -25, -256, -257, Long.MIN_VALUE};
+        for (long number : numbers) {
+            byte[] expected = Util.cborEncodeNumber(number);
+            assertEquals(expected.length, CborWriter.sizeOfNumber(number));
+            assertArrayEquals(expected,
+                    new CborWriter(expected.length).writeNumber(number).toByteArray());
+        }
+
+        String[] strings = new String[]{"", "a", "Hello World", "æøå",
+                "A string which is longer than twenty-three characters"};
+        for (String string : strings) {
+            byte[] expected = Util.cborEncodeString(string);
+            assertEquals(expected.length, CborWriter.sizeOfString(string));
+            assertArrayEquals(expected,
+                    new CborWriter(0).writeString(string).toByteArray());
+        }
+
+        byte[] data = new byte[300];
+        Arrays.fill(data, (byte) 0x42);
+        assertArrayEquals(Util.cborEncodeBytestring(data),
+                new CborWriter(0).writeByteString(data).toByteArray());
+        assertEquals(Util.cborEncodeBytestring(data).length,
+                CborWriter.sizeOfByteString(data.length));
+
+        assertArrayEquals(Util.cborEncodeBoolean(true),
+                new CborWriter(0).writeBoolean(true).toByteArray());
+        assertArrayEquals(Util.cborEncodeBoolean(false),
+                new CborWriter(0).writeBoolean(false).toByteArray());
+
+        byte[] expected = Util.cborEncode(Util.cborBuildTaggedByteString(data));
+        assertEquals(expected.length, CborWriter.sizeOfTaggedEncodedCbor(data.length));
+        assertArrayEquals(expected,
+                new CborWriter(0).writeTaggedEncodedCbor(data).toByteArray());
+    }
+
+    @Test
+    public void testCanonicalKeyOrder() {
+        List<String> keys = Arrays.asList("org.iso.18013.5.1", "b", "aa", "a", "æ", "status",
+                "version", "documents", "\u007f", "z");
+
+        CborBuilder builder = new CborBuilder();
+        MapBuilder<CborBuilder> mapBuilder = builder.addMap();
+        for (String key : keys) {
+            mapBuilder.put(key, key.length());
+        }
+        byte[] expected = Util.cborEncode(builder.build().get(0));
+
+        CborWriter writer = new CborWriter(0);
+        writer.writeMapHead(keys.size());
+        for (String key : CborWriter.canonicalKeyOrder(keys)) {
+            writer.writeString(key).writeNumber(key.length());
+        }
+        assertArrayEquals(expected, writer.toByteArray());
+    }
+
+    @Test
+    public void testExactSizeAndReuse() {
+        DataItem item = new CborBuilder()
+                .addArray()
+                .add("foo")
+                .add(42)
+                .end()
+                .build().get(0);
+        byte[] expected = Util.cborEncode(item);
+        int size = CborWriter.sizeOfHead(2) + CborWriter.sizeOfString("foo")
+                + CborWriter.sizeOfNumber(42);
+        assertEquals(expected.length, size);
+
+        // When the size is exact, the internal buffer is handed out without copying it.
+        CborWriter writer = new CborWriter(size);
+        byte[] buffer = writer.getBuffer();
+        byte[] encoded = writer.writeArrayHead(2).writeString("foo").writeNumber(42)
+                .toByteArray();
+        assertSame(buffer, encoded);
+        assertArrayEquals(expected, encoded);
+
+        // A writer with spare capacity can be reset and reused.
+        writer = new CborWriter(64);
+        buffer = writer.getBuffer();
+        writer.writeString("bar");
+        writer.reset();
+        writer.writeArrayHead(2).writeString("foo").writeNumber(42);
+        assertSame(buffer, writer.getBuffer());
+        assertEquals(expected.length, writer.size());
+        assertArrayEquals(expected, writer.toByteArray());
+
+        // Check that the buffer grows as needed.
+        writer = new CborWriter(1);
+        writer.writeArrayHead(2).writeDataItem(item).writeEncoded(expected);
+        assertArrayEquals(Util.cborEncode(new CborBuilder()
+                        .addArray()
+                        .add(item)
+                        .add(item)
+                        .end()
+                        .build().get(0)),
+                writer.toByteArray());
+    }
+
+    @Test
+    public void testDeviceAuthenticationBytes() {
+        byte[] encodedSessionTranscript = Util.cborEncode(new CborBuilder()
+                .addArray()
+                .add(Util.cborBuildTaggedByteString(new byte[]{1, 2, 3}))
+                .add(Util.cborBuildTaggedByteString(new byte[]{4, 5, 6}))
+                .add(new byte[]{7, 8})
+                .end()
+                .build().get(0));
+        byte[] encodedDeviceNameSpaces = Util.cborEncode(new CborBuilder()
+                .addMap()
+                .putMap("org.iso.18013.5.1")
+                .put("given_name", "Erika")
+                .end()
+                .end()
+                .build().get(0));
+
+        byte[] deviceAuthentication = Util.cborEncode(new CborBuilder()
+                .addArray()
+                .add("DeviceAuthentication")
+                .add(Util.cborDecode(encodedSessionTranscript))
+                .add("org.iso.18013.5.1.mDL")
+                .add(Util.cborBuildTaggedByteString(encodedDeviceNameSpaces))
+                .end()
+                .build().get(0));
+        assertArrayEquals(
+                Util.cborEncode(Util.cborBuildTaggedByteString(deviceAuthentication)),
+                Util.buildDeviceAuthenticationBytes(encodedSessionTranscript,
+                        "org.iso.18013.5.1.mDL", encodedDeviceNameSpaces));
+
+        byte[] readerAuthentication = Util.cborEncode(new CborBuilder()
+                .addArray()
+                .add("ReaderAuthentication")
+                .add(Util.cborDecode(encodedSessionTranscript))
+                .add(Util.cborBuildTaggedByteString(encodedDeviceNameSpaces))
+                .end()
+                .build().get(0));
+        assertArrayEquals(
+                Util.cborEncode(Util.cborBuildTaggedByteString(readerAuthentication)),
+                Util.buildReaderAuthenticationBytes(encodedSessionTranscript,
+                        encodedDeviceNameSpaces));
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.security.PublicKey;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.List;
+
+import co.nstant.in.cbor.model.DataItem;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class CertificateCacheTest {
+
+    @Test
+    public void testGetCertificate() throws Exception {
+        CertificateCache.clear();
+        byte[] encodedCert = Util.fromHex(TestVectors.ISO_18013_5_ANNEX_D_DS_CERT);
+        // Place the certificate at an offset to check the right region is used.
+        byte[] buffer = new byte[encodedCert.length + 3];
+        System.arraycopy(encodedCert, 0, buffer, 3, encodedCert.length);
+
+        long numHits = CertificateCache.getNumHits();
+        long numMisses = CertificateCache.getNumMisses();
+        X509Certificate cert = CertificateCache.getCertificate(buffer, 3, encodedCert.length);
+        assertArrayEquals(encodedCert, cert.getEncoded());
+        assertEquals(numMisses + 1, CertificateCache.getNumMisses());
+
+        assertSame(cert, CertificateCache.getCertificate(encodedCert, 0, encodedCert.length));
+        assertEquals(numHits + 1, CertificateCache.getNumHits());
+        assertEquals(numMisses + 1, CertificateCache.getNumMisses());
+
+        PublicKey publicKey = CertificateCache.getPublicKey(cert);
+        assertEquals(cert.getPublicKey(), publicKey);
+        assertSame(publicKey, CertificateCache.getPublicKey(cert));
+
+        CertificateCache.clear();
+        X509Certificate newCert =
+                CertificateCache.getCertificate(encodedCert, 0, encodedCert.length);
+        assertNotSame(cert, newCert);
+        assertEquals(cert, newCert);
+        assertEquals(numMisses + 2, CertificateCache.getNumMisses());
+
+        assertThrows(CertificateException.class,
+                () -> CertificateCache.getCertificate(new byte[]{0x30, 0x00}, 0, 2));
+    }
+
+    @Test
+    public void testCoseSign1GetX5ChainUsesCache() {
+        CertificateCache.clear();
+        DataItem deviceResponse = Util.cborDecode(
+                Util.fromHex(TestVectors.ISO_18013_5_ANNEX_D_DEVICE_RESPONSE));
+        DataItem issuerAuth = Util.cborMapExtract(Util.cborMapExtract(
+                Util.cborMapExtractArray(deviceResponse, "documents").get(0),
+                "issuerSigned"), "issuerAuth");
+
+        List<X509Certificate> first = Util.coseSign1GetX5Chain(issuerAuth);
+        long numHits = CertificateCache.getNumHits();
+        List<X509Certificate> second = Util.coseSign1GetX5Chain(
+                CborSlice.of(Util.cborEncode(issuerAuth)));
+        assertEquals(1, first.size());
+        assertSame(first.get(0), second.get(0));
+        assertEquals(numHits + 1, CertificateCache.getNumHits());
+    }
+}
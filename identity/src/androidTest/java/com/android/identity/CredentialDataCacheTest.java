@@ -0,0 +1,115 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class CredentialDataCacheTest {
+    private static final String MDL_NAMESPACE = "org.iso.18013-5.2019";
+
+    @Test
+    public void testLimits() throws Exception {
+        Context appContext = androidx.test.InstrumentationRegistry.getTargetContext();
+        IdentityCredentialStore store = IdentityCredentialStore.getSoftwareInstance(appContext);
+        store.deleteCredentialByName("test");
+        ProvisioningTest.createCredential(store, "test");
+
+        long[] now = new long[]{0};
+        CredentialDataCache cache = new CredentialDataCache(() -> now[0]);
+        CredentialData data = CredentialData.loadCredentialData(appContext, "test");
+        assertTrue(data.hasValuesOnDisk());
+
+        // Disabled by default.
+        cache.put("test", data);
+        assertNull(cache.get("test"));
+        assertEquals(0, cache.size());
+
+        cache.setLimits(2, 100000, 1000);
+        cache.put("test", data);
+        assertSame(data, cache.get("test"));
+        assertEquals(1, cache.getNumHits());
+
+        // Values read are counted against the memory budget and wiped on eviction.
+        long sizeBefore = data.getEstimatedSize();
+        byte[] value = data.lookupNamespaceData(MDL_NAMESPACE).getEntryValue("First name");
+        assertEquals("Alan", Util.cborDecodeString(value));
+        long sizeAfter = data.getEstimatedSize();
+        assertEquals(sizeBefore + value.length, sizeAfter);
+        cache.setLimits(2, sizeAfter - 1, 1000);
+        assertNull(cache.get("test"));
+        assertEquals(sizeBefore, data.getEstimatedSize());
+        // The returned copy isn't affected and the value can be read again.
+        assertEquals("Alan", Util.cborDecodeString(value));
+        assertEquals("Alan", Util.cborDecodeString(
+                data.lookupNamespaceData(MDL_NAMESPACE).getEntryValue("First name")));
+
+        // Evicted once expired.
+        cache.setLimits(2, 100000, 1000);
+        cache.put("test", data);
+        now[0] = 999;
+        assertNotNull(cache.get("test"));
+        now[0] = 1000;
+        assertNull(cache.get("test"));
+
+        cache.put("test", data);
+        cache.invalidate("test");
+        assertEquals(0, cache.size());
+
+        store.deleteCredentialByName("test");
+    }
+
+    @Test
+    public void testStoreUsesCache() throws Exception {
+        Context appContext = androidx.test.InstrumentationRegistry.getTargetContext();
+        IdentityCredentialStore store = IdentityCredentialStore.getSoftwareInstance(appContext);
+        store.deleteCredentialByName("test");
+        ProvisioningTest.createCredential(store, "test");
+
+        CredentialDataCache cache = CredentialDataCache.getInstance();
+        IdentityCredentialStore.setSoftwareCredentialCacheLimits(4, 1024 * 1024, 60 * 1000);
+        try {
+            assertNotNull(store.getCredentialByName("test",
+                    IdentityCredentialStore.CIPHERSUITE_ECDHE_HKDF_ECDSA_WITH_AES_256_GCM_SHA256));
+            long numHits = cache.getNumHits();
+            assertNotNull(store.getCredentialByName("test",
+                    IdentityCredentialStore.CIPHERSUITE_ECDHE_HKDF_ECDSA_WITH_AES_256_GCM_SHA256));
+            assertEquals(numHits + 1, cache.getNumHits());
+
+            // Deleting the credential invalidates the cache.
+            store.deleteCredentialByName("test");
+            assertEquals(0, cache.size());
+            assertNull(store.getCredentialByName("test",
+                    IdentityCredentialStore.CIPHERSUITE_ECDHE_HKDF_ECDSA_WITH_AES_256_GCM_SHA256));
+        } finally {
+            IdentityCredentialStore.setSoftwareCredentialCacheLimits(0, 0, 0);
+        }
+    }
+}
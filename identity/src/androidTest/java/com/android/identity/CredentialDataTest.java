@@ -0,0 +1,155 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.util.AtomicFile;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+import co.nstant.in.cbor.model.DataItem;
+import co.nstant.in.cbor.model.Map;
+import co.nstant.in.cbor.model.Number;
+import co.nstant.in.cbor.model.UnicodeString;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class CredentialDataTest {
+    private static final String MDL_NAMESPACE = "org.iso.18013-5.2019";
+
+    private static SecretKey getDataKey(String credentialName) throws Exception {
+        KeyStore ks = KeyStore.getInstance("AndroidKeyStore");
+        ks.load(null);
+        return ((KeyStore.SecretKeyEntry) ks.getEntry(
+                CredentialData.getDataKeyAliasFromCredentialName(credentialName), null))
+                .getSecretKey();
+    }
+
+    private static Map readFile(Context context, SecretKey dataKey, String filename,
+            byte[] additionalData) throws Exception {
+        byte[] data = new AtomicFile(context.getFileStreamPath(filename)).readFully();
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, dataKey, new GCMParameterSpec(128, data, 0, 12));
+        if (additionalData != null) {
+            cipher.updateAAD(additionalData);
+        }
+        return (Map) Util.cborDecode(cipher.doFinal(data, 12, data.length - 12));
+    }
+
+    private static void writeFile(Context context, SecretKey dataKey, String filename,
+            DataItem item) throws Exception {
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, dataKey);
+        byte[] cipherText = cipher.doFinal(Util.cborEncode(item));
+        ByteBuffer data = ByteBuffer.allocate(12 + cipherText.length);
+        data.put(cipher.getIV());
+        data.put(cipherText);
+
+        AtomicFile file = new AtomicFile(context.getFileStreamPath(filename));
+        FileOutputStream outputStream = file.startWrite();
+        outputStream.write(data.array());
+        file.finishWrite(outputStream);
+    }
+
+    @Test
+    public void testMigrateSingleFileFormat() throws Exception {
+        Context appContext = androidx.test.InstrumentationRegistry.getTargetContext();
+        IdentityCredentialStore store = IdentityCredentialStore.getSoftwareInstance(appContext);
+        store.deleteCredentialByName("test");
+        ProvisioningTest.createCredential(store, "test");
+        IdentityCredential credential = store.getCredentialByName("test",
+                IdentityCredentialStore.CIPHERSUITE_ECDHE_HKDF_ECDSA_WITH_AES_256_GCM_SHA256);
+        credential.setAvailableAuthenticationKeys(2, 3);
+
+        // Rewrite the credential in the single-file format used by earlier versions of this
+        // library: everything in one map, with the values inline in namespaceDatas.
+        SecretKey dataKey = getDataKey("test");
+        String dataFilename = CredentialData.getFilenameForCredentialData("test");
+        Map manifest = readFile(appContext, dataKey, dataFilename, null);
+        Map segments = (Map) manifest.get(new UnicodeString("segments"));
+        assertNotNull(segments);
+        Map legacy = new Map();
+        for (DataItem key : segments.getKeys()) {
+            String segment = ((UnicodeString) key).getString();
+            long version = ((Number) segments.get(key)).getValue().longValue();
+            String filename = CredentialData.getFilenameForCredentialSegment("test", segment,
+                    version);
+            Map segmentMap = readFile(appContext, dataKey, filename,
+                    filename.getBytes(StandardCharsets.UTF_8));
+            for (DataItem segmentKey : segmentMap.getKeys()) {
+                legacy.put(segmentKey, segmentMap.get(segmentKey));
+            }
+            appContext.deleteFile(filename);
+            appContext.deleteFile(CredentialData.getFilenameForCredentialValues("test",
+                    version));
+        }
+        CredentialData data = CredentialData.loadCredentialData(appContext, "test");
+        Map namespaceDatas = new Map();
+        for (PersonalizationData.NamespaceData namespaceData : data.getNamespaceDatas()) {
+            namespaceDatas.put(new UnicodeString(namespaceData.getNamespaceName()),
+                    CredentialData.namespaceDataToCbor(namespaceData));
+        }
+        legacy.remove(new UnicodeString("namespaceIndex"));
+        legacy.put(new UnicodeString("namespaceDatas"), namespaceDatas);
+        writeFile(appContext, dataKey, dataFilename, legacy);
+
+        // The values are inline when loaded.
+        data = CredentialData.loadCredentialData(appContext, "test");
+        assertNotNull(data);
+        assertFalse(data.hasValuesOnDisk());
+        assertEquals("Alan", Util.cborDecodeString(
+                data.lookupNamespaceData(MDL_NAMESPACE).getEntryValue("First name")));
+        assertEquals(2, data.getAuthKeyCount());
+
+        // Saving writes all segments, after which the credential is loaded from them.
+        data.setAvailableAuthenticationKeys(2, 3);
+        manifest = readFile(appContext, dataKey, dataFilename, null);
+        segments = (Map) manifest.get(new UnicodeString("segments"));
+        assertNotNull(segments);
+        assertEquals(4, segments.getKeys().size());
+        assertNull(manifest.get(new UnicodeString("namespaceDatas")));
+
+        data = CredentialData.loadCredentialData(appContext, "test");
+        assertNotNull(data);
+        assertTrue(data.hasValuesOnDisk());
+        assertEquals("Alan", Util.cborDecodeString(
+                data.lookupNamespaceData(MDL_NAMESPACE).getEntryValue("First name")));
+        assertEquals(2, data.getAuthKeyCount());
+        assertEquals(3, data.getAuthMaxUsesPerKey());
+
+        store.deleteCredentialByName("test");
+    }
+}
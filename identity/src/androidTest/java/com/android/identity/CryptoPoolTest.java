@@ -0,0 +1,144 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class CryptoPoolTest {
+
+    @Test
+    public void testReusedPerThread() throws Exception {
+        MessageDigest digest = CryptoPool.getMessageDigest("SHA-256");
+        long numCreated = CryptoPool.getNumInstancesCreated();
+        long numReused = CryptoPool.getNumInstancesReused();
+
+        // Leave some state behind, it must be reset when handed out again.
+        digest.update(new byte[]{1, 2, 3});
+        assertSame(digest, CryptoPool.getMessageDigest("SHA-256"));
+        assertArrayEquals(MessageDigest.getInstance("SHA-256").digest("abc".getBytes(UTF_8)),
+                CryptoPool.getMessageDigest("SHA-256").digest("abc".getBytes(UTF_8)));
+        assertEquals(numCreated, CryptoPool.getNumInstancesCreated());
+        assertEquals(numReused + 2, CryptoPool.getNumInstancesReused());
+
+        // Other threads get their own instance.
+        AtomicReference<MessageDigest> otherDigest = new AtomicReference<>();
+        Thread thread = new Thread(() -> {
+            try {
+                otherDigest.set(CryptoPool.getMessageDigest("SHA-256"));
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        thread.start();
+        thread.join();
+        assertNotSame(digest, otherDigest.get());
+        assertTrue(CryptoPool.getNumInstancesCreated() > numCreated);
+    }
+
+    @Test
+    public void testInitializedWithKey() throws Exception {
+        SecretKeySpec key1 = new SecretKeySpec(new byte[32], "HmacSHA256");
+        SecretKeySpec key2 = new SecretKeySpec(new byte[]{1, 2, 3}, "HmacSHA256");
+        byte[] data = new byte[]{4, 5, 6};
+
+        Mac expected = Mac.getInstance("HmacSHA256");
+        expected.init(key2);
+        CryptoPool.getMac("HmacSHA256", key1).update(data);
+        assertArrayEquals(expected.doFinal(data),
+                CryptoPool.getMac("HmacSHA256", key2).doFinal(data));
+
+        // AES-GCM with a fresh IV every time, as done for session encryption.
+        SecretKeySpec aesKey = new SecretKeySpec(new byte[16], "AES");
+        for (int counter = 1; counter < 4; counter++) {
+            GCMParameterSpec params = new GCMParameterSpec(128, new byte[]{
+                    0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0, (byte) counter});
+            byte[] ciphertext = CryptoPool.getCipher("AES/GCM/NoPadding",
+                    Cipher.ENCRYPT_MODE, aesKey, params).doFinal(data);
+            assertArrayEquals(data, CryptoPool.getCipher("AES/GCM/NoPadding",
+                    Cipher.DECRYPT_MODE, aesKey, params).doFinal(ciphertext));
+        }
+    }
+
+    @Test
+    public void testKeyStoreKeysPooledSeparately() throws Exception {
+        KeyGenerator kg = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES,
+                "AndroidKeyStore");
+        kg.init(new KeyGenParameterSpec.Builder("CryptoPoolTest",
+                KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                .setKeySize(128)
+                .build());
+        SecretKey keyStoreKey = kg.generateKey();
+        SecretKeySpec softwareKey = new SecretKeySpec(new byte[16], "AES");
+        GCMParameterSpec params = new GCMParameterSpec(128, new byte[12]);
+
+        // Alternating between the two kinds of keys, as done on the presentation thread,
+        // hands out the same instance for each kind every time.
+        Cipher keyStoreCipher = CryptoPool.getCipher("AES/GCM/NoPadding",
+                Cipher.ENCRYPT_MODE, keyStoreKey, null);
+        Cipher softwareCipher = CryptoPool.getCipher("AES/GCM/NoPadding",
+                Cipher.ENCRYPT_MODE, softwareKey, params);
+        assertNotSame(keyStoreCipher, softwareCipher);
+        long numCreated = CryptoPool.getNumInstancesCreated();
+        for (int n = 0; n < 3; n++) {
+            assertSame(keyStoreCipher, CryptoPool.getCipher("AES/GCM/NoPadding",
+                    Cipher.ENCRYPT_MODE, keyStoreKey, null));
+            assertSame(softwareCipher, CryptoPool.getCipher("AES/GCM/NoPadding",
+                    Cipher.ENCRYPT_MODE, softwareKey, params));
+        }
+        assertEquals(numCreated, CryptoPool.getNumInstancesCreated());
+
+        KeyStore ks = KeyStore.getInstance("AndroidKeyStore");
+        ks.load(null);
+        ks.deleteEntry("CryptoPoolTest");
+    }
+
+    @Test
+    public void testP256Parameters() {
+        assertSame(CryptoPool.getP256Parameters(), CryptoPool.getP256Parameters());
+        assertEquals(256, CryptoPool.getP256Parameters().getCurve().getField().getFieldSize());
+    }
+}
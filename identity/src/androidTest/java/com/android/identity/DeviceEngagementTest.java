@@ -0,0 +1,110 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.math.BigInteger;
+import java.security.PublicKey;
+import java.security.interfaces.ECPublicKey;
+import java.util.List;
+
+import co.nstant.in.cbor.CborBuilder;
+import co.nstant.in.cbor.model.Array;
+import co.nstant.in.cbor.model.ByteString;
+import co.nstant.in.cbor.model.DataItem;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class DeviceEngagementTest {
+
+    @Test
+    public void testDecodeVector() {
+        DataItem sessionTranscript = Util.cborExtractTaggedAndEncodedCbor(Util.cborDecode(
+                Util.fromHex(TestVectors.ISO_18013_5_ANNEX_D_SESSION_TRANSCRIPT_BYTES)));
+        DataItem deviceEngagementBytes = ((Array) sessionTranscript).getDataItems().get(0);
+        byte[] encodedDeviceEngagement = ((ByteString) deviceEngagementBytes).getBytes();
+        DataItem expectedEDeviceKeyBytes = Util.cborMapExtractArray(
+                Util.cborDecode(encodedDeviceEngagement), 1).get(1);
+
+        DeviceEngagement deviceEngagement = DeviceEngagement.decode(encodedDeviceEngagement);
+        assertEquals("1.0", deviceEngagement.getVersion());
+        assertEquals(1, deviceEngagement.getCipherSuite());
+        assertArrayEquals(Util.cborEncode(expectedEDeviceKeyBytes),
+                deviceEngagement.getEncodedEDeviceKeyBytes());
+        ECPublicKey eDeviceKey = (ECPublicKey) deviceEngagement.getEDeviceKey();
+        assertEquals(new BigInteger(TestVectors.ISO_18013_5_ANNEX_D_EPHEMERAL_DEVICE_KEY_X, 16),
+                eDeviceKey.getW().getAffineX());
+        assertEquals(new BigInteger(TestVectors.ISO_18013_5_ANNEX_D_EPHEMERAL_DEVICE_KEY_Y, 16),
+                eDeviceKey.getW().getAffineY());
+    }
+
+    @Test
+    public void testDeviceRetrievalMethods() {
+        PublicKey eDeviceKey = Util.createEphemeralKeyPair().getPublic();
+        DataItem method = new CborBuilder()
+                .addArray()
+                .add(1)
+                .add(1)
+                .addMap()
+                .put(2, 42)
+                .end()
+                .end()
+                .build().get(0);
+        byte[] encodedDeviceEngagement = Util.cborEncode(new CborBuilder()
+                .addMap()
+                .put(0, "1.0")
+                .putArray(1)
+                .add(1)
+                .add(Util.cborBuildTaggedByteString(Util.cborEncodeCoseKey(eDeviceKey)))
+                .end()
+                .putArray(2)
+                .add(method)
+                .end()
+                .end()
+                .build().get(0));
+
+        DeviceEngagement deviceEngagement = DeviceEngagement.decode(encodedDeviceEngagement);
+        assertEquals(eDeviceKey, deviceEngagement.getEDeviceKey());
+        List<byte[]> methods = deviceEngagement.getDeviceRetrievalMethods();
+        assertEquals(1, methods.size());
+        assertArrayEquals(Util.cborEncode(method), methods.get(0));
+        assertArrayEquals(Util.cborEncode(method),
+                Util.extractDeviceRetrievalMethods(encodedDeviceEngagement).get(0));
+    }
+
+    @Test
+    public void testDecodeInvalid() {
+        // Not a map.
+        assertThrows(IllegalArgumentException.class,
+                () -> DeviceEngagement.decode(Util.fromHex("80")));
+        // {0: "1.0"}, Security missing.
+        assertThrows(IllegalArgumentException.class,
+                () -> DeviceEngagement.decode(Util.fromHex("a10063312e30")));
+        // {0: "1.0", 1: [1]}, Security too short.
+        assertThrows(IllegalArgumentException.class,
+                () -> DeviceEngagement.decode(Util.fromHex("a20063312e30018101")));
+    }
+}
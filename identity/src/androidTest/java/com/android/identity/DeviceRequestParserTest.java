@@ -51,7 +51,7 @@ public class DeviceRequestParserTest {
 
     @Test
     @SmallTest
-    public void testDeviceRequestParserWithVectors() {
+    public void testDeviceRequestParserWithVectors() throws Exception {
         // Strip the #6.24 tag since our APIs expects just the bytes of SessionTranscript.
         byte[] encodedSessionTranscriptBytes = Util.fromHex(
                 TestVectors.ISO_18013_5_ANNEX_D_SESSION_TRANSCRIPT_BYTES);
@@ -89,6 +89,34 @@ public class DeviceRequestParserTest {
 
         Assert.assertTrue(dr.getReaderAuthenticated());
 
+        VerifiedReaderAuthentication verifiedReaderAuth = dr.getVerifiedReaderAuthentication();
+        Assert.assertNotNull(verifiedReaderAuth);
+        Assert.assertArrayEquals(dr.getReaderAuth(), verifiedReaderAuth.getReaderAuth());
+        Assert.assertEquals(readerCertChain, verifiedReaderAuth.getReaderCertificateChain());
+        Assert.assertTrue(verifiedReaderAuth.matches(dr.getItemsRequest(),
+                encodedSessionTranscript));
+        Assert.assertFalse(verifiedReaderAuth.matches(dr.getItemsRequest(),
+                Util.cborEncodeBytestring(new byte[]{0x01, 0x02})));
+
+        // Changing what the parser returned doesn't affect what was verified.
+        byte[] itemsRequest = dr.getItemsRequest();
+        byte[] originalItemsRequest = itemsRequest.clone();
+        itemsRequest[itemsRequest.length - 1] ^= 0x01;
+        Assert.assertFalse(verifiedReaderAuth.matches(itemsRequest, encodedSessionTranscript));
+        Assert.assertTrue(verifiedReaderAuth.matches(originalItemsRequest,
+                encodedSessionTranscript));
+        itemsRequest[itemsRequest.length - 1] ^= 0x01;
+        dr.getReaderCertificateChain().set(0, null);
+        Assert.assertArrayEquals(Util.fromHex(TestVectors.ISO_18013_5_ANNEX_D_READER_CERT),
+                verifiedReaderAuth.getReaderCertificateChain().get(0).getEncoded());
+
+        CredentialDataRequest credentialDataRequest = new CredentialDataRequest.Builder()
+                .setVerifiedReaderAuthentication(verifiedReaderAuth)
+                .build();
+        Assert.assertSame(verifiedReaderAuth,
+                credentialDataRequest.getVerifiedReaderAuthentication());
+        Assert.assertArrayEquals(dr.getReaderAuth(), credentialDataRequest.getReaderSignature());
+
         Assert.assertArrayEquals(new String[]{MDL_NAMESPACE}, dr.getNamespaces().toArray());
         Assert.assertEquals(6, dr.getEntryNames(MDL_NAMESPACE).size());
         Assert.assertTrue(dr.getIntentToRetain(MDL_NAMESPACE, "family_name"));
@@ -158,6 +186,7 @@ public class DeviceRequestParserTest {
         }
 
         Assert.assertFalse(dr.getReaderAuthenticated());
+        Assert.assertNull(dr.getVerifiedReaderAuthentication());
     }
 
     void testDeviceRequestParserReaderAuthHelper(
@@ -50,6 +50,12 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import co.nstant.in.cbor.CborBuilder;
+import co.nstant.in.cbor.builder.ArrayBuilder;
+import co.nstant.in.cbor.builder.MapBuilder;
+import co.nstant.in.cbor.model.DataItem;
+import co.nstant.in.cbor.model.UnicodeString;
+
 @SuppressWarnings("deprecation")
 @RunWith(AndroidJUnit4.class)
 public class DeviceResponseGeneratorTest {
@@ -202,4 +208,109 @@ public class DeviceResponseGeneratorTest {
         Assert.assertEquals(true, d.getIssuerEntryBoolean(AAMVA_NAMESPACE, "real_id"));
     }
 
+    // Builds DeviceResponse the same way as DeviceResponseGenerator did before it started
+    // including encoded items verbatim, that is by decoding them and encoding everything
+    // as a single DataItem.
+    private static byte[] buildReferenceDeviceResponse(String docType,
+            byte[] encodedDeviceNamespaces,
+            byte[] encodedDeviceSignature,
+            Map<String, List<byte[]>> issuerSignedData,
+            byte[] encodedIssuerAuth) {
+        CborBuilder issuerNameSpacesBuilder = new CborBuilder();
+        MapBuilder<CborBuilder> insOuter = issuerNameSpacesBuilder.addMap();
+        for (String ns : issuerSignedData.keySet()) {
+            ArrayBuilder<MapBuilder<CborBuilder>> insInner = insOuter.putArray(ns);
+            for (byte[] encodedIssuerSignedItemBytes : issuerSignedData.get(ns)) {
+                insInner.add(Util.cborDecode(encodedIssuerSignedItemBytes));
+            }
+            insInner.end();
+        }
+        insOuter.end();
+        DataItem document = new CborBuilder()
+                .addMap()
+                .put("docType", docType)
+                .putMap("issuerSigned")
+                .put(new UnicodeString("nameSpaces"), issuerNameSpacesBuilder.build().get(0))
+                .put(new UnicodeString("issuerAuth"), Util.cborDecode(encodedIssuerAuth))
+                .end()
+                .putMap("deviceSigned")
+                .put(new UnicodeString("nameSpaces"),
+                        Util.cborBuildTaggedByteString(encodedDeviceNamespaces))
+                .putMap("deviceAuth")
+                .put(new UnicodeString("deviceSignature"),
+                        Util.cborDecode(encodedDeviceSignature))
+                .end()
+                .end()
+                .end()
+                .build().get(0);
+        return Util.cborEncode(new CborBuilder()
+                .addMap()
+                .put("version", "1.0")
+                .putArray("documents")
+                .add(document)
+                .end()
+                .put("status", Constants.DEVICE_RESPONSE_STATUS_OK)
+                .end()
+                .build().get(0));
+    }
+
+    @Test
+    @SmallTest
+    public void testEncodedItemsIncludedVerbatim() {
+        byte[] encodedDeviceNamespaces = Util.cborEncode(new CborBuilder()
+                .addMap()
+                .end()
+                .build().get(0));
+        byte[] encodedIssuerSignedItem = Util.cborEncode(new CborBuilder()
+                .addMap()
+                .put("digestID", 42)
+                .put("random", new byte[]{1, 2, 3})
+                .put("elementIdentifier", "given_name")
+                .put("elementValue", "Erika")
+                .end()
+                .build().get(0));
+        Map<String, List<byte[]>> issuerSignedData = new HashMap<>();
+        issuerSignedData.put(MDL_NAMESPACE, Arrays.asList(
+                Util.cborEncode(Util.cborBuildTaggedByteString(encodedIssuerSignedItem))));
+        issuerSignedData.put(AAMVA_NAMESPACE, Arrays.asList(
+                Util.cborEncode(Util.cborBuildTaggedByteString(new byte[]{(byte) 0xf5}))));
+        byte[] encodedCoseSign1 = Util.cborEncode(new CborBuilder()
+                .addArray()
+                .add(new byte[]{(byte) 0xa0})
+                .addMap()
+                .put(33, new byte[]{4, 5, 6})
+                .end()
+                .add(new byte[]{7, 8})
+                .add(new byte[64])
+                .end()
+                .build().get(0));
+        // The same COSE_Sign1 but using a non-minimal head for the integer map key, this
+        // needs to be re-encoded to be canonical.
+        byte[] nonCanonicalCoseSign1 = Util.fromHex("8441a0a1182143040506420708"
+                + "5840" + Util.toHex(new byte[64]));
+        Assert.assertArrayEquals(Util.cborEncode(Util.cborDecode(nonCanonicalCoseSign1)),
+                encodedCoseSign1);
+
+        byte[] expected = buildReferenceDeviceResponse(MDL_DOCTYPE, encodedDeviceNamespaces,
+                encodedCoseSign1, issuerSignedData, encodedCoseSign1);
+        Assert.assertArrayEquals(expected,
+                new DeviceResponseGenerator(Constants.DEVICE_RESPONSE_STATUS_OK)
+                        .addDocument(MDL_DOCTYPE,
+                                encodedDeviceNamespaces,
+                                encodedCoseSign1,
+                                null,
+                                issuerSignedData,
+                                encodedCoseSign1)
+                        .generate());
+        Assert.assertArrayEquals(expected,
+                new DeviceResponseGenerator(Constants.DEVICE_RESPONSE_STATUS_OK)
+                        .addDocument(MDL_DOCTYPE,
+                                encodedDeviceNamespaces,
+                                nonCanonicalCoseSign1,
+                                null,
+                                issuerSignedData,
+                                nonCanonicalCoseSign1)
+                        .generate());
+    }
+
 }
@@ -31,8 +31,16 @@ import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import co.nstant.in.cbor.model.Array;
+import co.nstant.in.cbor.model.DataItem;
+import co.nstant.in.cbor.model.Map;
+import co.nstant.in.cbor.model.UnicodeString;
 
 @SuppressWarnings("deprecation")
 @RunWith(AndroidJUnit4.class)
@@ -110,16 +118,17 @@ public class DeviceResponseParserTest {
         Assert.assertEquals("tag 1004 '2024-10-20'",
                 Util.cborPrettyPrint(d.getIssuerEntryData(MDL_NAMESPACE,
                         "expiry_date")));
+        // The value is returned as encoded by the issuer, which isn't canonical CBOR.
         Assert.assertEquals("[\n"
                         + "  {\n"
+                        + "    'vehicle_category_code' : 'A',\n"
                         + "    'issue_date' : tag 1004 '2018-08-09',\n"
-                        + "    'expiry_date' : tag 1004 '2024-10-20',\n"
-                        + "    'vehicle_category_code' : 'A'\n"
+                        + "    'expiry_date' : tag 1004 '2024-10-20'\n"
                         + "  },\n"
                         + "  {\n"
+                        + "    'vehicle_category_code' : 'B',\n"
                         + "    'issue_date' : tag 1004 '2017-02-23',\n"
-                        + "    'expiry_date' : tag 1004 '2024-10-20',\n"
-                        + "    'vehicle_category_code' : 'B'\n"
+                        + "    'expiry_date' : tag 1004 '2024-10-20'\n"
                         + "  }\n"
                         + "]",
                 Util.cborPrettyPrint(d.getIssuerEntryData(MDL_NAMESPACE,
@@ -285,4 +294,140 @@ public class DeviceResponseParserTest {
         Assert.assertTrue(d.getDeviceSignedAuthenticated());
     }
 
+    @Test
+    @SmallTest
+    public void testDeviceResponseParserDigestsReceivedBytes() {
+        byte[] encodedDeviceResponse = Util.fromHex(
+                TestVectors.ISO_18013_5_ANNEX_D_DEVICE_RESPONSE);
+
+        // The first IssuerSignedItemBytes is for family_name and is encoded as #6.24 with a
+        // one-byte length (d8 18 58 xx). Re-encode the length using two bytes (d8 18 59 00 xx),
+        // which is still valid CBOR for the same data item but not the bytes the issuer
+        // digested. Since the digest must be computed over the bytes as received, this must
+        // not match even though re-encoding the item would yield the original bytes.
+        int offset = -1;
+        for (int n = 0; n < encodedDeviceResponse.length - 2; n++) {
+            if (encodedDeviceResponse[n] == (byte) 0xd8
+                    && encodedDeviceResponse[n + 1] == (byte) 0x18
+                    && encodedDeviceResponse[n + 2] == (byte) 0x58) {
+                offset = n + 2;
+                break;
+            }
+        }
+        Assert.assertTrue(offset > 0 && offset < 200);
+        byte[] modifiedDeviceResponse = new byte[encodedDeviceResponse.length + 1];
+        System.arraycopy(encodedDeviceResponse, 0, modifiedDeviceResponse, 0, offset);
+        modifiedDeviceResponse[offset] = (byte) 0x59;
+        modifiedDeviceResponse[offset + 1] = 0x00;
+        System.arraycopy(encodedDeviceResponse, offset + 1, modifiedDeviceResponse, offset + 2,
+                encodedDeviceResponse.length - offset - 1);
+
+        byte[] encodedSessionTranscriptBytes = Util.fromHex(
+                TestVectors.ISO_18013_5_ANNEX_D_SESSION_TRANSCRIPT_BYTES);
+        byte[] encodedSessionTranscript = Util.cborEncode(
+                Util.cborExtractTaggedAndEncodedCbor(
+                        Util.cborDecode(encodedSessionTranscriptBytes)));
+        PrivateKey eReaderKey = Util.getPrivateKeyFromInteger(new BigInteger(
+                TestVectors.ISO_18013_5_ANNEX_D_EPHEMERAL_READER_KEY_D, 16));
+        DeviceResponseParser.DeviceResponse dr = new DeviceResponseParser()
+                .setDeviceResponse(modifiedDeviceResponse)
+                .setSessionTranscript(encodedSessionTranscript)
+                .setEphemeralReaderKey(eReaderKey)
+                .parse();
+        DeviceResponseParser.Document d = dr.getDocuments().get(0);
+        Assert.assertTrue(d.getIssuerSignedAuthenticated());
+        Assert.assertEquals("Doe", d.getIssuerEntryString(MDL_NAMESPACE, "family_name"));
+        Assert.assertFalse(d.getIssuerEntryDigestMatch(MDL_NAMESPACE, "family_name"));
+        Assert.assertTrue(d.getIssuerEntryDigestMatch(MDL_NAMESPACE, "issue_date"));
+        Assert.assertEquals(1, d.getNumIssuerEntryDigestMatchFailures());
+    }
+
+
+    // Returns a DeviceResponse with the given documents, from Annex D.4.1.2 mdoc response.
+    private static byte[] buildDeviceResponse(List<DataItem> documents) {
+        Map deviceResponse = (Map) Util.cborDecode(
+                Util.fromHex(TestVectors.ISO_18013_5_ANNEX_D_DEVICE_RESPONSE));
+        Array documentsArray = new Array();
+        for (DataItem document : documents) {
+            documentsArray.add(document);
+        }
+        deviceResponse.put(new UnicodeString("documents"), documentsArray);
+        return Util.cborEncode(deviceResponse);
+    }
+
+    @Test
+    @SmallTest
+    public void testDeviceResponseParserWithExecutor() {
+        byte[] encodedDeviceResponse = Util.fromHex(
+                TestVectors.ISO_18013_5_ANNEX_D_DEVICE_RESPONSE);
+        DataItem document = Util.cborMapExtractArray(Util.cborDecode(encodedDeviceResponse),
+                "documents").get(0);
+
+        // Same as in testDeviceResponseParserWithVectorsMalformedIssuerItem().
+        Assert.assertEquals(0x44, encodedDeviceResponse[200]);
+        encodedDeviceResponse[200] = (byte) 0x46;
+        DataItem documentWithBadItem = Util.cborMapExtractArray(
+                Util.cborDecode(encodedDeviceResponse), "documents").get(0);
+
+        byte[] encodedSessionTranscriptBytes = Util.fromHex(
+                TestVectors.ISO_18013_5_ANNEX_D_SESSION_TRANSCRIPT_BYTES);
+        byte[] encodedSessionTranscript = Util.cborEncode(
+                Util.cborExtractTaggedAndEncodedCbor(
+                        Util.cborDecode(encodedSessionTranscriptBytes)));
+        PrivateKey eReaderKey = Util.getPrivateKeyFromInteger(new BigInteger(
+                TestVectors.ISO_18013_5_ANNEX_D_EPHEMERAL_READER_KEY_D, 16));
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            DeviceResponseParser.DeviceResponse dr = new DeviceResponseParser()
+                    .setDeviceResponse(buildDeviceResponse(
+                            Arrays.asList(document, documentWithBadItem, document, document)))
+                    .setSessionTranscript(encodedSessionTranscript)
+                    .setEphemeralReaderKey(eReaderKey)
+                    .setExecutor(executor)
+                    .parse();
+            List<DeviceResponseParser.Document> documents = dr.getDocuments();
+            Assert.assertEquals(4, documents.size());
+            for (int n = 0; n < documents.size(); n++) {
+                DeviceResponseParser.Document d = documents.get(n);
+                Assert.assertTrue(d.getIssuerSignedAuthenticated());
+                Assert.assertTrue(d.getDeviceSignedAuthenticated());
+                Assert.assertEquals(MDL_DOCTYPE, d.getDocType());
+                Assert.assertEquals(Arrays.asList("family_name", "issue_date", "expiry_date",
+                                "document_number", "portrait", "driving_privileges"),
+                        d.getIssuerEntryNames(MDL_NAMESPACE));
+                if (n == 1) {
+                    Assert.assertEquals("Foe",
+                            d.getIssuerEntryString(MDL_NAMESPACE, "family_name"));
+                    Assert.assertEquals(1, d.getNumIssuerEntryDigestMatchFailures());
+                } else {
+                    Assert.assertEquals("Doe",
+                            d.getIssuerEntryString(MDL_NAMESPACE, "family_name"));
+                    Assert.assertEquals(0, d.getNumIssuerEntryDigestMatchFailures());
+                }
+            }
+
+            // If several documents are malformed, the error for the first one is reported
+            // no matter which one is verified first.
+            Map noIssuerSigned = (Map) Util.cborDecode(Util.cborEncode(document));
+            noIssuerSigned.remove(new UnicodeString("issuerSigned"));
+            Map noDeviceSigned = (Map) Util.cborDecode(Util.cborEncode(document));
+            noDeviceSigned.remove(new UnicodeString("deviceSigned"));
+            byte[] encodedMalformedResponse = buildDeviceResponse(
+                    Arrays.asList(document, noIssuerSigned, noDeviceSigned));
+            for (int n = 0; n < 10; n++) {
+                IllegalArgumentException e = Assert.assertThrows(
+                        IllegalArgumentException.class,
+                        () -> new DeviceResponseParser()
+                                .setDeviceResponse(encodedMalformedResponse)
+                                .setSessionTranscript(encodedSessionTranscript)
+                                .setEphemeralReaderKey(eReaderKey)
+                                .setExecutor(executor)
+                                .parse());
+                Assert.assertTrue(e.getMessage(), e.getMessage().contains("issuerSigned"));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
 }
@@ -38,6 +38,7 @@ import java.security.KeyPair;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
+import java.security.PublicKey;
 import java.security.SignatureException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
@@ -45,8 +46,11 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.crypto.SecretKey;
 
@@ -591,8 +595,188 @@ public class DynamicAuthTest {
         store.deleteCredentialByName(credentialName);
     }
 
-    // TODO: test storeStaticAuthenticationData() throwing UnknownAuthenticationKeyException
-    // on an unknown auth key
+    @Test
+    public void manyAuthKeysNeedingCertification() throws Exception {
+        Context appContext = androidx.test.InstrumentationRegistry.getTargetContext();
+        IdentityCredentialStore store = Util.getIdentityCredentialStore(appContext);
+
+        String credentialName = "test";
+
+        store.deleteCredentialByName(credentialName);
+        ProvisioningTest.createCredential(store, credentialName);
+
+        IdentityCredential credential = store.getCredentialByName(credentialName,
+                IdentityCredentialStore.CIPHERSUITE_ECDHE_HKDF_ECDSA_WITH_AES_256_GCM_SHA256);
+        assertNotNull(credential);
+        credential.setAvailableAuthenticationKeys(12, 1);
+        List<X509Certificate> certificates =
+                new ArrayList<>(credential.getAuthKeysNeedingCertification());
+        assertEquals(12, certificates.size());
+        Set<PublicKey> publicKeys = new HashSet<>();
+        for (X509Certificate certificate : certificates) {
+            publicKeys.add(certificate.getPublicKey());
+        }
+        assertEquals(12, publicKeys.size());
+
+        // The keys are returned in the same order every time.
+        credential = store.getCredentialByName(credentialName,
+                IdentityCredentialStore.CIPHERSUITE_ECDHE_HKDF_ECDSA_WITH_AES_256_GCM_SHA256);
+        assertEquals(certificates,
+                new ArrayList<>(credential.getAuthKeysNeedingCertification()));
+
+        // Certify some keys; new keys are only generated for the remaining slots.
+        credential.storeStaticAuthenticationData(certificates.get(3), new byte[]{1});
+        credential.storeStaticAuthenticationData(certificates.get(7), new byte[]{2});
+        List<X509Certificate> remaining = new ArrayList<>(certificates);
+        remaining.remove(7);
+        remaining.remove(3);
+        assertEquals(remaining,
+                new ArrayList<>(credential.getAuthKeysNeedingCertification()));
+
+        store.deleteCredentialByName(credentialName);
+    }
+
+    @Test
+    public void storeStaticAuthenticationDataBatch() throws Exception {
+        Context appContext = androidx.test.InstrumentationRegistry.getTargetContext();
+        IdentityCredentialStore store = Util.getIdentityCredentialStore(appContext);
+
+        String credentialName = "test";
+
+        store.deleteCredentialByName(credentialName);
+        ProvisioningTest.createCredential(store, credentialName);
+
+        IdentityCredential credential = store.getCredentialByName(credentialName,
+                IdentityCredentialStore.CIPHERSUITE_ECDHE_HKDF_ECDSA_WITH_AES_256_GCM_SHA256);
+        assertNotNull(credential);
+        credential.setAvailableAuthenticationKeys(3, 5);
+        List<X509Certificate> certificates =
+                new ArrayList<>(credential.getAuthKeysNeedingCertification());
+        assertEquals(3, certificates.size());
+
+        // A batch with a key certified twice is rejected and nothing is stored.
+        List<AuthenticationKeyCertification> certifications = new ArrayList<>();
+        certifications.add(new AuthenticationKeyCertification(certificates.get(0), null,
+                new byte[]{1}));
+        certifications.add(new AuthenticationKeyCertification(certificates.get(0), null,
+                new byte[]{2}));
+        try {
+            credential.storeStaticAuthenticationData(certifications);
+            assertTrue(false);
+        } catch (UnknownAuthenticationKeyException e) {
+            // Expected.
+        }
+        assertEquals(3, credential.getAuthKeysNeedingCertification().size());
+
+        certifications.clear();
+        certifications.add(new AuthenticationKeyCertification(certificates.get(2), null,
+                new byte[]{3}));
+        certifications.add(new AuthenticationKeyCertification(certificates.get(0), null,
+                new byte[]{1}));
+        credential.storeStaticAuthenticationData(certifications);
+
+        credential = store.getCredentialByName(credentialName,
+                IdentityCredentialStore.CIPHERSUITE_ECDHE_HKDF_ECDSA_WITH_AES_256_GCM_SHA256);
+        Collection<X509Certificate> remaining = credential.getAuthKeysNeedingCertification();
+        assertEquals(1, remaining.size());
+        assertEquals(certificates.get(1), remaining.iterator().next());
+
+        // Keys no longer pending are unknown.
+        try {
+            credential.storeStaticAuthenticationData(Arrays.asList(
+                    new AuthenticationKeyCertification(certificates.get(0), null,
+                            new byte[]{1})));
+            assertTrue(false);
+        } catch (UnknownAuthenticationKeyException e) {
+            // Expected.
+        }
+
+        store.deleteCredentialByName(credentialName);
+    }
+
+    @Test
+    public void authKeyChangesFromSeveralInstances() throws Exception {
+        Context appContext = androidx.test.InstrumentationRegistry.getTargetContext();
+        // The credential cache is disabled by default so every lookup loads a new instance.
+        IdentityCredentialStore store = IdentityCredentialStore.getSoftwareInstance(appContext);
+
+        String credentialName = "test";
+
+        store.deleteCredentialByName(credentialName);
+        ProvisioningTest.createCredential(store, credentialName);
+
+        IdentityCredential credential = store.getCredentialByName(credentialName,
+                IdentityCredentialStore.CIPHERSUITE_ECDHE_HKDF_ECDSA_WITH_AES_256_GCM_SHA256);
+        credential.setAvailableAuthenticationKeys(2, 3);
+        List<X509Certificate> certificates =
+                new ArrayList<>(credential.getAuthKeysNeedingCertification());
+        assertEquals(2, certificates.size());
+
+        // Certify one key through another instance, the first instance must not lose this
+        // when certifying the other key.
+        IdentityCredential other = store.getCredentialByName(credentialName,
+                IdentityCredentialStore.CIPHERSUITE_ECDHE_HKDF_ECDSA_WITH_AES_256_GCM_SHA256);
+        other.storeStaticAuthenticationData(certificates.get(0), new byte[]{1});
+        credential.storeStaticAuthenticationData(certificates.get(1), new byte[]{2});
+        assertEquals(0, other.getAuthKeysNeedingCertification().size());
+
+        credential = store.getCredentialByName(credentialName,
+                IdentityCredentialStore.CIPHERSUITE_ECDHE_HKDF_ECDSA_WITH_AES_256_GCM_SHA256);
+        assertEquals(0, credential.getAuthKeysNeedingCertification().size());
+        assertArrayEquals(new int[]{0, 0}, credential.getAuthenticationDataUsageCount());
+
+        store.deleteCredentialByName(credentialName);
+    }
+
+    @Test
+    public void roundRobinAcrossPresentationSessions() throws Exception {
+        Context appContext = androidx.test.InstrumentationRegistry.getTargetContext();
+        IdentityCredentialStore store = IdentityCredentialStore.getSoftwareInstance(appContext);
+
+        String credentialName = "test";
+
+        store.deleteCredentialByName(credentialName);
+        ProvisioningTest.createCredential(store, credentialName);
+        IdentityCredential credential = store.getCredentialByName(credentialName,
+                IdentityCredentialStore.CIPHERSUITE_ECDHE_HKDF_ECDSA_WITH_AES_256_GCM_SHA256);
+        credential.setAvailableAuthenticationKeys(3, 10);
+        byte n = 0;
+        for (X509Certificate certificate : credential.getAuthKeysNeedingCertification()) {
+            credential.storeStaticAuthenticationData(certificate, new byte[]{n++});
+        }
+
+        Map<String, Collection<String>> entriesToRequest = new LinkedHashMap<>();
+        entriesToRequest.put("org.iso.18013-5.2019", Arrays.asList("First name"));
+        CredentialDataRequest request = new CredentialDataRequest.Builder()
+                .setDeviceSignedEntriesToRequest(entriesToRequest)
+                .setRequestMessage(Util.createItemsRequest(entriesToRequest, null))
+                .setAuthenticationKeySelectionPolicy(
+                        CredentialDataRequest.AUTHENTICATION_KEY_SELECTION_ROUND_ROBIN)
+                .build();
+
+        // Every session loads the credential again, the keys must still be used in turn.
+        List<Byte> keysUsed = new ArrayList<>();
+        for (int session = 0; session < 6; session++) {
+            PresentationSession presentationSession = store.createPresentationSession(
+                    IdentityCredentialStore.CIPHERSUITE_ECDHE_HKDF_ECDSA_WITH_AES_256_GCM_SHA256);
+            KeyPair ephemeralKeyPair = presentationSession.getEphemeralKeyPair();
+            KeyPair readerEphemeralKeyPair = Util.createEphemeralKeyPair();
+            presentationSession.setReaderEphemeralPublicKey(readerEphemeralKeyPair.getPublic());
+            presentationSession.setSessionTranscript(
+                    Util.buildSessionTranscript(ephemeralKeyPair));
+            CredentialDataResult result =
+                    presentationSession.getCredentialData(credentialName, request);
+            keysUsed.add(result.getStaticAuthenticationData()[0]);
+        }
+        assertEquals(3, new HashSet<>(keysUsed.subList(0, 3)).size());
+        assertEquals(keysUsed.subList(0, 3), keysUsed.subList(3, 6));
+
+        credential = store.getCredentialByName(credentialName,
+                IdentityCredentialStore.CIPHERSUITE_ECDHE_HKDF_ECDSA_WITH_AES_256_GCM_SHA256);
+        assertArrayEquals(new int[]{2, 2, 2}, credential.getAuthenticationDataUsageCount());
+
+        store.deleteCredentialByName(credentialName);
+    }
 
     @SuppressWarnings("deprecation")
     @Test
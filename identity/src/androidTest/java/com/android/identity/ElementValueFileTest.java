@@ -0,0 +1,110 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThrows;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ElementValueFileTest {
+    private static final String MDL_NAMESPACE = "org.iso.18013.5.1";
+
+    private static SecretKey createKey() throws Exception {
+        KeyGenerator kg = KeyGenerator.getInstance("AES");
+        kg.init(128);
+        return kg.generateKey();
+    }
+
+    private static void write(File file, byte[] data) throws Exception {
+        try (FileOutputStream outputStream = new FileOutputStream(file)) {
+            outputStream.write(data);
+        }
+    }
+
+    @Test
+    public void testAddAndRead() throws Exception {
+        SecretKey key = createKey();
+        File file = File.createTempFile("values", null);
+        ElementValueFile valueFile = new ElementValueFile(file);
+        byte[] familyName = Util.cborEncodeString("Doe");
+        byte[] portrait = Util.cborEncodeBytestring(new byte[1000]);
+        ElementValueFile.Location familyNameLocation =
+                valueFile.add(key, MDL_NAMESPACE, "family_name", familyName);
+        ElementValueFile.Location portraitLocation =
+                valueFile.add(key, MDL_NAMESPACE, "portrait", portrait);
+        write(file, valueFile.getPendingRecords());
+
+        // Values can be read in any order.
+        ElementValueFile readFile = new ElementValueFile(file);
+        assertArrayEquals(portrait,
+                readFile.read(key, MDL_NAMESPACE, "portrait", portraitLocation));
+        assertArrayEquals(familyName,
+                readFile.read(key, MDL_NAMESPACE, "family_name", familyNameLocation));
+
+        // A record can't be used for another data element or with another key.
+        assertThrows(IllegalStateException.class,
+                () -> readFile.read(key, MDL_NAMESPACE, "given_name", familyNameLocation));
+        assertThrows(IllegalStateException.class,
+                () -> readFile.read(key, "org.example", "family_name", familyNameLocation));
+        assertThrows(IllegalStateException.class,
+                () -> readFile.read(createKey(), MDL_NAMESPACE, "family_name",
+                        familyNameLocation));
+        file.delete();
+    }
+
+    @Test
+    public void testTampered() throws Exception {
+        SecretKey key = createKey();
+        File file = File.createTempFile("values", null);
+        ElementValueFile valueFile = new ElementValueFile(file);
+        ElementValueFile.Location location = valueFile.add(key, MDL_NAMESPACE, "family_name",
+                Util.cborEncodeString("Doe"));
+        byte[] records = valueFile.getPendingRecords();
+
+        // A record can't be moved to another file.
+        File otherFile = File.createTempFile("values", null);
+        write(otherFile, records);
+        assertThrows(IllegalStateException.class,
+                () -> new ElementValueFile(otherFile).read(key, MDL_NAMESPACE, "family_name",
+                        location));
+        otherFile.delete();
+
+        write(file, records);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(records.length - 1);
+            raf.write(records[records.length - 1] ^ 0x01);
+        }
+        assertThrows(IllegalStateException.class,
+                () -> new ElementValueFile(file).read(key, MDL_NAMESPACE, "family_name",
+                        location));
+        file.delete();
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.security.KeyStore;
+
+import javax.crypto.KeyGenerator;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class KeyStoreCacheTest {
+    private static final String ALIAS = "KeyStoreCacheTest";
+
+    private static void generateKey() throws Exception {
+        KeyGenerator kg = KeyGenerator.getInstance(
+                KeyProperties.KEY_ALGORITHM_AES, "AndroidKeyStore");
+        kg.init(new KeyGenParameterSpec.Builder(ALIAS,
+                KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                .setKeySize(128)
+                .build());
+        kg.generateKey();
+        KeyStoreCache.invalidate(ALIAS);
+    }
+
+    @Test
+    public void testEntriesAreCached() throws Exception {
+        generateKey();
+
+        KeyStore.Entry entry = KeyStoreCache.getEntry(ALIAS);
+        long numRoundTrips = KeyStoreCache.getNumRoundTrips();
+        assertSame(entry, KeyStoreCache.getEntry(ALIAS));
+        assertTrue(KeyStoreCache.containsAlias(ALIAS));
+        assertEquals(numRoundTrips, KeyStoreCache.getNumRoundTrips());
+
+        // Creating a new key for the alias requires invalidating the cached entry.
+        generateKey();
+        KeyStore.Entry newEntry = KeyStoreCache.getEntry(ALIAS);
+        assertEquals(numRoundTrips + 1, KeyStoreCache.getNumRoundTrips());
+        assertFalse(entry == newEntry);
+
+        KeyStoreCache.deleteEntry(ALIAS);
+        assertFalse(KeyStoreCache.containsAlias(ALIAS));
+        assertNull(KeyStoreCache.getEntry(ALIAS));
+    }
+}
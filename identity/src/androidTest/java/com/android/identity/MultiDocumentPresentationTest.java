@@ -18,6 +18,7 @@ package com.android.identity;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assume.assumeTrue;
@@ -33,7 +34,10 @@ import java.security.cert.X509Certificate;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.crypto.SecretKey;
 
@@ -227,4 +231,75 @@ public class MultiDocumentPresentationTest {
                 readerEphemeralKeyPair.getPrivate(), sessionTranscript);
         assertArrayEquals(new int[]{1, 0, 0, 0, 0}, getAuthKeyUsageCount(store, "credential1"));
     }
+
+    @Test
+    public void multipleDocumentsConcurrently() throws Exception {
+        Context appContext = androidx.test.InstrumentationRegistry.getTargetContext();
+        IdentityCredentialStore store = Util.getIdentityCredentialStore(appContext);
+        assumeTrue(store.getCapabilities().isCreatePresentationSessionSupported());
+
+        String[] credentialNames = {"credential1", "credential2", "credential3"};
+        for (String credentialName : credentialNames) {
+            store.deleteCredentialByName(credentialName);
+            ProvisioningTest.createCredential(store, credentialName);
+            createAuthKeys(store, credentialName);
+        }
+        store.deleteCredentialByName("nonExistent");
+
+        PresentationSession session = store.createPresentationSession(
+                IdentityCredentialStore.CIPHERSUITE_ECDHE_HKDF_ECDSA_WITH_AES_256_GCM_SHA256);
+        KeyPair ephemeralKeyPair = session.getEphemeralKeyPair();
+        KeyPair readerEphemeralKeyPair = Util.createEphemeralKeyPair();
+        session.setReaderEphemeralPublicKey(readerEphemeralKeyPair.getPublic());
+        session.setSessionTranscript(Util.buildSessionTranscript(ephemeralKeyPair));
+
+        Map<String, Collection<String>> entriesToRequest = new LinkedHashMap<>();
+        entriesToRequest.put("org.iso.18013-5.2019", Arrays.asList("First name", "Last name"));
+        CredentialDataRequest request = new CredentialDataRequest.Builder()
+                .setDeviceSignedEntriesToRequest(entriesToRequest)
+                .setRequestMessage(Util.createItemsRequest(entriesToRequest, null))
+                .build();
+        // A reader signature without the matching request message fails for that document only.
+        CredentialDataRequest badRequest = new CredentialDataRequest.Builder()
+                .setDeviceSignedEntriesToRequest(entriesToRequest)
+                .setReaderSignature(new byte[]{0x01})
+                .build();
+
+        Map<String, CredentialDataRequest> requests = new LinkedHashMap<>();
+        requests.put("credential3", request);
+        requests.put("nonExistent", request);
+        requests.put("credential1", badRequest);
+        requests.put("credential2", request);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<PresentationSession.CredentialDataOutcome> outcomes;
+        try {
+            outcomes = session.getCredentialData(requests, executor);
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(4, outcomes.size());
+        assertEquals("credential3", outcomes.get(0).getCredentialName());
+        assertNull(outcomes.get(0).getException());
+        assertNotNull(outcomes.get(0).getResult());
+        assertEquals(2, outcomes.get(0).getResult().getDeviceSignedEntries()
+                .getRetrievedEntryNames("org.iso.18013-5.2019").size());
+
+        assertEquals("nonExistent", outcomes.get(1).getCredentialName());
+        assertNull(outcomes.get(1).getException());
+        assertNull(outcomes.get(1).getResult());
+
+        assertEquals("credential1", outcomes.get(2).getCredentialName());
+        assertTrue(outcomes.get(2).getException() instanceof InvalidReaderSignatureException);
+        assertNull(outcomes.get(2).getResult());
+
+        assertEquals("credential2", outcomes.get(3).getCredentialName());
+        assertNull(outcomes.get(3).getException());
+        assertNotNull(outcomes.get(3).getResult().getDeviceSignature());
+
+        for (String credentialName : credentialNames) {
+            store.deleteCredentialByName(credentialName);
+        }
+    }
 }
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.OptionalLong;
+
+import co.nstant.in.cbor.CborBuilder;
+import co.nstant.in.cbor.model.ByteString;
+import co.nstant.in.cbor.model.DataItem;
+import co.nstant.in.cbor.model.Map;
+import co.nstant.in.cbor.model.UnicodeString;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class SessionDataTest {
+
+    @Test
+    public void testDecodeVectors() {
+        byte[] encodedSessionEstablishment =
+                Util.fromHex(TestVectors.ISO_18013_5_ANNEX_D_SESSION_ESTABLISHMENT);
+        Map map = (Map) Util.cborDecode(encodedSessionEstablishment);
+        byte[] expectedEReaderKey =
+                ((ByteString) map.get(new UnicodeString("eReaderKey"))).getBytes();
+        byte[] expectedData = ((ByteString) map.get(new UnicodeString("data"))).getBytes();
+
+        SessionData sessionData = SessionData.decode(encodedSessionEstablishment);
+        assertArrayEquals(expectedEReaderKey, sessionData.getEncodedEReaderKey());
+        assertTrue(sessionData.hasData());
+        // The data is exposed as a region of the passed-in buffer.
+        assertTrue(sessionData.getDataBuffer() == encodedSessionEstablishment);
+        assertArrayEquals(expectedData, Arrays.copyOfRange(sessionData.getDataBuffer(),
+                sessionData.getDataOffset(),
+                sessionData.getDataOffset() + sessionData.getDataLength()));
+        assertFalse(sessionData.getStatus().isPresent());
+
+        sessionData = SessionData.decode(
+                Util.fromHex(TestVectors.ISO_18013_5_ANNEX_D_SESSION_TERMINATION));
+        assertNull(sessionData.getEncodedEReaderKey());
+        assertFalse(sessionData.hasData());
+        assertEquals(OptionalLong.of(20), sessionData.getStatus());
+    }
+
+    @Test
+    public void testEncode() {
+        byte[] eReaderKey = new byte[]{(byte) 0xa0};
+        byte[] data = new byte[300];
+        Arrays.fill(data, (byte) 0x42);
+
+        DataItem expected = new CborBuilder()
+                .addMap()
+                .put(new UnicodeString("eReaderKey"), Util.cborBuildTaggedByteString(eReaderKey))
+                .put("data", data)
+                .put("status", 10)
+                .end()
+                .build().get(0);
+        byte[] encoded = SessionData.encode(eReaderKey, data, OptionalLong.of(10));
+        assertArrayEquals(Util.cborEncode(expected), encoded);
+
+        SessionData sessionData = SessionData.decode(encoded);
+        assertArrayEquals(eReaderKey, sessionData.getEncodedEReaderKey());
+        assertEquals(data.length, sessionData.getDataLength());
+        assertEquals(OptionalLong.of(10), sessionData.getStatus());
+
+        assertArrayEquals(Util.fromHex(TestVectors.ISO_18013_5_ANNEX_D_SESSION_TERMINATION),
+                SessionData.encode(null, null, OptionalLong.of(20)));
+        assertArrayEquals(new byte[]{(byte) 0xa0},
+                SessionData.encode(null, null, OptionalLong.empty()));
+    }
+
+    @Test
+    public void testDecodeInvalid() {
+        // Not a map.
+        assertThrows(IllegalArgumentException.class,
+                () -> SessionData.decode(Util.fromHex("80")));
+        // {"data": "foo"}
+        assertThrows(IllegalArgumentException.class,
+                () -> SessionData.decode(Util.fromHex("a1646461746163666f6f")));
+        // {"status": "foo"}
+        assertThrows(IllegalArgumentException.class,
+                () -> SessionData.decode(Util.fromHex("a16673746174757363666f6f")));
+        // Truncated.
+        assertThrows(IllegalArgumentException.class,
+                () -> SessionData.decode(Util.fromHex("a16464617461590100")));
+    }
+}
@@ -43,8 +43,14 @@ import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.Signature;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
@@ -464,6 +470,24 @@ public class UtilTest {
         assertEquals(0, Util.coseSign1GetX5Chain(sig).size());
     }
 
+    @Test
+    public void coseKeyEncodeDecode() throws Exception {
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance(
+                KeyProperties.KEY_ALGORITHM_EC,
+                new BouncyCastleProvider());
+        ECParameterSpec ecSpec = ECNamedCurveTable.getParameterSpec("secp256r1");
+        kpg.initialize(ecSpec);
+        // Several keys so some have coordinates with leading zeroes.
+        for (int n = 0; n < 32; n++) {
+            KeyPair keyPair = kpg.generateKeyPair();
+            byte[] encodedCoseKey = Util.cborEncodeCoseKey(keyPair.getPublic());
+            assertArrayEquals(Util.cborEncode(Util.cborBuildCoseKey(keyPair.getPublic())),
+                    encodedCoseKey);
+            assertEquals(keyPair.getPublic(),
+                    Util.coseKeyDecode(CborSlice.of(encodedCoseKey)));
+        }
+    }
+
     @Test
     public void coseSignAndVerify_P384() throws Exception {
         KeyPairGenerator kpg = KeyPairGenerator.getInstance(
@@ -819,4 +843,97 @@ public class UtilTest {
         assertEquals("00FF13AB0B",
                 Util.base16(new byte[]{0x00, (byte) 0xFF, 0x13, (byte) 0xAB, 0x0B}));
     }
+
+    @Test
+    public void invokeAll() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            List<Callable<Integer>> tasks = new ArrayList<>();
+            for (int n = 0; n < 20; n++) {
+                final int value = n;
+                tasks.add(() -> {
+                    // Later tasks finish first.
+                    Thread.sleep(20 - value);
+                    return value;
+                });
+            }
+            List<Integer> expected = new ArrayList<>();
+            for (int n = 0; n < 20; n++) {
+                expected.add(n);
+            }
+            assertEquals(expected, Util.invokeAll(executor, tasks));
+            assertEquals(expected, Util.invokeAll(null, tasks));
+
+            // The exception from the first failing task is thrown, even if a later task
+            // failed first.
+            tasks.set(5, () -> {
+                Thread.sleep(50);
+                throw new IllegalArgumentException("first");
+            });
+            tasks.set(15, () -> {
+                throw new IllegalArgumentException("second");
+            });
+            for (Executor e : new Executor[]{executor, null}) {
+                try {
+                    Util.invokeAll(e, tasks);
+                    fail("Expected exception");
+                } catch (IllegalArgumentException thrown) {
+                    assertEquals("first", thrown.getMessage());
+                }
+            }
+
+            // Nested use on a saturated executor doesn't deadlock.
+            List<Callable<List<Integer>>> outerTasks = new ArrayList<>();
+            for (int n = 0; n < 6; n++) {
+                outerTasks.add(() -> Util.invokeAll(executor, tasks.subList(0, 5)));
+            }
+            for (List<Integer> result : Util.invokeAll(executor, outerTasks)) {
+                assertEquals(expected.subList(0, 5), result);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void cborEncodeDeviceNameSpaces() {
+        byte[] portrait = Util.cborEncodeBytestring(new byte[300]);
+        byte[] name = Util.cborEncodeString("Erika");
+        byte[] nonAsciiName = Util.cborEncodeString("Müller");
+        // The number 5 encoded with a needlessly long head.
+        byte[] nonCanonicalNumber = new byte[]{0x18, 0x05};
+
+        java.util.Map<String, java.util.Map<String, byte[]>> deviceNameSpaces =
+                new java.util.LinkedHashMap<>();
+        java.util.Map<String, byte[]> mdl = new java.util.LinkedHashMap<>();
+        mdl.put("portrait", portrait);
+        mdl.put("given_name", name);
+        mdl.put("family_name", nonAsciiName);
+        mdl.put("age", nonCanonicalNumber);
+        deviceNameSpaces.put("org.iso.18013.5.1", mdl);
+        java.util.Map<String, byte[]> aamva = new java.util.LinkedHashMap<>();
+        aamva.put("sex", Util.cborEncodeNumber(2));
+        deviceNameSpaces.put("org.aamva", aamva);
+        deviceNameSpaces.put("empty", new java.util.LinkedHashMap<>());
+
+        DataItem expected = new CborBuilder()
+                .addMap()
+                .putMap("org.iso.18013.5.1")
+                .put(new UnicodeString("portrait"), Util.cborDecode(portrait))
+                .put(new UnicodeString("given_name"), Util.cborDecode(name))
+                .put(new UnicodeString("family_name"), Util.cborDecode(nonAsciiName))
+                .put(new UnicodeString("age"), Util.cborDecode(nonCanonicalNumber))
+                .end()
+                .putMap("org.aamva")
+                .put("sex", 2)
+                .end()
+                .putMap("empty")
+                .end()
+                .end()
+                .build().get(0);
+        assertArrayEquals(Util.cborEncode(expected),
+                Util.cborEncodeDeviceNameSpaces(deviceNameSpaces));
+        assertArrayEquals(Util.cborEncode(new CborBuilder().addMap().end().build().get(0)),
+                Util.cborEncodeDeviceNameSpaces(new java.util.LinkedHashMap<>()));
+    }
 }
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.icu.util.Calendar;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.math.BigInteger;
+import java.security.PrivateKey;
+import java.util.Collections;
+import java.util.HashMap;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class VerifiedMsoCacheTest {
+    private static final String MDL_NAMESPACE = "org.iso.18013.5.1";
+
+    private static DeviceResponseParser.Document parse(byte[] encodedDeviceResponse,
+            VerifiedMsoCache cache) {
+        byte[] encodedSessionTranscript = Util.cborEncode(
+                Util.cborExtractTaggedAndEncodedCbor(Util.cborDecode(Util.fromHex(
+                        TestVectors.ISO_18013_5_ANNEX_D_SESSION_TRANSCRIPT_BYTES))));
+        PrivateKey eReaderKey = Util.getPrivateKeyFromInteger(new BigInteger(
+                TestVectors.ISO_18013_5_ANNEX_D_EPHEMERAL_READER_KEY_D, 16));
+        return new DeviceResponseParser()
+                .setDeviceResponse(encodedDeviceResponse)
+                .setSessionTranscript(encodedSessionTranscript)
+                .setEphemeralReaderKey(eReaderKey)
+                .setVerifiedMsoCache(cache)
+                .parse()
+                .getDocuments().get(0);
+    }
+
+    @Test
+    public void testParseWithCache() {
+        byte[] encodedDeviceResponse = Util.fromHex(
+                TestVectors.ISO_18013_5_ANNEX_D_DEVICE_RESPONSE);
+        long validUntil = parse(encodedDeviceResponse, null)
+                .getValidityInfoValidUntil().getTimeInMillis();
+
+        long[] now = new long[]{validUntil - 1000};
+        VerifiedMsoCache cache = new VerifiedMsoCache(10, () -> now[0]);
+
+        DeviceResponseParser.Document first = parse(encodedDeviceResponse, cache);
+        assertEquals(0, cache.getNumHits());
+        assertEquals(1, cache.getNumMisses());
+        assertEquals(1, cache.size());
+
+        DeviceResponseParser.Document second = parse(encodedDeviceResponse, cache);
+        assertEquals(1, cache.getNumHits());
+        assertEquals(1, cache.getNumMisses());
+        assertTrue(second.getIssuerSignedAuthenticated());
+        assertTrue(second.getDeviceSignedAuthenticated());
+        assertEquals(first.getDeviceKey(), second.getDeviceKey());
+        assertEquals(first.getIssuerCertificateChain(), second.getIssuerCertificateChain());
+        assertEquals(first.getValidityInfoSigned(), second.getValidityInfoSigned());
+        assertEquals(first.getValidityInfoValidUntil(), second.getValidityInfoValidUntil());
+        assertNotSame(first.getValidityInfoValidUntil(), second.getValidityInfoValidUntil());
+        assertEquals(0, second.getNumIssuerEntryDigestMatchFailures());
+        assertEquals("Doe", second.getIssuerEntryString(MDL_NAMESPACE, "family_name"));
+
+        // Digests are still checked for cached MSOs.
+        byte[] modifiedDeviceResponse = encodedDeviceResponse.clone();
+        modifiedDeviceResponse[200] = (byte) 0x46;
+        DeviceResponseParser.Document modified = parse(modifiedDeviceResponse, cache);
+        assertEquals(2, cache.getNumHits());
+        assertTrue(modified.getIssuerSignedAuthenticated());
+        assertFalse(modified.getIssuerEntryDigestMatch(MDL_NAMESPACE, "family_name"));
+
+        // An IssuerAuth with a bad signature isn't cached.
+        modifiedDeviceResponse = encodedDeviceResponse.clone();
+        modifiedDeviceResponse[3398] = (byte) 0x5a;
+        for (int n = 0; n < 2; n++) {
+            assertFalse(parse(modifiedDeviceResponse, cache).getIssuerSignedAuthenticated());
+        }
+        assertEquals(2, cache.getNumHits());
+        assertEquals(3, cache.getNumMisses());
+        assertEquals(1, cache.size());
+
+        // Once past validUntil, the MSO is evicted.
+        now[0] = validUntil;
+        assertTrue(parse(encodedDeviceResponse, cache).getIssuerSignedAuthenticated());
+        assertEquals(2, cache.getNumHits());
+        assertEquals(4, cache.getNumMisses());
+        assertEquals(0, cache.size());
+    }
+
+    private static VerifiedMsoCache.Entry createEntry(long validUntilMillis) {
+        Calendar validUntil = Calendar.getInstance();
+        validUntil.setTimeInMillis(validUntilMillis);
+        return new VerifiedMsoCache.Entry("org.example.doctype",
+                Util.createEphemeralKeyPair().getPublic(),
+                new HashMap<>(),
+                Collections.emptyList(),
+                Calendar.getInstance(),
+                Calendar.getInstance(),
+                validUntil,
+                null);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() {
+        VerifiedMsoCache cache = new VerifiedMsoCache(2, () -> 0);
+        byte[] key1 = new byte[]{1};
+        byte[] key2 = new byte[]{2};
+        byte[] key3 = new byte[]{3};
+        VerifiedMsoCache.Entry entry1 = createEntry(1000);
+        VerifiedMsoCache.Entry entry2 = createEntry(1000);
+        cache.put(key1, entry1);
+        cache.put(key2, entry2);
+        // Using key1 makes key2 the least recently used.
+        assertSame(entry1, cache.get(new byte[]{1}));
+        cache.put(key3, createEntry(1000));
+        assertEquals(2, cache.size());
+        assertNull(cache.get(key2));
+        assertNotNull(cache.get(key1));
+        assertNotNull(cache.get(key3));
+
+        // Expired entries aren't added.
+        cache.clear();
+        cache.put(key1, createEntry(0));
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+
+/**
+ * Evaluates the access control profiles of the data elements requested from a credential.
+ *
+ * <p>Most data elements share the same few profiles. Whether the reader certificate chain
+ * satisfies a profile only depends on the chain, so this is computed once per profile and
+ * remembered until a different chain is used. Whether user authentication is satisfied on the
+ * other hand can change, for example when the timeout of a profile runs out or when the user
+ * authenticates, so it's only remembered for the duration of a single retrieval of data
+ * elements and forgotten when {@link #finishRetrieval()} is called. For profiles with a timeout
+ * checking involves a Keystore operation, so this saves one for every data element after the
+ * first.
+ */
+final class AccessControlChecker {
+
+    interface ProfileLookup {
+        @NonNull AccessControlProfile getAccessControlProfile(
+                @NonNull AccessControlProfileId accessControlProfileId);
+    }
+
+    interface UserAuthenticationCheck {
+        boolean isUserAuthenticated(@NonNull AccessControlProfile profile);
+    }
+
+    private final ProfileLookup mProfileLookup;
+    private final UserAuthenticationCheck mUserAuthenticationCheck;
+
+    // Whether the reader certificate chain satisfies the profile, keyed by profile ID.
+    private final HashMap<Integer, Boolean> mReaderAuthResults = new HashMap<>();
+    private Collection<X509Certificate> mReaderCertChain;
+
+    // Whether user authentication is satisfied for the profile in the current retrieval, keyed
+    // by profile ID.
+    private final HashMap<Integer, Boolean> mUserAuthResults = new HashMap<>();
+
+    AccessControlChecker(@NonNull ProfileLookup profileLookup,
+            @NonNull UserAuthenticationCheck userAuthenticationCheck) {
+        mProfileLookup = profileLookup;
+        mUserAuthenticationCheck = userAuthenticationCheck;
+    }
+
+    /**
+     * Checks whether a data element configured with the given profiles can be returned.
+     *
+     * <p>Access is granted if at least one of the profiles grants access. If a data element is
+     * configured without any profiles, access is denied.
+     *
+     * @param accessControlProfileIds the profiles of the data element.
+     * @param readerCertChain the certificate chain of the reader or {@code null} if the reader
+     *                        didn't authenticate.
+     * @return {@link ResultData#STATUS_OK} if access is granted, otherwise the reason it isn't.
+     */
+    @SuppressWarnings("deprecation")
+    @ResultData.Status
+    int checkAccess(@NonNull Collection<AccessControlProfileId> accessControlProfileIds,
+            @Nullable Collection<X509Certificate> readerCertChain) {
+        if (!sameReaderCertChain(readerCertChain, mReaderCertChain)) {
+            mReaderAuthResults.clear();
+            mReaderCertChain = readerCertChain;
+        }
+
+        @ResultData.Status int lastStatus = ResultData.STATUS_NO_ACCESS_CONTROL_PROFILES;
+        for (AccessControlProfileId id : accessControlProfileIds) {
+            AccessControlProfile profile = mProfileLookup.getAccessControlProfile(id);
+            lastStatus = checkAccessSingleProfile(profile, readerCertChain);
+            if (lastStatus == ResultData.STATUS_OK) {
+                return lastStatus;
+            }
+        }
+        return lastStatus;
+    }
+
+    /**
+     * Forgets the results of user authentication checks, must be called at the end of every
+     * retrieval of data elements.
+     */
+    void finishRetrieval() {
+        mUserAuthResults.clear();
+    }
+
+    @SuppressWarnings("deprecation")
+    @ResultData.Status
+    private int checkAccessSingleProfile(@NonNull AccessControlProfile profile,
+            @Nullable Collection<X509Certificate> readerCertChain) {
+        int id = profile.getAccessControlProfileId().getId();
+        if (profile.isUserAuthenticationRequired()) {
+            Boolean userAuthenticated = mUserAuthResults.get(id);
+            if (userAuthenticated == null) {
+                userAuthenticated = mUserAuthenticationCheck.isUserAuthenticated(profile);
+                mUserAuthResults.put(id, userAuthenticated);
+            }
+            if (!userAuthenticated) {
+                return ResultData.STATUS_USER_AUTHENTICATION_FAILED;
+            }
+        }
+
+        if (profile.getReaderCertificate() != null) {
+            Boolean readerAuthenticated = mReaderAuthResults.get(id);
+            if (readerAuthenticated == null) {
+                readerAuthenticated = isReaderCertificateInChain(profile.getReaderCertificate(),
+                        readerCertChain);
+                mReaderAuthResults.put(id, readerAuthenticated);
+            }
+            if (!readerAuthenticated) {
+                return ResultData.STATUS_READER_AUTHENTICATION_FAILED;
+            }
+        }
+
+        // Neither user auth nor reader auth required. This means access is always granted.
+        return ResultData.STATUS_OK;
+    }
+
+    private static boolean isReaderCertificateInChain(@NonNull X509Certificate profileCert,
+            @Nullable Collection<X509Certificate> readerCertChain) {
+        if (readerCertChain == null) {
+            return false;
+        }
+        // Need to check if the cert required by the profile is in the given chain.
+        byte[] profilePublicKeyEncoded = profileCert.getPublicKey().getEncoded();
+        for (X509Certificate readerCert : readerCertChain) {
+            byte[] readerCertPublicKeyEncoded = readerCert.getPublicKey().getEncoded();
+            if (Arrays.equals(profilePublicKeyEncoded, readerCertPublicKeyEncoded)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean sameReaderCertChain(@Nullable Collection<X509Certificate> a,
+            @Nullable Collection<X509Certificate> b) {
+        if (a == b) {
+            return true;
+        }
+        if (a == null || b == null || a.size() != b.size()) {
+            return false;
+        }
+        return new ArrayList<>(a).equals(new ArrayList<>(b));
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * An index of the certified authentication keys of a credential for selecting the key to use
+ * for a presentation.
+ *
+ * <p>Keys are kept in two ordered sets, one for keys which haven't expired and one for expired
+ * keys, both ordered by whether the key is exhausted and then by the selection policy, so the
+ * best key is always the first one of a set. A third set orders unexpired keys by expiration
+ * date so keys which have expired since the last selection can be moved to the set of expired
+ * keys without looking at every key. Selecting a key and updating its use count is therefore
+ * O(log n) instead of scanning all keys.
+ *
+ * <p>This class isn't thread-safe.
+ */
+final class AuthKeyPool {
+
+    /**
+     * A certified key in the pool.
+     */
+    static final class Key {
+        final int mSlot;
+        final long mExpirationMillis;
+        int mUseCount;
+        long mLastUsedSequence;
+
+        Key(int slot, int useCount, long expirationMillis, long lastUsedSequence) {
+            mSlot = slot;
+            mUseCount = useCount;
+            mExpirationMillis = expirationMillis;
+            mLastUsedSequence = lastUsedSequence;
+        }
+    }
+
+    /**
+     * Selects the key with the lowest use count.
+     */
+    static final Comparator<Key> LEAST_USED = (a, b) -> Integer.compare(a.mUseCount, b.mUseCount);
+
+    /**
+     * Selects the key which was used the longest time ago, cycling through all keys.
+     */
+    static final Comparator<Key> ROUND_ROBIN =
+            (a, b) -> Long.compare(a.mLastUsedSequence, b.mLastUsedSequence);
+
+    /**
+     * Selects the key which expires first, keys without an expiration date last.
+     */
+    static final Comparator<Key> SOONEST_EXPIRING =
+            (a, b) -> Long.compare(a.mExpirationMillis, b.mExpirationMillis);
+
+    static @NonNull Comparator<Key> getPolicy(
+            @CredentialDataRequest.AuthenticationKeySelectionPolicy int policy) {
+        switch (policy) {
+            case CredentialDataRequest.AUTHENTICATION_KEY_SELECTION_LEAST_USED:
+                return LEAST_USED;
+            case CredentialDataRequest.AUTHENTICATION_KEY_SELECTION_ROUND_ROBIN:
+                return ROUND_ROBIN;
+            case CredentialDataRequest.AUTHENTICATION_KEY_SELECTION_SOONEST_EXPIRING:
+                return SOONEST_EXPIRING;
+            default:
+                throw new IllegalArgumentException("Unknown selection policy " + policy);
+        }
+    }
+
+    private final Comparator<Key> mPolicy;
+    private final int mMaxUsesPerKey;
+    private final TreeSet<Key> mUnexpired;
+    private final TreeSet<Key> mExpired;
+    private final TreeSet<Key> mByExpiration = new TreeSet<>(
+            Comparator.comparingLong((Key key) -> key.mExpirationMillis)
+                    .thenComparingInt(key -> key.mSlot));
+
+    /**
+     * Creates an empty pool.
+     *
+     * @param policy the selection policy, e.g. {@link #LEAST_USED}.
+     * @param maxUsesPerKey the use count at which a key is exhausted.
+     */
+    AuthKeyPool(@NonNull Comparator<Key> policy, int maxUsesPerKey) {
+        mPolicy = policy;
+        mMaxUsesPerKey = maxUsesPerKey;
+        // Ties are broken by slot, preferring the first one.
+        Comparator<Key> order = Comparator.comparing((Key key) -> isExhausted(key))
+                .thenComparing(policy)
+                .thenComparingInt(key -> key.mSlot);
+        mUnexpired = new TreeSet<>(order);
+        mExpired = new TreeSet<>(order);
+    }
+
+    @NonNull Comparator<Key> getPolicy() {
+        return mPolicy;
+    }
+
+    int getMaxUsesPerKey() {
+        return mMaxUsesPerKey;
+    }
+
+    private boolean isExhausted(Key key) {
+        return key.mUseCount >= mMaxUsesPerKey;
+    }
+
+    /**
+     * Adds a certified key.
+     *
+     * @param slot the slot of the key.
+     * @param useCount the use count of the key.
+     * @param expirationMillis the expiration date of the static authentication data, or
+     *                         {@link Long#MAX_VALUE} if it doesn't expire.
+     * @param lastUsedSequence when the key was last used, relative to other keys.
+     * @param nowMillis the current time.
+     */
+    void add(int slot, int useCount, long expirationMillis, long lastUsedSequence,
+            long nowMillis) {
+        Key key = new Key(slot, useCount, expirationMillis, lastUsedSequence);
+        if (nowMillis > expirationMillis) {
+            mExpired.add(key);
+        } else {
+            mUnexpired.add(key);
+            mByExpiration.add(key);
+        }
+    }
+
+    /**
+     * Selects a key.
+     *
+     * <p>An unexpired key is preferred over an expired one and a key which isn't exhausted is
+     * preferred over an exhausted one.
+     *
+     * @param nowMillis the current time.
+     * @param allowUsingExhaustedKeys whether to return an exhausted key if no other key is
+     *                                available.
+     * @param allowUsingExpiredKeys whether to return an expired key if no unexpired key is
+     *                              available.
+     * @return the key or {@code null} if no key is available.
+     */
+    @Nullable Key select(long nowMillis, boolean allowUsingExhaustedKeys,
+            boolean allowUsingExpiredKeys) {
+        // Move the keys which have expired since the last call.
+        while (!mByExpiration.isEmpty() && nowMillis > mByExpiration.first().mExpirationMillis) {
+            Key key = mByExpiration.pollFirst();
+            mUnexpired.remove(key);
+            mExpired.add(key);
+        }
+
+        Key candidate = mUnexpired.isEmpty() ? null : mUnexpired.first();
+        if (candidate != null && (allowUsingExhaustedKeys || !isExhausted(candidate))) {
+            return candidate;
+        }
+        if (!allowUsingExpiredKeys) {
+            return null;
+        }
+        Key expiredCandidate = mExpired.isEmpty() ? null : mExpired.first();
+        if (candidate == null
+                || (expiredCandidate != null
+                && mExpired.comparator().compare(expiredCandidate, candidate) < 0)) {
+            candidate = expiredCandidate;
+        }
+        if (candidate == null || (!allowUsingExhaustedKeys && isExhausted(candidate))) {
+            return null;
+        }
+        return candidate;
+    }
+
+    /**
+     * Updates the use count of a key after it has been used.
+     *
+     * @param key the key, as returned by {@link #select(long, boolean, boolean)}.
+     * @param useCount the new use count.
+     * @param lastUsedSequence when the key was used, relative to other keys.
+     */
+    void updateKey(@NonNull Key key, int useCount, long lastUsedSequence) {
+        // The sets must be updated by removing and re-adding since the order changes.
+        boolean expired = mExpired.remove(key);
+        if (!expired) {
+            mUnexpired.remove(key);
+        }
+        key.mUseCount = useCount;
+        key.mLastUsedSequence = lastUsedSequence;
+        if (expired) {
+            mExpired.add(key);
+        } else {
+            mUnexpired.add(key);
+        }
+    }
+
+    /**
+     * Gets the slots of the keys in the order they would be selected, for testing.
+     */
+    @NonNull List<Integer> getSlotsInOrder() {
+        List<Integer> slots = new ArrayList<>();
+        for (Key key : mUnexpired) {
+            slots.add(key.mSlot);
+        }
+        for (Key key : mExpired) {
+            slots.add(key.mSlot);
+        }
+        return slots;
+    }
+
+    int size() {
+        return mUnexpired.size() + mExpired.size();
+    }
+
+    boolean isExpired(@NonNull Key key) {
+        return mExpired.contains(key);
+    }
+
+    // Usage metrics per credential, for the lifetime of the process. These are kept separately
+    // from the pool since a pool is only as long-lived as the CredentialData it belongs to.
+    private static final Map<String, Metrics> sMetrics = new HashMap<>();
+
+    /**
+     * Counts the keys used for presentations of a credential.
+     */
+    static final class Metrics {
+        private final long mStartMillis;
+        private long mNumKeysUsed;
+        private long mNumExhaustedKeysUsed;
+        private long mNumExpiredKeysUsed;
+
+        Metrics(long startMillis) {
+            mStartMillis = startMillis;
+        }
+
+        synchronized void recordUse(boolean exhausted, boolean expired) {
+            mNumKeysUsed++;
+            if (exhausted) {
+                mNumExhaustedKeysUsed++;
+            }
+            if (expired) {
+                mNumExpiredKeysUsed++;
+            }
+        }
+
+        synchronized @NonNull AuthenticationKeyMetrics getSnapshot(long nowMillis) {
+            return new AuthenticationKeyMetrics(mNumKeysUsed, mNumExhaustedKeysUsed,
+                    mNumExpiredKeysUsed, nowMillis - mStartMillis);
+        }
+    }
+
+    /**
+     * Gets the metrics for a credential, creating them if needed.
+     */
+    static @NonNull Metrics getMetrics(@NonNull String credentialName, long nowMillis) {
+        synchronized (sMetrics) {
+            Metrics metrics = sMetrics.get(credentialName);
+            if (metrics == null) {
+                metrics = new Metrics(nowMillis);
+                sMetrics.put(credentialName, metrics);
+            }
+            return metrics;
+        }
+    }
+
+    /**
+     * Removes the metrics for a credential, for when it's deleted.
+     */
+    static void removeMetrics(@NonNull String credentialName) {
+        synchronized (sMetrics) {
+            sMetrics.remove(credentialName);
+        }
+    }
+}
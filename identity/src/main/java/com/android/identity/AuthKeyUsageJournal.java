@@ -0,0 +1,252 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+import co.nstant.in.cbor.CborBuilder;
+import co.nstant.in.cbor.model.Array;
+import co.nstant.in.cbor.model.DataItem;
+import co.nstant.in.cbor.model.Number;
+
+/**
+ * An append-only journal of authentication key use counts.
+ *
+ * <p>This is used by {@link CredentialData} to persist the use count of an authentication key
+ * at presentation time without re-writing the entire credential, the cost of which grows
+ * with the size of the credential data. Each record is a small CBOR array
+ * <code>[generation, slot, useCount, lastUsedSequence]</code> encrypted with AES-GCM and
+ * appended to the file prefixed by its length and the length of the IV. A record holds the
+ * new use count and use sequence, not increments, so replaying a record more than once is
+ * harmless. Records written by earlier versions of this library don't have the use sequence.
+ *
+ * <p>The generation is used to ignore records written before the main credential file was
+ * last saved. The journal is deleted after saving the main file, but if the process dies
+ * before that happens the journal will have records for a previous generation.
+ *
+ * <p>If the process dies while appending, the journal will end with a partial record. This is
+ * reported by {@link Contents#mDamaged} and the caller is expected to compact the journal
+ * into the main file so subsequent records aren't written after the damaged one.
+ */
+final class AuthKeyUsageJournal {
+
+    /**
+     * The number of records after which the journal should be compacted into the main file.
+     */
+    static final int MAX_RECORDS = 64;
+
+    private static final int TAG_LENGTH = 16;
+    // The length of the record, excluding the prefix, and the length of the IV.
+    private static final int PREFIX_LENGTH = 5;
+
+    /**
+     * A record in the journal.
+     */
+    static final class Record {
+        final long mGeneration;
+        final int mSlot;
+        final int mUseCount;
+        final long mLastUsedSequence;
+
+        Record(long generation, int slot, int useCount) {
+            this(generation, slot, useCount, 0);
+        }
+
+        Record(long generation, int slot, int useCount, long lastUsedSequence) {
+            mGeneration = generation;
+            mSlot = slot;
+            mUseCount = useCount;
+            mLastUsedSequence = lastUsedSequence;
+        }
+    }
+
+    /**
+     * The contents of the journal.
+     */
+    static final class Contents {
+        // The intact records, in the order they were appended.
+        final List<Record> mRecords;
+        // Whether the journal ends with data which isn't an intact record.
+        final boolean mDamaged;
+
+        Contents(@NonNull List<Record> records, boolean damaged) {
+            mRecords = records;
+            mDamaged = damaged;
+        }
+    }
+
+    private final File mFile;
+
+    AuthKeyUsageJournal(@NonNull File file) {
+        mFile = file;
+    }
+
+    /**
+     * Returns whether the journal file exists.
+     */
+    boolean exists() {
+        return mFile.exists();
+    }
+
+    /**
+     * Encrypts a record and appends it to the journal.
+     *
+     * <p>The record is written with a single write and flushed to storage before returning.
+     *
+     * @param key the key to encrypt the record with.
+     * @param record the record to append.
+     * @throws IOException if writing the journal failed.
+     */
+    void append(@NonNull SecretKey key, @NonNull Record record) throws IOException {
+        byte[] cleartext = Util.cborEncode(new CborBuilder()
+                .addArray()
+                .add(record.mGeneration)
+                .add(record.mSlot)
+                .add(record.mUseCount)
+                .add(record.mLastUsedSequence)
+                .end()
+                .build().get(0));
+        byte[] iv;
+        byte[] cipherText;
+        try {
+            Cipher cipher = CryptoPool.getCipher("AES/GCM/NoPadding", Cipher.ENCRYPT_MODE, key,
+                    null);
+            cipherText = cipher.doFinal(cleartext); // This includes the auth tag
+            iv = cipher.getIV();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Error encrypting journal record", e);
+        }
+        ByteBuffer byteBuffer = ByteBuffer.allocate(
+                PREFIX_LENGTH + iv.length + cipherText.length);
+        byteBuffer.putInt(iv.length + cipherText.length);
+        byteBuffer.put((byte) iv.length);
+        byteBuffer.put(iv);
+        byteBuffer.put(cipherText);
+
+        try (FileOutputStream outputStream = new FileOutputStream(mFile, true)) {
+            outputStream.write(byteBuffer.array());
+            outputStream.getFD().sync();
+        }
+    }
+
+    /**
+     * Reads and decrypts all records in the journal.
+     *
+     * <p>Reading stops at the first record which can't be decrypted or decoded.
+     *
+     * @param key the key the records were encrypted with.
+     * @return the contents of the journal, empty if the journal doesn't exist.
+     * @throws IOException if reading the journal failed.
+     */
+    @NonNull Contents read(@NonNull SecretKey key) throws IOException {
+        byte[] data;
+        try (FileInputStream inputStream = new FileInputStream(mFile)) {
+            data = new byte[(int) mFile.length()];
+            int offset = 0;
+            while (offset < data.length) {
+                int numRead = inputStream.read(data, offset, data.length - offset);
+                if (numRead == -1) {
+                    break;
+                }
+                offset += numRead;
+            }
+            if (offset < data.length) {
+                data = Arrays.copyOf(data, offset);
+            }
+        } catch (FileNotFoundException e) {
+            return new Contents(new ArrayList<>(), false);
+        }
+
+        List<Record> records = new ArrayList<>();
+        ByteBuffer byteBuffer = ByteBuffer.wrap(data);
+        while (byteBuffer.hasRemaining()) {
+            if (byteBuffer.remaining() < PREFIX_LENGTH) {
+                return new Contents(records, true);
+            }
+            int length = byteBuffer.getInt();
+            int ivLength = byteBuffer.get() & 0xff;
+            if (ivLength == 0 || length < ivLength + TAG_LENGTH
+                    || length > byteBuffer.remaining()) {
+                return new Contents(records, true);
+            }
+            int offset = byteBuffer.position();
+            byteBuffer.position(offset + length);
+
+            Record record = decryptRecord(key, data, offset, length, ivLength);
+            if (record == null) {
+                return new Contents(records, true);
+            }
+            records.add(record);
+        }
+        return new Contents(records, false);
+    }
+
+    // Returns null if the record can't be decrypted or decoded.
+    private static Record decryptRecord(@NonNull SecretKey key, @NonNull byte[] data,
+            int offset, int length, int ivLength) {
+        byte[] cleartext;
+        try {
+            Cipher cipher = CryptoPool.getCipher("AES/GCM/NoPadding", Cipher.DECRYPT_MODE, key,
+                    new GCMParameterSpec(TAG_LENGTH * 8, data, offset, ivLength));
+            cleartext = cipher.doFinal(data, offset + ivLength, length - ivLength);
+        } catch (GeneralSecurityException e) {
+            return null;
+        }
+        try {
+            DataItem item = Util.cborDecode(cleartext);
+            if (!(item instanceof Array)) {
+                return null;
+            }
+            List<DataItem> items = ((Array) item).getDataItems();
+            if (items.size() != 3 && items.size() != 4) {
+                return null;
+            }
+            long lastUsedSequence = 0;
+            if (items.size() == 4) {
+                lastUsedSequence = ((Number) items.get(3)).getValue().longValue();
+            }
+            return new Record(((Number) items.get(0)).getValue().longValue(),
+                    ((Number) items.get(1)).getValue().intValue(),
+                    ((Number) items.get(2)).getValue().intValue(),
+                    lastUsedSequence);
+        } catch (IllegalArgumentException | ClassCastException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Deletes the journal.
+     */
+    void delete() {
+        mFile.delete();
+    }
+}
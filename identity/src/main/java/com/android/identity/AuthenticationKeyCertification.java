@@ -0,0 +1,81 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import android.icu.util.Calendar;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.security.cert.X509Certificate;
+
+/**
+ * The certification of a dynamic authentication key by the issuer, consisting of static
+ * authentication data and optionally its expiration date.
+ *
+ * <p>This is used in
+ * {@link IdentityCredential#storeStaticAuthenticationData(java.util.Collection)}.
+ */
+public final class AuthenticationKeyCertification {
+    private final X509Certificate mAuthenticationKey;
+    private final Calendar mExpirationDate;
+    private final byte[] mStaticAuthData;
+
+    /**
+     * Creates a new authentication key certification.
+     *
+     * @param authenticationKey The dynamic authentication key, as returned by
+     *                          {@link IdentityCredential#getAuthKeysNeedingCertification()}.
+     * @param expirationDate    The expiration date of the static authentication data or
+     *                          {@code null} if it doesn't expire.
+     * @param staticAuthData    Static authentication data provided by the issuer.
+     */
+    public AuthenticationKeyCertification(@NonNull X509Certificate authenticationKey,
+            @Nullable Calendar expirationDate,
+            @NonNull byte[] staticAuthData) {
+        mAuthenticationKey = authenticationKey;
+        mExpirationDate = expirationDate;
+        mStaticAuthData = staticAuthData;
+    }
+
+    /**
+     * Gets the dynamic authentication key.
+     *
+     * @return the dynamic authentication key.
+     */
+    public @NonNull X509Certificate getAuthenticationKey() {
+        return mAuthenticationKey;
+    }
+
+    /**
+     * Gets the expiration date of the static authentication data.
+     *
+     * @return the expiration date or {@code null} if it doesn't expire.
+     */
+    public @Nullable Calendar getExpirationDate() {
+        return mExpirationDate;
+    }
+
+    /**
+     * Gets the static authentication data.
+     *
+     * @return the static authentication data.
+     */
+    public @NonNull byte[] getStaticAuthData() {
+        return mStaticAuthData;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+/**
+ * Metrics about the consumption of dynamic authentication keys of a credential.
+ *
+ * <p>The metrics cover the period since the credential was first used or its metrics first
+ * requested in the current process.
+ */
+public final class AuthenticationKeyMetrics {
+    private final long mNumKeysUsed;
+    private final long mNumExhaustedKeysUsed;
+    private final long mNumExpiredKeysUsed;
+    private final long mPeriodMillis;
+
+    AuthenticationKeyMetrics(long numKeysUsed, long numExhaustedKeysUsed,
+            long numExpiredKeysUsed, long periodMillis) {
+        mNumKeysUsed = numKeysUsed;
+        mNumExhaustedKeysUsed = numExhaustedKeysUsed;
+        mNumExpiredKeysUsed = numExpiredKeysUsed;
+        mPeriodMillis = periodMillis;
+    }
+
+    /**
+     * Gets the number of times an authentication key was used and its use count incremented.
+     *
+     * @return the number of keys used.
+     */
+    public long getNumKeysUsed() {
+        return mNumKeysUsed;
+    }
+
+    /**
+     * Gets the number of times a key was used which had already reached its maximum use count.
+     *
+     * @return the number of exhausted keys used.
+     */
+    public long getNumExhaustedKeysUsed() {
+        return mNumExhaustedKeysUsed;
+    }
+
+    /**
+     * Gets the number of times a key was used whose static authentication data had expired.
+     *
+     * @return the number of expired keys used.
+     */
+    public long getNumExpiredKeysUsed() {
+        return mNumExpiredKeysUsed;
+    }
+
+    /**
+     * Gets the length of the period covered by these metrics.
+     *
+     * @return the period in milliseconds.
+     */
+    public long getPeriodMillis() {
+        return mPeriodMillis;
+    }
+
+    /**
+     * Gets the rate at which keys are used.
+     *
+     * @return the number of keys used per day over the period, or 0 if the period is empty.
+     */
+    public double getKeysUsedPerDay() {
+        if (mPeriodMillis <= 0) {
+            return 0;
+        }
+        return mNumKeysUsed * (24.0 * 3600 * 1000) / mPeriodMillis;
+    }
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import android.icu.util.Calendar;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.LongSupplier;
+
+/**
+ * Keeps dynamic authentication keys of credentials available ahead of need.
+ *
+ * <p>Without this, authentication keys are only replaced when the application explicitly calls
+ * {@link IdentityCredential#getAuthKeysNeedingCertification()} and has the keys certified by
+ * the issuer, and a presentation may find all keys exhausted or expired. This class checks
+ * credentials against a {@link Policy} on a background thread and when the number of available
+ * keys drops below the low watermark of the policy, it generates replacement keys and passes
+ * them to a {@link Certifier} so they can be certified before they're needed.
+ *
+ * <p>A key is considered available if it has been certified, hasn't reached its maximum use
+ * count, and its static authentication data doesn't expire within the renewal period of the
+ * policy. Keys expiring within the renewal period are replaced as well, so they can be certified
+ * before they expire. For implementations which can't report the number of available keys,
+ * replacement keys are generated on every check and keys are only replaced once expired.
+ *
+ * <p>Checks are requested with {@link #requestCheck(String)}, for example after each
+ * presentation, and run on a background thread so they don't slow down the presentation.
+ */
+public final class AuthenticationKeyReplenisher {
+    private static final String TAG = "AuthenticationKeyReplenisher";
+
+    /**
+     * An interface for having authentication keys certified by the issuer.
+     */
+    public interface Certifier {
+        /**
+         * Called when authentication keys of a credential need certification.
+         *
+         * <p>The implementation should obtain static authentication data for the given keys
+         * from the issuer, for example using a network request, and pass it to
+         * {@link IdentityCredential#storeStaticAuthenticationData(Collection)}. This may be done
+         * asynchronously.
+         *
+         * <p>Keys are only passed once. Keys which couldn't be certified remain pending and
+         * can be obtained with {@link IdentityCredential#getAuthKeysNeedingCertification()}.
+         *
+         * @param credentialName the name of the credential.
+         * @param credential the credential.
+         * @param authenticationKeys the keys needing certification which haven't been passed
+         *                           to the certifier before.
+         */
+        void onAuthenticationKeysNeedCertification(@NonNull String credentialName,
+                @NonNull IdentityCredential credential,
+                @NonNull Collection<X509Certificate> authenticationKeys);
+    }
+
+    /**
+     * A policy for when to replenish authentication keys.
+     */
+    public static final class Policy {
+        private final int mMinAvailableKeys;
+        private final long mRenewBeforeExpiryMillis;
+
+        Policy(int minAvailableKeys, long renewBeforeExpiryMillis) {
+            mMinAvailableKeys = minAvailableKeys;
+            mRenewBeforeExpiryMillis = renewBeforeExpiryMillis;
+        }
+
+        /**
+         * Gets the low watermark for the number of available keys.
+         *
+         * @return the minimum number of available keys.
+         */
+        public int getMinAvailableKeys() {
+            return mMinAvailableKeys;
+        }
+
+        /**
+         * Gets how long before the expiration of their static authentication data keys are
+         * renewed.
+         *
+         * @return the renewal period in milliseconds.
+         */
+        public long getRenewBeforeExpiryMillis() {
+            return mRenewBeforeExpiryMillis;
+        }
+
+        /**
+         * A builder for {@link Policy}.
+         */
+        public static final class Builder {
+            private int mMinAvailableKeys = 1;
+            private long mRenewBeforeExpiryMillis = 0;
+
+            /**
+             * Creates a new builder.
+             *
+             * <p>By default keys are replenished when no key is available and keys are only
+             * renewed once they have expired.
+             */
+            public Builder() {
+            }
+
+            /**
+             * Sets the low watermark for the number of available keys. Keys are replenished
+             * when fewer keys than this are available.
+             *
+             * <p>This should be at most the number of keys set with
+             * {@link IdentityCredential#setAvailableAuthenticationKeys(int, int)}.
+             *
+             * @param minAvailableKeys the minimum number of available keys.
+             * @return the builder.
+             * @throws IllegalArgumentException if {@code minAvailableKeys} is negative.
+             */
+            public @NonNull Builder setMinAvailableKeys(int minAvailableKeys) {
+                if (minAvailableKeys < 0) {
+                    throw new IllegalArgumentException("minAvailableKeys must not be negative");
+                }
+                mMinAvailableKeys = minAvailableKeys;
+                return this;
+            }
+
+            /**
+             * Sets how long before the expiration of their static authentication data keys are
+             * considered unavailable and renewed.
+             *
+             * @param renewBeforeExpiryMillis the renewal period in milliseconds.
+             * @return the builder.
+             * @throws IllegalArgumentException if {@code renewBeforeExpiryMillis} is negative.
+             */
+            public @NonNull Builder setRenewBeforeExpiryMillis(long renewBeforeExpiryMillis) {
+                if (renewBeforeExpiryMillis < 0) {
+                    throw new IllegalArgumentException(
+                            "renewBeforeExpiryMillis must not be negative");
+                }
+                mRenewBeforeExpiryMillis = renewBeforeExpiryMillis;
+                return this;
+            }
+
+            /**
+             * Builds the {@link Policy}.
+             *
+             * <p>The policy is immutable, changing the builder afterwards doesn't affect it.
+             *
+             * @return the policy.
+             */
+            public @NonNull Policy build() {
+                return new Policy(mMinAvailableKeys, mRenewBeforeExpiryMillis);
+            }
+        }
+    }
+
+    private final IdentityCredentialStore mStore;
+    private final Certifier mCertifier;
+    private final Executor mCertifierExecutor;
+    private final LongSupplier mClock;
+    private final ExecutorService mCheckExecutor;
+
+    // All guarded by this.
+    private Policy mDefaultPolicy = new Policy.Builder().build();
+    private final Map<String, Policy> mPolicies = new HashMap<>();
+    private final Set<String> mChecksPending = new HashSet<>();
+    // The keys passed to the certifier which were still pending at the last check.
+    private final Map<String, Set<X509Certificate>> mKeysOutstanding = new HashMap<>();
+
+    /**
+     * Creates a new replenisher.
+     *
+     * @param store the store the credentials are in.
+     * @param certifier the certifier to pass keys needing certification to.
+     * @param certifierExecutor the executor to call {@code certifier} on.
+     */
+    public AuthenticationKeyReplenisher(@NonNull IdentityCredentialStore store,
+            @NonNull Certifier certifier,
+            @NonNull Executor certifierExecutor) {
+        this(store, certifier, certifierExecutor, System::currentTimeMillis);
+    }
+
+    AuthenticationKeyReplenisher(@NonNull IdentityCredentialStore store,
+            @NonNull Certifier certifier,
+            @NonNull Executor certifierExecutor,
+            @NonNull LongSupplier clock) {
+        mStore = store;
+        mCertifier = certifier;
+        mCertifierExecutor = certifierExecutor;
+        mClock = clock;
+        mCheckExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, TAG);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Sets the policy used for credentials without a policy of their own.
+     *
+     * @param policy the policy.
+     */
+    public synchronized void setDefaultPolicy(@NonNull Policy policy) {
+        mDefaultPolicy = policy;
+    }
+
+    /**
+     * Sets the policy for a credential.
+     *
+     * @param credentialName the name of the credential.
+     * @param policy the policy.
+     */
+    public synchronized void setPolicy(@NonNull String credentialName, @NonNull Policy policy) {
+        mPolicies.put(credentialName, policy);
+    }
+
+    private synchronized @NonNull Policy getPolicy(@NonNull String credentialName) {
+        Policy policy = mPolicies.get(credentialName);
+        return policy != null ? policy : mDefaultPolicy;
+    }
+
+    /**
+     * Requests the authentication keys of a credential to be checked on a background thread.
+     *
+     * <p>Requests for a credential which is already waiting to be checked are ignored.
+     * Errors while checking are logged.
+     *
+     * @param credentialName the name of the credential.
+     */
+    public void requestCheck(@NonNull String credentialName) {
+        synchronized (this) {
+            if (!mChecksPending.add(credentialName)) {
+                return;
+            }
+        }
+        mCheckExecutor.execute(() -> {
+            synchronized (this) {
+                mChecksPending.remove(credentialName);
+            }
+            try {
+                checkNow(credentialName);
+            } catch (RuntimeException | IdentityCredentialException e) {
+                Log.w(TAG, "Error checking authentication keys for " + credentialName, e);
+            }
+        });
+    }
+
+    /**
+     * Checks the authentication keys of a credential on the calling thread.
+     *
+     * <p>If fewer keys than the low watermark of the policy for the credential are available,
+     * replacement keys are generated and the keys needing certification are passed to the
+     * {@link Certifier}, except for keys already passed by an earlier check.
+     *
+     * @param credentialName the name of the credential.
+     * @return {@code true} if the {@link Certifier} was called, {@code false} if the credential
+     *     doesn't exist or no keys need certification which weren't already passed to it.
+     * @throws IdentityCredentialException if the credential couldn't be loaded.
+     */
+    public boolean checkNow(@NonNull String credentialName) throws IdentityCredentialException {
+        IdentityCredential credential = mStore.getCredentialByName(credentialName,
+                IdentityCredentialStore.CIPHERSUITE_ECDHE_HKDF_ECDSA_WITH_AES_256_GCM_SHA256);
+        if (credential == null) {
+            synchronized (this) {
+                mKeysOutstanding.remove(credentialName);
+            }
+            return false;
+        }
+        Policy policy = getPolicy(credentialName);
+        Calendar validUntil = Calendar.getInstance();
+        validUntil.setTimeInMillis(mClock.getAsLong() + policy.getRenewBeforeExpiryMillis());
+
+        int numAvailable = credential.getNumAvailableAuthenticationKeys(validUntil);
+        if (numAvailable >= policy.getMinAvailableKeys()) {
+            return false;
+        }
+        Collection<X509Certificate> pendingKeys =
+                credential.getAuthKeysNeedingCertification(validUntil);
+
+        // Keys stay pending until the certifier stores their static authentication data, so
+        // only pass the ones generated since the last check. Keys which are no longer pending
+        // have been certified or replaced and are forgotten.
+        List<X509Certificate> authenticationKeys = new ArrayList<>();
+        synchronized (this) {
+            Set<X509Certificate> outstanding = mKeysOutstanding.put(credentialName,
+                    new HashSet<>(pendingKeys));
+            for (X509Certificate key : pendingKeys) {
+                if (outstanding == null || !outstanding.contains(key)) {
+                    authenticationKeys.add(key);
+                }
+            }
+        }
+        if (authenticationKeys.isEmpty()) {
+            return false;
+        }
+        Log.d(TAG, credentialName + " has " + numAvailable + " keys available, "
+                + authenticationKeys.size() + " need certification");
+        mCertifierExecutor.execute(() -> mCertifier.onAuthenticationKeysNeedCertification(
+                credentialName, credential, authenticationKeys));
+        return true;
+    }
+
+    /**
+     * Stops the background thread. Checks already requested are still run.
+     */
+    public void shutdown() {
+        mCheckExecutor.shutdown();
+    }
+}
@@ -0,0 +1,430 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import android.content.Context;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+import android.util.AtomicFile;
+
+import androidx.annotation.NonNull;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+import co.nstant.in.cbor.CborBuilder;
+import co.nstant.in.cbor.builder.ArrayBuilder;
+import co.nstant.in.cbor.builder.MapBuilder;
+import co.nstant.in.cbor.model.Array;
+import co.nstant.in.cbor.model.ByteString;
+import co.nstant.in.cbor.model.DataItem;
+import co.nstant.in.cbor.model.UnicodeString;
+
+/**
+ * A content-addressed store of encrypted blobs shared by all credentials of the software
+ * implementation.
+ *
+ * <p>This is used by {@link CredentialData} for data element values larger than a threshold,
+ * see {@link #setThreshold(int)}, so e.g. a portrait personalized into several credentials is
+ * only stored once. Each blob is stored in its own file, named after its address, which is
+ * the HMAC-SHA256 of the value so the address doesn't reveal anything about the value. Blobs
+ * are encrypted with AES-GCM using the address as additional authenticated data. The keys
+ * for both are kept in Android Keystore.
+ *
+ * <p>Blobs are reference counted by keeping the set of credentials referring to each of them
+ * in an encrypted references file. A credential adds references before committing data which
+ * refers to the blobs and drops the references it no longer needs afterwards, so a crash may
+ * leave a blob referenced when it's no longer needed, but never the other way around. When
+ * the last reference to a blob is dropped, the blob is deleted.
+ *
+ * <p>All operations on the store are serialized with a process-wide lock.
+ */
+final class BlobStore {
+    private static final String DIRECTORY_NAME = "identity_credential_blobs";
+    private static final String REFERENCES_FILE_NAME = "references";
+    private static final String ENCRYPTION_KEY_ALIAS = "identity_credential_blob_store";
+    private static final String MAC_KEY_ALIAS = "identity_credential_blob_store_mac";
+    private static final int TAG_LENGTH = 16;
+
+    private static final Object sLock = new Object();
+    // Guarded by sLock.
+    private static int sThreshold = 0;
+    // The owners which put a blob but haven't added their reference yet, keyed by address.
+    // Such blobs aren't deleted when their last reference is dropped. Guarded by sLock.
+    private static final Map<ByteBuffer, Set<String>> sPendingOwners = new HashMap<>();
+
+    private final File mDirectory;
+    private final SecretKey mEncryptionKey;
+    private final SecretKey mMacKey;
+
+    BlobStore(@NonNull File directory, @NonNull SecretKey encryptionKey,
+            @NonNull SecretKey macKey) {
+        mDirectory = directory;
+        mEncryptionKey = encryptionKey;
+        mMacKey = macKey;
+    }
+
+    /**
+     * Sets the size from which data element values are stored in the blob store.
+     *
+     * @param threshold the size in bytes, or 0 to not store new values in the blob store.
+     */
+    static void setThreshold(int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Threshold must not be negative");
+        }
+        synchronized (sLock) {
+            sThreshold = threshold;
+        }
+    }
+
+    static int getThreshold() {
+        synchronized (sLock) {
+            return sThreshold;
+        }
+    }
+
+    /**
+     * Checks whether there's a blob store for the application, without creating it.
+     */
+    static boolean exists(@NonNull Context context) {
+        return new File(context.getFilesDir(), DIRECTORY_NAME).isDirectory();
+    }
+
+    /**
+     * Gets the blob store for the application, creating it and its keys if needed.
+     */
+    static @NonNull BlobStore get(@NonNull Context context) {
+        synchronized (sLock) {
+            File directory = new File(context.getFilesDir(), DIRECTORY_NAME);
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IllegalStateException("Error creating " + directory);
+            }
+            return new BlobStore(directory,
+                    getOrCreateKey(ENCRYPTION_KEY_ALIAS, KeyProperties.KEY_ALGORITHM_AES,
+                            KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT),
+                    getOrCreateKey(MAC_KEY_ALIAS, KeyProperties.KEY_ALGORITHM_HMAC_SHA256,
+                            KeyProperties.PURPOSE_SIGN));
+        }
+    }
+
+    private static SecretKey getOrCreateKey(String alias, String algorithm, int purposes) {
+        try {
+            KeyStore.Entry entry = KeyStoreCache.getEntry(alias);
+            if (entry == null) {
+                KeyGenerator kg = KeyGenerator.getInstance(algorithm, "AndroidKeyStore");
+                KeyGenParameterSpec.Builder builder =
+                        new KeyGenParameterSpec.Builder(alias, purposes);
+                if (algorithm.equals(KeyProperties.KEY_ALGORITHM_AES)) {
+                    builder.setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                            .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                            .setKeySize(128);
+                }
+                kg.init(builder.build());
+                kg.generateKey();
+                KeyStoreCache.invalidate(alias);
+                entry = KeyStoreCache.getEntry(alias);
+            }
+            return ((KeyStore.SecretKeyEntry) entry).getSecretKey();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Error getting blob store key " + alias, e);
+        }
+    }
+
+    /**
+     * Stores a blob, unless a blob with the same content is already stored.
+     *
+     * <p>The owner must add a reference to the blob with
+     * {@link #addReferences(String, Collection)} before committing data which refers to it.
+     * Until then the blob isn't deleted by other owners dropping their references, so
+     * several blobs can be put and referenced with a single update of the references file.
+     *
+     * @param owner the owner, typically a credential.
+     * @param value the content of the blob.
+     * @return the address of the blob.
+     */
+    @NonNull byte[] put(@NonNull String owner, @NonNull byte[] value) {
+        byte[] address = getAddress(value);
+        synchronized (sLock) {
+            File file = getFile(address);
+            if (!file.exists()) {
+                writeBlob(file, address, value);
+            }
+            ByteBuffer key = ByteBuffer.wrap(address);
+            Set<String> owners = sPendingOwners.get(key);
+            if (owners == null) {
+                owners = new HashSet<>();
+                sPendingOwners.put(key, owners);
+            }
+            owners.add(owner);
+        }
+        return address;
+    }
+
+    private void writeBlob(File file, byte[] address, byte[] value) {
+        byte[] iv;
+        byte[] cipherText;
+        try {
+            Cipher cipher = CryptoPool.getCipher("AES/GCM/NoPadding", Cipher.ENCRYPT_MODE,
+                    mEncryptionKey, null);
+            cipher.updateAAD(address);
+            cipherText = cipher.doFinal(value); // This includes the auth tag
+            iv = cipher.getIV();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Error encrypting blob", e);
+        }
+        ByteBuffer data = ByteBuffer.allocate(1 + iv.length + cipherText.length);
+        data.put((byte) iv.length);
+        data.put(iv);
+        data.put(cipherText);
+        writeFile(file, data.array());
+    }
+
+    /**
+     * Reads and decrypts a blob.
+     *
+     * @param address the address of the blob.
+     * @return the content of the blob.
+     * @throws IOException if reading the blob failed, e.g. because it doesn't exist.
+     * @throws IllegalStateException if the blob can't be decrypted.
+     */
+    @NonNull byte[] get(@NonNull byte[] address) throws IOException {
+        byte[] data = new AtomicFile(getFile(address)).readFully();
+        int ivLength = data.length > 0 ? data[0] & 0xff : 0;
+        if (ivLength == 0 || data.length < 1 + ivLength + TAG_LENGTH) {
+            throw new IllegalStateException("Malformed blob " + Util.toHex(address));
+        }
+        try {
+            Cipher cipher = CryptoPool.getCipher("AES/GCM/NoPadding", Cipher.DECRYPT_MODE,
+                    mEncryptionKey, new GCMParameterSpec(TAG_LENGTH * 8, data, 1, ivLength));
+            cipher.updateAAD(address);
+            return cipher.doFinal(data, 1 + ivLength, data.length - 1 - ivLength);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Error decrypting blob", e);
+        }
+    }
+
+    /**
+     * Adds references from an owner, typically a credential, to blobs.
+     *
+     * @param owner the owner.
+     * @param addresses the addresses of the blobs.
+     */
+    void addReferences(@NonNull String owner, @NonNull Collection<ByteBuffer> addresses) {
+        synchronized (sLock) {
+            Map<ByteBuffer, Set<String>> references = readReferences();
+            boolean changed = false;
+            for (ByteBuffer address : addresses) {
+                removePendingOwner(address, owner);
+                Set<String> owners = references.get(address);
+                if (owners == null) {
+                    owners = new HashSet<>();
+                    references.put(address, owners);
+                }
+                changed |= owners.add(owner);
+            }
+            if (changed) {
+                writeReferences(references);
+            }
+        }
+    }
+
+    /**
+     * Drops the references from an owner to all blobs other than the given ones, and deletes
+     * blobs which are no longer referenced, unless another owner has put them and is about to
+     * add its reference.
+     *
+     * @param owner the owner.
+     * @param addressesToKeep the addresses of the blobs still referenced by the owner.
+     */
+    void retainReferences(@NonNull String owner,
+            @NonNull Collection<ByteBuffer> addressesToKeep) {
+        synchronized (sLock) {
+            // Blobs the owner put without adding a reference are no longer needed either.
+            Iterator<Map.Entry<ByteBuffer, Set<String>>> pendingIterator =
+                    sPendingOwners.entrySet().iterator();
+            while (pendingIterator.hasNext()) {
+                Map.Entry<ByteBuffer, Set<String>> entry = pendingIterator.next();
+                if (!addressesToKeep.contains(entry.getKey())) {
+                    entry.getValue().remove(owner);
+                    if (entry.getValue().isEmpty()) {
+                        pendingIterator.remove();
+                    }
+                }
+            }
+
+            Map<ByteBuffer, Set<String>> references = readReferences();
+            boolean changed = false;
+            Iterator<Map.Entry<ByteBuffer, Set<String>>> iterator =
+                    references.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<ByteBuffer, Set<String>> entry = iterator.next();
+                if (addressesToKeep.contains(entry.getKey())
+                        || !entry.getValue().remove(owner)) {
+                    continue;
+                }
+                changed = true;
+                if (entry.getValue().isEmpty()) {
+                    iterator.remove();
+                    // Removed from the references first, a blob without references is only
+                    // wasted space.
+                    if (!sPendingOwners.containsKey(entry.getKey())) {
+                        getFile(entry.getKey().array()).delete();
+                    }
+                }
+            }
+            if (changed) {
+                writeReferences(references);
+            }
+        }
+    }
+
+    // Must be called with sLock held.
+    private static void removePendingOwner(ByteBuffer address, String owner) {
+        Set<String> owners = sPendingOwners.get(address);
+        if (owners != null && owners.remove(owner) && owners.isEmpty()) {
+            sPendingOwners.remove(address);
+        }
+    }
+
+    /**
+     * Gets the number of owners referencing a blob.
+     */
+    int getReferenceCount(@NonNull byte[] address) {
+        synchronized (sLock) {
+            Set<String> owners = readReferences().get(ByteBuffer.wrap(address));
+            return owners != null ? owners.size() : 0;
+        }
+    }
+
+    boolean contains(@NonNull byte[] address) {
+        return getFile(address).exists();
+    }
+
+    private byte[] getAddress(byte[] value) {
+        try {
+            Mac mac = CryptoPool.getMac("HmacSHA256", mMacKey);
+            return mac.doFinal(value);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Error computing blob address", e);
+        }
+    }
+
+    private File getFile(byte[] address) {
+        return new File(mDirectory, Util.toHex(address));
+    }
+
+    // The references file is a CBOR map from address to array of owners, encrypted like a blob
+    // with the file name as additional authenticated data.
+    //
+    private Map<ByteBuffer, Set<String>> readReferences() {
+        Map<ByteBuffer, Set<String>> references = new HashMap<>();
+        File file = new File(mDirectory, REFERENCES_FILE_NAME);
+        byte[] data;
+        try {
+            data = new AtomicFile(file).readFully();
+        } catch (FileNotFoundException e) {
+            return references;
+        } catch (IOException e) {
+            throw new IllegalStateException("Error reading blob references", e);
+        }
+        byte[] encodedReferences;
+        try {
+            int ivLength = data[0] & 0xff;
+            Cipher cipher = CryptoPool.getCipher("AES/GCM/NoPadding", Cipher.DECRYPT_MODE,
+                    mEncryptionKey, new GCMParameterSpec(TAG_LENGTH * 8, data, 1, ivLength));
+            cipher.updateAAD(REFERENCES_FILE_NAME.getBytes(UTF_8));
+            encodedReferences = cipher.doFinal(data, 1 + ivLength, data.length - 1 - ivLength);
+        } catch (GeneralSecurityException | ArrayIndexOutOfBoundsException e) {
+            throw new IllegalStateException("Error decrypting blob references", e);
+        }
+        co.nstant.in.cbor.model.Map map =
+                (co.nstant.in.cbor.model.Map) Util.cborDecode(encodedReferences);
+        for (DataItem key : map.getKeys()) {
+            Set<String> owners = new HashSet<>();
+            for (DataItem owner : ((Array) map.get(key)).getDataItems()) {
+                owners.add(((UnicodeString) owner).getString());
+            }
+            references.put(ByteBuffer.wrap(((ByteString) key).getBytes()), owners);
+        }
+        return references;
+    }
+
+    private void writeReferences(Map<ByteBuffer, Set<String>> references) {
+        CborBuilder builder = new CborBuilder();
+        MapBuilder<CborBuilder> map = builder.addMap();
+        for (Map.Entry<ByteBuffer, Set<String>> entry : references.entrySet()) {
+            ArrayBuilder<MapBuilder<CborBuilder>> owners =
+                    map.putArray(new ByteString(entry.getKey().array()));
+            for (String owner : entry.getValue()) {
+                owners.add(owner);
+            }
+            owners.end();
+        }
+        map.end();
+        byte[] iv;
+        byte[] cipherText;
+        try {
+            Cipher cipher = CryptoPool.getCipher("AES/GCM/NoPadding", Cipher.ENCRYPT_MODE,
+                    mEncryptionKey, null);
+            cipher.updateAAD(REFERENCES_FILE_NAME.getBytes(UTF_8));
+            cipherText = cipher.doFinal(Util.cborEncode(builder.build().get(0)));
+            iv = cipher.getIV();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Error encrypting blob references", e);
+        }
+        ByteBuffer data = ByteBuffer.allocate(1 + iv.length + cipherText.length);
+        data.put((byte) iv.length);
+        data.put(iv);
+        data.put(cipherText);
+        writeFile(new File(mDirectory, REFERENCES_FILE_NAME), data.array());
+    }
+
+    private static void writeFile(File file, byte[] data) {
+        AtomicFile atomicFile = new AtomicFile(file);
+        FileOutputStream outputStream = null;
+        try {
+            outputStream = atomicFile.startWrite();
+            outputStream.write(data);
+            atomicFile.finishWrite(outputStream);
+        } catch (IOException e) {
+            if (outputStream != null) {
+                atomicFile.failWrite(outputStream);
+            }
+            throw new IllegalStateException("Error writing " + file.getName(), e);
+        }
+    }
+}
@@ -0,0 +1,822 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import android.util.Pair;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import co.nstant.in.cbor.CborDecoder;
+import co.nstant.in.cbor.CborException;
+import co.nstant.in.cbor.model.DataItem;
+
+/**
+ * A read-only view of a single encoded CBOR data item.
+ *
+ * <p>Unlike {@link Util#cborDecode(byte[])}, which builds a tree of {@link DataItem} objects
+ * for all of the input, this only records where an item is located in the original
+ * {@code byte[]}. Items in arrays and maps and the contents of embedded CBOR
+ * (<code>#6.24(bstr)</code>) are returned as new views over the same buffer and values are
+ * only materialized when asked for, for example using {@link #getString()} or
+ * {@link #getByteString()}.
+ *
+ * <p>The buffer passed to {@link #of(byte[])} must not be modified while views on it are
+ * in use.
+ */
+final class CborSlice {
+    static final int MAJOR_TYPE_UNSIGNED_INTEGER = 0;
+    static final int MAJOR_TYPE_NEGATIVE_INTEGER = 1;
+    static final int MAJOR_TYPE_BYTE_STRING = 2;
+    static final int MAJOR_TYPE_UNICODE_STRING = 3;
+    static final int MAJOR_TYPE_ARRAY = 4;
+    static final int MAJOR_TYPE_MAP = 5;
+    static final int MAJOR_TYPE_TAG = 6;
+    static final int MAJOR_TYPE_SPECIAL = 7;
+
+    private static final int ADDITIONAL_INFO_INDEFINITE = 31;
+    private static final int SIMPLE_VALUE_FALSE = 20;
+    private static final int SIMPLE_VALUE_TRUE = 21;
+    private static final int SIMPLE_VALUE_NULL = 22;
+    private static final int SIMPLE_VALUE_UNDEFINED = 23;
+    private static final byte BREAK = (byte) 0xff;
+    private static final long CBOR_SEMANTIC_TAG_ENCODED_CBOR = 24;
+    private static final long TAG_RATIONAL_NUMBER = 30;
+    private static final long TAG_LANGUAGE_TAGGED_STRING = 38;
+
+    private final byte[] mData;
+    private final int mOffset;
+    private final int mEnd;
+
+    private final boolean mHasTag;
+    private final long mTag;
+    private final int mMajorType;
+    private final int mAdditionalInfo;
+    // The value for integers, the length for definite-length strings, the number of items
+    // for arrays and the number of pairs for maps. Not used for indefinite-length items.
+    private final long mArgument;
+    private final int mContentOffset;
+
+    // Only used for views whose bounds are already known to hold a well-formed item.
+    private CborSlice(@NonNull byte[] data, int offset, int end) {
+        mData = data;
+        mOffset = offset;
+        mEnd = end;
+
+        int pos = offset;
+        boolean hasTag = false;
+        long tag = 0;
+        while (((mData[pos] & 0xff) >> 5) == MAJOR_TYPE_TAG) {
+            long value = readArgument(mData, pos);
+            // For nested tags we only keep the outermost one, just like DataItem.getTag().
+            if (!hasTag) {
+                hasTag = true;
+                tag = value;
+            }
+            pos += headLength(mData[pos] & 0x1f);
+        }
+        mHasTag = hasTag;
+        mTag = tag;
+        mMajorType = (mData[pos] & 0xff) >> 5;
+        mAdditionalInfo = mData[pos] & 0x1f;
+        mArgument = readArgument(mData, pos);
+        mContentOffset = pos + headLength(mAdditionalInfo);
+    }
+
+    /**
+     * Creates a view for the given encoded CBOR.
+     *
+     * <p>This checks that the data is well-formed and contains exactly one data item
+     * but nothing is decoded.
+     *
+     * @param encodedCbor the bytes of the encoded CBOR.
+     * @return a view of the data item.
+     * @exception IllegalArgumentException if the data isn't well-formed CBOR or if it contains
+     *                                     more or less than a single data item.
+     */
+    static @NonNull CborSlice of(@NonNull byte[] encodedCbor) {
+        return of(encodedCbor, 0, encodedCbor.length);
+    }
+
+    /**
+     * Like {@link #of(byte[])} but for a region of a buffer.
+     *
+     * @param data the buffer.
+     * @param offset the offset of the encoded CBOR in the buffer.
+     * @param length the length of the encoded CBOR.
+     * @return a view of the data item.
+     * @exception IllegalArgumentException if the data isn't well-formed CBOR or if it contains
+     *                                     more or less than a single data item.
+     */
+    static @NonNull CborSlice of(@NonNull byte[] data, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > data.length) {
+            throw new IllegalArgumentException("Region is outside of the buffer");
+        }
+        if (length == 0) {
+            throw new IllegalArgumentException("Unexpected number of items, expected 1 got 0");
+        }
+        int end = offset + length;
+        int itemEnd = skip(data, offset, end);
+        if (itemEnd != end) {
+            throw new IllegalArgumentException("Unexpected data after first item");
+        }
+        return new CborSlice(data, offset, end);
+    }
+
+    // Returns the number of bytes used for the head of an item with the given
+    // additional information.
+    private static int headLength(int additionalInfo) {
+        if (additionalInfo < 24) {
+            return 1;
+        }
+        switch (additionalInfo) {
+            case 24:
+                return 2;
+            case 25:
+                return 3;
+            case 26:
+                return 5;
+            case 27:
+                return 9;
+            case ADDITIONAL_INFO_INDEFINITE:
+                return 1;
+            default:
+                throw new IllegalArgumentException(
+                        "Reserved additional information " + additionalInfo);
+        }
+    }
+
+    // Reads the argument of the head at |pos|, assumes there's enough data for the head.
+    private static long readArgument(@NonNull byte[] data, int pos) {
+        int additionalInfo = data[pos] & 0x1f;
+        if (additionalInfo < 24) {
+            return additionalInfo;
+        }
+        int numBytes;
+        switch (additionalInfo) {
+            case 24:
+                numBytes = 1;
+                break;
+            case 25:
+                numBytes = 2;
+                break;
+            case 26:
+                numBytes = 4;
+                break;
+            case 27:
+                numBytes = 8;
+                break;
+            default:
+                return -1;
+        }
+        long value = 0;
+        for (int n = 0; n < numBytes; n++) {
+            value = (value << 8) | (data[pos + 1 + n] & 0xff);
+        }
+        return value;
+    }
+
+    // Checks that the head at |pos| is within |end| and returns the offset right after it.
+    private static int checkHead(@NonNull byte[] data, int pos, int end) {
+        if (pos >= end) {
+            throw new IllegalArgumentException("Unexpected end of data");
+        }
+        int headEnd = pos + headLength(data[pos] & 0x1f);
+        if (headEnd > end) {
+            throw new IllegalArgumentException("Unexpected end of data");
+        }
+        return headEnd;
+    }
+
+    // Converts a length from a head into an end offset, checking it's within |end|.
+    private static int checkLength(int pos, long length, int end) {
+        if (length < 0 || length > end - pos) {
+            throw new IllegalArgumentException("Unexpected end of data");
+        }
+        return pos + (int) length;
+    }
+
+    /**
+     * Skips over the well-formed data item starting at |pos| and returns the offset of the
+     * first byte after it. Throws IllegalArgumentException if the data item isn't well-formed
+     * or extends beyond |end|.
+     */
+    static int skip(@NonNull byte[] data, int pos, int end) {
+        int headEnd = checkHead(data, pos, end);
+        int majorType = (data[pos] & 0xff) >> 5;
+        int additionalInfo = data[pos] & 0x1f;
+        long argument = readArgument(data, pos);
+        boolean indefinite = (additionalInfo == ADDITIONAL_INFO_INDEFINITE);
+
+        switch (majorType) {
+            case MAJOR_TYPE_UNSIGNED_INTEGER:
+            case MAJOR_TYPE_NEGATIVE_INTEGER:
+            case MAJOR_TYPE_TAG:
+                if (indefinite) {
+                    throw new IllegalArgumentException(
+                            "Indefinite length not allowed for major type " + majorType);
+                }
+                if (majorType == MAJOR_TYPE_TAG) {
+                    return skip(data, headEnd, end);
+                }
+                return headEnd;
+
+            case MAJOR_TYPE_BYTE_STRING:
+            case MAJOR_TYPE_UNICODE_STRING:
+                if (!indefinite) {
+                    return checkLength(headEnd, argument, end);
+                }
+                pos = headEnd;
+                while (true) {
+                    if (pos >= end) {
+                        throw new IllegalArgumentException("Unexpected end of data");
+                    }
+                    if (data[pos] == BREAK) {
+                        return pos + 1;
+                    }
+                    int chunkHeadEnd = checkHead(data, pos, end);
+                    if (((data[pos] & 0xff) >> 5) != majorType
+                            || (data[pos] & 0x1f) == ADDITIONAL_INFO_INDEFINITE) {
+                        throw new IllegalArgumentException(
+                                "Unexpected chunk in indefinite-length string");
+                    }
+                    pos = checkLength(chunkHeadEnd, readArgument(data, pos), end);
+                }
+
+            case MAJOR_TYPE_ARRAY:
+            case MAJOR_TYPE_MAP:
+                pos = headEnd;
+                if (indefinite) {
+                    while (true) {
+                        if (pos >= end) {
+                            throw new IllegalArgumentException("Unexpected end of data");
+                        }
+                        if (data[pos] == BREAK) {
+                            return pos + 1;
+                        }
+                        pos = skip(data, pos, end);
+                        if (majorType == MAJOR_TYPE_MAP) {
+                            pos = skip(data, pos, end);
+                        }
+                    }
+                }
+                long numItems = (majorType == MAJOR_TYPE_MAP) ? argument * 2 : argument;
+                if (argument < 0 || numItems < 0 || numItems > end - pos) {
+                    // Every item is at least one byte so this can't be satisfied.
+                    throw new IllegalArgumentException("Unexpected end of data");
+                }
+                for (long n = 0; n < numItems; n++) {
+                    pos = skip(data, pos, end);
+                }
+                return pos;
+
+            case MAJOR_TYPE_SPECIAL:
+            default:
+                if (indefinite) {
+                    throw new IllegalArgumentException("Unexpected break");
+                }
+                return headEnd;
+        }
+    }
+
+    /**
+     * Returns whether the data item is already in the form produced by
+     * {@link Util#cborEncode(DataItem)}, that is, whether decoding it and encoding it again
+     * would yield the same bytes.
+     *
+     * <p>This is conservative and returns {@code false} for some items which would in fact
+     * round-trip, for example floating-point numbers and non-ASCII strings.
+     *
+     * @return {@code true} if the encoding is known to be canonical, {@code false} otherwise.
+     */
+    boolean isCanonical() {
+        return canonicalEnd(mData, mOffset) == mEnd;
+    }
+
+    // Returns the offset right after the canonically encoded data item at |pos| or -1 if
+    // the item isn't known to be canonical. The data must already be known to be well-formed.
+    private static int canonicalEnd(@NonNull byte[] data, int pos) {
+        int majorType = (data[pos] & 0xff) >> 5;
+        int additionalInfo = data[pos] & 0x1f;
+        if (additionalInfo == ADDITIONAL_INFO_INDEFINITE) {
+            return -1;
+        }
+        long argument = readArgument(data, pos);
+        int headEnd = pos + headLength(additionalInfo);
+        if (majorType != MAJOR_TYPE_SPECIAL
+                && (argument < 0 || headEnd - pos != CborWriter.sizeOfHead(argument))) {
+            return -1;
+        }
+
+        switch (majorType) {
+            case MAJOR_TYPE_UNSIGNED_INTEGER:
+            case MAJOR_TYPE_NEGATIVE_INTEGER:
+                return headEnd;
+
+            case MAJOR_TYPE_BYTE_STRING:
+                return headEnd + (int) argument;
+
+            case MAJOR_TYPE_UNICODE_STRING:
+                for (int n = headEnd; n < headEnd + argument; n++) {
+                    if (data[n] < 0) {
+                        return -1;
+                    }
+                }
+                return headEnd + (int) argument;
+
+            case MAJOR_TYPE_TAG:
+                // Nested tags and tags which are decoded into special types are not
+                // handled.
+                if (argument == TAG_RATIONAL_NUMBER || argument == TAG_LANGUAGE_TAGGED_STRING
+                        || ((data[headEnd] & 0xff) >> 5) == MAJOR_TYPE_TAG) {
+                    return -1;
+                }
+                return canonicalEnd(data, headEnd);
+
+            case MAJOR_TYPE_ARRAY:
+                pos = headEnd;
+                for (long n = 0; n < argument && pos != -1; n++) {
+                    pos = canonicalEnd(data, pos);
+                }
+                return pos;
+
+            case MAJOR_TYPE_MAP:
+                pos = headEnd;
+                int prevKeyOffset = -1;
+                int prevKeyEnd = -1;
+                for (long n = 0; n < argument; n++) {
+                    int keyEnd = canonicalEnd(data, pos);
+                    if (keyEnd == -1) {
+                        return -1;
+                    }
+                    if (prevKeyOffset != -1
+                            && compareCanonical(data, prevKeyOffset, prevKeyEnd, pos, keyEnd)
+                            >= 0) {
+                        return -1;
+                    }
+                    prevKeyOffset = pos;
+                    prevKeyEnd = keyEnd;
+                    pos = canonicalEnd(data, keyEnd);
+                    if (pos == -1) {
+                        return -1;
+                    }
+                }
+                return pos;
+
+            case MAJOR_TYPE_SPECIAL:
+            default:
+                if (additionalInfo < SIMPLE_VALUE_FALSE
+                        || additionalInfo > SIMPLE_VALUE_UNDEFINED) {
+                    return -1;
+                }
+                return headEnd;
+        }
+    }
+
+    // Compares two encoded map keys in the same order as co.nstant.in.cbor's canonical
+    // encoder: shorter first, then byte by byte using signed comparison.
+    private static int compareCanonical(@NonNull byte[] data,
+            int aOffset, int aEnd, int bOffset, int bEnd) {
+        int aLength = aEnd - aOffset;
+        int bLength = bEnd - bOffset;
+        if (aLength != bLength) {
+            return aLength < bLength ? -1 : 1;
+        }
+        for (int n = 0; n < aLength; n++) {
+            if (data[aOffset + n] != data[bOffset + n]) {
+                return data[aOffset + n] < data[bOffset + n] ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Gets the major type of the data item, ignoring any tags.
+     *
+     * @return the major type, e.g. {@link #MAJOR_TYPE_MAP}.
+     */
+    int getMajorType() {
+        return mMajorType;
+    }
+
+    /**
+     * Returns whether the data item is tagged.
+     *
+     * @return {@code true} if tagged, {@code false} otherwise.
+     */
+    boolean hasTag() {
+        return mHasTag;
+    }
+
+    /**
+     * Gets the tag of the data item.
+     *
+     * @return the tag or -1 if the data item isn't tagged.
+     */
+    long getTag() {
+        return mHasTag ? mTag : -1;
+    }
+
+    /**
+     * Gets the buffer this is a view of.
+     *
+     * @return the buffer, not a copy.
+     */
+    @NonNull byte[] getBuffer() {
+        return mData;
+    }
+
+    /**
+     * Gets the offset in {@link #getBuffer()} of the encoded data item, including tags.
+     *
+     * @return the offset.
+     */
+    int getEncodedOffset() {
+        return mOffset;
+    }
+
+    /**
+     * Gets the length of the encoded data item, including tags.
+     *
+     * @return the length.
+     */
+    int getEncodedLength() {
+        return mEnd - mOffset;
+    }
+
+    /**
+     * Gets a copy of the encoded data item exactly as it appears in the buffer.
+     *
+     * @return the bytes of the encoded data item.
+     */
+    @NonNull byte[] getEncoded() {
+        return Arrays.copyOfRange(mData, mOffset, mEnd);
+    }
+
+    /**
+     * Decodes the data item into a {@link DataItem}.
+     *
+     * <p>This is for callers needing the generic object model and materializes everything in
+     * the data item.
+     *
+     * @return the decoded data item.
+     */
+    @NonNull DataItem toDataItem() {
+        ByteArrayInputStream bais = new ByteArrayInputStream(mData, mOffset, mEnd - mOffset);
+        try {
+            return new CborDecoder(bais).decodeNext();
+        } catch (CborException e) {
+            throw new IllegalArgumentException("Error decoding CBOR", e);
+        }
+    }
+
+    private void checkMajorType(int majorType, @NonNull String what) {
+        if (mMajorType != majorType) {
+            throw new IllegalArgumentException("Expected " + what + ", got major type "
+                    + mMajorType);
+        }
+    }
+
+    private boolean isIndefinite() {
+        return mAdditionalInfo == ADDITIONAL_INFO_INDEFINITE;
+    }
+
+    /**
+     * Returns whether the data item is the simple value <code>null</code>.
+     *
+     * @return {@code true} if the data item is <code>null</code>.
+     */
+    boolean isNull() {
+        return mMajorType == MAJOR_TYPE_SPECIAL && mAdditionalInfo == SIMPLE_VALUE_NULL;
+    }
+
+    /**
+     * Gets the value of an unsigned or negative integer.
+     *
+     * @return the value.
+     * @exception IllegalArgumentException if not an integer or if it doesn't fit in a long.
+     */
+    long getLong() {
+        if (mMajorType != MAJOR_TYPE_UNSIGNED_INTEGER
+                && mMajorType != MAJOR_TYPE_NEGATIVE_INTEGER) {
+            throw new IllegalArgumentException("Expected number, got major type " + mMajorType);
+        }
+        if (mArgument < 0) {
+            throw new IllegalArgumentException("Number doesn't fit in a long");
+        }
+        return mMajorType == MAJOR_TYPE_UNSIGNED_INTEGER ? mArgument : -1 - mArgument;
+    }
+
+    /**
+     * Gets the value of a boolean.
+     *
+     * @return the value.
+     * @exception IllegalArgumentException if not <code>true</code> or <code>false</code>.
+     */
+    boolean getBoolean() {
+        if (mMajorType == MAJOR_TYPE_SPECIAL) {
+            if (mAdditionalInfo == SIMPLE_VALUE_TRUE) {
+                return true;
+            } else if (mAdditionalInfo == SIMPLE_VALUE_FALSE) {
+                return false;
+            }
+        }
+        throw new IllegalArgumentException("Expected boolean");
+    }
+
+    /**
+     * Gets the value of a text string.
+     *
+     * @return the value.
+     * @exception IllegalArgumentException if not a text string.
+     */
+    @NonNull String getString() {
+        checkMajorType(MAJOR_TYPE_UNICODE_STRING, "tstr");
+        if (isIndefinite()) {
+            return new String(concatenateChunks(), UTF_8);
+        }
+        return new String(mData, mContentOffset, (int) mArgument, UTF_8);
+    }
+
+    /**
+     * Gets a copy of the value of a byte string.
+     *
+     * @return the value.
+     * @exception IllegalArgumentException if not a byte string.
+     */
+    @NonNull byte[] getByteString() {
+        checkMajorType(MAJOR_TYPE_BYTE_STRING, "bstr");
+        if (isIndefinite()) {
+            return concatenateChunks();
+        }
+        return Arrays.copyOfRange(mData, mContentOffset, mContentOffset + (int) mArgument);
+    }
+
+    /**
+     * Gets the offset in {@link #getBuffer()} of the value of a byte string.
+     *
+     * <p>This can be used together with {@link #getByteStringLength()} to access the value
+     * without copying it.
+     *
+     * @return the offset.
+     * @exception IllegalArgumentException if not a definite-length byte string.
+     */
+    int getByteStringOffset() {
+        checkDefiniteByteString();
+        return mContentOffset;
+    }
+
+    /**
+     * Gets the length of the value of a byte string.
+     *
+     * @return the length.
+     * @exception IllegalArgumentException if not a definite-length byte string.
+     */
+    int getByteStringLength() {
+        checkDefiniteByteString();
+        return (int) mArgument;
+    }
+
+    private void checkDefiniteByteString() {
+        checkMajorType(MAJOR_TYPE_BYTE_STRING, "bstr");
+        if (isIndefinite()) {
+            throw new IllegalArgumentException("Byte string is of indefinite length");
+        }
+    }
+
+    private @NonNull byte[] concatenateChunks() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        int pos = mContentOffset;
+        while (mData[pos] != BREAK) {
+            int length = (int) readArgument(mData, pos);
+            int chunkOffset = pos + headLength(mData[pos] & 0x1f);
+            baos.write(mData, chunkOffset, length);
+            pos = chunkOffset + length;
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * Gets a view of the CBOR embedded in a byte string.
+     *
+     * <p>Unlike {@link #getTaggedEncodedCbor()} this doesn't require the byte string to be
+     * tagged.
+     *
+     * @return a view of the data item in the byte string.
+     * @exception IllegalArgumentException if not a byte string or if the value isn't
+     *                                     well-formed CBOR.
+     */
+    @NonNull CborSlice getByteStringAsCbor() {
+        if (isIndefinite()) {
+            checkMajorType(MAJOR_TYPE_BYTE_STRING, "bstr");
+            return of(concatenateChunks());
+        }
+        return of(mData, getByteStringOffset(), getByteStringLength());
+    }
+
+    /**
+     * For a <code>#6.24(bstr)</code>, gets a view of the embedded CBOR.
+     *
+     * @return a view of the data item in the byte string.
+     * @exception IllegalArgumentException if not a byte string tagged with tag 24 or if the
+     *                                     value isn't well-formed CBOR.
+     */
+    @NonNull CborSlice getTaggedEncodedCbor() {
+        if (mMajorType != MAJOR_TYPE_BYTE_STRING || !mHasTag
+                || mTag != CBOR_SEMANTIC_TAG_ENCODED_CBOR) {
+            throw new IllegalArgumentException("ByteString is not tagged with tag 24");
+        }
+        return getByteStringAsCbor();
+    }
+
+    /**
+     * Gets the items in an array.
+     *
+     * @return a list of views, one for each item in the array.
+     * @exception IllegalArgumentException if not an array.
+     */
+    @NonNull List<CborSlice> getArrayItems() {
+        checkMajorType(MAJOR_TYPE_ARRAY, "array");
+        List<CborSlice> ret = new ArrayList<>(isIndefinite() ? 10 : (int) mArgument);
+        int pos = mContentOffset;
+        while (!isAtEnd(pos, ret.size())) {
+            int itemEnd = skip(mData, pos, mEnd);
+            ret.add(new CborSlice(mData, pos, itemEnd));
+            pos = itemEnd;
+        }
+        return ret;
+    }
+
+    /**
+     * Gets the key/value pairs in a map, in the order they appear in the encoded data.
+     *
+     * @return a list of pairs of views.
+     * @exception IllegalArgumentException if not a map.
+     */
+    @NonNull List<Pair<CborSlice, CborSlice>> getMapEntries() {
+        checkMajorType(MAJOR_TYPE_MAP, "map");
+        List<Pair<CborSlice, CborSlice>> ret =
+                new ArrayList<>(isIndefinite() ? 10 : (int) mArgument);
+        int pos = mContentOffset;
+        while (!isAtEnd(pos, ret.size())) {
+            int keyEnd = skip(mData, pos, mEnd);
+            int valueEnd = skip(mData, keyEnd, mEnd);
+            ret.add(new Pair<>(new CborSlice(mData, pos, keyEnd),
+                    new CborSlice(mData, keyEnd, valueEnd)));
+            pos = valueEnd;
+        }
+        return ret;
+    }
+
+    /**
+     * Gets the keys of a map where all keys are text strings.
+     *
+     * @return the keys, in the order they appear in the encoded data.
+     * @exception IllegalArgumentException if not a map or if a key isn't a text string.
+     */
+    @NonNull List<String> getMapStringKeys() {
+        List<String> ret = new ArrayList<>();
+        for (Pair<CborSlice, CborSlice> entry : getMapEntries()) {
+            ret.add(entry.first.getString());
+        }
+        return ret;
+    }
+
+    // Returns true if |pos| is at the end of the content of this array or map, given that
+    // |numItemsSeen| items (pairs, for maps) have been visited.
+    private boolean isAtEnd(int pos, int numItemsSeen) {
+        if (isIndefinite()) {
+            return mData[pos] == BREAK;
+        }
+        return numItemsSeen >= mArgument;
+    }
+
+    /**
+     * Looks up the value for a text string key in a map.
+     *
+     * @param key the key.
+     * @return a view of the value or {@code null} if the key isn't in the map.
+     * @exception IllegalArgumentException if not a map.
+     */
+    @Nullable CborSlice findMapValue(@NonNull String key) {
+        checkMajorType(MAJOR_TYPE_MAP, "map");
+        int pos = mContentOffset;
+        int numPairsSeen = 0;
+        while (!isAtEnd(pos, numPairsSeen)) {
+            int keyEnd = skip(mData, pos, mEnd);
+            int valueEnd = skip(mData, keyEnd, mEnd);
+            if (textEquals(pos, key)) {
+                return new CborSlice(mData, keyEnd, valueEnd);
+            }
+            pos = valueEnd;
+            numPairsSeen++;
+        }
+        return null;
+    }
+
+    /**
+     * Looks up the value for an integer key in a map.
+     *
+     * @param key the key.
+     * @return a view of the value or {@code null} if the key isn't in the map.
+     * @exception IllegalArgumentException if not a map.
+     */
+    @Nullable CborSlice findMapValue(long key) {
+        checkMajorType(MAJOR_TYPE_MAP, "map");
+        int keyMajorType = key >= 0 ? MAJOR_TYPE_UNSIGNED_INTEGER : MAJOR_TYPE_NEGATIVE_INTEGER;
+        long keyArgument = key >= 0 ? key : -1 - key;
+        int pos = mContentOffset;
+        int numPairsSeen = 0;
+        while (!isAtEnd(pos, numPairsSeen)) {
+            int keyEnd = skip(mData, pos, mEnd);
+            int valueEnd = skip(mData, keyEnd, mEnd);
+            if (((mData[pos] & 0xff) >> 5) == keyMajorType
+                    && readArgument(mData, pos) == keyArgument) {
+                return new CborSlice(mData, keyEnd, valueEnd);
+            }
+            pos = valueEnd;
+            numPairsSeen++;
+        }
+        return null;
+    }
+
+    /**
+     * Like {@link #findMapValue(String)} but throws if the key isn't in the map.
+     *
+     * @param key the key.
+     * @return a view of the value.
+     * @exception IllegalArgumentException if not a map or if the key isn't in the map.
+     */
+    @NonNull CborSlice getMapValue(@NonNull String key) {
+        CborSlice value = findMapValue(key);
+        if (value == null) {
+            throw new IllegalArgumentException("Expected item with key '" + key + "'");
+        }
+        return value;
+    }
+
+    /**
+     * Like {@link #findMapValue(long)} but throws if the key isn't in the map.
+     *
+     * @param key the key.
+     * @return a view of the value.
+     * @exception IllegalArgumentException if not a map or if the key isn't in the map.
+     */
+    @NonNull CborSlice getMapValue(long key) {
+        CborSlice value = findMapValue(key);
+        if (value == null) {
+            throw new IllegalArgumentException("Expected item with key " + key);
+        }
+        return value;
+    }
+
+    // Returns whether the untagged data item at |pos| is a text string equal to |s|. This
+    // avoids allocations for the common case where |s| is ASCII.
+    private boolean textEquals(int pos, @NonNull String s) {
+        if (((mData[pos] & 0xff) >> 5) != MAJOR_TYPE_UNICODE_STRING) {
+            return false;
+        }
+        if ((mData[pos] & 0x1f) == ADDITIONAL_INFO_INDEFINITE) {
+            return s.equals(new CborSlice(mData, pos, skip(mData, pos, mEnd)).getString());
+        }
+        int length = (int) readArgument(mData, pos);
+        int offset = pos + headLength(mData[pos] & 0x1f);
+        int numChars = s.length();
+        for (int n = 0; n < numChars; n++) {
+            if (s.charAt(n) >= 0x80) {
+                return s.equals(new String(mData, offset, length, UTF_8));
+            }
+        }
+        if (numChars != length) {
+            return false;
+        }
+        for (int n = 0; n < numChars; n++) {
+            if (mData[offset + n] != (byte) s.charAt(n)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
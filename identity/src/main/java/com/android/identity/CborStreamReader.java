@@ -0,0 +1,294 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a single CBOR data item from an {@link InputStream} while enforcing {@link Limits}.
+ *
+ * <p>This is used for messages received from a remote peer. The structure of the data item is
+ * checked as bytes arrive, so malformed or oversized input is rejected as soon as it's
+ * detected instead of after the whole message has been buffered. The buffer holding the
+ * message is grown as data is received rather than being allocated up front for the length
+ * announced by the peer.
+ *
+ * <p>The returned bytes are the data item exactly as received. Well-formedness is checked,
+ * but not e.g. that text strings are valid UTF-8; that is left to the parser of the message.
+ */
+final class CborStreamReader {
+    private static final int MAJOR_TYPE_BYTE_STRING = 2;
+    private static final int MAJOR_TYPE_UNICODE_STRING = 3;
+    private static final int MAJOR_TYPE_ARRAY = 4;
+    private static final int MAJOR_TYPE_MAP = 5;
+    private static final int MAJOR_TYPE_TAG = 6;
+    private static final int MAJOR_TYPE_SPECIAL = 7;
+    private static final int ADDITIONAL_INFO_INDEFINITE = 31;
+    private static final int BREAK = 0xff;
+
+    // Number of remaining items for containers of indefinite length.
+    private static final long INDEFINITE = -1;
+
+    // The initial buffer size, if the message is larger than this.
+    private static final int INITIAL_BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * Limits to enforce when reading a data item.
+     */
+    static final class Limits {
+        /**
+         * Default limits, suitable for ISO/IEC 18013-5 <code>SessionData</code> and
+         * <code>SessionEstablishment</code> messages.
+         */
+        static final Limits DEFAULT = new Limits(16, 64 * 1024, 16 * 1024 * 1024);
+
+        final int mMaxDepth;
+        final int mMaxItems;
+        final int mMaxStringLength;
+
+        /**
+         * Creates a new set of limits.
+         *
+         * @param maxDepth the maximum nesting depth of arrays, maps, and tags.
+         * @param maxItems the maximum number of data items, including nested ones.
+         * @param maxStringLength the maximum length of a byte string or text string. For
+         *                        strings of indefinite length this applies to the sum of the
+         *                        chunks.
+         */
+        Limits(int maxDepth, int maxItems, int maxStringLength) {
+            if (maxDepth < 0 || maxItems < 1 || maxStringLength < 0) {
+                throw new IllegalArgumentException("Invalid limits");
+            }
+            mMaxDepth = maxDepth;
+            mMaxItems = maxItems;
+            mMaxStringLength = maxStringLength;
+        }
+    }
+
+    private final InputStream mInputStream;
+    private final int mLength;
+    private final Limits mLimits;
+    private byte[] mBuffer;
+    private int mSize;
+    private int mNumItems;
+
+    private CborStreamReader(@NonNull InputStream inputStream, int length,
+            @NonNull Limits limits) {
+        mInputStream = inputStream;
+        mLength = length;
+        mLimits = limits;
+        mBuffer = new byte[Math.min(length, INITIAL_BUFFER_SIZE)];
+    }
+
+    /**
+     * Reads a message consisting of a single CBOR data item.
+     *
+     * @param inputStream the stream to read from.
+     * @param length the length of the message, as announced by the peer.
+     * @param limits the limits to enforce.
+     * @return the bytes of the data item or {@code null} if the end of the stream was reached
+     *         before the whole message was read.
+     * @throws IOException if reading from {@code inputStream} fails.
+     * @exception IllegalArgumentException if the message isn't a single well-formed data item
+     *                                     of the given length or exceeds {@code limits}.
+     */
+    static @Nullable
+    byte[] readDataItem(@NonNull InputStream inputStream, int length, @NonNull Limits limits)
+            throws IOException {
+        if (length < 1) {
+            throw new IllegalArgumentException("Message is empty");
+        }
+        CborStreamReader reader = new CborStreamReader(inputStream, length, limits);
+        if (!reader.readItem()) {
+            return null;
+        }
+        if (reader.mSize != length) {
+            throw new IllegalArgumentException("Unexpected data after data item, "
+                    + (length - reader.mSize) + " bytes");
+        }
+        byte[] result = reader.mBuffer;
+        if (result.length != length) {
+            result = new byte[length];
+            System.arraycopy(reader.mBuffer, 0, result, 0, length);
+        }
+        return result;
+    }
+
+    // Returns false on end of stream.
+    private boolean readItem() throws IOException {
+        // Number of items left to read at each nesting level, or INDEFINITE. The chunk major
+        // type is only used for strings of indefinite length and is -1 otherwise.
+        long[] remaining = new long[mLimits.mMaxDepth + 1];
+        int[] chunkMajorType = new int[mLimits.mMaxDepth + 1];
+        long[] chunkedLength = new long[mLimits.mMaxDepth + 1];
+        int depth = 0;
+        remaining[0] = 1;
+        chunkMajorType[0] = -1;
+
+        while (depth >= 0) {
+            if (remaining[depth] == 0) {
+                depth--;
+                continue;
+            }
+            int offset = mSize;
+            if (!fill(1)) {
+                return false;
+            }
+            int initialByte = mBuffer[offset] & 0xff;
+            if (initialByte == BREAK) {
+                if (remaining[depth] != INDEFINITE) {
+                    throw new IllegalArgumentException("Unexpected break at offset " + offset);
+                }
+                depth--;
+                continue;
+            }
+            if (remaining[depth] != INDEFINITE) {
+                remaining[depth]--;
+            }
+            if (++mNumItems > mLimits.mMaxItems) {
+                throw new IllegalArgumentException(
+                        "Maximum number of data items (" + mLimits.mMaxItems + ") exceeded");
+            }
+
+            int majorType = initialByte >> 5;
+            int additionalInfo = initialByte & 0x1f;
+            if (chunkMajorType[depth] != -1
+                    && (majorType != chunkMajorType[depth]
+                    || additionalInfo == ADDITIONAL_INFO_INDEFINITE)) {
+                throw new IllegalArgumentException(
+                        "Invalid chunk in string of indefinite length at offset " + offset);
+            }
+
+            long argument;
+            if (additionalInfo < 24) {
+                argument = additionalInfo;
+            } else if (additionalInfo <= 27) {
+                int numBytes = 1 << (additionalInfo - 24);
+                int argumentOffset = mSize;
+                if (!fill(numBytes)) {
+                    return false;
+                }
+                argument = 0;
+                for (int n = 0; n < numBytes; n++) {
+                    argument = (argument << 8) | (mBuffer[argumentOffset + n] & 0xff);
+                }
+                if (argument < 0) {
+                    throw new IllegalArgumentException("Argument at offset " + offset
+                            + " is too large");
+                }
+            } else if (additionalInfo == ADDITIONAL_INFO_INDEFINITE
+                    && majorType >= MAJOR_TYPE_BYTE_STRING && majorType <= MAJOR_TYPE_MAP) {
+                argument = INDEFINITE;
+            } else {
+                throw new IllegalArgumentException("Invalid additional information "
+                        + additionalInfo + " at offset " + offset);
+            }
+
+            switch (majorType) {
+                case MAJOR_TYPE_BYTE_STRING:
+                case MAJOR_TYPE_UNICODE_STRING:
+                    if (argument == INDEFINITE) {
+                        depth = push(remaining, depth, INDEFINITE);
+                        chunkMajorType[depth] = majorType;
+                        chunkedLength[depth] = 0;
+                        break;
+                    }
+                    long totalLength = argument;
+                    if (chunkMajorType[depth] != -1) {
+                        chunkedLength[depth] += argument;
+                        totalLength = chunkedLength[depth];
+                    }
+                    if (totalLength > mLimits.mMaxStringLength) {
+                        throw new IllegalArgumentException("String of length " + totalLength
+                                + " at offset " + offset + " exceeds maximum length "
+                                + mLimits.mMaxStringLength);
+                    }
+                    if (!fill(argument)) {
+                        return false;
+                    }
+                    break;
+
+                case MAJOR_TYPE_ARRAY:
+                case MAJOR_TYPE_MAP:
+                    long numItems = argument;
+                    if (argument != INDEFINITE) {
+                        numItems = majorType == MAJOR_TYPE_MAP ? 2 * argument : argument;
+                        // Every data item takes up at least one byte.
+                        if (numItems > mLength - mSize) {
+                            throw new IllegalArgumentException("Container at offset " + offset
+                                    + " has more items than remaining bytes in message");
+                        }
+                    }
+                    depth = push(remaining, depth, numItems);
+                    chunkMajorType[depth] = -1;
+                    break;
+
+                case MAJOR_TYPE_TAG:
+                    depth = push(remaining, depth, 1);
+                    chunkMajorType[depth] = -1;
+                    break;
+
+                case MAJOR_TYPE_SPECIAL:
+                default:
+                    // Integers, simple values, and floats are fully read with the argument.
+                    break;
+            }
+        }
+        return true;
+    }
+
+    private int push(long[] remaining, int depth, long numItems) {
+        if (depth + 1 > mLimits.mMaxDepth) {
+            throw new IllegalArgumentException(
+                    "Maximum nesting depth (" + mLimits.mMaxDepth + ") exceeded");
+        }
+        remaining[depth + 1] = numItems;
+        return depth + 1;
+    }
+
+    // Appends exactly numBytes from the stream to mBuffer. Returns false on end of stream.
+    private boolean fill(long numBytes) throws IOException {
+        if (numBytes > mLength - mSize) {
+            throw new IllegalArgumentException("Data item at offset " + mSize
+                    + " extends past the end of the message");
+        }
+        int end = mSize + (int) numBytes;
+        while (mSize < end) {
+            if (mSize == mBuffer.length) {
+                // Only grow the buffer as data actually arrives.
+                int newLength = (int) Math.min((long) mBuffer.length * 2, mLength);
+                byte[] newBuffer = new byte[Math.max(newLength, mSize + 1)];
+                System.arraycopy(mBuffer, 0, newBuffer, 0, mSize);
+                mBuffer = newBuffer;
+            }
+            int numRead = mInputStream.read(mBuffer, mSize,
+                    Math.min(end, mBuffer.length) - mSize);
+            if (numRead == -1) {
+                return false;
+            }
+            if (numRead == 0) {
+                throw new IllegalStateException("read() returned zero bytes");
+            }
+            mSize += numRead;
+        }
+        return true;
+    }
+}
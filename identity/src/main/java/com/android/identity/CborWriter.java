@@ -0,0 +1,348 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import androidx.annotation.NonNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import co.nstant.in.cbor.model.DataItem;
+
+/**
+ * A streaming CBOR writer which emits item heads and payloads directly into a byte array.
+ *
+ * <p>This is used on hot paths instead of building a {@link DataItem} tree with
+ * {@link co.nstant.in.cbor.CborBuilder} and encoding it with {@link Util#cborEncode(DataItem)}.
+ * The static {@code sizeOf*} methods can be used to compute the exact size of the encoded
+ * data up front, in which case {@link #toByteArray()} hands out the internal buffer without
+ * copying it. The buffer grows as needed if the initial capacity turns out to be too small.
+ *
+ * <p>The writer doesn't reorder anything. Callers writing maps are responsible for writing
+ * keys in the same order as the canonical encoding used by {@link Util#cborEncode(DataItem)},
+ * see {@link #canonicalKeyOrder(Collection)}. Only definite-length items are produced.
+ */
+final class CborWriter {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private byte[] mBuffer;
+    private int mSize;
+
+    /**
+     * Creates a new writer.
+     *
+     * @param initialCapacity the initial size of the buffer, ideally the exact size of the
+     *                        data which is going to be written.
+     */
+    CborWriter(int initialCapacity) {
+        if (initialCapacity < 0) {
+            throw new IllegalArgumentException("Negative capacity " + initialCapacity);
+        }
+        mBuffer = initialCapacity == 0 ? EMPTY : new byte[initialCapacity];
+    }
+
+    /**
+     * Rewinds the writer so the buffer can be reused for new data.
+     *
+     * @return the writer.
+     */
+    @NonNull CborWriter reset() {
+        mSize = 0;
+        return this;
+    }
+
+    /** Returns the number of bytes written so far. */
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the internal buffer. Only the first {@link #size()} bytes are valid.
+     */
+    @NonNull byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    /**
+     * Returns the written bytes.
+     *
+     * <p>If the buffer is exactly full it is returned as-is and the writer releases it,
+     * otherwise a copy of the written bytes is returned. In either case the writer is
+     * reset afterwards.
+     *
+     * @return the bytes written.
+     */
+    @NonNull byte[] toByteArray() {
+        byte[] result;
+        if (mSize == mBuffer.length) {
+            result = mBuffer;
+            mBuffer = EMPTY;
+        } else {
+            result = Arrays.copyOf(mBuffer, mSize);
+        }
+        mSize = 0;
+        return result;
+    }
+
+    /**
+     * Reserves space for {@code length} bytes to be filled in by the caller, for example
+     * by a {@link javax.crypto.Cipher} writing directly into {@link #getBuffer()}.
+     *
+     * @param length the number of bytes to reserve.
+     * @return the offset of the reserved region in {@link #getBuffer()}.
+     */
+    int reserve(int length) {
+        ensureCapacity(length);
+        int offset = mSize;
+        mSize += length;
+        return offset;
+    }
+
+    @NonNull CborWriter writeUnsigned(long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Value " + value + " is negative");
+        }
+        writeHead(CborSlice.MAJOR_TYPE_UNSIGNED_INTEGER, value);
+        return this;
+    }
+
+    @NonNull CborWriter writeNumber(long value) {
+        if (value >= 0) {
+            writeHead(CborSlice.MAJOR_TYPE_UNSIGNED_INTEGER, value);
+        } else {
+            writeHead(CborSlice.MAJOR_TYPE_NEGATIVE_INTEGER, -1 - value);
+        }
+        return this;
+    }
+
+    @NonNull CborWriter writeBoolean(boolean value) {
+        ensureCapacity(1);
+        mBuffer[mSize++] = (byte) (value ? 0xf5 : 0xf4);
+        return this;
+    }
+
+    @NonNull CborWriter writeNull() {
+        ensureCapacity(1);
+        mBuffer[mSize++] = (byte) 0xf6;
+        return this;
+    }
+
+    @NonNull CborWriter writeString(@NonNull String value) {
+        int length = value.length();
+        if (isAscii(value)) {
+            writeHead(CborSlice.MAJOR_TYPE_UNICODE_STRING, length);
+            ensureCapacity(length);
+            for (int n = 0; n < length; n++) {
+                mBuffer[mSize++] = (byte) value.charAt(n);
+            }
+        } else {
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            writeHead(CborSlice.MAJOR_TYPE_UNICODE_STRING, utf8.length);
+            writeRaw(utf8, 0, utf8.length);
+        }
+        return this;
+    }
+
+    @NonNull CborWriter writeByteString(@NonNull byte[] value) {
+        return writeByteString(value, 0, value.length);
+    }
+
+    @NonNull CborWriter writeByteString(@NonNull byte[] value, int offset, int length) {
+        writeByteStringHead(length);
+        writeRaw(value, offset, length);
+        return this;
+    }
+
+    /**
+     * Writes the head of a byte string. The caller must follow up with exactly
+     * {@code length} bytes, for example using {@link #reserve(int)}.
+     */
+    @NonNull CborWriter writeByteStringHead(int length) {
+        writeHead(CborSlice.MAJOR_TYPE_BYTE_STRING, length);
+        return this;
+    }
+
+    @NonNull CborWriter writeArrayHead(int numItems) {
+        writeHead(CborSlice.MAJOR_TYPE_ARRAY, numItems);
+        return this;
+    }
+
+    @NonNull CborWriter writeMapHead(int numPairs) {
+        writeHead(CborSlice.MAJOR_TYPE_MAP, numPairs);
+        return this;
+    }
+
+    @NonNull CborWriter writeTag(long tag) {
+        writeHead(CborSlice.MAJOR_TYPE_TAG, tag);
+        return this;
+    }
+
+    /**
+     * Writes <code>#6.24(bstr)</code> where the byte string contains the given encoded CBOR.
+     */
+    @NonNull CborWriter writeTaggedEncodedCbor(@NonNull byte[] encodedCbor) {
+        writeTag(Util.CBOR_SEMANTIC_TAG_ENCODED_CBOR);
+        return writeByteString(encodedCbor);
+    }
+
+    /**
+     * Writes already encoded CBOR verbatim. No validation is performed.
+     */
+    @NonNull CborWriter writeEncoded(@NonNull byte[] encodedCbor) {
+        writeRaw(encodedCbor, 0, encodedCbor.length);
+        return this;
+    }
+
+    /**
+     * Writes a {@link DataItem} using the same canonical encoding as
+     * {@link Util#cborEncode(DataItem)}.
+     */
+    @NonNull CborWriter writeDataItem(@NonNull DataItem item) {
+        return writeEncoded(Util.cborEncode(item));
+    }
+
+    private void writeHead(int majorType, long argument) {
+        ensureCapacity(sizeOfHead(argument));
+        int initialByte = majorType << 5;
+        if (argument < 24) {
+            mBuffer[mSize++] = (byte) (initialByte | (int) argument);
+        } else if (argument < 0x100L) {
+            mBuffer[mSize++] = (byte) (initialByte | 24);
+            mBuffer[mSize++] = (byte) argument;
+        } else if (argument < 0x10000L) {
+            mBuffer[mSize++] = (byte) (initialByte | 25);
+            writeBigEndian(argument, 2);
+        } else if (argument < 0x100000000L) {
+            mBuffer[mSize++] = (byte) (initialByte | 26);
+            writeBigEndian(argument, 4);
+        } else {
+            mBuffer[mSize++] = (byte) (initialByte | 27);
+            writeBigEndian(argument, 8);
+        }
+    }
+
+    private void writeBigEndian(long value, int numBytes) {
+        for (int n = numBytes - 1; n >= 0; n--) {
+            mBuffer[mSize++] = (byte) (value >>> (n * 8));
+        }
+    }
+
+    private void writeRaw(byte[] data, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(data, offset, mBuffer, mSize, length);
+        mSize += length;
+    }
+
+    private void ensureCapacity(int additional) {
+        int required = mSize + additional;
+        if (required < 0) {
+            throw new IllegalStateException("Encoded CBOR too large");
+        }
+        if (required > mBuffer.length) {
+            int newCapacity = Math.max(required, Math.max(64, mBuffer.length * 2));
+            if (newCapacity < 0) {
+                newCapacity = required;
+            }
+            mBuffer = Arrays.copyOf(mBuffer, newCapacity);
+        }
+    }
+
+    private static boolean isAscii(@NonNull String value) {
+        for (int n = 0; n < value.length(); n++) {
+            if (value.charAt(n) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Returns the size of the head of an item with the given argument. */
+    static int sizeOfHead(long argument) {
+        if (argument < 0) {
+            throw new IllegalArgumentException("Argument " + argument + " is negative");
+        } else if (argument < 24) {
+            return 1;
+        } else if (argument < 0x100L) {
+            return 2;
+        } else if (argument < 0x10000L) {
+            return 3;
+        } else if (argument < 0x100000000L) {
+            return 5;
+        }
+        return 9;
+    }
+
+    static int sizeOfNumber(long value) {
+        return sizeOfHead(value >= 0 ? value : -1 - value);
+    }
+
+    static int sizeOfString(@NonNull String value) {
+        int length = isAscii(value)
+                ? value.length()
+                : value.getBytes(StandardCharsets.UTF_8).length;
+        return sizeOfHead(length) + length;
+    }
+
+    static int sizeOfByteString(int length) {
+        return sizeOfHead(length) + length;
+    }
+
+    /** Returns the size of <code>#6.24(bstr)</code> wrapping {@code length} bytes. */
+    static int sizeOfTaggedEncodedCbor(int length) {
+        return sizeOfHead(Util.CBOR_SEMANTIC_TAG_ENCODED_CBOR) + sizeOfByteString(length);
+    }
+
+    /**
+     * Sorts text string map keys in the order used by the canonical encoding of
+     * {@link Util#cborEncode(DataItem)}: shorter encodings first, and encodings of
+     * the same length compared byte by byte.
+     *
+     * @param keys the keys to sort.
+     * @return a new list with the keys in canonical order.
+     */
+    static @NonNull List<String> canonicalKeyOrder(@NonNull Collection<String> keys) {
+        List<String> result = new ArrayList<>(keys);
+        if (result.size() > 1) {
+            Collections.sort(result, CANONICAL_KEY_COMPARATOR);
+        }
+        return result;
+    }
+
+    // Note that co.nstant.in.cbor compares bytes as signed values, this needs to match.
+    private static final Comparator<String> CANONICAL_KEY_COMPARATOR = (a, b) -> {
+        byte[] ea = a.getBytes(StandardCharsets.UTF_8);
+        byte[] eb = b.getBytes(StandardCharsets.UTF_8);
+        int sa = sizeOfHead(ea.length) + ea.length;
+        int sb = sizeOfHead(eb.length) + eb.length;
+        if (sa != sb) {
+            return sa < sb ? -1 : 1;
+        }
+        // Same encoded size implies same head, so only the string data needs comparing.
+        for (int n = 0; n < ea.length; n++) {
+            if (ea[n] != eb[n]) {
+                return ea[n] < eb[n] ? -1 : 1;
+            }
+        }
+        return 0;
+    };
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import androidx.annotation.NonNull;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A process-wide cache of parsed X.509 certificates.
+ *
+ * <p>Certificates in <code>x5chain</code> headers of reader and issuer signatures come from a
+ * small set of IACAs, document signers, and reader authorities so instead of parsing them on
+ * every call, parsed certificates are kept in this cache keyed by the SHA-256 digest of their
+ * DER encoding. The public key of a cached certificate is also decoded only once, see
+ * {@link #getPublicKey(X509Certificate)}.
+ *
+ * <p>The cache holds at most {@link #MAX_ENTRIES} certificates, evicting the least recently
+ * used one when full.
+ */
+final class CertificateCache {
+
+    static final int MAX_ENTRIES = 64;
+
+    private static final class Entry {
+        final X509Certificate mCertificate;
+        PublicKey mPublicKey;
+
+        Entry(X509Certificate certificate) {
+            mCertificate = certificate;
+        }
+    }
+
+    // Both maps are guarded by sLock. sEntriesByCertificate is for looking up cached public
+    // keys and contains the same entries as sEntries.
+    private static final Object sLock = new Object();
+    private static final IdentityHashMap<X509Certificate, Entry> sEntriesByCertificate =
+            new IdentityHashMap<>();
+    private static final LinkedHashMap<ByteBuffer, Entry> sEntries =
+            new LinkedHashMap<ByteBuffer, Entry>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Entry> eldest) {
+                    if (size() > MAX_ENTRIES) {
+                        sEntriesByCertificate.remove(eldest.getValue().mCertificate);
+                        return true;
+                    }
+                    return false;
+                }
+            };
+
+    private static long sNumHits;
+    private static long sNumMisses;
+
+    private CertificateCache() {
+    }
+
+    /**
+     * Gets a certificate from its DER encoding.
+     *
+     * @param buffer the buffer holding the DER encoding.
+     * @param offset the offset of the DER encoding in {@code buffer}.
+     * @param length the length of the DER encoding.
+     * @return the parsed certificate, possibly shared with other callers.
+     * @throws CertificateException if the certificate couldn't be parsed.
+     */
+    static @NonNull X509Certificate getCertificate(@NonNull byte[] buffer, int offset,
+            int length) throws CertificateException {
+        MessageDigest digester;
+        try {
+            digester = CryptoPool.getMessageDigest("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Failed creating digester", e);
+        }
+        digester.update(buffer, offset, length);
+        ByteBuffer key = ByteBuffer.wrap(digester.digest());
+
+        synchronized (sLock) {
+            Entry entry = sEntries.get(key);
+            if (entry != null) {
+                sNumHits++;
+                return entry.mCertificate;
+            }
+            sNumMisses++;
+        }
+
+        // Parse outside the lock, if another thread parses the same certificate concurrently
+        // the last one to finish wins.
+        CertificateFactory factory = CertificateFactory.getInstance("X.509");
+        X509Certificate certificate = (X509Certificate) factory.generateCertificate(
+                new ByteArrayInputStream(buffer, offset, length));
+        Entry entry = new Entry(certificate);
+        synchronized (sLock) {
+            Entry previous = sEntries.put(key, entry);
+            if (previous != null) {
+                sEntriesByCertificate.remove(previous.mCertificate);
+            }
+            sEntriesByCertificate.put(certificate, entry);
+        }
+        return certificate;
+    }
+
+    /**
+     * Gets the public key of a certificate.
+     *
+     * <p>If the certificate was returned by {@link #getCertificate(byte[], int, int)} and is
+     * still in the cache, the public key is decoded only the first time this is called.
+     *
+     * @param certificate the certificate.
+     * @return the public key in the certificate.
+     */
+    static @NonNull PublicKey getPublicKey(@NonNull X509Certificate certificate) {
+        Entry entry;
+        synchronized (sLock) {
+            entry = sEntriesByCertificate.get(certificate);
+            if (entry != null && entry.mPublicKey != null) {
+                return entry.mPublicKey;
+            }
+        }
+        PublicKey publicKey = certificate.getPublicKey();
+        if (entry != null) {
+            synchronized (sLock) {
+                entry.mPublicKey = publicKey;
+            }
+        }
+        return publicKey;
+    }
+
+    /** Gets the number of times a certificate was found in the cache. */
+    static long getNumHits() {
+        synchronized (sLock) {
+            return sNumHits;
+        }
+    }
+
+    /** Gets the number of times a certificate wasn't found in the cache. */
+    static long getNumMisses() {
+        synchronized (sLock) {
+            return sNumMisses;
+        }
+    }
+
+    /** Removes all certificates from the cache. */
+    static void clear() {
+        synchronized (sLock) {
+            sEntries.clear();
+            sEntriesByCertificate.clear();
+        }
+    }
+}
@@ -16,6 +16,7 @@
 
 package com.android.identity;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.concurrent.TimeUnit.DAYS;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
@@ -63,11 +64,21 @@ import java.security.cert.X509Certificate;
 import java.util.AbstractList;
 import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -96,8 +107,42 @@ import co.nstant.in.cbor.model.UnsignedInteger;
 class CredentialData {
     private static final String TAG = "CredentialData";
 
+    // The data is stored in segments which are encrypted and written independently, so e.g.
+    // updating authentication keys doesn't involve re-writing the namespace data. The main
+    // file is a manifest with the current version of each segment.
+    //
+    // The namespaces segment only has an index of data elements, the values are stored in an
+    // ElementValueFile with the same version as the segment and are read on demand.
+    private static final String SEGMENT_BASIC = "basic";
+    private static final String SEGMENT_NAMESPACES = "namespaces";
+    private static final String SEGMENT_ACPS = "acps";
+    private static final String SEGMENT_AUTH_KEYS = "authKeys";
+    private static final String[] SEGMENTS = {
+            SEGMENT_BASIC, SEGMENT_NAMESPACES, SEGMENT_ACPS, SEGMENT_AUTH_KEYS};
+
+    // Authentication keys are generated and certified in parallel on a process-wide executor
+    // with at most this many threads, in addition to the calling thread.
+    private static final int MAX_KEY_GENERATION_THREADS = 4;
+    private static ThreadPoolExecutor sKeyGenerationExecutor;
+
+    // There can be several instances for the same credential, e.g. when the CredentialDataCache
+    // is disabled, and a single instance can be used from several threads, e.g. by the
+    // AuthenticationKeyReplenisher. All changes to the authentication keys and everything
+    // written to disk for a credential are made while holding its lock, and instances reload
+    // the authentication keys if the version of the lock shows that another instance saved
+    // changes since they last did.
+    private static final class CredentialLock {
+        long mVersion = 0;
+    }
+
+    private static final Map<String, CredentialLock> sLocks = new HashMap<>();
+
     private final Context mContext;
     private final String mCredentialName;
+    private final CredentialLock mLock;
+
+    // The version of mLock when the authentication keys were last loaded or saved.
+    private long mLockVersion = -1;
 
     private String mDocType = "";
     private String mCredentialKeyAlias = "";
@@ -110,6 +155,16 @@ class CredentialData {
     private int mAuthKeyCount = 0;
     private int mAuthMaxUsesPerKey = 1;
 
+    // Index of the certified keys for selectAuthenticationKey(), built on demand and reset
+    // whenever the auth keys are saved since that's done after every change other than use
+    // count increments made through selectAuthenticationKey().
+    private AuthKeyPool mAuthKeyPool = null;
+
+    // Incremented every time a key is used, for the round-robin selection policy. This is
+    // saved with the keys and the sequence of the key used is in each journal record, so the
+    // order is kept across sessions and processes.
+    private long mAuthKeyUseSequence = 0;
+
     // The alias for the key that must be unlocked by user auth for every reader session.
     //
     // Is non-empty if and only if there is at least one ACP requiring user-auth.
@@ -123,9 +178,39 @@ class CredentialData {
     // The data for each authentication key, this is always mAuthKeyCount items.
     private AbstractList<AuthKeyData> mAuthKeyDatas = new ArrayList<>();
 
+    // Incremented every time the credential is saved to disk, see AuthKeyUsageJournal.
+    private long mJournalGeneration = 0;
+
+    // The number of records in the journal, for deciding when to compact it.
+    private int mJournalNumRecords = 0;
+
+    // The version of each segment on disk. This is empty if the credential hasn't been saved
+    // yet or was stored in the single-file format used by earlier versions of this library.
+    private Map<String, Long> mSegmentVersions = new HashMap<>();
+
+    // Set if the namespaces segment was stored with the values inline, as done by earlier
+    // versions of this library, so it's re-written on the next save.
+    private boolean mNamespacesNeedRewrite = false;
+
+    // The addresses of the values stored in the BlobStore by the last write of the namespaces
+    // segment, references to other blobs are dropped once the segment is committed.
+    private Set<ByteBuffer> mBlobAddresses = null;
+
     private CredentialData(Context context, String credentialName) {
         mContext = context;
         mCredentialName = credentialName;
+        mLock = getLock(credentialName);
+    }
+
+    private static CredentialLock getLock(String credentialName) {
+        synchronized (sLocks) {
+            CredentialLock lock = sLocks.get(credentialName);
+            if (lock == null) {
+                lock = new CredentialLock();
+                sLocks.put(credentialName, lock);
+            }
+            return lock;
+        }
     }
 
     static DataItem namespaceDataToCbor(PersonalizationData.NamespaceData entryNamespace) {
@@ -249,16 +334,13 @@ class CredentialData {
     static @NonNull X509Certificate generateAuthenticationKeyCert(String authKeyAlias,
             String credentialKeyAlias,
             byte[] proofOfProvisioningSha256) {
-        KeyStore ks = null;
         try {
-            ks = KeyStore.getInstance("AndroidKeyStore");
-            ks.load(null);
-
-            X509Certificate selfSignedCert = (X509Certificate) ks.getCertificate(authKeyAlias);
+            X509Certificate selfSignedCert =
+                    (X509Certificate) KeyStoreCache.getCertificate(authKeyAlias);
             PublicKey publicKey = selfSignedCert.getPublicKey();
 
-            PrivateKey privateKey = ((KeyStore.PrivateKeyEntry) ks.getEntry(credentialKeyAlias,
-                    null)).getPrivateKey();
+            PrivateKey privateKey = ((KeyStore.PrivateKeyEntry) KeyStoreCache.getEntry(
+                    credentialKeyAlias)).getPrivateKey();
 
             X500Name issuer = new X500Name("CN=Android Identity Credential Key");
             X500Name subject = new X500Name("CN=Android Identity Credential Authentication Key");
@@ -307,35 +389,27 @@ class CredentialData {
      * except for CredentialKey).
      */
     void deleteKeysForReplacement() {
-        KeyStore ks;
-        try {
-            ks = KeyStore.getInstance("AndroidKeyStore");
-            ks.load(null);
-        } catch (CertificateException
-                | IOException
-                | NoSuchAlgorithmException
-                | KeyStoreException e) {
-            throw new RuntimeException("Error loading keystore", e);
-        }
-
-        // Nuke all keys except for CredentialKey.
-        try {
-            if (!mPerReaderSessionKeyAlias.isEmpty()) {
-                ks.deleteEntry(mPerReaderSessionKeyAlias);
-            }
-            for (String alias : mAcpTimeoutKeyAliases.values()) {
-                ks.deleteEntry(alias);
-            }
-            for (AuthKeyData authKeyData : mAuthKeyDatas) {
-                if (!authKeyData.mAlias.isEmpty()) {
-                    ks.deleteEntry(authKeyData.mAlias);
+        synchronized (mLock) {
+            refreshAuthKeys();
+            // Nuke all keys except for CredentialKey.
+            try {
+                if (!mPerReaderSessionKeyAlias.isEmpty()) {
+                    KeyStoreCache.deleteEntry(mPerReaderSessionKeyAlias);
+                }
+                for (String alias : mAcpTimeoutKeyAliases.values()) {
+                    KeyStoreCache.deleteEntry(alias);
                 }
-                if (!authKeyData.mPendingAlias.isEmpty()) {
-                    ks.deleteEntry(authKeyData.mPendingAlias);
+                for (AuthKeyData authKeyData : mAuthKeyDatas) {
+                    if (!authKeyData.mAlias.isEmpty()) {
+                        KeyStoreCache.deleteEntry(authKeyData.mAlias);
+                    }
+                    if (!authKeyData.mPendingAlias.isEmpty()) {
+                        KeyStoreCache.deleteEntry(authKeyData.mPendingAlias);
+                    }
                 }
+            } catch (KeyStoreException e) {
+                throw new RuntimeException("Error deleting key", e);
             }
-        } catch (KeyStoreException e) {
-            throw new RuntimeException("Error deleting key", e);
         }
     }
 
@@ -400,9 +474,24 @@ class CredentialData {
             }
         }
 
-        data.createDataEncryptionKey();
+        synchronized (data.mLock) {
+            if (isReplacement) {
+                // Continue from the segment versions of the credential being replaced so its
+                // segments are deleted when saving. This must be done before the data encryption
+                // key is replaced.
+                try {
+                    data.loadManifest(data.getDataKey(
+                            getDataKeyAliasFromCredentialName(credentialName)));
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Error loading manifest of credential being replaced", e);
+                    data.mSegmentVersions = new HashMap<>();
+                }
+            }
+
+            data.createDataEncryptionKey();
 
-        data.saveToDisk();
+            data.saveToDisk();
+        }
         return data;
     }
 
@@ -440,6 +529,7 @@ class CredentialData {
                     .setUserAuthenticationValidityDurationSeconds(-1); // Auth for every use
             kg.init(builder.build());
             kg.generateKey();
+            KeyStoreCache.invalidate(data.mPerReaderSessionKeyAlias);
         } catch (InvalidAlgorithmParameterException
                 | NoSuchAlgorithmException
                 | NoSuchProviderException e) {
@@ -470,6 +560,7 @@ class CredentialData {
                         .setKeySize(128);
                 kg.init(builder.build());
                 kg.generateKey();
+                KeyStoreCache.invalidate(acpAlias);
             } catch (InvalidAlgorithmParameterException
                     | NoSuchAlgorithmException
                     | NoSuchProviderException e) {
@@ -491,8 +582,10 @@ class CredentialData {
     static CredentialData loadCredentialData(Context context, String credentialName) {
         CredentialData data = new CredentialData(context, credentialName);
         String dataKeyAlias = getDataKeyAliasFromCredentialName(credentialName);
-        if (!data.loadFromDisk(dataKeyAlias)) {
-            return null;
+        synchronized (data.mLock) {
+            if (!data.loadFromDisk(dataKeyAlias)) {
+                return null;
+            }
         }
         return data;
     }
@@ -513,6 +606,19 @@ class CredentialData {
         return escapeCredentialName("data", credentialName);
     }
 
+    static String getFilenameForCredentialSegment(String credentialName, String segment,
+            long version) {
+        return escapeCredentialName("data_" + segment + "_" + version, credentialName);
+    }
+
+    static String getFilenameForCredentialValues(String credentialName, long version) {
+        return escapeCredentialName("values_" + version, credentialName);
+    }
+
+    static String getFilenameForCredentialJournal(String credentialName) {
+        return escapeCredentialName("journal", credentialName);
+    }
+
     static String getAliasFromCredentialName(String credentialName) {
         return escapeCredentialName("credkey", credentialName);
     }
@@ -530,15 +636,10 @@ class CredentialData {
     }
 
     PrivateKey getCredentialKeyPrivate() {
-        KeyStore ks;
         KeyStore.Entry entry;
         try {
-            ks = KeyStore.getInstance("AndroidKeyStore");
-            ks.load(null);
-            entry = ks.getEntry(mCredentialKeyAlias, null);
-        } catch (CertificateException
-                | IOException
-                | NoSuchAlgorithmException
+            entry = KeyStoreCache.getEntry(mCredentialKeyAlias);
+        } catch (NoSuchAlgorithmException
                 | KeyStoreException
                 | UnrecoverableEntryException e) {
             throw new RuntimeException("Error loading keystore", e);
@@ -603,65 +704,71 @@ class CredentialData {
     }
 
     static byte[] delete(Context context, String credentialName, byte[] challenge) {
-        String filename = getFilenameForCredentialData(credentialName);
-        AtomicFile file = new AtomicFile(context.getFileStreamPath(filename));
-        try {
-            file.openRead();
-        } catch (FileNotFoundException e) {
-            return null;
-        }
+        synchronized (getLock(credentialName)) {
+            String filename = getFilenameForCredentialData(credentialName);
+            AtomicFile file = new AtomicFile(context.getFileStreamPath(filename));
+            try {
+                file.openRead();
+            } catch (FileNotFoundException e) {
+                return null;
+            }
 
-        CredentialData data = new CredentialData(context, credentialName);
-        String dataKeyAlias = getDataKeyAliasFromCredentialName(credentialName);
-        try {
-            data.loadFromDisk(dataKeyAlias);
-        } catch (RuntimeException e) {
-            Log.e(TAG, "Error parsing file on disk (old version?). Deleting anyway.");
-            file.delete();
-            return null;
-        }
+            CredentialData data = new CredentialData(context, credentialName);
+            String dataKeyAlias = getDataKeyAliasFromCredentialName(credentialName);
+            try {
+                data.loadFromDisk(dataKeyAlias);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Error parsing file on disk (old version?). Deleting anyway.");
+                file.delete();
+                data.deleteSegments();
+                data.getJournal().delete();
+                releaseBlobs(context, credentialName);
+                data.markSaved();
+                return null;
+            }
 
-        KeyStore ks;
-        KeyStore.Entry entry;
-        try {
-            ks = KeyStore.getInstance("AndroidKeyStore");
-            ks.load(null);
-            entry = ks.getEntry(data.mCredentialKeyAlias, null);
-        } catch (CertificateException
-                | IOException
-                | NoSuchAlgorithmException
-                | KeyStoreException
-                | UnrecoverableEntryException e) {
-            throw new RuntimeException("Error loading keystore", e);
-        }
+            KeyStore.Entry entry;
+            try {
+                entry = KeyStoreCache.getEntry(data.mCredentialKeyAlias);
+            } catch (NoSuchAlgorithmException
+                    | KeyStoreException
+                    | UnrecoverableEntryException e) {
+                throw new RuntimeException("Error loading keystore", e);
+            }
 
-        byte[] signature = buildProofOfDeletionSignature(data.mDocType,
-                ((KeyStore.PrivateKeyEntry) entry).getPrivateKey(), challenge);
+            byte[] signature = buildProofOfDeletionSignature(data.mDocType,
+                    ((KeyStore.PrivateKeyEntry) entry).getPrivateKey(), challenge);
 
-        file.delete();
+            file.delete();
+            data.deleteSegments();
+            data.getJournal().delete();
+            releaseBlobs(context, credentialName);
+            AuthKeyPool.removeMetrics(credentialName);
+            data.markSaved();
 
-        // Nuke all keys.
-        try {
-            ks.deleteEntry(data.mCredentialKeyAlias);
-            if (!data.mPerReaderSessionKeyAlias.isEmpty()) {
-                ks.deleteEntry(data.mPerReaderSessionKeyAlias);
-            }
-            for (String alias : data.mAcpTimeoutKeyAliases.values()) {
-                ks.deleteEntry(alias);
-            }
-            for (AuthKeyData authKeyData : data.mAuthKeyDatas) {
-                if (!authKeyData.mAlias.isEmpty()) {
-                    ks.deleteEntry(authKeyData.mAlias);
+            // Nuke all keys.
+            try {
+                KeyStoreCache.deleteEntry(data.mCredentialKeyAlias);
+                if (!data.mPerReaderSessionKeyAlias.isEmpty()) {
+                    KeyStoreCache.deleteEntry(data.mPerReaderSessionKeyAlias);
+                }
+                for (String alias : data.mAcpTimeoutKeyAliases.values()) {
+                    KeyStoreCache.deleteEntry(alias);
                 }
-                if (!authKeyData.mPendingAlias.isEmpty()) {
-                    ks.deleteEntry(authKeyData.mPendingAlias);
+                for (AuthKeyData authKeyData : data.mAuthKeyDatas) {
+                    if (!authKeyData.mAlias.isEmpty()) {
+                        KeyStoreCache.deleteEntry(authKeyData.mAlias);
+                    }
+                    if (!authKeyData.mPendingAlias.isEmpty()) {
+                        KeyStoreCache.deleteEntry(authKeyData.mPendingAlias);
+                    }
                 }
+            } catch (KeyStoreException e) {
+                throw new RuntimeException("Error deleting key", e);
             }
-        } catch (KeyStoreException e) {
-            throw new RuntimeException("Error deleting key", e);
-        }
 
-        return signature;
+            return signature;
+        }
     }
 
     private void createDataEncryptionKey() {
@@ -680,6 +787,7 @@ class CredentialData {
                     .setKeySize(128);
             kg.init(builder.build());
             kg.generateKey();
+            KeyStoreCache.invalidate(dataKeyAlias);
         } catch (InvalidAlgorithmParameterException
                 | NoSuchAlgorithmException
                 | NoSuchProviderException e) {
@@ -687,26 +795,232 @@ class CredentialData {
         }
     }
 
+    private AuthKeyUsageJournal getJournal() {
+        return new AuthKeyUsageJournal(mContext.getFileStreamPath(
+                getFilenameForCredentialJournal(mCredentialName)));
+    }
+
+    private SecretKey getDataKey(String dataKeyAlias) {
+        try {
+            KeyStore.Entry entry = KeyStoreCache.getEntry(dataKeyAlias);
+            return ((KeyStore.SecretKeyEntry) entry).getSecretKey();
+        } catch (NoSuchAlgorithmException
+                | UnrecoverableEntryException
+                | KeyStoreException e) {
+            throw new RuntimeException("Error loading data encryption key", e);
+        }
+    }
+
+    // Persists the use count of the given authentication key. This only appends a small
+    // record to the journal instead of saving everything, unless the journal has grown large
+    // enough that it should be compacted.
+    //
+    private void saveUseCount(int slot) {
+        if (mJournalNumRecords + 1 < AuthKeyUsageJournal.MAX_RECORDS) {
+            try {
+                getJournal().append(
+                        getDataKey(getDataKeyAliasFromCredentialName(mCredentialName)),
+                        new AuthKeyUsageJournal.Record(mJournalGeneration, slot,
+                                mAuthKeyDatas.get(slot).mUseCount,
+                                mAuthKeyDatas.get(slot).mLastUsedSequence));
+                mJournalNumRecords += 1;
+                markSaved();
+                return;
+            } catch (IOException e) {
+                Log.w(TAG, "Error appending to journal, saving everything", e);
+            }
+        }
+        saveAuthKeysToDisk();
+    }
+
+    // Applies the records in the journal for the current generation.
+    //
+    private void loadJournal(SecretKey dataKey) {
+        AuthKeyUsageJournal journal = getJournal();
+        if (!journal.exists()) {
+            return;
+        }
+        AuthKeyUsageJournal.Contents contents;
+        try {
+            contents = journal.read(dataKey);
+        } catch (IOException e) {
+            throw new RuntimeException("Error reading journal", e);
+        }
+        mJournalNumRecords = contents.mRecords.size();
+        for (AuthKeyUsageJournal.Record record : contents.mRecords) {
+            if (record.mGeneration != mJournalGeneration) {
+                // Written before the credential was last saved, already reflected there.
+                continue;
+            }
+            if (record.mSlot < 0 || record.mSlot >= mAuthKeyDatas.size()) {
+                throw new RuntimeException("Invalid slot " + record.mSlot + " in journal");
+            }
+            AuthKeyData data = mAuthKeyDatas.get(record.mSlot);
+            data.mUseCount = record.mUseCount;
+            data.mLastUsedSequence = record.mLastUsedSequence;
+            mAuthKeyUseSequence = Math.max(mAuthKeyUseSequence, record.mLastUsedSequence);
+        }
+        if (contents.mDamaged) {
+            // A record was only partially written, compact so new records aren't appended
+            // after it.
+            Log.w(TAG, "Journal is damaged, compacting");
+            saveAuthKeysToDisk();
+        }
+    }
+
+    // Saves all segments.
+    //
     private void saveToDisk() {
+        saveToDisk(SEGMENTS);
+    }
+
+    // Saves only the segment with the authentication key table, for when only that has
+    // changed.
+    //
+    private void saveAuthKeysToDisk() {
+        mAuthKeyPool = null;
+        saveToDisk(SEGMENT_AUTH_KEYS);
+    }
+
+    // Writes new versions of the given segments and commits them by writing the manifest.
+    //
+    // Each segment is written to a new file, named after the segment and its version, so the
+    // versions referenced by the current manifest remain intact until the new manifest has
+    // been written. If the process dies before that, the credential is loaded with the
+    // previous versions of all segments. Segments are authenticated with their file name as
+    // additional data so a segment can't be replaced with another segment or an older version
+    // of itself.
+    //
+    private void saveToDisk(String... segments) {
+        // Any records in the journal are reflected in what's saved, bump the generation so
+        // they're ignored if the journal can't be deleted below. The field is only updated
+        // once the manifest is committed, so if writing fails the records appended afterwards
+        // are still applied to what's on disk.
+        long newJournalGeneration = mJournalGeneration + 1;
+
+        SecretKey dataKey = getDataKey(getDataKeyAliasFromCredentialName(mCredentialName));
+
+        List<String> segmentsToWrite = new ArrayList<>(Arrays.asList(segments));
+        for (String segment : SEGMENTS) {
+            // Not yet written in the segmented format, e.g. when migrating a credential
+            // stored in a single file.
+            if (!mSegmentVersions.containsKey(segment) && !segmentsToWrite.contains(segment)) {
+                segmentsToWrite.add(segment);
+            }
+        }
+        if (mNamespacesNeedRewrite && !segmentsToWrite.contains(SEGMENT_NAMESPACES)) {
+            segmentsToWrite.add(SEGMENT_NAMESPACES);
+        }
+
+        Map<String, Long> newSegmentVersions = new HashMap<>(mSegmentVersions);
+        for (String segment : segmentsToWrite) {
+            Long version = mSegmentVersions.get(segment);
+            long newVersion = (version != null) ? version + 1 : 1;
+            newSegmentVersions.put(segment, newVersion);
+
+            CborBuilder builder = new CborBuilder();
+            MapBuilder<CborBuilder> map = builder.addMap();
+            switch (segment) {
+                case SEGMENT_BASIC:
+                    saveToDiskBasic(map);
+                    saveToDiskAuthKeys(map);
+                    break;
+                case SEGMENT_NAMESPACES:
+                    saveToDiskNamespaceDatas(map, dataKey, newVersion);
+                    break;
+                case SEGMENT_ACPS:
+                    saveToDiskACPs(map);
+                    break;
+                case SEGMENT_AUTH_KEYS:
+                    saveToDiskAuthDatas(map);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown segment " + segment);
+            }
+            String filename = getFilenameForCredentialSegment(mCredentialName, segment,
+                    newVersion);
+            writeFile(filename, saveToDiskEncrypt(dataKey, saveToDiskEncode(builder),
+                    filename.getBytes(UTF_8)));
+        }
+
         CborBuilder builder = new CborBuilder();
         MapBuilder<CborBuilder> map = builder.addMap();
+        map.put("journalGeneration", newJournalGeneration);
+        MapBuilder<MapBuilder<CborBuilder>> segmentsMapBuilder = map.putMap("segments");
+        for (Map.Entry<String, Long> entry : newSegmentVersions.entrySet()) {
+            segmentsMapBuilder.put(entry.getKey(), entry.getValue());
+        }
+        writeFile(getFilenameForCredentialData(mCredentialName),
+                saveToDiskEncrypt(dataKey, saveToDiskEncode(builder), null));
+        mJournalGeneration = newJournalGeneration;
+
+        // The previous versions are no longer referenced.
+        for (String segment : segmentsToWrite) {
+            Long version = mSegmentVersions.get(segment);
+            if (version != null) {
+                deleteSegment(segment, version);
+            }
+        }
+        mSegmentVersions = newSegmentVersions;
+        mNamespacesNeedRewrite = false;
 
-        saveToDiskBasic(map);
-        saveToDiskAuthDatas(map);
-        saveToDiskACPs(map);
-        saveToDiskNamespaceDatas(map);
-        saveToDiskAuthKeys(map);
+        if (segmentsToWrite.contains(SEGMENT_NAMESPACES) && BlobStore.exists(mContext)) {
+            BlobStore.get(mContext).retainReferences(mCredentialName, mBlobAddresses);
+        }
 
-        byte[] cleartextDataToSaveBytes = saveToDiskEncode(builder);
+        getJournal().delete();
+        mJournalNumRecords = 0;
+        markSaved();
+    }
 
-        byte[] dataToSaveBytes = saveToDiskEncrypt(cleartextDataToSaveBytes);
+    // Records that this instance changed what's on disk, so other instances for the same
+    // credential reload the authentication keys before using them. Must be called with mLock
+    // held.
+    //
+    private void markSaved() {
+        mLock.mVersion += 1;
+        mLockVersion = mLock.mVersion;
+    }
 
-        String filename = getFilenameForCredentialData(mCredentialName);
+    // Reloads the authentication keys if another instance for the same credential saved
+    // changes since this instance last loaded or saved them. Must be called with mLock held.
+    //
+    // Only the manifest, the authKeys segment and the journal are read, the other segments
+    // don't change unless the credential is replaced.
+    //
+    private void refreshAuthKeys() {
+        if (mLockVersion == mLock.mVersion) {
+            return;
+        }
+        SecretKey dataKey = getDataKey(getDataKeyAliasFromCredentialName(mCredentialName));
+        mSegmentVersions = new HashMap<>();
+        co.nstant.in.cbor.model.Map map = loadManifest(dataKey);
+        if (map == null) {
+            throw new RuntimeException("Credential " + mCredentialName + " has been deleted");
+        }
+        loadJournalGeneration(map);
+        Long version = mSegmentVersions.get(SEGMENT_AUTH_KEYS);
+        if (version != null) {
+            // Otherwise still stored in the single-file format, with everything in the
+            // manifest.
+            map = loadSegment(dataKey, SEGMENT_AUTH_KEYS, version);
+        }
+        loadAuthKeyDatas(map);
+        if (mSegmentVersions.containsKey(SEGMENT_NAMESPACES)) {
+            mNamespacesNeedRewrite = false;
+        }
+        mAuthKeyPool = null;
+        mJournalNumRecords = 0;
+        loadJournal(dataKey);
+        mLockVersion = mLock.mVersion;
+    }
+
+    private void writeFile(String filename, byte[] data) {
         AtomicFile file = new AtomicFile(mContext.getFileStreamPath(filename));
         FileOutputStream outputStream = null;
         try {
             outputStream = file.startWrite();
-            outputStream.write(dataToSaveBytes);
+            outputStream.write(data);
             outputStream.close();
             file.finishWrite(outputStream);
         } catch (IOException e) {
@@ -717,6 +1031,30 @@ class CredentialData {
         }
     }
 
+    private void deleteSegments() {
+        for (Map.Entry<String, Long> entry : mSegmentVersions.entrySet()) {
+            deleteSegment(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void deleteSegment(String segment, long version) {
+        mContext.deleteFile(getFilenameForCredentialSegment(mCredentialName, segment, version));
+        if (segment.equals(SEGMENT_NAMESPACES)) {
+            mContext.deleteFile(getFilenameForCredentialValues(mCredentialName, version));
+        }
+    }
+
+    private static void releaseBlobs(Context context, String credentialName) {
+        if (BlobStore.exists(context)) {
+            BlobStore.get(context).retainReferences(credentialName, Collections.emptySet());
+        }
+    }
+
+    private ElementValueFile getElementValueFile(long version) {
+        return new ElementValueFile(mContext.getFileStreamPath(
+                getFilenameForCredentialValues(mCredentialName, version)));
+    }
+
     private byte[] saveToDiskEncode(CborBuilder map) {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         CborEncoder encoder = new CborEncoder(baos);
@@ -728,17 +1066,15 @@ class CredentialData {
         return baos.toByteArray();
     }
 
-    private byte[] saveToDiskEncrypt(byte[] cleartextDataToSaveBytes) {
+    private byte[] saveToDiskEncrypt(SecretKey secretKey, byte[] cleartextDataToSaveBytes,
+            byte[] additionalData) {
         byte[] dataToSaveBytes;
         try {
-            KeyStore ks = KeyStore.getInstance("AndroidKeyStore");
-            ks.load(null);
-            String dataKeyAlias = getDataKeyAliasFromCredentialName(mCredentialName);
-
-            KeyStore.Entry entry = ks.getEntry(dataKeyAlias, null);
-            SecretKey secretKey = ((KeyStore.SecretKeyEntry) entry).getSecretKey();
             Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
             cipher.init(Cipher.ENCRYPT_MODE, secretKey);
+            if (additionalData != null) {
+                cipher.updateAAD(additionalData);
+            }
 
             byte[] cipherText = cipher.doFinal(
                     cleartextDataToSaveBytes); // This includes the auth tag
@@ -749,12 +1085,8 @@ class CredentialData {
         } catch (NoSuchPaddingException
                 | BadPaddingException
                 | NoSuchAlgorithmException
-                | CertificateException
                 | InvalidKeyException
-                | UnrecoverableEntryException
-                | IOException
-                | IllegalBlockSizeException
-                | KeyStoreException e) {
+                | IllegalBlockSizeException e) {
             throw new RuntimeException("Error encrypting CBOR for saving to disk", e);
         }
         return dataToSaveBytes;
@@ -772,13 +1104,58 @@ class CredentialData {
         }
     }
 
-    private void saveToDiskNamespaceDatas(MapBuilder<CborBuilder> map) {
-        MapBuilder<MapBuilder<CborBuilder>> ensArrayBuilder = map.putMap(
-                "namespaceDatas");
+    // Writes the values to a new ElementValueFile and puts the index into the segment. For a
+    // credential loaded from disk, this reads all values from the previous ElementValueFile
+    // which is deleted once the new version of the segment is committed.
+    //
+    // Values at least as large as the BlobStore threshold are put in the BlobStore instead and
+    // referenced by their address. References to all of them are added at once here, before
+    // the segment is committed, so the blobs can't be deleted while the committed segment
+    // refers to them.
+    //
+    private void saveToDiskNamespaceDatas(MapBuilder<CborBuilder> map, SecretKey dataKey,
+            long version) {
+        int blobThreshold = BlobStore.getThreshold();
+        BlobStore blobStore = null;
+        mBlobAddresses = new HashSet<>();
+        ElementValueFile valueFile = getElementValueFile(version);
+        MapBuilder<MapBuilder<CborBuilder>> indexBuilder = map.putMap("namespaceIndex");
         for (PersonalizationData.NamespaceData namespaceData : mNamespaceDatas) {
-            ensArrayBuilder.put(new UnicodeString(namespaceData.getNamespaceName()),
-                    namespaceDataToCbor(namespaceData));
+            String namespaceName = namespaceData.getNamespaceName();
+            Array entriesArray = new Array();
+            for (String entryName : namespaceData.getEntryNames()) {
+                byte[] value = namespaceData.getEntryValue(entryName);
+                Array accessControlProfileIdsArray = new Array();
+                for (AccessControlProfileId id :
+                        namespaceData.getAccessControlProfileIds(entryName)) {
+                    accessControlProfileIdsArray.add(new UnsignedInteger(id.getId()));
+                }
+                MapBuilder<CborBuilder> entryBuilder = new CborBuilder().addMap()
+                        .put("name", entryName)
+                        .put(new UnicodeString("accessControlProfiles"),
+                                accessControlProfileIdsArray);
+                if (blobThreshold > 0 && value.length >= blobThreshold) {
+                    if (blobStore == null) {
+                        blobStore = BlobStore.get(mContext);
+                    }
+                    byte[] address = blobStore.put(mCredentialName, value);
+                    mBlobAddresses.add(ByteBuffer.wrap(address));
+                    entryBuilder.put("blob", address);
+                } else {
+                    ElementValueFile.Location location = valueFile.add(dataKey, namespaceName,
+                            entryName, value);
+                    entryBuilder.put("offset", location.mOffset)
+                            .put("length", location.mLength);
+                }
+                entriesArray.add(entryBuilder.end().build().get(0));
+            }
+            indexBuilder.put(new UnicodeString(namespaceName), entriesArray);
+        }
+        if (blobStore != null) {
+            blobStore.addReferences(mCredentialName, mBlobAddresses);
         }
+        writeFile(getFilenameForCredentialValues(mCredentialName, version),
+                valueFile.getPendingRecords());
     }
 
     private void saveToDiskACPs(MapBuilder<CborBuilder> map) {
@@ -790,6 +1167,9 @@ class CredentialData {
     }
 
     private void saveToDiskAuthDatas(MapBuilder<CborBuilder> map) {
+        map.put("authKeyCount", mAuthKeyCount);
+        map.put("authKeyMaxUses", mAuthMaxUsesPerKey);
+        map.put("authKeyUseSequence", mAuthKeyUseSequence);
         ArrayBuilder<MapBuilder<CborBuilder>> authKeyDataArrayBuilder = map.putArray(
                 "authKeyDatas");
         for (AuthKeyData data : mAuthKeyDatas) {
@@ -805,6 +1185,7 @@ class CredentialData {
                     .put("pendingAlias", data.mPendingAlias)
                     .put("pendingCertificate", data.mPendingCertificate)
                     .put("expirationDateMillis", expirationDateMillis)
+                    .put("lastUsedSequence", data.mLastUsedSequence)
                     .end();
         }
     }
@@ -822,24 +1203,92 @@ class CredentialData {
             }
         }
         map.put("proofOfProvisioningSha256", mProofOfProvisioningSha256);
-        map.put("authKeyCount", mAuthKeyCount);
-        map.put("authKeyMaxUses", mAuthMaxUsesPerKey);
     }
 
-    private boolean loadFromDisk(String dataKeyAlias) {
+    // Loads and decrypts the main file. For credentials stored in the segmented format this
+    // is the manifest, otherwise it has all the data. Returns null if the file doesn't exist.
+    //
+    private co.nstant.in.cbor.model.Map loadManifest(SecretKey dataKey) {
         String filename = getFilenameForCredentialData(mCredentialName);
-        byte[] encryptedFileData = new byte[0];
+        byte[] encryptedFileData;
         try {
             AtomicFile file = new AtomicFile(mContext.getFileStreamPath(filename));
             encryptedFileData = file.readFully();
         } catch (IOException e) {
+            return null;
+        }
+        co.nstant.in.cbor.model.Map map =
+                loadFromDiskDecode(loadFromDiskDecrypt(dataKey, encryptedFileData, null));
+
+        DataItem segments = map.get(new UnicodeString("segments"));
+        if (segments != null) {
+            if (!(segments instanceof co.nstant.in.cbor.model.Map)) {
+                throw new RuntimeException("segments is not a map");
+            }
+            for (DataItem key : ((co.nstant.in.cbor.model.Map) segments).getKeys()) {
+                DataItem version = ((co.nstant.in.cbor.model.Map) segments).get(key);
+                if (!(key instanceof UnicodeString) || !(version instanceof Number)) {
+                    throw new RuntimeException("Malformed segments map");
+                }
+                mSegmentVersions.put(((UnicodeString) key).getString(),
+                        ((Number) version).getValue().longValue());
+            }
+        }
+        return map;
+    }
+
+    private boolean loadFromDisk(String dataKeyAlias) {
+        SecretKey dataKey = getDataKey(dataKeyAlias);
+        co.nstant.in.cbor.model.Map map = loadManifest(dataKey);
+        if (map == null) {
             return false;
         }
 
-        byte[] fileData = loadFromDiskDecrypt(dataKeyAlias, encryptedFileData);
+        // Merge in the data from all segments, this yields the same map as the one stored
+        // in the single-file format.
+        for (Map.Entry<String, Long> entry : mSegmentVersions.entrySet()) {
+            co.nstant.in.cbor.model.Map segmentMap = loadSegment(dataKey, entry.getKey(),
+                    entry.getValue());
+            for (DataItem key : segmentMap.getKeys()) {
+                map.put(key, segmentMap.get(key));
+            }
+
+            // If the process died after committing a new version of this segment, the
+            // previous version may still be around.
+            if (entry.getValue() > 1) {
+                deleteSegment(entry.getKey(), entry.getValue() - 1);
+            }
+        }
+
+        loadBasic(map);
+        loadCredentialKeyCertChain(map);
+        loadProofOfProvisioningSha256(map);
+        loadAccessControlProfiles(map);
+        loadNamespaceDatas(map, dataKey);
+        loadAuthKey(map);
+        loadAuthKeyDatas(map);
+        loadJournal(dataKey);
+        mLockVersion = mLock.mVersion;
+        return true;
+    }
+
+    private co.nstant.in.cbor.model.Map loadSegment(SecretKey dataKey, String segment,
+            long version) {
+        String filename = getFilenameForCredentialSegment(mCredentialName, segment, version);
+        byte[] encryptedSegmentData;
+        try {
+            AtomicFile file = new AtomicFile(mContext.getFileStreamPath(filename));
+            encryptedSegmentData = file.readFully();
+        } catch (IOException e) {
+            throw new RuntimeException("Error reading segment " + segment, e);
+        }
+        return loadFromDiskDecode(loadFromDiskDecrypt(dataKey, encryptedSegmentData,
+                filename.getBytes(UTF_8)));
+    }
 
+    private co.nstant.in.cbor.model.Map loadFromDiskDecode(byte[] data) {
         try {
-            ByteArrayInputStream bais = new ByteArrayInputStream(fileData);
+            ByteArrayInputStream bais = new ByteArrayInputStream(data);
             List<DataItem> dataItems = new CborDecoder(bais).decode();
             if (dataItems.size() != 1) {
                 throw new RuntimeException("Expected 1 item, found " + dataItems.size());
@@ -847,29 +1296,16 @@ class CredentialData {
             if (!(dataItems.get(0) instanceof co.nstant.in.cbor.model.Map)) {
                 throw new RuntimeException("Item is not a map");
             }
-            co.nstant.in.cbor.model.Map map = (co.nstant.in.cbor.model.Map) dataItems.get(0);
-
-            loadBasic(map);
-            loadCredentialKeyCertChain(map);
-            loadProofOfProvisioningSha256(map);
-            loadAccessControlProfiles(map);
-            loadNamespaceDatas(map);
-            loadAuthKey(map);
-
+            return (co.nstant.in.cbor.model.Map) dataItems.get(0);
         } catch (CborException e) {
             throw new RuntimeException("Error decoding data", e);
         }
-        return true;
     }
 
-    private byte[] loadFromDiskDecrypt(String dataKeyAlias, byte[] encryptedFileData) {
+    private byte[] loadFromDiskDecrypt(SecretKey secretKey, byte[] encryptedFileData,
+            byte[] additionalData) {
         byte[] fileData = null;
         try {
-            KeyStore ks = KeyStore.getInstance("AndroidKeyStore");
-            ks.load(null);
-            KeyStore.Entry entry = ks.getEntry(dataKeyAlias, null);
-            SecretKey secretKey = ((KeyStore.SecretKeyEntry) entry).getSecretKey();
-
             if (encryptedFileData.length < 12) {
                 throw new RuntimeException("Encrypted CBOR on disk is too small");
             }
@@ -881,17 +1317,16 @@ class CredentialData {
 
             Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
             cipher.init(Cipher.DECRYPT_MODE, secretKey, new GCMParameterSpec(128, iv));
+            if (additionalData != null) {
+                cipher.updateAAD(additionalData);
+            }
             fileData = cipher.doFinal(cipherText);
         } catch (InvalidAlgorithmParameterException
                 | NoSuchPaddingException
                 | BadPaddingException
                 | NoSuchAlgorithmException
-                | CertificateException
                 | InvalidKeyException
-                | IOException
-                | IllegalBlockSizeException
-                | UnrecoverableEntryException
-                | KeyStoreException e) {
+                | IllegalBlockSizeException e) {
             throw new RuntimeException("Error decrypting CBOR", e);
         }
         return fileData;
@@ -901,6 +1336,29 @@ class CredentialData {
         mDocType = ((UnicodeString) map.get(new UnicodeString("docType"))).getString();
         mCredentialKeyAlias = ((UnicodeString) map.get(
                 new UnicodeString("credentialKeyAlias"))).getString();
+        loadJournalGeneration(map);
+    }
+
+    private static long getOptionalLong(co.nstant.in.cbor.model.Map map, String key) {
+        DataItem item = map.get(new UnicodeString(key));
+        if (item == null) {
+            return 0;
+        }
+        if (!(item instanceof Number)) {
+            throw new RuntimeException(key + " not a number");
+        }
+        return ((Number) item).getValue().longValue();
+    }
+
+    private void loadJournalGeneration(co.nstant.in.cbor.model.Map map) {
+        // journalGeneration was added in a later release, may not be present
+        DataItem journalGenerationItem = map.get(new UnicodeString("journalGeneration"));
+        if (journalGenerationItem != null) {
+            if (!(journalGenerationItem instanceof Number)) {
+                throw new RuntimeException("journalGeneration not a number");
+            }
+            mJournalGeneration = ((Number) journalGenerationItem).getValue().longValue();
+        }
     }
 
     private void loadAuthKey(co.nstant.in.cbor.model.Map map) {
@@ -926,11 +1384,16 @@ class CredentialData {
             String acpAlias = ((UnicodeString) item).getString();
             mAcpTimeoutKeyAliases.put(profileId, acpAlias);
         }
+    }
 
+    private void loadAuthKeyDatas(co.nstant.in.cbor.model.Map map) {
         mAuthKeyCount = ((Number) map.get(
                 new UnicodeString("authKeyCount"))).getValue().intValue();
         mAuthMaxUsesPerKey = ((Number) map.get(
                 new UnicodeString("authKeyMaxUses"))).getValue().intValue();
+        // authKeyUseSequence and lastUsedSequence were added in a later release, may not be
+        // present
+        mAuthKeyUseSequence = getOptionalLong(map, "authKeyUseSequence");
 
         DataItem authKeyDatas = map.get(new UnicodeString("authKeyDatas"));
         if (!(authKeyDatas instanceof Array)) {
@@ -964,12 +1427,21 @@ class CredentialData {
             Calendar expirationDate = Calendar.getInstance();
             expirationDate.setTimeInMillis(expirationDateMillis);
             data.mExpirationDate = expirationDate;
+            data.mLastUsedSequence = getOptionalLong(im, "lastUsedSequence");
 
             mAuthKeyDatas.add(data);
         }
     }
 
-    private void loadNamespaceDatas(co.nstant.in.cbor.model.Map map) {
+    private void loadNamespaceDatas(co.nstant.in.cbor.model.Map map, SecretKey dataKey) {
+        DataItem namespaceIndex = map.get(new UnicodeString("namespaceIndex"));
+        if (namespaceIndex != null) {
+            loadNamespaceIndex(namespaceIndex, dataKey);
+            return;
+        }
+
+        // Stored by an earlier version of this library with the values inline.
+        mNamespacesNeedRewrite = true;
         DataItem namespaceDatas = map.get(new UnicodeString("namespaceDatas"));
         if (!(namespaceDatas instanceof co.nstant.in.cbor.model.Map)) {
             throw new RuntimeException("namespaceDatas not found or not map");
@@ -985,6 +1457,133 @@ class CredentialData {
         }
     }
 
+    private void loadNamespaceIndex(DataItem namespaceIndex, SecretKey dataKey) {
+        if (!(namespaceIndex instanceof co.nstant.in.cbor.model.Map)) {
+            throw new RuntimeException("namespaceIndex not a map");
+        }
+        Long version = mSegmentVersions.get(SEGMENT_NAMESPACES);
+        if (version == null) {
+            throw new RuntimeException("namespaceIndex found outside namespaces segment");
+        }
+        ElementValueFile valueFile = getElementValueFile(version);
+        BlobStore blobStore = null;
+        mNamespaceDatas = new ArrayList<PersonalizationData.NamespaceData>();
+        for (DataItem key : ((co.nstant.in.cbor.model.Map) namespaceIndex).getKeys()) {
+            if (!(key instanceof UnicodeString)) {
+                throw new RuntimeException("Key in namespaceIndex is not a string");
+            }
+            DataItem entries = ((co.nstant.in.cbor.model.Map) namespaceIndex).get(key);
+            if (!(entries instanceof Array)) {
+                throw new RuntimeException("Entries in namespaceIndex is not an array");
+            }
+            LazyNamespaceData namespaceData = new LazyNamespaceData(
+                    ((UnicodeString) key).getString(), valueFile, dataKey);
+            for (DataItem item : ((Array) entries).getDataItems()) {
+                if (!(item instanceof co.nstant.in.cbor.model.Map)) {
+                    throw new RuntimeException("Entry in namespaceIndex is not a map");
+                }
+                String name = Util.cborMapExtractString(item, "name");
+                List<AccessControlProfileId> accessControlProfileIds = new ArrayList<>();
+                for (DataItem acpIdItem : Util.cborMapExtractArray(item,
+                        "accessControlProfiles")) {
+                    accessControlProfileIds.add(
+                            new AccessControlProfileId(((Number) acpIdItem).getValue().intValue()));
+                }
+                DataItem blobAddress =
+                        ((co.nstant.in.cbor.model.Map) item).get(new UnicodeString("blob"));
+                if (blobAddress instanceof ByteString) {
+                    if (blobStore == null) {
+                        blobStore = BlobStore.get(mContext);
+                    }
+                    namespaceData.addBlobEntry(name, accessControlProfileIds, blobStore,
+                            ((ByteString) blobAddress).getBytes());
+                    continue;
+                }
+                namespaceData.addEntry(name, accessControlProfileIds,
+                        new ElementValueFile.Location(Util.cborMapExtractNumber(item, "offset"),
+                                (int) Util.cborMapExtractNumber(item, "length")));
+            }
+            mNamespaceDatas.add(namespaceData);
+        }
+    }
+
+    // Namespace data loaded from the index, values are read from the ElementValueFile, or
+    // the BlobStore, the first time they're requested.
+    //
+    private static final class LazyNamespaceData extends PersonalizationData.NamespaceData {
+        private final ElementValueFile mValueFile;
+        private final SecretKey mDataKey;
+        private final Map<String, ElementValueFile.Location> mLocations = new HashMap<>();
+        private BlobStore mBlobStore;
+        private final Map<String, byte[]> mBlobAddresses = new HashMap<>();
+
+        LazyNamespaceData(String namespace, ElementValueFile valueFile, SecretKey dataKey) {
+            super(namespace);
+            mValueFile = valueFile;
+            mDataKey = dataKey;
+        }
+
+        void addEntry(String name, Collection<AccessControlProfileId> accessControlProfileIds,
+                ElementValueFile.Location location) {
+            mEntries.put(name, new PersonalizationData.EntryData(null,
+                    Collections.unmodifiableCollection(accessControlProfileIds)));
+            mLocations.put(name, location);
+        }
+
+        void addBlobEntry(String name, Collection<AccessControlProfileId> accessControlProfileIds,
+                BlobStore blobStore, byte[] address) {
+            mEntries.put(name, new PersonalizationData.EntryData(null,
+                    Collections.unmodifiableCollection(accessControlProfileIds)));
+            mBlobStore = blobStore;
+            mBlobAddresses.put(name, address);
+        }
+
+        // Returns a copy of the value since the cached value may be wiped at any time, see
+        // wipeValues().
+        @Override
+        synchronized byte[] getEntryValue(String name) {
+            PersonalizationData.EntryData entryData = mEntries.get(name);
+            if (entryData == null) {
+                return null;
+            }
+            if (entryData.mValue == null) {
+                try {
+                    byte[] blobAddress = mBlobAddresses.get(name);
+                    if (blobAddress != null) {
+                        entryData.mValue = mBlobStore.get(blobAddress);
+                    } else {
+                        entryData.mValue = mValueFile.read(mDataKey, mNamespace, name,
+                                mLocations.get(name));
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException("Error reading value for " + name, e);
+                }
+            }
+            return entryData.mValue.clone();
+        }
+
+        synchronized long getEstimatedSize() {
+            long size = mNamespace.length();
+            for (Map.Entry<String, PersonalizationData.EntryData> entry : mEntries.entrySet()) {
+                size += entry.getKey().length();
+                if (entry.getValue().mValue != null) {
+                    size += entry.getValue().mValue.length;
+                }
+            }
+            return size;
+        }
+
+        // Overwrites and drops the values read so far, they're read again if requested.
+        synchronized void wipeValues() {
+            for (PersonalizationData.EntryData entryData : mEntries.values()) {
+                if (entryData.mValue != null) {
+                    Arrays.fill(entryData.mValue, (byte) 0);
+                    entryData.mValue = null;
+                }
+            }
+        }
+    }
+
     private void loadAccessControlProfiles(co.nstant.in.cbor.model.Map map) {
         DataItem accessControlProfiles = map.get(new UnicodeString("accessControlProfiles"));
         if (!(accessControlProfiles instanceof Array)) {
@@ -1033,6 +1632,46 @@ class CredentialData {
         return mAccessControlProfiles;
     }
 
+    // Whether all data element values are stored on disk and read on demand, in which case
+    // the values can be dropped with wipeValues().
+    //
+    boolean hasValuesOnDisk() {
+        for (PersonalizationData.NamespaceData namespaceData : mNamespaceDatas) {
+            if (!(namespaceData instanceof LazyNamespaceData)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Gets an estimate of the memory used by the namespace data and the authentication keys.
+    // This only counts data element values which have been read.
+    //
+    long getEstimatedSize() {
+        long size = 0;
+        for (PersonalizationData.NamespaceData namespaceData : mNamespaceDatas) {
+            if (namespaceData instanceof LazyNamespaceData) {
+                size += ((LazyNamespaceData) namespaceData).getEstimatedSize();
+            }
+        }
+        for (AuthKeyData data : mAuthKeyDatas) {
+            size += data.mCertificate.length + data.mStaticAuthenticationData.length
+                    + data.mPendingCertificate.length;
+        }
+        return size;
+    }
+
+    // Overwrites the data element values read so far with zeroes and drops them. They're read
+    // from disk again if requested.
+    //
+    void wipeValues() {
+        for (PersonalizationData.NamespaceData namespaceData : mNamespaceDatas) {
+            if (namespaceData instanceof LazyNamespaceData) {
+                ((LazyNamespaceData) namespaceData).wipeValues();
+            }
+        }
+    }
+
     Collection<PersonalizationData.NamespaceData> getNamespaceDatas() {
         return mNamespaceDatas;
     }
@@ -1056,109 +1695,125 @@ class CredentialData {
     }
 
     int getAuthKeyCount() {
-        return mAuthKeyCount;
+        synchronized (mLock) {
+            refreshAuthKeys();
+            return mAuthKeyCount;
+        }
     }
 
     int getAuthMaxUsesPerKey() {
-        return mAuthMaxUsesPerKey;
+        synchronized (mLock) {
+            refreshAuthKeys();
+            return mAuthMaxUsesPerKey;
+        }
     }
 
-    int[] getAuthKeyUseCounts() {
-        int[] result = new int[mAuthKeyCount];
-        int n = 0;
-        for (AuthKeyData data : mAuthKeyDatas) {
-            result[n++] = data.mUseCount;
+    // Gets the number of certified keys which haven't reached their maximum use count and
+    // whose static authentication data doesn't expire before the given date.
+    //
+    int getNumAvailableAuthKeys(Calendar validUntil) {
+        synchronized (mLock) {
+            refreshAuthKeys();
+            int numAvailable = 0;
+            for (int n = 0; n < mAuthKeyCount; n++) {
+                AuthKeyData data = mAuthKeyDatas.get(n);
+                if (!data.mAlias.isEmpty()
+                        && data.mUseCount < mAuthMaxUsesPerKey
+                        && (data.mExpirationDate == null
+                        || !validUntil.after(data.mExpirationDate))) {
+                    numAvailable++;
+                }
+            }
+            return numAvailable;
         }
-        return result;
     }
 
-    void setAvailableAuthenticationKeys(int keyCount, int maxUsesPerKey) {
-        int prevAuthKeyCount = mAuthKeyCount;
-        mAuthKeyCount = keyCount;
-        mAuthMaxUsesPerKey = maxUsesPerKey;
-
-        if (prevAuthKeyCount < mAuthKeyCount) {
-            // Added non-zero number of auth keys...
-            for (int n = prevAuthKeyCount; n < mAuthKeyCount; n++) {
-                mAuthKeyDatas.add(new AuthKeyData());
-            }
-        } else if (prevAuthKeyCount > mAuthKeyCount) {
-            KeyStore ks = null;
-            try {
-                ks = KeyStore.getInstance("AndroidKeyStore");
-                ks.load(null);
-            } catch (CertificateException
-                    | IOException
-                    | NoSuchAlgorithmException
-                    | KeyStoreException e) {
-                throw new RuntimeException("Error loading keystore", e);
+    int[] getAuthKeyUseCounts() {
+        synchronized (mLock) {
+            refreshAuthKeys();
+            int[] result = new int[mAuthKeyCount];
+            int n = 0;
+            for (AuthKeyData data : mAuthKeyDatas) {
+                result[n++] = data.mUseCount;
             }
+            return result;
+        }
+    }
 
-            int numKeysToDelete = prevAuthKeyCount - mAuthKeyCount;
-            // Removed non-zero number of auth keys. For now we just delete
-            // the keys at the beginning... (an optimization could be to instead
-            // delete the keys with the biggest use count).
-            for (int n = 0; n < numKeysToDelete; n++) {
-                AuthKeyData data = mAuthKeyDatas.get(0);
-                if (!data.mAlias.isEmpty()) {
-                    try {
-                        if (ks.containsAlias(data.mAlias)) {
-                            ks.deleteEntry(data.mAlias);
+    void setAvailableAuthenticationKeys(int keyCount, int maxUsesPerKey) {
+        synchronized (mLock) {
+            refreshAuthKeys();
+            int prevAuthKeyCount = mAuthKeyCount;
+            mAuthKeyCount = keyCount;
+            mAuthMaxUsesPerKey = maxUsesPerKey;
+
+            if (prevAuthKeyCount < mAuthKeyCount) {
+                // Added non-zero number of auth keys...
+                for (int n = prevAuthKeyCount; n < mAuthKeyCount; n++) {
+                    mAuthKeyDatas.add(new AuthKeyData());
+                }
+            } else if (prevAuthKeyCount > mAuthKeyCount) {
+                int numKeysToDelete = prevAuthKeyCount - mAuthKeyCount;
+                // Removed non-zero number of auth keys. For now we just delete
+                // the keys at the beginning... (an optimization could be to instead
+                // delete the keys with the biggest use count).
+                for (int n = 0; n < numKeysToDelete; n++) {
+                    AuthKeyData data = mAuthKeyDatas.get(0);
+                    if (!data.mAlias.isEmpty()) {
+                        try {
+                            if (KeyStoreCache.containsAlias(data.mAlias)) {
+                                KeyStoreCache.deleteEntry(data.mAlias);
+                            }
+                        } catch (KeyStoreException e) {
+                            throw new RuntimeException(
+                                    "Error deleting auth key with mAlias " + data.mAlias, e);
                         }
-                    } catch (KeyStoreException e) {
-                        throw new RuntimeException(
-                                "Error deleting auth key with mAlias " + data.mAlias, e);
                     }
-                }
-                if (!data.mPendingAlias.isEmpty()) {
-                    try {
-                        if (ks.containsAlias(data.mPendingAlias)) {
-                            ks.deleteEntry(data.mPendingAlias);
+                    if (!data.mPendingAlias.isEmpty()) {
+                        try {
+                            if (KeyStoreCache.containsAlias(data.mPendingAlias)) {
+                                KeyStoreCache.deleteEntry(data.mPendingAlias);
+                            }
+                        } catch (KeyStoreException e) {
+                            throw new RuntimeException(
+                                    "Error deleting auth key with mPendingAlias "
+                                            + data.mPendingAlias, e);
                         }
-                    } catch (KeyStoreException e) {
-                        throw new RuntimeException(
-                                "Error deleting auth key with mPendingAlias " + data.mPendingAlias,
-                                e);
                     }
+                    mAuthKeyDatas.remove(0);
                 }
-                mAuthKeyDatas.remove(0);
             }
+            saveAuthKeysToDisk();
         }
-        saveToDisk();
     }
 
     Collection<X509Certificate> getAuthKeysNeedingCertification() {
-        KeyStore ks = null;
-        try {
-            ks = KeyStore.getInstance("AndroidKeyStore");
-            ks.load(null);
-        } catch (CertificateException
-                | IOException
-                | NoSuchAlgorithmException
-                | KeyStoreException e) {
-            throw new RuntimeException("Error loading keystore", e);
-        }
-
-        ArrayList<X509Certificate> certificates = new ArrayList<X509Certificate>();
-
-        Calendar now = Calendar.getInstance();
-
-        // Determine which keys need certification (or re-certification) and generate
-        // keys and X.509 certs for these and mark them as pending.
-        for (int n = 0; n < mAuthKeyCount; n++) {
-            AuthKeyData data = mAuthKeyDatas.get(n);
+        return getAuthKeysNeedingCertification(Calendar.getInstance());
+    }
 
-            boolean keyExceededUseCount = (data.mUseCount >= mAuthMaxUsesPerKey);
-            boolean keyBeyondExpirationDate = false;
-            if (data.mExpirationDate != null) {
-                keyBeyondExpirationDate = now.after(data.mExpirationDate);
-            }
-            boolean newKeyNeeded =
-                    data.mAlias.isEmpty() || keyExceededUseCount || keyBeyondExpirationDate;
-            boolean certificationPending = !data.mPendingAlias.isEmpty();
+    // Like getAuthKeysNeedingCertification() but keys whose static authentication data expires
+    // before the given date are replaced as well, not only the ones which have expired.
+    //
+    Collection<X509Certificate> getAuthKeysNeedingCertification(Calendar renewIfExpiringBefore) {
+        synchronized (mLock) {
+            refreshAuthKeys();
+            // Determine which keys need certification (or re-certification)...
+            List<AuthKeyData> datasNeedingNewKey = new ArrayList<>();
+            List<String> aliasesForNewKeys = new ArrayList<>();
+            List<Callable<byte[]>> tasks = new ArrayList<>();
+            for (int n = 0; n < mAuthKeyCount; n++) {
+                AuthKeyData data = mAuthKeyDatas.get(n);
+
+                boolean keyExceededUseCount = (data.mUseCount >= mAuthMaxUsesPerKey);
+                boolean keyBeyondExpirationDate = false;
+                if (data.mExpirationDate != null) {
+                    keyBeyondExpirationDate = renewIfExpiringBefore.after(data.mExpirationDate);
+                }
+                boolean newKeyNeeded =
+                        data.mAlias.isEmpty() || keyExceededUseCount || keyBeyondExpirationDate;
+                boolean certificationPending = !data.mPendingAlias.isEmpty();
 
-            if (newKeyNeeded && !certificationPending) {
-                try {
+                if (newKeyNeeded && !certificationPending) {
                     // Calculate name to use and be careful to avoid collisions when
                     // re-certifying an already populated slot.
                     String aliasForAuthKey = mCredentialKeyAlias + String.format(Locale.US,
@@ -1166,98 +1821,177 @@ class CredentialData {
                     if (aliasForAuthKey.equals(data.mAlias)) {
                         aliasForAuthKey = aliasForAuthKey + "_";
                     }
+                    final String alias = aliasForAuthKey;
+                    datasNeedingNewKey.add(data);
+                    aliasesForNewKeys.add(alias);
+                    tasks.add(() -> generateAuthenticationKey(alias));
+                }
+            }
 
-                    KeyPairGenerator kpg = KeyPairGenerator.getInstance(
-                            KeyProperties.KEY_ALGORITHM_EC, "AndroidKeyStore");
-                    KeyGenParameterSpec.Builder builder = new KeyGenParameterSpec.Builder(
-                            aliasForAuthKey,
-                            KeyProperties.PURPOSE_SIGN | KeyProperties.PURPOSE_VERIFY)
-                            .setDigests(KeyProperties.DIGEST_SHA256, KeyProperties.DIGEST_SHA512);
-                    kpg.initialize(builder.build());
-                    kpg.generateKeyPair();
-
-                    X509Certificate certificate = generateAuthenticationKeyCert(
-                            aliasForAuthKey, mCredentialKeyAlias, mProofOfProvisioningSha256);
-
-                    data.mPendingAlias = aliasForAuthKey;
-                    data.mPendingCertificate = certificate.getEncoded();
-                    certificationPending = true;
-                } catch (InvalidAlgorithmParameterException
-                        | NoSuchAlgorithmException
-                        | NoSuchProviderException
-                        | CertificateEncodingException e) {
-                    throw new RuntimeException("Error creating auth key", e);
+            // ... generate keys and X.509 certs for these, possibly in parallel, and mark them
+            // as pending. The results are in slot order no matter the order the keys were
+            // generated in.
+            if (!tasks.isEmpty()) {
+                List<byte[]> encodedCertificates =
+                        Util.invokeAll(getKeyGenerationExecutor(), tasks);
+                for (int n = 0; n < datasNeedingNewKey.size(); n++) {
+                    AuthKeyData data = datasNeedingNewKey.get(n);
+                    data.mPendingAlias = aliasesForNewKeys.get(n);
+                    data.mPendingCertificate = encodedCertificates.get(n);
                 }
             }
 
-            if (certificationPending) {
-                try {
-                    CertificateFactory cf = CertificateFactory.getInstance("X.509");
-                    ByteArrayInputStream bais = new ByteArrayInputStream(data.mPendingCertificate);
-                    certificates.add((X509Certificate) cf.generateCertificate(bais));
-                } catch (CertificateException e) {
-                    throw new RuntimeException(
-                            "Error creating certificate for auth key", e);
+            ArrayList<X509Certificate> certificates = new ArrayList<X509Certificate>();
+            for (int n = 0; n < mAuthKeyCount; n++) {
+                AuthKeyData data = mAuthKeyDatas.get(n);
+                if (!data.mPendingAlias.isEmpty()) {
+                    try {
+                        CertificateFactory cf = CertificateFactory.getInstance("X.509");
+                        ByteArrayInputStream bais =
+                                new ByteArrayInputStream(data.mPendingCertificate);
+                        certificates.add((X509Certificate) cf.generateCertificate(bais));
+                    } catch (CertificateException e) {
+                        throw new RuntimeException(
+                                "Error creating certificate for auth key", e);
+                    }
                 }
             }
+
+            saveAuthKeysToDisk();
+
+            return certificates;
         }
+    }
 
-        saveToDisk();
+    // Generates an authentication key with the given alias and returns the encoded certificate
+    // for it, signed by the credential key. This is called concurrently for different aliases.
+    //
+    private byte[] generateAuthenticationKey(String aliasForAuthKey) {
+        try {
+            KeyPairGenerator kpg = KeyPairGenerator.getInstance(
+                    KeyProperties.KEY_ALGORITHM_EC, "AndroidKeyStore");
+            KeyGenParameterSpec.Builder builder = new KeyGenParameterSpec.Builder(
+                    aliasForAuthKey,
+                    KeyProperties.PURPOSE_SIGN | KeyProperties.PURPOSE_VERIFY)
+                    .setDigests(KeyProperties.DIGEST_SHA256, KeyProperties.DIGEST_SHA512);
+            kpg.initialize(builder.build());
+            kpg.generateKeyPair();
+            KeyStoreCache.invalidate(aliasForAuthKey);
+
+            X509Certificate certificate = generateAuthenticationKeyCert(
+                    aliasForAuthKey, mCredentialKeyAlias, mProofOfProvisioningSha256);
+            return certificate.getEncoded();
+        } catch (InvalidAlgorithmParameterException
+                | NoSuchAlgorithmException
+                | NoSuchProviderException
+                | CertificateEncodingException e) {
+            throw new RuntimeException("Error creating auth key", e);
+        }
+    }
 
-        return certificates;
+    private static synchronized @NonNull Executor getKeyGenerationExecutor() {
+        if (sKeyGenerationExecutor == null) {
+            int numThreads = Math.min(MAX_KEY_GENERATION_THREADS,
+                    Runtime.getRuntime().availableProcessors());
+            sKeyGenerationExecutor = new ThreadPoolExecutor(numThreads, numThreads,
+                    30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(),
+                    runnable -> {
+                        Thread thread = new Thread(runnable, "IdentityCredentialKeyGen");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            sKeyGenerationExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sKeyGenerationExecutor;
     }
 
     void storeStaticAuthenticationData(X509Certificate authenticationKey,
             Calendar expirationDate,
             byte[] staticAuthData)
             throws UnknownAuthenticationKeyException {
-        AuthKeyData dataForAuthKey = null;
-        CertificateFactory cf = null;
-        try {
-            cf = CertificateFactory.getInstance("X.509");
+        storeStaticAuthenticationData(Collections.singletonList(
+                new AuthenticationKeyCertification(authenticationKey, expirationDate,
+                        staticAuthData)));
+    }
 
-            for (AuthKeyData data : mAuthKeyDatas) {
-                if (data.mPendingCertificate.length > 0) {
-                    ByteArrayInputStream bais = new ByteArrayInputStream(data.mPendingCertificate);
-                    X509Certificate certificate = (X509Certificate) cf.generateCertificate(bais);
-                    if (certificate.equals(authenticationKey)) {
-                        dataForAuthKey = data;
-                        break;
+    // Stores the static authentication data for a number of pending keys and saves once.
+    //
+    // Pending keys are looked up by the SHA-256 digest of their public key, so each pending
+    // certificate is only parsed once. Either all or none of the certifications are stored.
+    //
+    void storeStaticAuthenticationData(
+            Collection<AuthenticationKeyCertification> certifications)
+            throws UnknownAuthenticationKeyException {
+        synchronized (mLock) {
+            refreshAuthKeys();
+            Map<ByteBuffer, AuthKeyData> pendingKeys = new HashMap<>();
+            try {
+                CertificateFactory cf = CertificateFactory.getInstance("X.509");
+                for (AuthKeyData data : mAuthKeyDatas) {
+                    if (data.mPendingCertificate.length > 0) {
+                        ByteArrayInputStream bais =
+                                new ByteArrayInputStream(data.mPendingCertificate);
+                        X509Certificate certificate =
+                                (X509Certificate) cf.generateCertificate(bais);
+                        pendingKeys.put(getPublicKeyDigest(certificate), data);
                     }
                 }
+            } catch (CertificateException e) {
+                throw new RuntimeException("Error encoding certificate", e);
             }
-        } catch (CertificateException e) {
-            throw new RuntimeException("Error encoding certificate", e);
-        }
 
-        if (dataForAuthKey == null) {
-            throw new UnknownAuthenticationKeyException("No such authentication key");
-        }
+            // Match everything before making any changes.
+            List<AuthKeyData> dataForAuthKeys = new ArrayList<>();
+            for (AuthenticationKeyCertification certification : certifications) {
+                X509Certificate authenticationKey = certification.getAuthenticationKey();
+                AuthKeyData dataForAuthKey =
+                        pendingKeys.remove(getPublicKeyDigest(authenticationKey));
+                try {
+                    if (dataForAuthKey == null || !Arrays.equals(dataForAuthKey.mPendingCertificate,
+                            authenticationKey.getEncoded())) {
+                        throw new UnknownAuthenticationKeyException("No such authentication key");
+                    }
+                } catch (CertificateEncodingException e) {
+                    throw new RuntimeException("Error encoding certificate", e);
+                }
+                dataForAuthKeys.add(dataForAuthKey);
+            }
 
-        // Delete old key, if set.
-        if (!dataForAuthKey.mAlias.isEmpty()) {
-            KeyStore ks = null;
-            try {
-                ks = KeyStore.getInstance("AndroidKeyStore");
-                ks.load(null);
-                if (ks.containsAlias(dataForAuthKey.mAlias)) {
-                    ks.deleteEntry(dataForAuthKey.mAlias);
+            int n = 0;
+            for (AuthenticationKeyCertification certification : certifications) {
+                AuthKeyData dataForAuthKey = dataForAuthKeys.get(n++);
+                // Delete old key, if set.
+                if (!dataForAuthKey.mAlias.isEmpty()) {
+                    try {
+                        if (KeyStoreCache.containsAlias(dataForAuthKey.mAlias)) {
+                            KeyStoreCache.deleteEntry(dataForAuthKey.mAlias);
+                        }
+                    } catch (KeyStoreException e) {
+                        throw new RuntimeException("Error deleting old authentication key", e);
+                    }
                 }
-            } catch (CertificateException
-                    | IOException
-                    | NoSuchAlgorithmException
-                    | KeyStoreException e) {
-                throw new RuntimeException("Error deleting old authentication key", e);
+                dataForAuthKey.mAlias = dataForAuthKey.mPendingAlias;
+                dataForAuthKey.mCertificate = dataForAuthKey.mPendingCertificate;
+                dataForAuthKey.mStaticAuthenticationData = certification.getStaticAuthData();
+                dataForAuthKey.mUseCount = 0;
+                dataForAuthKey.mPendingAlias = "";
+                dataForAuthKey.mPendingCertificate = new byte[0];
+                dataForAuthKey.mExpirationDate = certification.getExpirationDate();
+            }
+            if (!dataForAuthKeys.isEmpty()) {
+                saveAuthKeysToDisk();
             }
         }
-        dataForAuthKey.mAlias = dataForAuthKey.mPendingAlias;
-        dataForAuthKey.mCertificate = dataForAuthKey.mPendingCertificate;
-        dataForAuthKey.mStaticAuthenticationData = staticAuthData;
-        dataForAuthKey.mUseCount = 0;
-        dataForAuthKey.mPendingAlias = "";
-        dataForAuthKey.mPendingCertificate = new byte[0];
-        dataForAuthKey.mExpirationDate = expirationDate;
-        saveToDisk();
+    }
+
+    private static ByteBuffer getPublicKeyDigest(X509Certificate certificate) {
+        try {
+            return ByteBuffer.wrap(CryptoPool.getMessageDigest("SHA-256").digest(
+                    certificate.getPublicKey().getEncoded()));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Failed creating digester", e);
+        }
     }
 
     /**
@@ -1281,80 +2015,75 @@ class CredentialData {
     Pair<PrivateKey, byte[]> selectAuthenticationKey(boolean allowUsingExhaustedKeys,
             boolean allowUsingExpiredKeys,
             boolean incrementKeyUsageCount) {
-
-        // First try to find a un-expired key..
-        Pair<PrivateKey, byte[]> keyAndStaticData =
-                selectAuthenticationKeyHelper(allowUsingExhaustedKeys, false,
-                        incrementKeyUsageCount);
-        if (keyAndStaticData != null) {
-            return keyAndStaticData;
-        }
-        // Nope, try to see if there's an expired key (if allowed)
-        if (!allowUsingExpiredKeys) {
-            return null;
-        }
-        return selectAuthenticationKeyHelper(allowUsingExhaustedKeys, true,
-                incrementKeyUsageCount);
+        return selectAuthenticationKey(allowUsingExhaustedKeys, allowUsingExpiredKeys,
+                incrementKeyUsageCount, AuthKeyPool.LEAST_USED);
     }
 
-    Pair<PrivateKey, byte[]> selectAuthenticationKeyHelper(boolean allowUsingExhaustedKeys,
+    Pair<PrivateKey, byte[]> selectAuthenticationKey(boolean allowUsingExhaustedKeys,
             boolean allowUsingExpiredKeys,
-            boolean incrementKeyUsageCount) {
-        AuthKeyData candidate = null;
-
-        Calendar now = Calendar.getInstance();
-
-        for (int n = 0; n < mAuthKeyCount; n++) {
-            AuthKeyData data = mAuthKeyDatas.get(n);
-            if (!data.mAlias.isEmpty()) {
-                if (data.mExpirationDate != null) {
-                    if (now.after(data.mExpirationDate)) {
-                        // expired...
-                        if (!allowUsingExpiredKeys) {
-                            continue;
-                        }
-                    }
-                }
+            boolean incrementKeyUsageCount,
+            Comparator<AuthKeyPool.Key> selectionPolicy) {
+        synchronized (mLock) {
+            refreshAuthKeys();
+            long now = System.currentTimeMillis();
+            AuthKeyPool pool = getAuthKeyPool(selectionPolicy, now);
+            AuthKeyPool.Key key = pool.select(now, allowUsingExhaustedKeys, allowUsingExpiredKeys);
+            if (key == null) {
+                return null;
+            }
+            AuthKeyData candidate = mAuthKeyDatas.get(key.mSlot);
 
-                if (candidate == null || data.mUseCount < candidate.mUseCount) {
-                    candidate = data;
-                }
+            KeyStore.Entry entry = null;
+            try {
+                entry = KeyStoreCache.getEntry(candidate.mAlias);
+            } catch (NoSuchAlgorithmException
+                    | KeyStoreException
+                    | UnrecoverableEntryException e) {
+                throw new RuntimeException("Error loading keystore", e);
             }
-        }
 
-        if (candidate == null) {
-            return null;
-        }
+            Pair<PrivateKey, byte[]> result = new Pair<>(
+                    ((KeyStore.PrivateKeyEntry) entry).getPrivateKey(),
+                    candidate.mStaticAuthenticationData);
+
+            if (incrementKeyUsageCount) {
+                AuthKeyPool.getMetrics(mCredentialName, now).recordUse(
+                        candidate.mUseCount >= mAuthMaxUsesPerKey, pool.isExpired(key));
+                candidate.mUseCount += 1;
+                candidate.mLastUsedSequence = ++mAuthKeyUseSequence;
+                pool.updateKey(key, candidate.mUseCount, candidate.mLastUsedSequence);
+                saveUseCount(key.mSlot);
+            }
 
-        // We've found the key with lowest use count... so if this is beyond maximum uses
-        // so are all the other ones. So fail if we're not allowed to use exhausted keys.
-        if (candidate.mUseCount >= mAuthMaxUsesPerKey && !allowUsingExhaustedKeys) {
-            return null;
+            return result;
         }
+    }
 
-        KeyStore.Entry entry = null;
-        try {
-            KeyStore ks = KeyStore.getInstance("AndroidKeyStore");
-            ks.load(null);
-            entry = ks.getEntry(candidate.mAlias, null);
-        } catch (CertificateException
-                | IOException
-                | NoSuchAlgorithmException
-                | KeyStoreException
-                | UnrecoverableEntryException e) {
-            throw new RuntimeException("Error loading keystore", e);
+    // Gets the index of certified keys, building it if the keys have changed since it was last
+    // built or if a different selection policy is requested.
+    //
+    private AuthKeyPool getAuthKeyPool(Comparator<AuthKeyPool.Key> selectionPolicy, long now) {
+        if (mAuthKeyPool != null
+                && mAuthKeyPool.getPolicy() == selectionPolicy
+                && mAuthKeyPool.getMaxUsesPerKey() == mAuthMaxUsesPerKey) {
+            return mAuthKeyPool;
         }
-
-        Pair<PrivateKey, byte[]> result = new Pair<>(
-                ((KeyStore.PrivateKeyEntry) entry).getPrivateKey(),
-                candidate.mStaticAuthenticationData);
-
-        if (incrementKeyUsageCount) {
-            candidate.mUseCount += 1;
-            saveToDisk();
+        AuthKeyPool pool = new AuthKeyPool(selectionPolicy, mAuthMaxUsesPerKey);
+        for (int n = 0; n < mAuthKeyCount; n++) {
+            AuthKeyData data = mAuthKeyDatas.get(n);
+            if (!data.mAlias.isEmpty()) {
+                long expirationMillis = data.mExpirationDate != null
+                        ? data.mExpirationDate.getTimeInMillis() : Long.MAX_VALUE;
+                pool.add(n, data.mUseCount, expirationMillis, data.mLastUsedSequence, now);
+            }
         }
+        mAuthKeyPool = pool;
+        return pool;
+    }
 
-        return result;
+    AuthenticationKeyMetrics getAuthKeyMetrics() {
+        long now = System.currentTimeMillis();
+        return AuthKeyPool.getMetrics(mCredentialName, now).getSnapshot(now);
     }
 
     String getDocType() {
@@ -1377,9 +2106,7 @@ class CredentialData {
         // Unfortunately there are no APIs to tell if a key needs user authentication to work so
         // we check if the key is available by simply trying to encrypt some data.
         try {
-            KeyStore ks = KeyStore.getInstance("AndroidKeyStore");
-            ks.load(null);
-            KeyStore.Entry entry = ks.getEntry(acpAlias, null);
+            KeyStore.Entry entry = KeyStoreCache.getEntry(acpAlias);
             SecretKey secretKey = ((KeyStore.SecretKeyEntry) entry).getSecretKey();
 
             Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
@@ -1390,9 +2117,7 @@ class CredentialData {
         } catch (NoSuchPaddingException
                 | BadPaddingException
                 | NoSuchAlgorithmException
-                | CertificateException
                 | InvalidKeyException
-                | IOException
                 | IllegalBlockSizeException
                 | UnrecoverableEntryException
                 | KeyStoreException e) {
@@ -1445,6 +2170,10 @@ class CredentialData {
 
         Calendar mExpirationDate = null;
 
+        // When the key was last used, relative to the other keys, for the round-robin
+        // selection policy.
+        long mLastUsedSequence = 0;
+
         AuthKeyData() {
         }
     }
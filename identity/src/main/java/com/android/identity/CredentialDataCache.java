@@ -0,0 +1,196 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * A cache of loaded {@link CredentialData} instances for the software implementation.
+ *
+ * <p>Loading a credential involves getting the data encryption key from Android Keystore and
+ * decrypting and decoding the credential data, which is done every time a credential is
+ * obtained from {@link SoftwareIdentityCredentialStore} or used in a
+ * {@link SoftwarePresentationSession}. With this cache, the instance loaded the first time is
+ * shared instead. Since every change to a {@link CredentialData} is saved to disk right away,
+ * the shared instance reflects what's on disk as long as the credential isn't replaced or
+ * deleted, in which case it's invalidated with {@link #invalidate(String)}.
+ *
+ * <p>The cache is disabled by default, see
+ * {@link IdentityCredentialStore#setSoftwareCredentialCacheLimits(int, long, long)}. Once
+ * enabled, the cache is bounded by the number of credentials, the estimated memory used by
+ * them, and the time since they were loaded. The least recently used credential is evicted
+ * first. Only credentials whose data element values are read from disk on demand are cached
+ * and when a credential is evicted or invalidated the values read so far are wiped, see
+ * {@link CredentialData#wipeValues()}.
+ */
+final class CredentialDataCache {
+
+    private static final CredentialDataCache sInstance =
+            new CredentialDataCache(System::currentTimeMillis);
+
+    private static final class Entry {
+        final CredentialData mData;
+        final long mLoadedAtMillis;
+
+        Entry(CredentialData data, long loadedAtMillis) {
+            mData = data;
+            mLoadedAtMillis = loadedAtMillis;
+        }
+    }
+
+    private final LongSupplier mClock;
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private int mMaxEntries = 0;
+    private long mMaxBytes = 0;
+    private long mMaxAgeMillis = 0;
+    private long mNumHits;
+    private long mNumMisses;
+
+    CredentialDataCache(@NonNull LongSupplier clock) {
+        mClock = clock;
+    }
+
+    /**
+     * Gets the process-wide cache.
+     */
+    static @NonNull CredentialDataCache getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Sets the limits of the cache, evicting credentials as needed.
+     *
+     * @param maxEntries the maximum number of credentials to cache, 0 to disable the cache.
+     * @param maxBytes the maximum estimated memory used by cached credentials.
+     * @param maxAgeMillis the maximum time a credential is cached after being loaded.
+     * @throws IllegalArgumentException if any of the limits is negative.
+     */
+    synchronized void setLimits(int maxEntries, long maxBytes, long maxAgeMillis) {
+        if (maxEntries < 0 || maxBytes < 0 || maxAgeMillis < 0) {
+            throw new IllegalArgumentException("Limits must not be negative");
+        }
+        mMaxEntries = maxEntries;
+        mMaxBytes = maxBytes;
+        mMaxAgeMillis = maxAgeMillis;
+        trim();
+    }
+
+    /**
+     * Gets a cached credential.
+     *
+     * @param credentialName the name of the credential.
+     * @return the cached credential or {@code null} if not cached or the cache is disabled.
+     */
+    synchronized @Nullable CredentialData get(@NonNull String credentialName) {
+        if (mMaxEntries == 0) {
+            return null;
+        }
+        trim();
+        Entry entry = mEntries.get(credentialName);
+        if (entry == null) {
+            mNumMisses++;
+            return null;
+        }
+        mNumHits++;
+        return entry.mData;
+    }
+
+    /**
+     * Adds a credential which was just loaded from disk.
+     *
+     * <p>This does nothing if the cache is disabled or if the data element values of the
+     * credential aren't read on demand.
+     *
+     * @param credentialName the name of the credential.
+     * @param data the credential.
+     */
+    synchronized void put(@NonNull String credentialName, @NonNull CredentialData data) {
+        if (mMaxEntries == 0 || !data.hasValuesOnDisk()) {
+            return;
+        }
+        Entry previous = mEntries.put(credentialName, new Entry(data, mClock.getAsLong()));
+        if (previous != null && previous.mData != data) {
+            previous.mData.wipeValues();
+        }
+        trim();
+    }
+
+    /**
+     * Removes a credential from the cache, for when it's replaced or deleted.
+     *
+     * @param credentialName the name of the credential.
+     */
+    synchronized void invalidate(@NonNull String credentialName) {
+        Entry entry = mEntries.remove(credentialName);
+        if (entry != null) {
+            entry.mData.wipeValues();
+        }
+    }
+
+    /**
+     * Removes all credentials from the cache.
+     */
+    synchronized void clear() {
+        for (Entry entry : mEntries.values()) {
+            entry.mData.wipeValues();
+        }
+        mEntries.clear();
+    }
+
+    synchronized int size() {
+        return mEntries.size();
+    }
+
+    synchronized long getNumHits() {
+        return mNumHits;
+    }
+
+    synchronized long getNumMisses() {
+        return mNumMisses;
+    }
+
+    // Evicts expired credentials and then the least recently used ones until within limits.
+    // The estimated size of a credential grows as values are read so it's recomputed here.
+    private void trim() {
+        long now = mClock.getAsLong();
+        long totalSize = 0;
+        Iterator<Entry> iterator = mEntries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (now - entry.mLoadedAtMillis >= mMaxAgeMillis) {
+                entry.mData.wipeValues();
+                iterator.remove();
+            } else {
+                totalSize += entry.mData.getEstimatedSize();
+            }
+        }
+        iterator = mEntries.values().iterator();
+        while (iterator.hasNext()
+                && (mEntries.size() > mMaxEntries || totalSize > mMaxBytes)) {
+            Entry entry = iterator.next();
+            totalSize -= entry.mData.getEstimatedSize();
+            entry.mData.wipeValues();
+            iterator.remove();
+        }
+    }
+}
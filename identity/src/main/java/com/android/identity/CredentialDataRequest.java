@@ -16,9 +16,12 @@
 
 package com.android.identity;
 
+import androidx.annotation.IntDef;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
 import java.util.Collection;
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -31,6 +34,30 @@ import java.util.Map;
 final public class CredentialDataRequest {
     CredentialDataRequest() {}
 
+    /**
+     * Select the authentication key with the lowest use count. This is the default.
+     */
+    public static final int AUTHENTICATION_KEY_SELECTION_LEAST_USED = 0;
+
+    /**
+     * Select the authentication key which was used the longest time ago, cycling through the
+     * keys.
+     */
+    public static final int AUTHENTICATION_KEY_SELECTION_ROUND_ROBIN = 1;
+
+    /**
+     * Select the authentication key whose static authentication data expires first.
+     */
+    public static final int AUTHENTICATION_KEY_SELECTION_SOONEST_EXPIRING = 2;
+
+    /** @hidden */
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef(value = {AUTHENTICATION_KEY_SELECTION_LEAST_USED,
+            AUTHENTICATION_KEY_SELECTION_ROUND_ROBIN,
+            AUTHENTICATION_KEY_SELECTION_SOONEST_EXPIRING})
+    public @interface AuthenticationKeySelectionPolicy {
+    }
+
     /**
      * Gets the device-signed entries to request.
      *
@@ -86,6 +113,17 @@ final public class CredentialDataRequest {
         return mIncrementUseCount;
     }
 
+    /**
+     * Gets the policy for selecting the authentication key to use.
+     *
+     * <p>By default this is set to {@link #AUTHENTICATION_KEY_SELECTION_LEAST_USED}.
+     *
+     * @return the selection policy.
+     */
+    public @AuthenticationKeySelectionPolicy int getAuthenticationKeySelectionPolicy() {
+        return mAuthenticationKeySelectionPolicy;
+    }
+
     /**
      * Gets the request message CBOR.
      *
@@ -112,13 +150,27 @@ final public class CredentialDataRequest {
         return mReaderSignature;
     }
 
+    /**
+     * Gets the verified reader authentication.
+     *
+     * @return the handle set with {@link Builder#setVerifiedReaderAuthentication(
+     *   VerifiedReaderAuthentication)} or {@code null} if not set.
+     */
+    @Nullable
+    public VerifiedReaderAuthentication getVerifiedReaderAuthentication() {
+        return mVerifiedReaderAuthentication;
+    }
+
     Map<String, Collection<String>> mDeviceSignedEntriesToRequest = new LinkedHashMap<>();
     Map<String, Collection<String>> mIssuerSignedEntriesToRequest = new LinkedHashMap<>();
     boolean mAllowUsingExhaustedKeys = true;
     boolean mAllowUsingExpiredKeys = false;
     boolean mIncrementUseCount = true;
+    @AuthenticationKeySelectionPolicy int mAuthenticationKeySelectionPolicy =
+            AUTHENTICATION_KEY_SELECTION_LEAST_USED;
     byte[] mRequestMessage = null;
     byte[] mReaderSignature = null;
+    VerifiedReaderAuthentication mVerifiedReaderAuthentication = null;
 
     /**
      * A builder for {@link CredentialDataRequest}.
@@ -225,6 +277,27 @@ final public class CredentialDataRequest {
             return this;
         }
 
+        /**
+         * Sets the policy for selecting the authentication key to use.
+         *
+         * <p>Whatever the policy, keys which haven't reached their maximum use count are
+         * preferred over exhausted keys, and unexpired keys over expired keys.
+         *
+         * <p>This is only supported by the software implementation, other implementations
+         * ignore it.
+         *
+         * <p>By default this is set to {@link #AUTHENTICATION_KEY_SELECTION_LEAST_USED}.
+         *
+         * @param policy the selection policy.
+         * @return the builder.
+         */
+        @NonNull
+        public Builder setAuthenticationKeySelectionPolicy(
+                @AuthenticationKeySelectionPolicy int policy) {
+            mData.mAuthenticationKeySelectionPolicy = policy;
+            return this;
+        }
+
         /**
          * Sets the request message CBOR.
          *
@@ -252,6 +325,28 @@ final public class CredentialDataRequest {
         @NonNull
         public Builder setReaderSignature(@NonNull byte[] readerSignature) {
             mData.mReaderSignature = readerSignature;
+            mData.mVerifiedReaderAuthentication = null;
+            return this;
+        }
+
+        /**
+         * Sets the reader signature from a signature already checked by
+         * {@link DeviceRequestParser}.
+         *
+         * <p>This is like {@link #setReaderSignature(byte[])} except that the credential won't
+         * check the reader signature again if the request message and session transcript are
+         * the ones the signature was checked against. The request message must still be set
+         * using {@link #setRequestMessage(byte[])}.
+         *
+         * @param verifiedReaderAuthentication the handle obtained from
+         *   {@link DeviceRequestParser.DocumentRequest#getVerifiedReaderAuthentication()}.
+         * @return the builder.
+         */
+        @NonNull
+        public Builder setVerifiedReaderAuthentication(
+                @NonNull VerifiedReaderAuthentication verifiedReaderAuthentication) {
+            mData.mReaderSignature = verifiedReaderAuthentication.getReaderAuth();
+            mData.mVerifiedReaderAuthentication = verifiedReaderAuthentication;
             return this;
         }
 
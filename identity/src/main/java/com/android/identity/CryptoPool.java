@@ -0,0 +1,276 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import java.security.AlgorithmParameters;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.Provider;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.AlgorithmParameterSpec;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.InvalidParameterSpecException;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+
+/**
+ * A per-thread pool of JCA primitives.
+ *
+ * <p>Each thread gets its own instance of a given primitive and algorithm which is handed out
+ * again on subsequent calls, saving the provider lookup and allocation done by
+ * <code>getInstance()</code>. Methods which take a key also initialize the instance, which
+ * resets any state left over from a previous use.
+ *
+ * <p>The provider of an instance is selected when it's first initialized and Android Keystore
+ * keys need a different provider than software keys, so instances used with Android Keystore
+ * keys are pooled separately. Otherwise e.g. session encryption and reading credential data,
+ * which alternate on the same thread, would replace each other's instance on every call. If
+ * the pooled instance still rejects the key, a new instance is created and replaces it in the
+ * pool.
+ *
+ * <p>An instance must not be used after calling into code that may request the same
+ * primitive and algorithm from the pool on the same thread.
+ */
+final class CryptoPool {
+
+    // Used for signature verification since it supports a lot more curves than the default
+    // provider, including the brainpool curves. Providers are thread-safe so a single
+    // instance is shared.
+    private static final Provider BOUNCY_CASTLE_PROVIDER = new BouncyCastleProvider();
+
+    private static final ThreadLocal<HashMap<String, Object>> sInstances =
+            ThreadLocal.withInitial(HashMap::new);
+
+    private static final AtomicLong sNumInstancesCreated = new AtomicLong();
+    private static final AtomicLong sNumInstancesReused = new AtomicLong();
+
+    private static volatile ECParameterSpec sP256Parameters;
+
+    private CryptoPool() {
+    }
+
+    private interface Factory<T> {
+        @NonNull T create() throws NoSuchAlgorithmException, NoSuchPaddingException;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static @NonNull <T> T get(@NonNull String key, @NonNull Factory<T> factory)
+            throws NoSuchAlgorithmException, NoSuchPaddingException {
+        HashMap<String, Object> instances = sInstances.get();
+        T instance = (T) instances.get(key);
+        if (instance != null) {
+            sNumInstancesReused.incrementAndGet();
+            return instance;
+        }
+        return create(key, factory);
+    }
+
+    private static @NonNull <T> T create(@NonNull String key, @NonNull Factory<T> factory)
+            throws NoSuchAlgorithmException, NoSuchPaddingException {
+        T instance = factory.create();
+        sNumInstancesCreated.incrementAndGet();
+        sInstances.get().put(key, instance);
+        return instance;
+    }
+
+    // Android Keystore keys are implemented by classes in android.security.keystore, or
+    // android.security.keystore2 on newer releases.
+    private static @NonNull String getPoolKey(@NonNull String name, @NonNull Key key) {
+        if (key.getClass().getName().startsWith("android.security.keystore")) {
+            return "AndroidKeyStore/" + name;
+        }
+        return name;
+    }
+
+    /**
+     * Gets a {@link Signature} initialized for signing with the given key.
+     */
+    static @NonNull Signature getSignatureForSigning(@NonNull String algorithm,
+            @NonNull PrivateKey key) throws NoSuchAlgorithmException, InvalidKeyException {
+        String poolKey = getPoolKey("Signature/" + algorithm, key);
+        Factory<Signature> factory = () -> Signature.getInstance(algorithm);
+        Signature signature = getUnchecked(poolKey, factory);
+        try {
+            signature.initSign(key);
+        } catch (InvalidKeyException e) {
+            signature = createUnchecked(poolKey, factory);
+            signature.initSign(key);
+        }
+        return signature;
+    }
+
+    /**
+     * Gets a {@link Signature} from the BouncyCastle provider initialized for verifying with
+     * the given key.
+     */
+    static @NonNull Signature getSignatureForVerification(@NonNull String algorithm,
+            @NonNull PublicKey key) throws NoSuchAlgorithmException, InvalidKeyException {
+        Signature signature = getUnchecked("Signature/BC/" + algorithm,
+                () -> Signature.getInstance(algorithm, BOUNCY_CASTLE_PROVIDER));
+        signature.initVerify(key);
+        return signature;
+    }
+
+    /**
+     * Gets a {@link Mac} which must be initialized by the caller before use.
+     */
+    static @NonNull Mac getMac(@NonNull String algorithm) throws NoSuchAlgorithmException {
+        return getUnchecked("Mac/" + algorithm, () -> Mac.getInstance(algorithm));
+    }
+
+    /**
+     * Gets a {@link Mac} initialized with the given key.
+     */
+    static @NonNull Mac getMac(@NonNull String algorithm, @NonNull Key key)
+            throws NoSuchAlgorithmException, InvalidKeyException {
+        String poolKey = getPoolKey("Mac/" + algorithm, key);
+        Factory<Mac> factory = () -> Mac.getInstance(algorithm);
+        Mac mac = getUnchecked(poolKey, factory);
+        try {
+            mac.init(key);
+        } catch (InvalidKeyException e) {
+            mac = createUnchecked(poolKey, factory);
+            mac.init(key);
+        }
+        return mac;
+    }
+
+    /**
+     * Gets a {@link Cipher} initialized with the given mode, key, and parameters.
+     */
+    static @NonNull Cipher getCipher(@NonNull String transformation, int opmode,
+            @NonNull Key key, @Nullable AlgorithmParameterSpec params)
+            throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException,
+            InvalidAlgorithmParameterException {
+        String poolKey = getPoolKey("Cipher/" + transformation, key);
+        Factory<Cipher> factory = () -> Cipher.getInstance(transformation);
+        Cipher cipher = get(poolKey, factory);
+        try {
+            cipher.init(opmode, key, params);
+        } catch (InvalidKeyException e) {
+            cipher = create(poolKey, factory);
+            cipher.init(opmode, key, params);
+        }
+        return cipher;
+    }
+
+    /**
+     * Gets a {@link MessageDigest} which has been reset.
+     */
+    static @NonNull MessageDigest getMessageDigest(@NonNull String algorithm)
+            throws NoSuchAlgorithmException {
+        MessageDigest digest = getUnchecked("MessageDigest/" + algorithm,
+                () -> MessageDigest.getInstance(algorithm));
+        digest.reset();
+        return digest;
+    }
+
+    /**
+     * Gets a {@link KeyFactory}.
+     */
+    static @NonNull KeyFactory getKeyFactory(@NonNull String algorithm)
+            throws NoSuchAlgorithmException {
+        return getUnchecked("KeyFactory/" + algorithm, () -> KeyFactory.getInstance(algorithm));
+    }
+
+    /**
+     * Gets a {@link KeyAgreement} initialized with the given key.
+     */
+    static @NonNull KeyAgreement getKeyAgreement(@NonNull String algorithm,
+            @NonNull PrivateKey key) throws NoSuchAlgorithmException, InvalidKeyException {
+        String poolKey = getPoolKey("KeyAgreement/" + algorithm, key);
+        Factory<KeyAgreement> factory = () -> KeyAgreement.getInstance(algorithm);
+        KeyAgreement keyAgreement = getUnchecked(poolKey, factory);
+        try {
+            keyAgreement.init(key);
+        } catch (InvalidKeyException e) {
+            keyAgreement = createUnchecked(poolKey, factory);
+            keyAgreement.init(key);
+        }
+        return keyAgreement;
+    }
+
+    /**
+     * Gets the domain parameters for the P-256 curve.
+     *
+     * <p>These are immutable so they're computed once and shared between all threads instead
+     * of going through {@link AlgorithmParameters} every time.
+     */
+    static @NonNull ECParameterSpec getP256Parameters() {
+        ECParameterSpec result = sP256Parameters;
+        if (result != null) {
+            sNumInstancesReused.incrementAndGet();
+            return result;
+        }
+        try {
+            AlgorithmParameters params = AlgorithmParameters.getInstance("EC");
+            params.init(new ECGenParameterSpec("prime256v1"));
+            result = params.getParameterSpec(ECParameterSpec.class);
+        } catch (NoSuchAlgorithmException | InvalidParameterSpecException e) {
+            throw new IllegalStateException("Error getting P-256 parameters", e);
+        }
+        sNumInstancesCreated.incrementAndGet();
+        sP256Parameters = result;
+        return result;
+    }
+
+    /** Gets the number of instances created since the process started. */
+    static long getNumInstancesCreated() {
+        return sNumInstancesCreated.get();
+    }
+
+    /** Gets the number of times an existing instance was handed out again. */
+    static long getNumInstancesReused() {
+        return sNumInstancesReused.get();
+    }
+
+    // For primitives where getInstance() can't throw NoSuchPaddingException.
+    private static @NonNull <T> T getUnchecked(@NonNull String key, @NonNull Factory<T> factory)
+            throws NoSuchAlgorithmException {
+        try {
+            return get(key, factory);
+        } catch (NoSuchPaddingException e) {
+            throw new IllegalStateException("Unexpected exception", e);
+        }
+    }
+
+    private static @NonNull <T> T createUnchecked(@NonNull String key,
+            @NonNull Factory<T> factory) throws NoSuchAlgorithmException {
+        try {
+            return create(key, factory);
+        } catch (NoSuchPaddingException e) {
+            throw new IllegalStateException("Unexpected exception", e);
+        }
+    }
+}
@@ -69,6 +69,7 @@ class DataTransportTcp extends DataTransport {
     ServerSocket mServerSocket = null;
     private DataRetrievalAddressTcp mListeningAddress;
     Thread mSocketWriterThread;
+    private CborStreamReader.Limits mReadLimits = CborStreamReader.Limits.DEFAULT;
 
     public DataTransportTcp(@NonNull Context context, @LoggingFlag int loggingFlags) {
         super(context);
@@ -120,6 +121,18 @@ class DataTransportTcp extends DataTransport {
         return encodedDeviceRetrievalMethod;
     }
 
+    /**
+     * Sets the limits enforced on messages received from the peer.
+     *
+     * <p>Must be called before {@link #listen()} or {@link #connect(DataRetrievalAddress)}.
+     *
+     * @param limits the limits to enforce, {@link CborStreamReader.Limits#DEFAULT} is used if
+     *               this isn't called.
+     */
+    void setReadLimits(@NonNull CborStreamReader.Limits limits) {
+        mReadLimits = limits;
+    }
+
     @Override
     void setEDeviceKeyBytes(@NonNull byte[] encodedEDeviceKeyBytes) {
         // Not used.
@@ -179,7 +192,6 @@ class DataTransportTcp extends DataTransport {
     //
     // Returns a Throwable if an error occurred, null if the peer disconnects.
     //
-    @SuppressWarnings("ByteBufferBackingArray")
     Throwable processMessagesFromSocket() {
         Throwable errorToReport = null;
         try {
@@ -205,15 +217,17 @@ class DataTransportTcp extends DataTransport {
                     errorToReport = new Error("Maximum message size exceeded");
                     break;
                 }
-                ByteBuffer data = Util.readBytes(inputStream, dataLen);
+                // Check the message as it arrives so malformed or oversized messages are
+                // rejected without first buffering all of it.
+                byte[] data = CborStreamReader.readDataItem(inputStream, dataLen, mReadLimits);
                 if (data == null) {
                     // End Of Stream
                     errorToReport = new Error("End of stream, expected " + dataLen + " bytes");
                     break;
                 }
-                reportMessageReceived(data.array());
+                reportMessageReceived(data);
             }
-        } catch (IOException e) {
+        } catch (IOException | IllegalArgumentException e) {
             errorToReport = e;
         }
 
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import android.util.Pair;
+
+import androidx.annotation.NonNull;
+
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Decoder for the <code>DeviceEngagement</code> CBOR as defined in ISO/IEC 18013-5
+ * section 8.2.1.1 <em>Device engagement structure</em>.
+ *
+ * <p>The encoded CBOR is decoded in a single pass. The ephemeral device key is only
+ * decoded when asked for, and <code>DeviceRetrievalMethod</code> entries are returned as
+ * they appear in the input, without being re-encoded.
+ */
+final class DeviceEngagement {
+    private static final long KEY_VERSION = 0;
+    private static final long KEY_SECURITY = 1;
+    private static final long KEY_DEVICE_RETRIEVAL_METHODS = 2;
+
+    private String mVersion;
+    private long mCipherSuite;
+    private CborSlice mEDeviceKeyBytes;
+    private final List<byte[]> mDeviceRetrievalMethods = new ArrayList<>();
+
+    private DeviceEngagement() {
+    }
+
+    /**
+     * Decodes <code>DeviceEngagement</code> CBOR.
+     *
+     * @param encodedDeviceEngagement the bytes of the CBOR.
+     * @return the decoded structure.
+     * @exception IllegalArgumentException if the data isn't well-formed or doesn't conform
+     *                                     to the CDDL.
+     */
+    static @NonNull DeviceEngagement decode(@NonNull byte[] encodedDeviceEngagement) {
+        CborSlice map = CborSlice.of(encodedDeviceEngagement);
+        if (map.getMajorType() != CborSlice.MAJOR_TYPE_MAP) {
+            throw new IllegalArgumentException("Item is not a map");
+        }
+        DeviceEngagement result = new DeviceEngagement();
+        for (Pair<CborSlice, CborSlice> entry : map.getMapEntries()) {
+            if (entry.first.getMajorType() != CborSlice.MAJOR_TYPE_UNSIGNED_INTEGER) {
+                continue;
+            }
+            CborSlice value = entry.second;
+            long key = entry.first.getLong();
+            if (key == KEY_VERSION) {
+                result.mVersion = value.getString();
+            } else if (key == KEY_SECURITY) {
+                if (value.getMajorType() != CborSlice.MAJOR_TYPE_ARRAY) {
+                    throw new IllegalArgumentException("Key 1 (Security) is not an array");
+                }
+                List<CborSlice> security = value.getArrayItems();
+                if (security.size() < 2) {
+                    throw new IllegalArgumentException(
+                            "Security array is shorter than two elements");
+                }
+                result.mCipherSuite = security.get(0).getLong();
+                CborSlice eDeviceKeyBytes = security.get(1);
+                if (eDeviceKeyBytes.getMajorType() != CborSlice.MAJOR_TYPE_BYTE_STRING) {
+                    throw new IllegalArgumentException("eDeviceKeyBytes not a bstr");
+                }
+                result.mEDeviceKeyBytes = eDeviceKeyBytes;
+            } else if (key == KEY_DEVICE_RETRIEVAL_METHODS) {
+                for (CborSlice method : value.getArrayItems()) {
+                    result.mDeviceRetrievalMethods.add(method.getEncoded());
+                }
+            }
+        }
+        if (result.mVersion == null) {
+            throw new IllegalArgumentException("Key 0 (Version) not set");
+        }
+        if (result.mEDeviceKeyBytes == null) {
+            throw new IllegalArgumentException("Key 1 (Security) not set");
+        }
+        return result;
+    }
+
+    /** Gets the version, for example "1.0". */
+    @NonNull String getVersion() {
+        return mVersion;
+    }
+
+    /** Gets the cipher suite identifier from the <code>Security</code> array. */
+    long getCipherSuite() {
+        return mCipherSuite;
+    }
+
+    /**
+     * Gets the bytes of the <code>EDeviceKeyBytes</code> CBOR, that is the encoding of
+     * <code>#6.24(bstr .cbor EDeviceKey)</code>.
+     */
+    @NonNull byte[] getEncodedEDeviceKeyBytes() {
+        return mEDeviceKeyBytes.getEncoded();
+    }
+
+    /**
+     * Decodes the ephemeral device key.
+     *
+     * @return the public key.
+     * @exception IllegalArgumentException if <code>EDeviceKeyBytes</code> isn't tagged
+     *                                     correctly or doesn't contain a valid key.
+     */
+    @NonNull PublicKey getEDeviceKey() {
+        return Util.coseKeyDecode(mEDeviceKeyBytes.getTaggedEncodedCbor());
+    }
+
+    /**
+     * Gets the <code>DeviceRetrievalMethod</code> entries.
+     *
+     * @return a list of encoded <code>DeviceRetrievalMethod</code> CBOR, empty if none are
+     *         present.
+     */
+    @NonNull List<byte[]> getDeviceRetrievalMethods() {
+        return Collections.unmodifiableList(mDeviceRetrievalMethods);
+    }
+}
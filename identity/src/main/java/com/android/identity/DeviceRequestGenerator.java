@@ -130,18 +130,8 @@ public final class DeviceRequestGenerator {
                 throw new IllegalStateException("sessionTranscript has not been set");
             }
 
-            byte[] encodedReaderAuthentication = Util.cborEncode(new CborBuilder()
-                    .addArray()
-                    .add("ReaderAuthentication")
-                    .add(Util.cborDecode(mEncodedSessionTranscript))
-                    .add(itemsRequestBytesDataItem)
-                    .end()
-                    .build().get(0));
-
-            byte[] readerAuthenticationBytes =
-                    Util.cborEncode(
-                            Util.cborBuildTaggedByteString(
-                                    encodedReaderAuthentication));
+            byte[] readerAuthenticationBytes = Util.buildReaderAuthenticationBytes(
+                    mEncodedSessionTranscript, encodedItemsRequest);
 
             readerAuth = Util.coseSign1Sign(readerKeySignature,
                     null,
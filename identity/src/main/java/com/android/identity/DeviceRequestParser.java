@@ -16,24 +16,19 @@
 
 package com.android.identity;
 
+import android.util.Pair;
+
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import java.security.PublicKey;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 
-import co.nstant.in.cbor.CborBuilder;
-import co.nstant.in.cbor.model.ByteString;
-import co.nstant.in.cbor.model.DataItem;
-import co.nstant.in.cbor.model.Map;
-import co.nstant.in.cbor.model.UnicodeString;
-
 /**
  * Helper class for parsing the bytes of <code>DeviceRequest</code>
  * <a href="http://cbor.io/">CBOR</a>
@@ -97,9 +92,11 @@ public final class DeviceRequestParser {
         if (mEncodedSessionTranscript == null) {
             throw new IllegalStateException("sessionTranscript has not been set");
         }
-        DataItem sessionTranscript = Util.cborDecode(mEncodedSessionTranscript);
+        // Check that the SessionTranscript is well-formed, it's used verbatim when checking
+        // reader authentication.
+        CborSlice.of(mEncodedSessionTranscript);
         DeviceRequestParser.DeviceRequest request = new DeviceRequestParser.DeviceRequest();
-        request.parse(mEncodedDeviceRequest, sessionTranscript);
+        request.parse(mEncodedDeviceRequest, mEncodedSessionTranscript);
         return request;
     }
 
@@ -137,88 +134,78 @@ public final class DeviceRequestParser {
         }
 
         void parse(byte[] encodedDeviceRequest,
-                DataItem sessionTranscript) {
+                byte[] encodedSessionTranscript) {
 
-            DataItem request = Util.cborDecode(encodedDeviceRequest);
-            if (!(request instanceof Map)) {
+            CborSlice request = CborSlice.of(encodedDeviceRequest);
+            if (request.getMajorType() != CborSlice.MAJOR_TYPE_MAP) {
                 throw new IllegalArgumentException("CBOR is not a map");
             }
 
-            mVersion = Util.cborMapExtractString(request, "version");
+            mVersion = request.getMapValue("version").getString();
             if (mVersion.compareTo("1.0") < 0) {
                 throw new IllegalArgumentException("Given version '" + mVersion + "' not >= '1.0'");
             }
 
             List<X509Certificate> readerCertChain = null;
-            if (Util.cborMapHasKey(request, "docRequests")) {
-                List<DataItem> docRequestsDataItems = Util.cborMapExtractArray(request,
-                        "docRequests");
-                for (DataItem docRequestDataItem : docRequestsDataItems) {
-                    DataItem itemsRequestBytesDataItem = Util.cborMapExtract(docRequestDataItem,
-                            "itemsRequest");
-                    if (!(itemsRequestBytesDataItem instanceof ByteString)
-                            || !itemsRequestBytesDataItem.hasTag()
-                            || itemsRequestBytesDataItem.getTag().getValue() != 24) {
+            CborSlice docRequests = request.findMapValue("docRequests");
+            if (docRequests != null) {
+                for (CborSlice docRequest : docRequests.getArrayItems()) {
+                    CborSlice itemsRequestBytes = docRequest.getMapValue("itemsRequest");
+                    if (itemsRequestBytes.getMajorType() != CborSlice.MAJOR_TYPE_BYTE_STRING
+                            || itemsRequestBytes.getTag() != 24) {
                         throw new IllegalArgumentException(
                                 "itemsRequest value is not a tagged bytestring");
                     }
-                    byte[] encodedItemsRequest =
-                            ((ByteString) itemsRequestBytesDataItem).getBytes();
-                    DataItem itemsRequest = Util.cborDecode(encodedItemsRequest);
-                    if (!(itemsRequest instanceof Map)) {
+                    byte[] encodedItemsRequest = itemsRequestBytes.getByteString();
+                    CborSlice itemsRequest = itemsRequestBytes.getTaggedEncodedCbor();
+                    if (itemsRequest.getMajorType() != CborSlice.MAJOR_TYPE_MAP) {
                         throw new IllegalArgumentException("itemsRequest is not a map");
                     }
 
-                    DataItem readerAuth = ((Map) docRequestDataItem).get(new UnicodeString(
-                            "readerAuth"));
+                    CborSlice readerAuth = docRequest.findMapValue("readerAuth");
                     byte[] encodedReaderAuth = null;
                     boolean readerAuthenticated = false;
                     if (readerAuth != null) {
-                        encodedReaderAuth = Util.cborEncode(readerAuth);
+                        encodedReaderAuth = readerAuth.getEncoded();
 
                         readerCertChain = Util.coseSign1GetX5Chain(readerAuth);
                         if (readerCertChain.size() < 1) {
                             throw new IllegalArgumentException(
                                     "No x5chain element in reader signature");
                         }
-                        PublicKey readerKey = readerCertChain.iterator().next().getPublicKey();
+                        PublicKey readerKey = CertificateCache.getPublicKey(
+                                readerCertChain.iterator().next());
 
-                        byte[] encodedReaderAuthentication = Util.cborEncode(new CborBuilder()
-                                .addArray()
-                                .add("ReaderAuthentication")
-                                .add(sessionTranscript)
-                                .add(itemsRequestBytesDataItem)
-                                .end()
-                                .build().get(0));
-
-                        byte[] readerAuthenticationBytes =
-                                Util.cborEncode(
-                                        Util.cborBuildTaggedByteString(
-                                                encodedReaderAuthentication));
+                        byte[] readerAuthenticationBytes = Util.buildReaderAuthenticationBytes(
+                                encodedSessionTranscript, encodedItemsRequest);
 
                         readerAuthenticated = Util.coseSign1CheckSignature(readerAuth,
                                 readerAuthenticationBytes,  // detached content
                                 readerKey);
                     }
 
-                    DataItem requestInfoDataItem = ((Map) itemsRequest).get(
-                            new UnicodeString("requestInfo"));
+                    CborSlice requestInfoSlice = itemsRequest.findMapValue("requestInfo");
                     java.util.Map<String, byte[]> requestInfo = new HashMap<>();
-                    if (requestInfoDataItem != null) {
-                        for (String key : Util.cborMapExtractMapStringKeys(requestInfoDataItem)) {
-                            byte[] encodedValue = Util.cborEncode(
-                                    Util.cborMapExtract(requestInfoDataItem, key));
-                            requestInfo.put(key, encodedValue);
+                    if (requestInfoSlice != null) {
+                        for (Pair<CborSlice, CborSlice> entry : requestInfoSlice.getMapEntries()) {
+                            requestInfo.put(entry.first.getString(), entry.second.getEncoded());
                         }
                     }
 
-                    String docType = Util.cborMapExtractString(itemsRequest, "docType");
+                    String docType = itemsRequest.getMapValue("docType").getString();
                     DocumentRequest.Builder builder = new DocumentRequest.Builder(docType,
                             encodedItemsRequest, requestInfo, encodedReaderAuth, readerCertChain,
                             readerAuthenticated);
 
+                    if (readerAuthenticated) {
+                        builder.setVerifiedReaderAuthentication(
+                                new VerifiedReaderAuthentication(encodedReaderAuth,
+                                        encodedSessionTranscript, encodedItemsRequest,
+                                        readerCertChain));
+                    }
+
                     // parse nameSpaces
-                    DataItem nameSpaces = Util.cborMapExtractMap(itemsRequest, "nameSpaces");
+                    CborSlice nameSpaces = itemsRequest.getMapValue("nameSpaces");
                     parseNamespaces(nameSpaces, builder);
 
 
@@ -227,14 +214,13 @@ public final class DeviceRequestParser {
             }
         }
 
-        private void parseNamespaces(DataItem nameSpaces, DocumentRequest.Builder builder) {
-            Collection<String> nameSpacesKeys = Util.cborMapExtractMapStringKeys(nameSpaces);
-            for (String nameSpace : nameSpacesKeys) {
-                DataItem itemsMap = Util.cborMapExtractMap(nameSpaces, nameSpace);
-                Collection<String> itemKeys = Util.cborMapExtractMapStringKeys(itemsMap);
-                for (String itemKey : itemKeys) {
-                    boolean intentToRetain = Util.cborMapExtractBoolean(itemsMap, itemKey);
-                    builder.addEntry(nameSpace, itemKey, intentToRetain);
+        private void parseNamespaces(CborSlice nameSpaces, DocumentRequest.Builder builder) {
+            for (Pair<CborSlice, CborSlice> nameSpaceEntry : nameSpaces.getMapEntries()) {
+                String nameSpace = nameSpaceEntry.first.getString();
+                for (Pair<CborSlice, CborSlice> itemEntry :
+                        nameSpaceEntry.second.getMapEntries()) {
+                    boolean intentToRetain = itemEntry.second.getBoolean();
+                    builder.addEntry(nameSpace, itemEntry.first.getString(), intentToRetain);
                 }
             }
         }
@@ -253,6 +239,7 @@ public final class DeviceRequestParser {
         java.util.Map<String, java.util.Map<String, Boolean>> mRequestMap = new LinkedHashMap<>();
         List<X509Certificate> mReaderCertificateChain;
         boolean mReaderAuthenticated;
+        VerifiedReaderAuthentication mVerifiedReaderAuthentication;
         DocumentRequest(@NonNull String docType, @NonNull byte[] encodedItemsRequest,
                 @NonNull java.util.Map<String, byte[]> requestInfo,
                 @Nullable byte[] encodedReaderAuth,
@@ -348,6 +335,21 @@ public final class DeviceRequestParser {
             return mReaderAuthenticated;
         }
 
+        /**
+         * Gets a handle for the reader signature which can be passed to
+         * {@link CredentialDataRequest.Builder#setVerifiedReaderAuthentication(
+         * VerifiedReaderAuthentication)}.
+         *
+         * <p>Using this instead of {@link CredentialDataRequest.Builder#setReaderSignature(byte[])}
+         * avoids checking the reader signature again when retrieving credential data.
+         *
+         * @return the handle or {@code null} if the reader didn't sign the request or if
+         *   {@link #getReaderAuthenticated()} returns {@code false}.
+         */
+        public @Nullable VerifiedReaderAuthentication getVerifiedReaderAuthentication() {
+            return mVerifiedReaderAuthentication;
+        }
+
         /**
          * Gets the names of namespaces that the reader requested.
          *
@@ -409,6 +411,12 @@ public final class DeviceRequestParser {
                         readerAuthenticated);
             }
 
+            Builder setVerifiedReaderAuthentication(
+                    VerifiedReaderAuthentication verifiedReaderAuthentication) {
+                mResult.mVerifiedReaderAuthentication = verifiedReaderAuthentication;
+                return this;
+            }
+
             Builder addEntry(String namespaceName, String entryName, boolean intentToRetain) {
                 java.util.Map<String, Boolean> innerMap = mResult.mRequestMap.get(namespaceName);
                 if (innerMap == null) {
@@ -19,22 +19,17 @@ package com.android.identity;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
-import co.nstant.in.cbor.CborBuilder;
-import co.nstant.in.cbor.builder.ArrayBuilder;
-import co.nstant.in.cbor.builder.MapBuilder;
-import co.nstant.in.cbor.model.DataItem;
-import co.nstant.in.cbor.model.UnicodeString;
-
 /**
  * Helper class for building <code>DeviceResponse</code> <a href="http://cbor.io/">CBOR</a>
  * as specified in <em>ISO/IEC 18013-5</em> section 8.3 <em>Device Retrieval</em>.
  */
 public final class DeviceResponseGenerator {
 
-    private final ArrayBuilder<CborBuilder> mDocumentsBuilder;
+    private final List<byte[]> mEncodedDocuments = new ArrayList<>();
     @Constants.DeviceResponseStatus private final long mStatusCode;
 
     /**
@@ -48,7 +43,6 @@ public final class DeviceResponseGenerator {
      */
     public DeviceResponseGenerator(@Constants.DeviceResponseStatus long statusCode) {
         mStatusCode = statusCode;
-        mDocumentsBuilder = new CborBuilder().addArray();
     }
 
     /**
@@ -81,6 +75,9 @@ public final class DeviceResponseGenerator {
      * obtained from the <code>ResultData</code> class from either the Framework
      * or Jetpack IdentityCredential implementation.
      *
+     * <p>The passed-in encoded CBOR is included in the response as-is, without being decoded
+     * and encoded again, unless it's not in canonical form in which case it's re-encoded.
+     *
      * @param docType the document type, for example <code>org.iso.18013.5.1.mDL</code>.
      * @param encodedDeviceNamespaces bytes of the <code>DeviceNameSpaces</code> CBOR.
      * @param encodedDeviceSignature bytes of a COSE_Sign1 for authenticating the device data.
@@ -96,56 +93,69 @@ public final class DeviceResponseGenerator {
             @NonNull Map<String, List<byte[]>> issuerSignedData,
             @NonNull byte[] encodedIssuerAuth) {
 
-        CborBuilder issuerNameSpacesBuilder = new CborBuilder();
-        MapBuilder<CborBuilder> insOuter = issuerNameSpacesBuilder.addMap();
-        for (String ns : issuerSignedData.keySet()) {
-            ArrayBuilder<MapBuilder<CborBuilder>> insInner = insOuter.putArray(ns);
-            for (byte[] encodedIssuerSignedItemBytes : issuerSignedData.get(ns)) {
-                DataItem issuerSignedItemBytes = Util.cborDecode(encodedIssuerSignedItemBytes);
-                insInner.add(issuerSignedItemBytes);
-            }
-            insInner.end();
-        }
-        insOuter.end();
-
-        DataItem issuerSigned = new CborBuilder()
-                .addMap()
-                .put(new UnicodeString("nameSpaces"), issuerNameSpacesBuilder.build().get(0))
-                .put(new UnicodeString("issuerAuth"), Util.cborDecode(encodedIssuerAuth))
-                .end()
-                .build().get(0);
-
-        String deviceAuthType = "";
-        DataItem deviceAuthDataItem = null;
+        byte[] deviceAuthEncoded;
+        String deviceAuthType;
         if (encodedDeviceSignature != null && encodedDeviceMac != null) {
             throw new IllegalArgumentException("Cannot specify both Signature and MAC");
         } else if (encodedDeviceSignature != null) {
             deviceAuthType = "deviceSignature";
-            deviceAuthDataItem = Util.cborDecode(encodedDeviceSignature);
+            deviceAuthEncoded = canonicalize(encodedDeviceSignature);
         } else if (encodedDeviceMac != null) {
             deviceAuthType = "deviceMac";
-            deviceAuthDataItem = Util.cborDecode(encodedDeviceMac);
+            deviceAuthEncoded = canonicalize(encodedDeviceMac);
         } else {
             throw new IllegalArgumentException("No authentication mechanism used");
         }
 
-        DataItem deviceSigned = new CborBuilder()
-                .addMap()
-                .put(new UnicodeString("nameSpaces"),
-                        Util.cborBuildTaggedByteString(encodedDeviceNamespaces))
-                .putMap("deviceAuth")
-                .put(new UnicodeString(deviceAuthType), deviceAuthDataItem)
-                .end()
-                .end()
-                .build().get(0);
-
-        mDocumentsBuilder.add(new CborBuilder()
-                .addMap()
-                .put("docType", docType)
-                .put(new UnicodeString("issuerSigned"), issuerSigned)
-                .put(new UnicodeString("deviceSigned"), deviceSigned)
-                .end()
-                .build().get(0));
+        List<String> nameSpaces = CborWriter.canonicalKeyOrder(issuerSignedData.keySet());
+        List<List<byte[]>> nameSpaceItems = new ArrayList<>();
+        int issuerNameSpacesSize = CborWriter.sizeOfHead(nameSpaces.size());
+        for (String ns : nameSpaces) {
+            List<byte[]> encodedItems = new ArrayList<>();
+            List<byte[]> items = issuerSignedData.get(ns);
+            issuerNameSpacesSize +=
+                    CborWriter.sizeOfString(ns) + CborWriter.sizeOfHead(items.size());
+            for (byte[] encodedIssuerSignedItemBytes : items) {
+                byte[] encodedItem = canonicalize(encodedIssuerSignedItemBytes);
+                issuerNameSpacesSize += encodedItem.length;
+                encodedItems.add(encodedItem);
+            }
+            nameSpaceItems.add(encodedItems);
+        }
+        byte[] issuerAuthEncoded = canonicalize(encodedIssuerAuth);
+
+        // Map keys are written in canonical order, see CborWriter.canonicalKeyOrder().
+        int issuerSignedSize = CborWriter.sizeOfHead(2)
+                + CborWriter.sizeOfString("issuerAuth") + issuerAuthEncoded.length
+                + CborWriter.sizeOfString("nameSpaces") + issuerNameSpacesSize;
+        int deviceSignedSize = CborWriter.sizeOfHead(2)
+                + CborWriter.sizeOfString("deviceAuth") + CborWriter.sizeOfHead(1)
+                + CborWriter.sizeOfString(deviceAuthType) + deviceAuthEncoded.length
+                + CborWriter.sizeOfString("nameSpaces")
+                + CborWriter.sizeOfTaggedEncodedCbor(encodedDeviceNamespaces.length);
+        int documentSize = CborWriter.sizeOfHead(3)
+                + CborWriter.sizeOfString("docType") + CborWriter.sizeOfString(docType)
+                + CborWriter.sizeOfString("deviceSigned") + deviceSignedSize
+                + CborWriter.sizeOfString("issuerSigned") + issuerSignedSize;
+
+        CborWriter writer = new CborWriter(documentSize);
+        writer.writeMapHead(3)
+                .writeString("docType").writeString(docType)
+                .writeString("deviceSigned").writeMapHead(2)
+                .writeString("deviceAuth").writeMapHead(1)
+                .writeString(deviceAuthType).writeEncoded(deviceAuthEncoded)
+                .writeString("nameSpaces").writeTaggedEncodedCbor(encodedDeviceNamespaces)
+                .writeString("issuerSigned").writeMapHead(2)
+                .writeString("issuerAuth").writeEncoded(issuerAuthEncoded)
+                .writeString("nameSpaces").writeMapHead(nameSpaces.size());
+        for (int n = 0; n < nameSpaces.size(); n++) {
+            List<byte[]> encodedItems = nameSpaceItems.get(n);
+            writer.writeString(nameSpaces.get(n)).writeArrayHead(encodedItems.size());
+            for (byte[] encodedItem : encodedItems) {
+                writer.writeEncoded(encodedItem);
+            }
+        }
+        mEncodedDocuments.add(writer.toByteArray());
         return this;
     }
 
@@ -189,17 +199,38 @@ public final class DeviceResponseGenerator {
      * @return the bytes of <code>DeviceResponse</code> CBOR.
      */
     public @NonNull byte[] generate() {
-        CborBuilder deviceResponseBuilder = new CborBuilder();
-        MapBuilder<CborBuilder> mapBuilder = deviceResponseBuilder.addMap();
-        mapBuilder.put("version", "1.0");
-        mapBuilder.put(new UnicodeString("documents"), mDocumentsBuilder.end().build().get(0));
         // TODO: The documentErrors map entry should only be present if there is a non-zero
         //  number of elements in the array. Right now we don't have a way for the application
         //  to convey document errors but when we add that API we'll need to do something so
         //  it is included here.
-        mapBuilder.put("status", mStatusCode);
-        mapBuilder.end();
+        int documentsSize = CborWriter.sizeOfHead(mEncodedDocuments.size());
+        for (byte[] encodedDocument : mEncodedDocuments) {
+            documentsSize += encodedDocument.length;
+        }
+        // Map keys are written in canonical order, see CborWriter.canonicalKeyOrder().
+        int size = CborWriter.sizeOfHead(3)
+                + CborWriter.sizeOfString("status") + CborWriter.sizeOfNumber(mStatusCode)
+                + CborWriter.sizeOfString("version") + CborWriter.sizeOfString("1.0")
+                + CborWriter.sizeOfString("documents") + documentsSize;
+        CborWriter writer = new CborWriter(size);
+        writer.writeMapHead(3)
+                .writeString("status").writeNumber(mStatusCode)
+                .writeString("version").writeString("1.0")
+                .writeString("documents").writeArrayHead(mEncodedDocuments.size());
+        for (byte[] encodedDocument : mEncodedDocuments) {
+            writer.writeEncoded(encodedDocument);
+        }
+        return writer.toByteArray();
+    }
 
-        return Util.cborEncode(deviceResponseBuilder.build().get(0));
+    // The encoded items passed to addDocument() are written out verbatim. This gives the
+    // same result as decoding and re-encoding them as long as they're already canonical,
+    // which is the case when they're produced by this library. Items which aren't are
+    // re-encoded so the output is the same in either case.
+    private static @NonNull byte[] canonicalize(@NonNull byte[] encodedCbor) {
+        if (CborSlice.of(encodedCbor).isCanonical()) {
+            return encodedCbor;
+        }
+        return Util.cborEncode(Util.cborDecode(encodedCbor));
     }
 }
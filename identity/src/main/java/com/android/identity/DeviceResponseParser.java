@@ -30,18 +30,16 @@ import java.security.PublicKey;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
 
 import javax.crypto.SecretKey;
 
-import co.nstant.in.cbor.CborBuilder;
-import co.nstant.in.cbor.model.ByteString;
 import co.nstant.in.cbor.model.DataItem;
-import co.nstant.in.cbor.model.UnicodeString;
 
 /**
  * Helper class for parsing the bytes of <code>DeviceResponse</code>
@@ -53,6 +51,8 @@ public final class DeviceResponseParser {
     private byte[] mEncodedDeviceResponse;
     private byte[] mEncodedSessionTranscript;
     private PrivateKey mEReaderKey;
+    private Executor mExecutor;
+    private VerifiedMsoCache mMsoCache;
 
     /**
      * Constructs a {@link DeviceResponseParser}.
@@ -98,6 +98,43 @@ public final class DeviceResponseParser {
         return this;
     }
 
+    /**
+     * Sets an executor used for verifying documents concurrently.
+     *
+     * <p>If set, the documents in the response are verified concurrently, as are the digests
+     * of the data elements in large namespaces. The returned {@link DeviceResponse} is the same
+     * as when parsing sequentially, and if parsing fails the exception thrown is the one for
+     * the first offending document, in the order they appear in the response.
+     *
+     * <p>By default no executor is set and everything is done on the calling thread.
+     *
+     * @param executor the executor to use or {@code null} to parse sequentially.
+     * @return the <code>DeviceResponseParser</code>.
+     */
+    public @NonNull DeviceResponseParser setExecutor(@Nullable Executor executor) {
+        mExecutor = executor;
+        return this;
+    }
+
+    /**
+     * Sets a cache of verified <code>MobileSecurityObject</code>s.
+     *
+     * <p>If set, the issuer signature and MSO of a document is looked up in the given cache
+     * before being verified and parsed, and MSOs with a valid issuer signature are added to it.
+     * This makes repeated presentations of the same document cheaper. See
+     * {@link VerifiedMsoCache} for details.
+     *
+     * <p>By default no cache is used.
+     *
+     * @param msoCache the cache to use or {@code null} to not use a cache.
+     * @return the <code>DeviceResponseParser</code>.
+     */
+    public @NonNull DeviceResponseParser setVerifiedMsoCache(
+            @Nullable VerifiedMsoCache msoCache) {
+        mMsoCache = msoCache;
+        return this;
+    }
+
     /**
      * Parses the device response.
      *
@@ -127,10 +164,14 @@ public final class DeviceResponseParser {
         if (mEncodedSessionTranscript == null) {
             throw new IllegalStateException("sessionTranscript has not been set");
         }
+        // Check that the SessionTranscript is well-formed, it's used verbatim when checking
+        // device authentication.
+        CborSlice.of(mEncodedSessionTranscript);
         // mEReaderKey may be omitted if the response is using ECDSA instead of MAC
         // for device authentiation.
         DeviceResponse response = new DeviceResponse();
-        response.parse(mEncodedDeviceResponse, mEncodedSessionTranscript, mEReaderKey);
+        response.parse(mEncodedDeviceResponse, mEncodedSessionTranscript, mEReaderKey,
+                mExecutor, mMsoCache);
         return response;
     }
 
@@ -142,179 +183,225 @@ public final class DeviceResponseParser {
     public static final class DeviceResponse {
         static final String TAG = "DeviceResponse";
 
+        // The number of data elements for which digests are checked in a single task when
+        // using an executor. Checking a digest is cheap so there's no point in going finer.
+        static final int DIGEST_BATCH_SIZE = 32;
+
         List<Document> mResultDocuments = null;
         private String mVersion;
 
-        // Returns deviceKey and digestIdMapping. The byte[] is the digest.
+        // Parses the MSO. The docType in the MSO isn't checked against the one in the Document.
         //
-        private @NonNull Pair<PublicKey, Map<String, Map<Long, byte[]>>> parseMso(DataItem mso,
-                String expectedDoctype) {
+        private static @NonNull VerifiedMsoCache.Entry parseMso(CborSlice mso,
+                List<X509Certificate> issuerCertificateChain) {
             /* don't care about version for now */
-            String digestAlgorithm = Util.cborMapExtractString(mso, "digestAlgorithm");
+            String digestAlgorithm = mso.getMapValue("digestAlgorithm").getString();
             if (!digestAlgorithm.equals("SHA-256")) {
                 throw new IllegalArgumentException("Unsupported digestAlgorithm '"
                         + digestAlgorithm + "' in MSO");
             }
-            String msoDocType = Util.cborMapExtractString(mso, "docType");
-            if (!msoDocType.equals(expectedDoctype)) {
-                throw new IllegalArgumentException("docType in MSO '" + msoDocType
-                        + "' does not match docType from Document");
-            }
-            DataItem valueDigests = Util.cborMapExtract(mso, "valueDigests");
-            Collection<String> nameSpaceNames = Util.cborMapExtractMapStringKeys(valueDigests);
-            Map<String, Map<Long, byte[]>> ret = new HashMap<>();
-            for (String nameSpaceName : nameSpaceNames) {
-                DataItem elementMap = Util.cborMapExtract(valueDigests, nameSpaceName);
-                Collection<Long> elementDigestIDs = Util.cborMapExtractMapNumberKeys(elementMap);
+            String msoDocType = mso.getMapValue("docType").getString();
+            CborSlice valueDigests = mso.getMapValue("valueDigests");
+            Map<String, Map<Long, byte[]>> digestMapping = new HashMap<>();
+            for (Pair<CborSlice, CborSlice> nameSpaceEntry : valueDigests.getMapEntries()) {
+                String nameSpaceName = nameSpaceEntry.first.getString();
                 Map<Long, byte[]> innerRet = new HashMap<>();
-                for (Long elementDigestID : elementDigestIDs) {
-                    byte[] digest = Util.cborMapExtractByteString(elementMap, elementDigestID);
-                    innerRet.put(elementDigestID, digest);
+                for (Pair<CborSlice, CborSlice> digestEntry :
+                        nameSpaceEntry.second.getMapEntries()) {
+                    innerRet.put(digestEntry.first.getLong(), digestEntry.second.getByteString());
                 }
-                ret.put(nameSpaceName, innerRet);
+                digestMapping.put(nameSpaceName, innerRet);
             }
 
-            DataItem deviceKeyInfo = Util.cborMapExtractMap(mso, "deviceKeyInfo");
-            DataItem deviceKeyCoseKey = Util.cborMapExtract(deviceKeyInfo, "deviceKey");
+            CborSlice deviceKeyInfo = mso.getMapValue("deviceKeyInfo");
+            CborSlice deviceKeyCoseKey = deviceKeyInfo.getMapValue("deviceKey");
             PublicKey deviceKey = Util.coseKeyDecode(deviceKeyCoseKey);
 
-            return Pair.create(deviceKey, ret);
+            CborSlice validityInfo = mso.getMapValue("validityInfo");
+            CborSlice expectedUpdate = validityInfo.findMapValue("expectedUpdate");
+            return new VerifiedMsoCache.Entry(msoDocType,
+                    deviceKey,
+                    digestMapping,
+                    issuerCertificateChain,
+                    Util.cborDecodeDateTime(validityInfo.getMapValue("signed")),
+                    Util.cborDecodeDateTime(validityInfo.getMapValue("validFrom")),
+                    Util.cborDecodeDateTime(validityInfo.getMapValue("validUntil")),
+                    expectedUpdate != null ? Util.cborDecodeDateTime(expectedUpdate) : null);
         }
 
-        private void parseValidityInfo(DataItem mso, Document.Builder builder) {
-            DataItem map = Util.cborMapExtractMap(mso, "validityInfo");
-            builder.setValidityInfoSigned(Util.cborMapExtractDateTime(map, "signed"));
-            builder.setValidityInfoValidFrom(Util.cborMapExtractDateTime(map, "validFrom"));
-            builder.setValidityInfoValidUntil(Util.cborMapExtractDateTime(map, "validUntil"));
-            if (Util.cborMapHasKey(map, "expectedUpdate")) {
-                builder.setValidityInfoExpectedUpdate(Util.cborMapExtractDateTime(map, "expectedUpdate"));
+        static final class IssuerEntry {
+            final String mName;
+            final byte[] mValue;
+            final boolean mDigestMatch;
+
+            IssuerEntry(String name, byte[] value, boolean digestMatch) {
+                mName = name;
+                mValue = value;
+                mDigestMatch = digestMatch;
             }
         }
 
-        // Returns the DeviceKey from the MSO
+        // Checks the digests of IssuerSignedItemBytes against the MSO.
         //
-        private @NonNull
-        PublicKey parseIssuerSigned(
-                String expectedDocType,
-                DataItem issuerSigned,
-                Document.Builder builder) {
-
+        private static @NonNull
+        List<IssuerEntry> checkIssuerSignedItems(
+                String nameSpace,
+                List<CborSlice> elems,
+                Map<Long, byte[]> innerDigestMapping) {
             MessageDigest digester;
             try {
-                digester = MessageDigest.getInstance("SHA-256");
+                digester = CryptoPool.getMessageDigest("SHA-256");
             } catch (NoSuchAlgorithmException e) {
                 throw new IllegalStateException("Failed creating digester");
             }
 
-            DataItem issuerAuthDataItem = Util.cborMapExtract(issuerSigned, "issuerAuth");
+            List<IssuerEntry> result = new ArrayList<>(elems.size());
+            for (CborSlice elem : elems) {
+                if (!(elem.getTag() == 24
+                        && elem.getMajorType() == CborSlice.MAJOR_TYPE_BYTE_STRING)) {
+                    throw new IllegalArgumentException(
+                            "issuerSignedItemBytes is not a tagged ByteString");
+                }
+                // The digest is over IssuerSignedItemBytes, including the tag, exactly as
+                // encoded by the issuer.
+                digester.update(elem.getBuffer(), elem.getEncodedOffset(),
+                        elem.getEncodedLength());
+                byte[] expectedDigest = digester.digest();
+
+                CborSlice issuerSignedItem = elem.getTaggedEncodedCbor();
+                String elementName =
+                        issuerSignedItem.getMapValue("elementIdentifier").getString();
+                CborSlice elementValue = issuerSignedItem.getMapValue("elementValue");
+                long digestId = issuerSignedItem.getMapValue("digestID").getLong();
+
+                byte[] digest = innerDigestMapping.get(digestId);
+                if (digest == null) {
+                    throw new IllegalArgumentException("No digestID MSO entry for ID "
+                            + digestId + " in namespace " + nameSpace);
+                }
+                boolean digestMatch = Arrays.equals(expectedDigest, digest);
+                result.add(new IssuerEntry(elementName, elementValue.getEncoded(), digestMatch));
+            }
+            return result;
+        }
 
-            List<X509Certificate> issuerAuthorityCertChain = Util.coseSign1GetX5Chain(
-                    issuerAuthDataItem);
-            if (issuerAuthorityCertChain.size() < 1) {
-                throw new IllegalArgumentException("No x5chain element in issuer signature");
+        // Returns the DeviceKey from the MSO
+        //
+        private @NonNull
+        PublicKey parseIssuerSigned(
+                String expectedDocType,
+                CborSlice issuerSigned,
+                Document.Builder builder,
+                @Nullable Executor executor,
+                @Nullable VerifiedMsoCache msoCache) {
+
+            CborSlice issuerAuth = issuerSigned.getMapValue("issuerAuth");
+
+            byte[] cacheKey = null;
+            VerifiedMsoCache.Entry mso = null;
+            if (msoCache != null) {
+                cacheKey = VerifiedMsoCache.computeKey(issuerAuth);
+                mso = msoCache.get(cacheKey);
             }
-            PublicKey issuerAuthorityKey =
-                    issuerAuthorityCertChain.iterator().next().getPublicKey();
+            boolean issuerSignedAuthenticated;
+            if (mso != null) {
+                // The issuer signature for this exact IssuerAuth was verified before.
+                issuerSignedAuthenticated = true;
+            } else {
+                List<X509Certificate> issuerAuthorityCertChain =
+                        Util.coseSign1GetX5Chain(issuerAuth);
+                if (issuerAuthorityCertChain.size() < 1) {
+                    throw new IllegalArgumentException("No x5chain element in issuer signature");
+                }
+                PublicKey issuerAuthorityKey = CertificateCache.getPublicKey(
+                        issuerAuthorityCertChain.iterator().next());
+
+                issuerSignedAuthenticated = Util.coseSign1CheckSignature(
+                        issuerAuth, null, issuerAuthorityKey);
 
-            boolean issuerSignedAuthenticated = Util.coseSign1CheckSignature(
-                    issuerAuthDataItem, null, issuerAuthorityKey);
+                CborSlice payload = Util.coseSign1GetPayload(issuerAuth);
+                if (payload == null) {
+                    throw new IllegalArgumentException("No payload in issuer signature");
+                }
+                CborSlice mobileSecurityObject =
+                        payload.getByteStringAsCbor().getTaggedEncodedCbor();
+                mso = parseMso(mobileSecurityObject, issuerAuthorityCertChain);
+                if (msoCache != null && issuerSignedAuthenticated) {
+                    msoCache.put(cacheKey, mso);
+                }
+            }
             Log.d(TAG, "issuerSignedAuthenticated: " + issuerSignedAuthenticated);
+            if (!mso.mDocType.equals(expectedDocType)) {
+                throw new IllegalArgumentException("docType in MSO '" + mso.mDocType
+                        + "' does not match docType from Document");
+            }
             builder.setIssuerSignedAuthenticated(issuerSignedAuthenticated);
-            builder.setIssuerCertificateChain(issuerAuthorityCertChain);
-
-            DataItem mobileSecurityObjectBytes = Util.cborDecode(
-                    Util.coseSign1GetData(issuerAuthDataItem));
-            DataItem mobileSecurityObject = Util.cborExtractTaggedAndEncodedCbor(
-                    mobileSecurityObjectBytes);
-
-            Pair<PublicKey, Map<String, Map<Long, byte[]>>> msoResult =
-                    parseMso(mobileSecurityObject, expectedDocType);
-            final PublicKey deviceKey = msoResult.first;
-            Map<String, Map<Long, byte[]>> digestMapping = msoResult.second;
-
-            parseValidityInfo(mobileSecurityObject, builder);
+            builder.setIssuerCertificateChain(mso.mIssuerCertificateChain);
+
+            // The entry may be shared with other documents so hand out copies of the
+            // mutable Calendar instances.
+            builder.setValidityInfoSigned((Calendar) mso.mValidityInfoSigned.clone());
+            builder.setValidityInfoValidFrom((Calendar) mso.mValidityInfoValidFrom.clone());
+            builder.setValidityInfoValidUntil((Calendar) mso.mValidityInfoValidUntil.clone());
+            if (mso.mValidityInfoExpectedUpdate != null) {
+                builder.setValidityInfoExpectedUpdate(
+                        (Calendar) mso.mValidityInfoExpectedUpdate.clone());
+            }
+            Map<String, Map<Long, byte[]>> digestMapping = mso.mDigestMapping;
 
-            DataItem nameSpaces = Util.cborMapExtractMap(issuerSigned, "nameSpaces");
-            Collection<String> nameSpacesKeys = Util.cborMapExtractMapStringKeys(nameSpaces);
-            for (String nameSpace : nameSpacesKeys) {
+            CborSlice nameSpaces = issuerSigned.getMapValue("nameSpaces");
+            for (Pair<CborSlice, CborSlice> nameSpaceEntry : nameSpaces.getMapEntries()) {
+                String nameSpace = nameSpaceEntry.first.getString();
                 Map<Long, byte[]> innerDigestMapping = digestMapping.get(nameSpace);
                 if (innerDigestMapping == null) {
                     throw new IllegalArgumentException("No digestID MSO entry for namespace "
                             + nameSpace);
                 }
-                List<DataItem> elems = Util.cborMapExtractArray(nameSpaces, nameSpace);
-                for (DataItem elem : elems) {
-                    if (!(elem.hasTag() && elem.getTag().getValue() == 24
-                            && (elem instanceof ByteString))) {
-                        throw new IllegalArgumentException(
-                                "issuerSignedItemBytes is not a tagged ByteString");
-                    }
-                    // We need the encoded representation with the tag.
-                    byte[] encodedIssuerSignedItem = ((ByteString) elem).getBytes();
-                    byte[] encodedIssuerSignedItemBytes = Util.cborEncode(
-                            Util.cborBuildTaggedByteString(encodedIssuerSignedItem));
-                    byte[] expectedDigest = digester.digest(encodedIssuerSignedItemBytes);
-
-                    DataItem issuerSignedItem = Util.cborExtractTaggedAndEncodedCbor(elem);
-                    String elementName = Util.cborMapExtractString(issuerSignedItem,
-                            "elementIdentifier");
-                    DataItem elementValue = Util.cborMapExtract(issuerSignedItem, "elementValue");
-                    long digestId = Util.cborMapExtractNumber(issuerSignedItem, "digestID");
-
-                    byte[] digest = innerDigestMapping.get(digestId);
-                    if (digest == null) {
-                        throw new IllegalArgumentException("No digestID MSO entry for ID "
-                                + digestId + " in namespace " + nameSpace);
+                List<CborSlice> elems = nameSpaceEntry.second.getArrayItems();
+                List<Callable<List<IssuerEntry>>> tasks = new ArrayList<>();
+                int batchSize = executor != null ? DIGEST_BATCH_SIZE : elems.size();
+                for (int start = 0; start < elems.size(); start += batchSize) {
+                    List<CborSlice> batch =
+                            elems.subList(start, Math.min(start + batchSize, elems.size()));
+                    tasks.add(() -> checkIssuerSignedItems(nameSpace, batch, innerDigestMapping));
+                }
+                for (List<IssuerEntry> entries : Util.invokeAll(executor, tasks)) {
+                    for (IssuerEntry entry : entries) {
+                        builder.addIssuerEntry(nameSpace, entry.mName, entry.mValue,
+                                entry.mDigestMatch);
                     }
-                    boolean digestMatch = Arrays.equals(expectedDigest, digest);
-                    builder.addIssuerEntry(nameSpace, elementName, Util.cborEncode(elementValue),
-                            digestMatch);
                 }
             }
 
-            return deviceKey;
+            return mso.mDeviceKey;
         }
 
         private void parseDeviceSigned(
-                DataItem deviceSigned,
+                CborSlice deviceSigned,
                 String docType,
                 byte[] encodedSessionTranscript,
                 PublicKey deviceKey,
                 PrivateKey eReaderKey,
                 Document.Builder builder) {
-            DataItem nameSpacesBytes = Util.cborMapExtract(deviceSigned, "nameSpaces");
-            if (!(nameSpacesBytes.hasTag()
-                    || nameSpacesBytes.getTag().getValue() != 24
-                    || (nameSpacesBytes instanceof ByteString))) {
+            CborSlice nameSpacesBytes = deviceSigned.getMapValue("nameSpaces");
+            if (!(nameSpacesBytes.getTag() == 24
+                    && nameSpacesBytes.getMajorType() == CborSlice.MAJOR_TYPE_BYTE_STRING)) {
                 throw new IllegalArgumentException("nameSpaces isn't a tagged ByteString");
             }
-            byte[] encodedNamespaces = ((ByteString) nameSpacesBytes).getBytes();
-
-            DataItem sessionTranscript = Util.cborDecode(encodedSessionTranscript);
+            byte[] encodedNamespaces = nameSpacesBytes.getByteString();
 
-            DataItem deviceAuth = Util.cborMapExtractMap(deviceSigned, "deviceAuth");
-            DataItem deviceSignature = ((co.nstant.in.cbor.model.Map) deviceAuth).get(
-                    new UnicodeString("deviceSignature"));
-            byte[] encodedDeviceAuthentication = Util.cborEncode(new CborBuilder()
-                    .addArray()
-                    .add("DeviceAuthentication")
-                    .add(sessionTranscript)
-                    .add(docType)
-                    .add(Util.cborBuildTaggedByteString(encodedNamespaces))
-                    .end()
-                    .build().get(0));
+            CborSlice deviceAuth = deviceSigned.getMapValue("deviceAuth");
+            CborSlice deviceSignature = deviceAuth.findMapValue("deviceSignature");
+            byte[] deviceAuthenticationBytes = Util.buildDeviceAuthenticationBytes(
+                    encodedSessionTranscript, docType, encodedNamespaces);
 
             boolean deviceSignedAuthenticated;
             if (deviceSignature != null) {
-                byte[] deviceAuthenticationBytes =
-                        Util.cborEncode(
-                                Util.cborBuildTaggedByteString(encodedDeviceAuthentication));
                 deviceSignedAuthenticated = Util.coseSign1CheckSignature(
                         deviceSignature, deviceAuthenticationBytes, deviceKey);
                 builder.setDeviceSignedAuthenticatedViaSignature(true);
             } else {
-                DataItem deviceMac = ((co.nstant.in.cbor.model.Map) deviceAuth).get(
-                        new UnicodeString("deviceMac"));
+                CborSlice deviceMac = deviceAuth.findMapValue("deviceMac");
                 if (deviceMac == null) {
                     throw new IllegalArgumentException(
                             "Neither deviceSignature nor deviceMac in deviceAuth");
@@ -322,8 +409,6 @@ public final class DeviceResponseParser {
 
                 SecretKey eMacKey = Util.calcEMacKeyForReader(deviceKey, eReaderKey,
                         encodedSessionTranscript);
-                byte[] deviceAuthenticationBytes = Util.cborEncode(
-                        Util.cborBuildTaggedByteString(encodedDeviceAuthentication));
                 DataItem expectedMac = Util.coseMac0(eMacKey,
                         new byte[0],                 // payload
                         deviceAuthenticationBytes);  // detached content
@@ -339,57 +424,66 @@ public final class DeviceResponseParser {
             }
             builder.setDeviceSignedAuthenticated(deviceSignedAuthenticated);
 
-
-            DataItem nameSpaces = Util.cborDecode(encodedNamespaces);
-
-            Collection<String> nameSpacesKeys = Util.cborMapExtractMapStringKeys(nameSpaces);
-            for (String nameSpace : nameSpacesKeys) {
-                DataItem innerMap = Util.cborMapExtract(nameSpaces, nameSpace);
-                Collection<String> elementNames = Util.cborMapExtractMapStringKeys(innerMap);
-                for (String elementName : elementNames) {
-                    DataItem elementValue = Util.cborMapExtract(innerMap, elementName);
-                    builder.addDeviceEntry(nameSpace, elementName, Util.cborEncode(elementValue));
+            CborSlice nameSpaces = nameSpacesBytes.getTaggedEncodedCbor();
+            for (Pair<CborSlice, CborSlice> nameSpaceEntry : nameSpaces.getMapEntries()) {
+                String nameSpace = nameSpaceEntry.first.getString();
+                for (Pair<CborSlice, CborSlice> elementEntry :
+                        nameSpaceEntry.second.getMapEntries()) {
+                    String elementName = elementEntry.first.getString();
+                    builder.addDeviceEntry(nameSpace, elementName,
+                            elementEntry.second.getEncoded());
                 }
             }
         }
 
+        private Document parseDocument(CborSlice documentSlice,
+                byte[] encodedSessionTranscript,
+                PrivateKey eReaderKey,
+                @Nullable Executor executor,
+                @Nullable VerifiedMsoCache msoCache) {
+            String docType = documentSlice.getMapValue("docType").getString();
+            Document.Builder builder = new Document.Builder(
+                    docType);
+
+            CborSlice issuerSigned = documentSlice.getMapValue("issuerSigned");
+            PublicKey deviceKey = parseIssuerSigned(docType, issuerSigned, builder, executor,
+                    msoCache);
+            builder.setDeviceKey(deviceKey);
+
+            CborSlice deviceSigned = documentSlice.getMapValue("deviceSigned");
+            parseDeviceSigned(deviceSigned, docType, encodedSessionTranscript, deviceKey,
+                    eReaderKey, builder);
+
+            return builder.build();
+        }
+
         void parse(byte[] encodedDeviceResponse,
                 byte[] encodedSessionTranscript,
-                PrivateKey eReaderKey) {
+                PrivateKey eReaderKey,
+                @Nullable Executor executor,
+                @Nullable VerifiedMsoCache msoCache) {
             mResultDocuments = null;
 
-            DataItem deviceResponse = Util.cborDecode(encodedDeviceResponse);
+            CborSlice deviceResponse = CborSlice.of(encodedDeviceResponse);
 
             ArrayList<Document> documents = new ArrayList<>();
 
-            mVersion = Util.cborMapExtractString(deviceResponse, "version");
+            mVersion = deviceResponse.getMapValue("version").getString();
             if (mVersion.compareTo("1.0") < 0) {
                 throw new IllegalArgumentException("Given version '" + mVersion + "' not >= '1.0'");
             }
 
-            if (Util.cborMapHasKey(deviceResponse, "documents")) {
-                List<DataItem> documentsDataItem = Util.cborMapExtractArray(deviceResponse,
-                        "documents");
-                for (DataItem documentDataItem : documentsDataItem) {
-                    String docType = Util.cborMapExtractString(documentDataItem, "docType");
-                    Document.Builder builder = new Document.Builder(
-                            docType);
-
-                    DataItem issuerSigned = Util.cborMapExtractMap(documentDataItem,
-                            "issuerSigned");
-                    PublicKey deviceKey = parseIssuerSigned(docType, issuerSigned, builder);
-                    builder.setDeviceKey(deviceKey);
-
-                    DataItem deviceSigned = Util.cborMapExtractMap(documentDataItem,
-                            "deviceSigned");
-                    parseDeviceSigned(deviceSigned, docType, encodedSessionTranscript, deviceKey,
-                            eReaderKey, builder);
-
-                    documents.add(builder.build());
+            CborSlice documentsSlice = deviceResponse.findMapValue("documents");
+            if (documentsSlice != null) {
+                List<Callable<Document>> tasks = new ArrayList<>();
+                for (CborSlice documentSlice : documentsSlice.getArrayItems()) {
+                    tasks.add(() -> parseDocument(documentSlice, encodedSessionTranscript,
+                            eReaderKey, executor, msoCache));
                 }
+                documents.addAll(Util.invokeAll(executor, tasks));
             }
 
-            mResultStatus = Util.cborMapExtractNumber(deviceResponse, "status");
+            mResultStatus = deviceResponse.getMapValue("status").getLong();
 
             // TODO: maybe also parse + convey "documentErrors" and "errors" keys in
             //  DeviceResponse map.
@@ -615,6 +709,9 @@ public final class DeviceResponseParser {
          * Gets the raw CBOR data for the value of given data element in a given namespace in
          * issuer-signed data.
          *
+         * <p>The data is returned exactly as encoded in the <code>DeviceResponse</code>, it's
+         * not re-encoded.
+         *
          * @param namespaceName the name of the namespace to get a data element value from.
          * @param name the name of the data element in the given namespace.
          * @return the encoded CBOR data for the data element
@@ -761,6 +858,9 @@ public final class DeviceResponseParser {
          * Gets the raw CBOR data for the value of given data element in a given namespace in
          * device-signed data.
          *
+         * <p>The data is returned exactly as encoded in the <code>DeviceResponse</code>, it's
+         * not re-encoded.
+         *
          * @param namespaceName the name of the namespace to get a data element value from.
          * @param name the name of the data element in the given namespace.
          * @return the encoded CBOR data for the data element
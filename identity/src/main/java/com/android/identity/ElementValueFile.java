@@ -0,0 +1,149 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import androidx.annotation.NonNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+import co.nstant.in.cbor.CborBuilder;
+
+/**
+ * A file of individually encrypted data element values.
+ *
+ * <p>This is used by {@link CredentialData} so loading a credential only involves decrypting
+ * the index of data elements and a value is only read and decrypted from this file when it's
+ * requested. Each value is encrypted with AES-GCM and stored as a record consisting of the
+ * length of the IV, the IV, and the ciphertext. The location of each record is kept in the
+ * index, see {@link Location}.
+ *
+ * <p>The name of the file, the namespace, and the data element name are used as additional
+ * authenticated data so a record can't be moved to another file or used for another data
+ * element.
+ */
+final class ElementValueFile {
+
+    private static final int TAG_LENGTH = 16;
+
+    /**
+     * The location of a record in the file.
+     */
+    static final class Location {
+        final long mOffset;
+        final int mLength;
+
+        Location(long offset, int length) {
+            mOffset = offset;
+            mLength = length;
+        }
+    }
+
+    private final File mFile;
+    private final ByteArrayOutputStream mPendingRecords = new ByteArrayOutputStream();
+
+    ElementValueFile(@NonNull File file) {
+        mFile = file;
+    }
+
+    /**
+     * Encrypts a value and adds it to the records to be written to the file.
+     *
+     * @param key the key to encrypt the value with.
+     * @param namespace the namespace of the data element.
+     * @param name the name of the data element.
+     * @param value the encoded CBOR of the value.
+     * @return the location of the record, once written.
+     */
+    @NonNull Location add(@NonNull SecretKey key, @NonNull String namespace,
+            @NonNull String name, @NonNull byte[] value) {
+        byte[] iv;
+        byte[] cipherText;
+        try {
+            Cipher cipher = CryptoPool.getCipher("AES/GCM/NoPadding", Cipher.ENCRYPT_MODE, key,
+                    null);
+            cipher.updateAAD(getAdditionalData(namespace, name));
+            cipherText = cipher.doFinal(value); // This includes the auth tag
+            iv = cipher.getIV();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Error encrypting value", e);
+        }
+        Location location = new Location(mPendingRecords.size(),
+                1 + iv.length + cipherText.length);
+        mPendingRecords.write(iv.length);
+        mPendingRecords.write(iv, 0, iv.length);
+        mPendingRecords.write(cipherText, 0, cipherText.length);
+        return location;
+    }
+
+    /**
+     * Gets the records added with {@link #add(SecretKey, String, String, byte[])}, for
+     * writing to the file.
+     */
+    @NonNull byte[] getPendingRecords() {
+        return mPendingRecords.toByteArray();
+    }
+
+    /**
+     * Reads and decrypts a value.
+     *
+     * @param key the key the value was encrypted with.
+     * @param namespace the namespace of the data element.
+     * @param name the name of the data element.
+     * @param location the location of the record.
+     * @return the encoded CBOR of the value.
+     * @throws IOException if reading the file failed.
+     * @throws IllegalStateException if the record can't be decrypted.
+     */
+    @NonNull byte[] read(@NonNull SecretKey key, @NonNull String namespace,
+            @NonNull String name, @NonNull Location location) throws IOException {
+        byte[] record = new byte[location.mLength];
+        try (RandomAccessFile file = new RandomAccessFile(mFile, "r")) {
+            file.seek(location.mOffset);
+            file.readFully(record);
+        }
+        int ivLength = record[0] & 0xff;
+        if (ivLength == 0 || record.length < 1 + ivLength + TAG_LENGTH) {
+            throw new IllegalStateException("Malformed record for " + namespace + "/" + name);
+        }
+        try {
+            Cipher cipher = CryptoPool.getCipher("AES/GCM/NoPadding", Cipher.DECRYPT_MODE, key,
+                    new GCMParameterSpec(TAG_LENGTH * 8, record, 1, ivLength));
+            cipher.updateAAD(getAdditionalData(namespace, name));
+            return cipher.doFinal(record, 1 + ivLength, record.length - 1 - ivLength);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Error decrypting value", e);
+        }
+    }
+
+    private byte[] getAdditionalData(String namespace, String name) {
+        return Util.cborEncode(new CborBuilder()
+                .addArray()
+                .add(mFile.getName())
+                .add(namespace)
+                .add(name)
+                .end()
+                .build().get(0));
+    }
+}
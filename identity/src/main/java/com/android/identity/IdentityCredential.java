@@ -396,6 +396,22 @@ public abstract class IdentityCredential {
      */
     public @NonNull abstract Collection<X509Certificate> getAuthKeysNeedingCertification();
 
+    // Like getAuthKeysNeedingCertification() but also replaces keys whose static authentication
+    // data expires before the given date. Used by AuthenticationKeyReplenisher. Implementations
+    // which don't support this only replace keys once they have expired.
+    //
+    @NonNull Collection<X509Certificate> getAuthKeysNeedingCertification(
+            @NonNull Calendar renewIfExpiringBefore) {
+        return getAuthKeysNeedingCertification();
+    }
+
+    // Gets the number of certified keys which haven't reached their maximum use count and whose
+    // static authentication data doesn't expire before the given date, or -1 if unknown.
+    //
+    int getNumAvailableAuthenticationKeys(@NonNull Calendar validUntil) {
+        return -1;
+    }
+
     /**
      * Store authentication data associated with a dynamic authentication key.
      *
@@ -443,6 +459,40 @@ public abstract class IdentityCredential {
         throw new UnsupportedOperationException();
     }
 
+    /**
+     * Store authentication data associated with a number of dynamic authentication keys.
+     *
+     * <p>This is equivalent to calling
+     * {@link #storeStaticAuthenticationData(X509Certificate, Calendar, byte[])}, or
+     * {@link #storeStaticAuthenticationData(X509Certificate, byte[])} if no expiration date is
+     * given, for each of the given certifications but implementations may do this more
+     * efficiently, for example by persisting the credential only once.
+     *
+     * <p>The software implementation stores either all or none of the given certifications. For
+     * other implementations, if an exception is thrown the certifications preceding the one
+     * which failed may have been stored.
+     *
+     * @param certifications the certifications of keys returned by
+     *                       {@link #getAuthKeysNeedingCertification()}.
+     * @throws UnknownAuthenticationKeyException If one of the authentication keys is not
+     *                                           recognized.
+     */
+    @SuppressWarnings("deprecation")
+    public void storeStaticAuthenticationData(
+            @NonNull Collection<AuthenticationKeyCertification> certifications)
+            throws UnknownAuthenticationKeyException {
+        for (AuthenticationKeyCertification certification : certifications) {
+            if (certification.getExpirationDate() != null) {
+                storeStaticAuthenticationData(certification.getAuthenticationKey(),
+                        certification.getExpirationDate(),
+                        certification.getStaticAuthData());
+            } else {
+                storeStaticAuthenticationData(certification.getAuthenticationKey(),
+                        certification.getStaticAuthData());
+            }
+        }
+    }
+
     /**
      * Get the number of times the dynamic authentication keys have been used.
      *
@@ -450,6 +500,18 @@ public abstract class IdentityCredential {
      */
     public @NonNull abstract int[] getAuthenticationDataUsageCount();
 
+    /**
+     * Gets metrics about the consumption of dynamic authentication keys.
+     *
+     * <p>This is only implemented by the software implementation. If not the call fails with
+     * {@link UnsupportedOperationException}.
+     *
+     * @return the metrics for this credential.
+     */
+    public @NonNull AuthenticationKeyMetrics getAuthenticationKeyMetrics() {
+        throw new UnsupportedOperationException();
+    }
+
 
     /**
      * Proves ownership of a credential.
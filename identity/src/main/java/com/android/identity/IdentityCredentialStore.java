@@ -304,6 +304,52 @@ public abstract class IdentityCredentialStore {
         return SoftwareIdentityCredentialStore.getInstance(context);
     }
 
+    /**
+     * Sets the limits for caching loaded credentials in the software implementation.
+     *
+     * <p>By default the software implementation loads and decrypts the credential data every
+     * time a credential is obtained with {@link #getCredentialByName(String, int)} or used in
+     * a {@link PresentationSession}. If caching is enabled, the loaded data is kept in memory
+     * and shared by subsequent uses of the same credential in this process, until the
+     * credential is updated or deleted, or evicted because one of the given limits is
+     * reached. The data element values kept in memory are overwritten when a credential
+     * is evicted.
+     *
+     * <p>Since the loaded data is shared, a credential should not be used from multiple
+     * threads at the same time when caching is enabled.
+     *
+     * @param maxCredentials the maximum number of credentials to cache, or 0 to disable
+     *                       caching which is the default.
+     * @param maxBytes the maximum amount of memory, in bytes, used by the data element
+     *                 values and authentication keys of cached credentials. This is an
+     *                 estimate.
+     * @param maxAgeMillis the maximum time in milliseconds a credential is cached after being
+     *                     loaded.
+     * @throws IllegalArgumentException if any of the limits is negative.
+     */
+    public static void setSoftwareCredentialCacheLimits(int maxCredentials, long maxBytes,
+            long maxAgeMillis) {
+        CredentialDataCache.getInstance().setLimits(maxCredentials, maxBytes, maxAgeMillis);
+    }
+
+    /**
+     * Sets the size from which data element values are shared between credentials in the
+     * software implementation.
+     *
+     * <p>By default each credential stores its own encrypted copy of every data element value.
+     * If a threshold is set, values at least this large, for example portraits, are instead
+     * stored once in an encrypted content-addressed store shared by all credentials of the
+     * application, and removed from it when no credential refers to them anymore. This only
+     * affects credentials personalized or updated after the call.
+     *
+     * @param thresholdBytes the size in bytes of the encoded CBOR of a value from which it's
+     *                       shared, or 0 to not share values which is the default.
+     * @throws IllegalArgumentException if {@code thresholdBytes} is negative.
+     */
+    public static void setSoftwareSharedValueThreshold(int thresholdBytes) {
+        BlobStore.setThreshold(thresholdBytes);
+    }
+
     /**
      * Gets a {@link IdentityCredentialStore} implemented via secure hardware using
      * the
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.UnrecoverableEntryException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Process-wide access to Android Keystore.
+ *
+ * <p>Instead of getting and loading a new {@link KeyStore} instance for every operation, the
+ * keystore is loaded once and the entries looked up are cached by alias. Entries for keys
+ * deleted through {@link #deleteEntry(String)} are removed from the cache and code which
+ * creates a key for an alias which may have been used before must call
+ * {@link #invalidate(String)}.
+ *
+ * <p>The number of calls into Android Keystore is tracked so the effect of the cache can be
+ * observed, see {@link #getNumRoundTrips()}.
+ */
+final class KeyStoreCache {
+
+    private static final Object sLock = new Object();
+    // All guarded by sLock.
+    private static KeyStore sKeyStore;
+    private static final Map<String, KeyStore.Entry> sEntries = new HashMap<>();
+    private static long sNumRoundTrips;
+
+    private KeyStoreCache() {
+    }
+
+    private static void countRoundTrip() {
+        synchronized (sLock) {
+            sNumRoundTrips++;
+        }
+    }
+
+    /**
+     * Gets the loaded Android Keystore.
+     *
+     * <p>This is for operations not covered by this class. Deleting keys or getting entries
+     * directly through the returned object bypasses the cache.
+     *
+     * @throws KeyStoreException if Android Keystore couldn't be loaded.
+     */
+    static @NonNull KeyStore getKeyStore() throws KeyStoreException {
+        synchronized (sLock) {
+            if (sKeyStore == null) {
+                KeyStore ks = KeyStore.getInstance("AndroidKeyStore");
+                try {
+                    ks.load(null);
+                } catch (CertificateException | IOException | NoSuchAlgorithmException e) {
+                    throw new KeyStoreException("Error loading keystore", e);
+                }
+                sNumRoundTrips++;
+                sKeyStore = ks;
+            }
+            return sKeyStore;
+        }
+    }
+
+    /**
+     * Gets the entry for an alias.
+     *
+     * @param alias the alias.
+     * @return the entry, possibly cached, or {@code null} if there's no entry for the alias.
+     */
+    static @Nullable KeyStore.Entry getEntry(@NonNull String alias)
+            throws KeyStoreException, NoSuchAlgorithmException, UnrecoverableEntryException {
+        synchronized (sLock) {
+            KeyStore.Entry entry = sEntries.get(alias);
+            if (entry != null) {
+                return entry;
+            }
+        }
+        KeyStore ks = getKeyStore();
+        countRoundTrip();
+        KeyStore.Entry entry = ks.getEntry(alias, null);
+        if (entry != null) {
+            synchronized (sLock) {
+                sEntries.put(alias, entry);
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Gets the certificate for an alias.
+     *
+     * @param alias the alias.
+     * @return the certificate or {@code null} if there's no certificate for the alias.
+     */
+    static @Nullable Certificate getCertificate(@NonNull String alias) throws KeyStoreException {
+        synchronized (sLock) {
+            KeyStore.Entry entry = sEntries.get(alias);
+            if (entry instanceof KeyStore.PrivateKeyEntry) {
+                return ((KeyStore.PrivateKeyEntry) entry).getCertificate();
+            }
+        }
+        KeyStore ks = getKeyStore();
+        countRoundTrip();
+        return ks.getCertificate(alias);
+    }
+
+    /**
+     * Checks if there's an entry for an alias.
+     */
+    static boolean containsAlias(@NonNull String alias) throws KeyStoreException {
+        synchronized (sLock) {
+            if (sEntries.containsKey(alias)) {
+                return true;
+            }
+        }
+        KeyStore ks = getKeyStore();
+        countRoundTrip();
+        return ks.containsAlias(alias);
+    }
+
+    /**
+     * Deletes the entry for an alias from Android Keystore and the cache.
+     */
+    static void deleteEntry(@NonNull String alias) throws KeyStoreException {
+        invalidate(alias);
+        KeyStore ks = getKeyStore();
+        countRoundTrip();
+        ks.deleteEntry(alias);
+    }
+
+    /**
+     * Removes the cached entry for an alias, for when a new key is created for the alias.
+     */
+    static void invalidate(@NonNull String alias) {
+        synchronized (sLock) {
+            sEntries.remove(alias);
+        }
+    }
+
+    /**
+     * Gets the number of calls made into Android Keystore, including loading it.
+     */
+    static long getNumRoundTrips() {
+        synchronized (sLock) {
+            return sNumRoundTrips;
+        }
+    }
+
+    /**
+     * Removes all cached entries.
+     */
+    static void clear() {
+        synchronized (sLock) {
+            sEntries.clear();
+        }
+    }
+}
@@ -332,7 +332,7 @@ public class PresentationHelper {
         }
 
         byte[] encodedEDeviceKeyBytes = Util.cborEncode(Util.cborBuildTaggedByteString(
-                Util.cborEncode(Util.cborBuildCoseKey(mEphemeralKeyPair.getPublic()))));
+                Util.cborEncodeCoseKey(mEphemeralKeyPair.getPublic())));
 
         for (DataTransport t : mTransports) {
             t.setEDeviceKeyBytes(encodedEDeviceKeyBytes);
@@ -632,7 +632,7 @@ public class PresentationHelper {
     byte[] generateDeviceEngagement(@Nullable List<DataRetrievalAddress> listeningAddresses) {
 
         DataItem eDeviceKeyBytes = Util.cborBuildTaggedByteString(
-                Util.cborEncode(Util.cborBuildCoseKey(mEphemeralKeyPair.getPublic())));
+                Util.cborEncodeCoseKey(mEphemeralKeyPair.getPublic()));
 
         DataItem securityDataItem = new CborBuilder()
                 .addArray()
@@ -23,7 +23,11 @@ import androidx.biometric.BiometricPrompt;
 import java.security.InvalidKeyException;
 import java.security.KeyPair;
 import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
 
 /**
  * Class for presenting multiple documents to a remote verifier.
@@ -164,6 +168,96 @@ public abstract class PresentationSession {
             throws NoAuthenticationKeyAvailableException, InvalidReaderSignatureException,
             InvalidRequestMessageException, EphemeralPublicKeyNotFoundException;
 
+    /**
+     * Retrieves data from several named credentials in the current presentation session.
+     *
+     * <p>This is equivalent to calling {@link #getCredentialData(String, CredentialDataRequest)}
+     * for each entry in {@code requests} except that the credentials may be processed
+     * concurrently, on the calling thread and on threads of the given executor, and that
+     * a failure for one credential doesn't prevent data from being retrieved from the others.
+     *
+     * <p>The results are returned in the iteration order of {@code requests}, independently of
+     * the order the credentials were processed in, so a {@link java.util.LinkedHashMap} should
+     * be used if the order matters.
+     *
+     * @param requests a map from credential names to the data to retrieve from each credential.
+     * @param executor the executor to use for processing credentials concurrently or
+     *                 {@code null} to process them one after another on the calling thread.
+     * @return a list with one {@link CredentialDataOutcome} for each entry in {@code requests}.
+     */
+    public @NonNull List<CredentialDataOutcome> getCredentialData(
+            @NonNull Map<String, CredentialDataRequest> requests,
+            @Nullable Executor executor) {
+        List<Callable<CredentialDataOutcome>> tasks = new ArrayList<>(requests.size());
+        for (Map.Entry<String, CredentialDataRequest> entry : requests.entrySet()) {
+            String credentialName = entry.getKey();
+            CredentialDataRequest request = entry.getValue();
+            tasks.add(() -> {
+                try {
+                    return new CredentialDataOutcome(credentialName,
+                            getCredentialData(credentialName, request), null);
+                } catch (NoAuthenticationKeyAvailableException
+                        | InvalidReaderSignatureException
+                        | InvalidRequestMessageException
+                        | EphemeralPublicKeyNotFoundException
+                        | RuntimeException e) {
+                    return new CredentialDataOutcome(credentialName, null, e);
+                }
+            });
+        }
+        return Util.invokeAll(executor, tasks);
+    }
+
+    /**
+     * The outcome of retrieving data from one credential using
+     * {@link PresentationSession#getCredentialData(Map, Executor)}.
+     */
+    public static final class CredentialDataOutcome {
+        private final String mCredentialName;
+        private final CredentialDataResult mResult;
+        private final Exception mException;
+
+        CredentialDataOutcome(@NonNull String credentialName,
+                @Nullable CredentialDataResult result,
+                @Nullable Exception exception) {
+            mCredentialName = credentialName;
+            mResult = result;
+            mException = exception;
+        }
+
+        /**
+         * Gets the name of the credential.
+         *
+         * @return the name of the credential.
+         */
+        public @NonNull String getCredentialName() {
+            return mCredentialName;
+        }
+
+        /**
+         * Gets the data retrieved from the credential.
+         *
+         * @return the data retrieved or {@code null} if the credential wasn't found or if
+         *   retrieving data from it failed, see {@link #getException()}.
+         */
+        public @Nullable CredentialDataResult getResult() {
+            return mResult;
+        }
+
+        /**
+         * Gets the exception thrown when retrieving data from the credential.
+         *
+         * <p>This is one of the exceptions documented for
+         * {@link PresentationSession#getCredentialData(String, CredentialDataRequest)}, or a
+         * {@link RuntimeException}.
+         *
+         * @return the exception or {@code null} if retrieving data didn't fail.
+         */
+        public @Nullable Exception getException() {
+            return mException;
+        }
+    }
+
     /**
      * Gets a {@link BiometricPrompt.CryptoObject} which can be used with this
      * {@link PresentationSession}.
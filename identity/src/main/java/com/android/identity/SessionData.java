@@ -0,0 +1,208 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import android.util.Pair;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.OptionalLong;
+
+/**
+ * Encoder and decoder for the <code>SessionEstablishment</code> and <code>SessionData</code>
+ * CBOR as defined in ISO/IEC 18013-5 section 9.1.1.4 <em>Session establishment and
+ * termination</em>.
+ *
+ * <p>Both messages are maps with the optional keys <code>eReaderKey</code>,
+ * <code>data</code> and <code>status</code> so they're handled by the same class. Decoding
+ * is done in a single pass over the encoded bytes and the <code>data</code> field is
+ * exposed as a region of the passed-in buffer so ciphertext is never copied.
+ */
+final class SessionData {
+    private static final String KEY_E_READER_KEY = "eReaderKey";
+    private static final String KEY_DATA = "data";
+    private static final String KEY_STATUS = "status";
+
+    /**
+     * Used for writing <code>data</code> directly into the encoded message.
+     */
+    interface DataWriter {
+        /**
+         * Writes exactly {@code length} bytes at {@code offset} in {@code buffer}.
+         */
+        void write(@NonNull byte[] buffer, int offset, int length);
+    }
+
+    private CborSlice mEReaderKey;
+    private CborSlice mData;
+    private OptionalLong mStatus = OptionalLong.empty();
+
+    private SessionData() {
+    }
+
+    /**
+     * Decodes <code>SessionEstablishment</code> or <code>SessionData</code> CBOR.
+     *
+     * <p>Unknown map keys are ignored.
+     *
+     * @param encodedSessionData the bytes of the CBOR.
+     * @return the decoded message.
+     * @exception IllegalArgumentException if the data isn't well-formed or doesn't conform
+     *                                     to the CDDL.
+     */
+    static @NonNull SessionData decode(@NonNull byte[] encodedSessionData) {
+        CborSlice map = CborSlice.of(encodedSessionData);
+        if (map.getMajorType() != CborSlice.MAJOR_TYPE_MAP) {
+            throw new IllegalArgumentException("Item is not a map");
+        }
+        SessionData result = new SessionData();
+        for (Pair<CborSlice, CborSlice> entry : map.getMapEntries()) {
+            if (entry.first.getMajorType() != CborSlice.MAJOR_TYPE_UNICODE_STRING) {
+                continue;
+            }
+            CborSlice value = entry.second;
+            switch (entry.first.getString()) {
+                case KEY_E_READER_KEY:
+                    if (value.getMajorType() != CborSlice.MAJOR_TYPE_BYTE_STRING) {
+                        throw new IllegalArgumentException("eReaderKey is not a bstr");
+                    }
+                    result.mEReaderKey = value;
+                    break;
+                case KEY_DATA:
+                    if (value.getMajorType() != CborSlice.MAJOR_TYPE_BYTE_STRING) {
+                        throw new IllegalArgumentException("data is not a bstr");
+                    }
+                    result.mData = value;
+                    break;
+                case KEY_STATUS:
+                    if (value.getMajorType() != CborSlice.MAJOR_TYPE_UNSIGNED_INTEGER
+                            && value.getMajorType() != CborSlice.MAJOR_TYPE_NEGATIVE_INTEGER) {
+                        throw new IllegalArgumentException("status is not a number");
+                    }
+                    result.mStatus = OptionalLong.of(value.getLong());
+                    break;
+                default:
+                    break;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Gets the bytes of the <code>COSE_Key</code> embedded in <code>eReaderKey</code>.
+     *
+     * @return the encoded <code>COSE_Key</code> or {@code null} if not present.
+     */
+    @Nullable byte[] getEncodedEReaderKey() {
+        return mEReaderKey != null ? mEReaderKey.getByteString() : null;
+    }
+
+    /** Returns whether the message has a <code>data</code> field. */
+    boolean hasData() {
+        return mData != null;
+    }
+
+    /**
+     * Gets the buffer holding the <code>data</code> field, only valid if {@link #hasData()}
+     * returns {@code true}.
+     */
+    @NonNull byte[] getDataBuffer() {
+        return mData.getBuffer();
+    }
+
+    /** Gets the offset of the <code>data</code> field in {@link #getDataBuffer()}. */
+    int getDataOffset() {
+        return mData.getByteStringOffset();
+    }
+
+    /** Gets the length of the <code>data</code> field. */
+    int getDataLength() {
+        return mData.getByteStringLength();
+    }
+
+    /** Gets the <code>status</code> field, if present. */
+    @NonNull OptionalLong getStatus() {
+        return mStatus;
+    }
+
+    /**
+     * Encodes <code>SessionEstablishment</code> or <code>SessionData</code> CBOR.
+     *
+     * <p>The encoded message is allocated with its exact size and the data, if any, is
+     * written straight into it by {@code dataWriter}.
+     *
+     * @param encodedEReaderKey the bytes of the reader's <code>COSE_Key</code> or
+     *                          {@code null} to omit <code>eReaderKey</code>.
+     * @param dataLength the length of the data or -1 to omit <code>data</code>.
+     * @param dataWriter used to write the data, must be non-{@code null} if
+     *                   {@code dataLength} isn't -1.
+     * @param status the status to include, if any.
+     * @return the encoded message.
+     */
+    static @NonNull byte[] encode(@Nullable byte[] encodedEReaderKey,
+            int dataLength,
+            @Nullable DataWriter dataWriter,
+            @NonNull OptionalLong status) {
+        // Keys are in canonical order: "data", "status", "eReaderKey".
+        int numPairs = 0;
+        int size = 0;
+        if (dataLength != -1) {
+            numPairs += 1;
+            size += CborWriter.sizeOfString(KEY_DATA) + CborWriter.sizeOfByteString(dataLength);
+        }
+        if (status.isPresent()) {
+            numPairs += 1;
+            size += CborWriter.sizeOfString(KEY_STATUS)
+                    + CborWriter.sizeOfNumber(status.getAsLong());
+        }
+        if (encodedEReaderKey != null) {
+            numPairs += 1;
+            size += CborWriter.sizeOfString(KEY_E_READER_KEY)
+                    + CborWriter.sizeOfTaggedEncodedCbor(encodedEReaderKey.length);
+        }
+        CborWriter writer = new CborWriter(CborWriter.sizeOfHead(numPairs) + size);
+        writer.writeMapHead(numPairs);
+        if (dataLength != -1) {
+            writer.writeString(KEY_DATA).writeByteStringHead(dataLength);
+            int offset = writer.reserve(dataLength);
+            dataWriter.write(writer.getBuffer(), offset, dataLength);
+        }
+        if (status.isPresent()) {
+            writer.writeString(KEY_STATUS).writeNumber(status.getAsLong());
+        }
+        if (encodedEReaderKey != null) {
+            writer.writeString(KEY_E_READER_KEY).writeTaggedEncodedCbor(encodedEReaderKey);
+        }
+        return writer.toByteArray();
+    }
+
+    /**
+     * Like {@link #encode(byte[], int, DataWriter, OptionalLong)} but with the data
+     * passed in directly.
+     */
+    static @NonNull byte[] encode(@Nullable byte[] encodedEReaderKey,
+            @Nullable byte[] data,
+            @NonNull OptionalLong status) {
+        if (data == null) {
+            return encode(encodedEReaderKey, -1, null, status);
+        }
+        return encode(encodedEReaderKey, data.length,
+                (buffer, offset, length) -> System.arraycopy(data, 0, buffer, offset, length),
+                status);
+    }
+}
@@ -23,15 +23,12 @@ import android.util.Pair;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import java.io.ByteArrayInputStream;
 import java.nio.ByteBuffer;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
-import java.util.List;
 import java.util.OptionalLong;
 
 import javax.crypto.BadPaddingException;
@@ -39,18 +36,12 @@ import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.KeyAgreement;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 import co.nstant.in.cbor.CborBuilder;
-import co.nstant.in.cbor.CborDecoder;
-import co.nstant.in.cbor.CborException;
-import co.nstant.in.cbor.builder.MapBuilder;
-import co.nstant.in.cbor.model.ByteString;
 import co.nstant.in.cbor.model.DataItem;
-import co.nstant.in.cbor.model.Map;
-import co.nstant.in.cbor.model.Number;
-import co.nstant.in.cbor.model.UnicodeString;
 
 /**
  * A helper class for encrypting and decrypting messages exchanged with a remote
@@ -117,39 +108,46 @@ final class SessionEncryptionDevice {
                     + "from the reader has been received");
         }
 
-        byte[] messageCiphertextAndAuthTag = null;
-        if (messagePlaintext != null) {
-            try {
-                // The IV and these constants are specified in ISO/IEC 18013-5:2021 clause 9.1.1.5.
-                ByteBuffer iv = ByteBuffer.allocate(12);
-                iv.putInt(0, 0x00000000);
-                iv.putInt(4, 0x00000001);
-                iv.putInt(8, mSKDeviceCounter);
-                Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-                GCMParameterSpec encryptionParameterSpec = new GCMParameterSpec(128, iv.array());
-                cipher.init(Cipher.ENCRYPT_MODE, mSKDevice, encryptionParameterSpec);
-                messageCiphertextAndAuthTag = cipher.doFinal(messagePlaintext);
-            } catch (BadPaddingException
-                    | IllegalBlockSizeException
-                    | NoSuchPaddingException
-                    | InvalidKeyException
-                    | NoSuchAlgorithmException
-                    | InvalidAlgorithmParameterException e) {
-                throw new IllegalStateException("Error encrypting message", e);
-            }
-            mSKDeviceCounter += 1;
+        if (messagePlaintext == null) {
+            return SessionData.encode(null, -1, null, statusCode);
         }
 
-        CborBuilder builder = new CborBuilder();
-        MapBuilder<CborBuilder> mapBuilder = builder.addMap();
-        if (messageCiphertextAndAuthTag != null) {
-            mapBuilder.put("data", messageCiphertextAndAuthTag);
-        }
-        if (statusCode.isPresent()) {
-            mapBuilder.put("status", statusCode.getAsLong());
+        final Cipher cipher;
+        try {
+            // The IV and these constants are specified in ISO/IEC 18013-5:2021 clause 9.1.1.5.
+            ByteBuffer iv = ByteBuffer.allocate(12);
+            iv.putInt(0, 0x00000000);
+            iv.putInt(4, 0x00000001);
+            iv.putInt(8, mSKDeviceCounter);
+            GCMParameterSpec encryptionParameterSpec = new GCMParameterSpec(128, iv.array());
+            cipher = CryptoPool.getCipher("AES/GCM/NoPadding", Cipher.ENCRYPT_MODE, mSKDevice,
+                    encryptionParameterSpec);
+        } catch (NoSuchPaddingException
+                | InvalidKeyException
+                | NoSuchAlgorithmException
+                | InvalidAlgorithmParameterException e) {
+            throw new IllegalStateException("Error encrypting message", e);
         }
-        mapBuilder.end();
-        return Util.cborEncode(builder.build().get(0));
+        // The ciphertext is written directly into the resulting SessionData.
+        byte[] messageData = SessionData.encode(null,
+                cipher.getOutputSize(messagePlaintext.length),
+                (buffer, offset, length) -> {
+                    try {
+                        int written = cipher.doFinal(messagePlaintext, 0,
+                                messagePlaintext.length, buffer, offset);
+                        if (written != length) {
+                            throw new IllegalStateException(
+                                    "Unexpected ciphertext length " + written);
+                        }
+                    } catch (BadPaddingException
+                            | IllegalBlockSizeException
+                            | ShortBufferException e) {
+                        throw new IllegalStateException("Error encrypting message", e);
+                    }
+                },
+                statusCode);
+        mSKDeviceCounter += 1;
+        return messageData;
     }
 
     /**
@@ -168,64 +166,32 @@ final class SessionEncryptionDevice {
      */
     public @Nullable Pair<byte[], OptionalLong> decryptMessageFromReader(
             @NonNull byte[] messageData) {
-        ByteArrayInputStream bais = new ByteArrayInputStream(messageData);
-        List<DataItem> dataItems = null;
-        try {
-            dataItems = new CborDecoder(bais).decode();
-        } catch (CborException e) {
-            throw new IllegalArgumentException("Data is not valid CBOR", e);
-        }
-        if (dataItems.size() != 1) {
-            throw new IllegalArgumentException("Expected 1 item, found " + dataItems.size());
-        }
-        if (!(dataItems.get(0) instanceof Map)) {
-            throw new IllegalArgumentException("Item is not a map");
-        }
-        Map map = (Map) dataItems.get(0);
+        SessionData sessionData = SessionData.decode(messageData);
 
         if (!mEReaderKeyReceived) {
             // If it's the first message, retrieve reader key and setup crypto
-            DataItem dataItemEReaderKey = map.get(new UnicodeString("eReaderKey"));
-            if (!(dataItemEReaderKey instanceof ByteString)) {
+            byte[] eReaderKeyBytes = sessionData.getEncodedEReaderKey();
+            if (eReaderKeyBytes == null) {
                 throw new IllegalArgumentException("No 'eReaderKey' item found or not bstr");
             }
-            byte[] eReaderKeyBytes = ((ByteString) dataItemEReaderKey).getBytes();
-            DataItem eReaderKey = Util.cborDecode(eReaderKeyBytes);
             mEncodedEReaderKeyPub = eReaderKeyBytes;
-            mEReaderKeyPub = Util.coseKeyDecode(eReaderKey);
+            mEReaderKeyPub = Util.coseKeyDecode(CborSlice.of(eReaderKeyBytes));
             mEReaderKeyReceived = true;
             computeEncryptionKeysAndSessionTranscript();
         }
 
-        DataItem dataItemData = map.get(new UnicodeString("data"));
-        byte[] messageCiphertext = null;
-        if (dataItemData != null) {
-            if (!(dataItemData instanceof ByteString)) {
-                throw new IllegalArgumentException("data is not a bstr");
-            }
-            messageCiphertext = ((ByteString) dataItemData).getBytes();
-        }
-
-        OptionalLong status = OptionalLong.empty();
-        DataItem dataItemStatus = map.get(new UnicodeString("status"));
-        if (dataItemStatus != null) {
-            if (!(dataItemStatus instanceof Number)) {
-                throw new IllegalArgumentException("status is not a number");
-            }
-            status = OptionalLong.of(((Number) dataItemStatus).getValue().longValue());
-        }
-
         byte[] plainText = null;
-        if (messageCiphertext != null) {
+        if (sessionData.hasData()) {
             ByteBuffer iv = ByteBuffer.allocate(12);
             iv.putInt(0, 0x00000000);
             iv.putInt(4, 0x00000000);
             iv.putInt(8, mSKReaderCounter);
             try {
-                final Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-                cipher.init(Cipher.DECRYPT_MODE, mSKReader, new GCMParameterSpec(128,
-                        iv.array()));
-                plainText = cipher.doFinal(messageCiphertext);
+                final Cipher cipher = CryptoPool.getCipher("AES/GCM/NoPadding",
+                        Cipher.DECRYPT_MODE, mSKReader, new GCMParameterSpec(128, iv.array()));
+                // Decrypt straight from the received message to avoid copying the ciphertext.
+                plainText = cipher.doFinal(sessionData.getDataBuffer(),
+                        sessionData.getDataOffset(), sessionData.getDataLength());
             } catch (BadPaddingException
                     | IllegalBlockSizeException
                     | InvalidAlgorithmParameterException
@@ -237,7 +203,7 @@ final class SessionEncryptionDevice {
             mSKReaderCounter += 1;
         }
 
-        return new Pair<>(plainText, status);
+        return new Pair<>(plainText, sessionData.getStatus());
     }
 
     private void computeEncryptionKeysAndSessionTranscript() {
@@ -255,14 +221,13 @@ final class SessionEncryptionDevice {
                 .build().get(0));
 
         try {
-            KeyAgreement ka = KeyAgreement.getInstance("ECDH");
-            ka.init(mEDeviceKeyPrivate);
+            KeyAgreement ka = CryptoPool.getKeyAgreement("ECDH", mEDeviceKeyPrivate);
             ka.doPhase(mEReaderKeyPub, true);
             byte[] sharedSecret = ka.generateSecret();
 
             byte[] sessionTranscriptBytes = Util.cborEncode(
                     Util.cborBuildTaggedByteString(mEncodedSessionTranscript));
-            byte[] salt = MessageDigest.getInstance("SHA-256").digest(sessionTranscriptBytes);
+            byte[] salt = CryptoPool.getMessageDigest("SHA-256").digest(sessionTranscriptBytes);
 
             byte[] info = "SKDevice".getBytes(UTF_8);
             byte[] derivedKey = Util.computeHkdf("HmacSha256", sharedSecret, salt, info, 32);
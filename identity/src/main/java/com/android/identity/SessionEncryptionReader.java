@@ -23,36 +23,26 @@ import android.util.Pair;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import java.io.ByteArrayInputStream;
 import java.nio.ByteBuffer;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
-import java.util.List;
 import java.util.OptionalInt;
+import java.util.OptionalLong;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.KeyAgreement;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 import co.nstant.in.cbor.CborBuilder;
-import co.nstant.in.cbor.CborDecoder;
-import co.nstant.in.cbor.CborException;
-import co.nstant.in.cbor.builder.MapBuilder;
-import co.nstant.in.cbor.model.Array;
-import co.nstant.in.cbor.model.ByteString;
 import co.nstant.in.cbor.model.DataItem;
-import co.nstant.in.cbor.model.Map;
-import co.nstant.in.cbor.model.Number;
-import co.nstant.in.cbor.model.UnicodeString;
-import co.nstant.in.cbor.model.UnsignedInteger;
 
 
 /**
@@ -99,49 +89,12 @@ final class SessionEncryptionReader {
     }
 
     private PublicKey deviceEngagementExtractEDeviceKey(byte[] encodedDeviceEngagement) {
-        ByteArrayInputStream bais = new ByteArrayInputStream(encodedDeviceEngagement);
-        List<DataItem> dataItems;
-        try {
-            dataItems = new CborDecoder(bais).decode();
-        } catch (CborException e) {
-            throw new IllegalArgumentException("Data is not valid CBOR", e);
-        }
-        if (dataItems.size() != 1) {
-            throw new IllegalArgumentException("Expected 1 item, found " + dataItems.size());
-        }
-        if (!(dataItems.get(0) instanceof Map)) {
-            throw new IllegalArgumentException("Item is not a map");
-        }
-        Map map = (Map) dataItems.get(0);
-        DataItem dataItemSecurity = map.get(new UnsignedInteger(1));
-        if (!(dataItemSecurity instanceof Array)) {
-            throw new IllegalArgumentException("Key 1 (Security) is not set or not array");
-        }
-        List<DataItem> securityArrayDataItems = ((Array) dataItemSecurity).getDataItems();
-        if (securityArrayDataItems.size() < 2) {
-            throw new IllegalArgumentException("Security array is shorter than two elements");
-        }
-
-        DataItem cipherSuiteDataItem = securityArrayDataItems.get(0);
-        if (!(cipherSuiteDataItem instanceof Number)) {
-            throw new IllegalArgumentException("Cipher suite not a Number");
-        }
-        long cipherSuite = ((Number) cipherSuiteDataItem).getValue().longValue();
+        DeviceEngagement deviceEngagement = DeviceEngagement.decode(encodedDeviceEngagement);
+        long cipherSuite = deviceEngagement.getCipherSuite();
         if (cipherSuite != 1) {
             throw new IllegalArgumentException("Expected cipher suite 1, got " + cipherSuite);
         }
-
-        DataItem eDeviceKeyBytesDataItem = securityArrayDataItems.get(1);
-        if (!(eDeviceKeyBytesDataItem instanceof ByteString)) {
-            throw new IllegalArgumentException("eDeviceKeyBytes not a bstr");
-        }
-        if (eDeviceKeyBytesDataItem.getTag().getValue() != 24) {
-            throw new IllegalArgumentException("eDeviceKeyBytes is not tagged with tag 24");
-        }
-        byte[] eDeviceKeyBytes = ((ByteString) eDeviceKeyBytesDataItem).getBytes();
-
-        DataItem eDeviceKey = Util.cborDecode(eDeviceKeyBytes);
-        return Util.coseKeyDecode(eDeviceKey);
+        return deviceEngagement.getEDeviceKey();
     }
 
     private void ensureSessionEncryptionKeysAndSessionTranscript() {
@@ -154,7 +107,7 @@ final class SessionEncryptionReader {
         // TODO: See SessionEncryptionDevice#computeEncryptionKeysAndSessionTranscript()
         //  for similar code. Maybe maybe factor into common utility function.
         //
-        byte[] encodedEReaderKeyPub = Util.cborEncode(Util.cborBuildCoseKey(mEReaderKeyPublic));
+        byte[] encodedEReaderKeyPub = Util.cborEncodeCoseKey(mEReaderKeyPublic);
         mEncodedSessionTranscript = Util.cborEncode(new CborBuilder()
                 .addArray()
                 .add(Util.cborBuildTaggedByteString(mEncodedDeviceEngagement))
@@ -164,14 +117,13 @@ final class SessionEncryptionReader {
                 .build().get(0));
 
         try {
-            KeyAgreement ka = KeyAgreement.getInstance("ECDH");
-            ka.init(mEReaderKeyPrivate);
+            KeyAgreement ka = CryptoPool.getKeyAgreement("ECDH", mEReaderKeyPrivate);
             ka.doPhase(eDeviceKeyPub, true);
             byte[] sharedSecret = ka.generateSecret();
 
             byte[] sessionTranscriptBytes = Util.cborEncode(
                     Util.cborBuildTaggedByteString(mEncodedSessionTranscript));
-            byte[] salt = MessageDigest.getInstance("SHA-256").digest(sessionTranscriptBytes);
+            byte[] salt = CryptoPool.getMessageDigest("SHA-256").digest(sessionTranscriptBytes);
 
             byte[] info = "SKDevice".getBytes(UTF_8);
             byte[] derivedKey = Util.computeHkdf("HmacSha256", sharedSecret, salt, info, 32);
@@ -202,49 +154,58 @@ final class SessionEncryptionReader {
     public @NonNull byte[] encryptMessageToDevice(@Nullable byte[] messagePlaintext,
             @NonNull OptionalInt statusCode) {
         ensureSessionEncryptionKeysAndSessionTranscript();
-        byte[] messageCiphertext = null;
-        if (messagePlaintext != null) {
+        byte[] encodedEReaderKey = null;
+        if (!mSessionEstablishmentSent) {
+            if (messagePlaintext == null) {
+                throw new IllegalStateException("Data cannot be empty in initial message");
+            }
+            encodedEReaderKey = Util.cborEncodeCoseKey(mEReaderKeyPublic);
+        }
+
+        OptionalLong status = statusCode.isPresent()
+                ? OptionalLong.of(statusCode.getAsInt()) : OptionalLong.empty();
+        byte[] messageData;
+        if (messagePlaintext == null) {
+            messageData = SessionData.encode(encodedEReaderKey, -1, null, status);
+        } else {
+            final Cipher cipher;
             try {
                 // The IV and these constants are specified in ISO/IEC 18013-5:2021 clause 9.1.1.5.
                 ByteBuffer iv = ByteBuffer.allocate(12);
                 iv.putInt(0, 0x00000000);
                 iv.putInt(4, 0x00000000);
                 iv.putInt(8, mSKReaderCounter);
-                Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
                 GCMParameterSpec encryptionParameterSpec = new GCMParameterSpec(128, iv.array());
-                cipher.init(Cipher.ENCRYPT_MODE, mSKReader, encryptionParameterSpec);
-                messageCiphertext = cipher.doFinal(messagePlaintext); // This includes the auth tag
-            } catch (BadPaddingException
-                    | IllegalBlockSizeException
-                    | NoSuchPaddingException
+                cipher = CryptoPool.getCipher("AES/GCM/NoPadding", Cipher.ENCRYPT_MODE, mSKReader,
+                        encryptionParameterSpec);
+            } catch (NoSuchPaddingException
                     | InvalidKeyException
                     | NoSuchAlgorithmException
                     | InvalidAlgorithmParameterException e) {
                 throw new IllegalStateException("Error encrypting message", e);
             }
+            // The ciphertext, including the auth tag, is written directly into the resulting
+            // SessionEstablishment or SessionData.
+            messageData = SessionData.encode(encodedEReaderKey,
+                    cipher.getOutputSize(messagePlaintext.length),
+                    (buffer, offset, length) -> {
+                        try {
+                            int written = cipher.doFinal(messagePlaintext, 0,
+                                    messagePlaintext.length, buffer, offset);
+                            if (written != length) {
+                                throw new IllegalStateException(
+                                        "Unexpected ciphertext length " + written);
+                            }
+                        } catch (BadPaddingException
+                                | IllegalBlockSizeException
+                                | ShortBufferException e) {
+                            throw new IllegalStateException("Error encrypting message", e);
+                        }
+                    },
+                    status);
             mSKReaderCounter += 1;
         }
 
-        CborBuilder builder = new CborBuilder();
-        MapBuilder<CborBuilder> mapBuilder = builder.addMap();
-        if (!mSessionEstablishmentSent) {
-            DataItem eReaderKey = Util.cborBuildCoseKey(mEReaderKeyPublic);
-            DataItem eReaderKeyBytes = Util.cborBuildTaggedByteString(
-                    Util.cborEncode(eReaderKey));
-            mapBuilder.put(new UnicodeString("eReaderKey"), eReaderKeyBytes);
-            if (messageCiphertext == null) {
-                throw new IllegalStateException("Data cannot be empty in initial message");
-            }
-        }
-        if (messageCiphertext != null) {
-            mapBuilder.put("data", messageCiphertext);
-        }
-        if (statusCode.isPresent()) {
-            mapBuilder.put("status", statusCode.getAsInt());
-        }
-        mapBuilder.end();
-        byte[] messageData = Util.cborEncode(builder.build().get(0));
-
         mSessionEstablishmentSent = true;
 
         return messageData;
@@ -266,50 +227,25 @@ final class SessionEncryptionReader {
      */
     public @NonNull Pair<byte[], OptionalInt> decryptMessageFromDevice(
             @NonNull byte[] messageData) {
-        ByteArrayInputStream bais = new ByteArrayInputStream(messageData);
-        List<DataItem> dataItems;
-        try {
-            dataItems = new CborDecoder(bais).decode();
-        } catch (CborException e) {
-            throw new IllegalArgumentException("Data is not valid CBOR", e);
-        }
-        if (dataItems.size() != 1) {
-            throw new IllegalArgumentException("Expected 1 item, found " + dataItems.size());
-        }
-        if (!(dataItems.get(0) instanceof Map)) {
-            throw new IllegalArgumentException("Item is not a map");
-        }
-        Map map = (Map) dataItems.get(0);
-
-        DataItem dataItemData = map.get(new UnicodeString("data"));
-        byte[] messageCiphertext = null;
-        if (dataItemData != null) {
-            if (!(dataItemData instanceof ByteString)) {
-                throw new IllegalArgumentException("data is not a bstr");
-            }
-            messageCiphertext = ((ByteString) dataItemData).getBytes();
-        }
-
+        SessionData sessionData = SessionData.decode(messageData);
         OptionalInt status = OptionalInt.empty();
-        DataItem dataItemStatus = map.get(new UnicodeString("status"));
-        if (dataItemStatus != null) {
-            if (!(dataItemStatus instanceof Number)) {
-                throw new IllegalArgumentException("status is not a number");
-            }
-            status = OptionalInt.of(((Number) dataItemStatus).getValue().intValue());
+        if (sessionData.getStatus().isPresent()) {
+            status = OptionalInt.of((int) sessionData.getStatus().getAsLong());
         }
 
         byte[] plainText = null;
-        if (messageCiphertext != null) {
+        if (sessionData.hasData()) {
             ensureSessionEncryptionKeysAndSessionTranscript();
             ByteBuffer iv = ByteBuffer.allocate(12);
             iv.putInt(0, 0x00000000);
             iv.putInt(4, 0x00000001);
             iv.putInt(8, mSKDeviceCounter);
             try {
-                final Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-                cipher.init(Cipher.DECRYPT_MODE, mSKDevice, new GCMParameterSpec(128, iv.array()));
-                plainText = cipher.doFinal(messageCiphertext);
+                final Cipher cipher = CryptoPool.getCipher("AES/GCM/NoPadding",
+                        Cipher.DECRYPT_MODE, mSKDevice, new GCMParameterSpec(128, iv.array()));
+                // Decrypt straight from the received message to avoid copying the ciphertext.
+                plainText = cipher.doFinal(sessionData.getDataBuffer(),
+                        sessionData.getDataOffset(), sessionData.getDataLength());
             } catch (BadPaddingException
                     | IllegalBlockSizeException
                     | InvalidAlgorithmParameterException
@@ -27,8 +27,6 @@ import androidx.annotation.Nullable;
 import androidx.biometric.BiometricPrompt;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
@@ -42,15 +40,14 @@ import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.Signature;
 import java.security.UnrecoverableEntryException;
-import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.security.interfaces.ECPublicKey;
 import java.security.spec.ECGenParameterSpec;
 import java.security.spec.ECPoint;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 
 import javax.crypto.BadPaddingException;
@@ -62,11 +59,8 @@ import javax.crypto.SecretKey;
 import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
-import co.nstant.in.cbor.CborBuilder;
 import co.nstant.in.cbor.CborDecoder;
-import co.nstant.in.cbor.CborEncoder;
 import co.nstant.in.cbor.CborException;
-import co.nstant.in.cbor.builder.MapBuilder;
 import co.nstant.in.cbor.model.DataItem;
 import co.nstant.in.cbor.model.Map;
 import co.nstant.in.cbor.model.UnicodeString;
@@ -108,16 +102,25 @@ class SoftwareIdentityCredential extends IdentityCredential {
     }
 
     boolean loadData() {
-        mData = CredentialData.loadCredentialData(mContext, mCredentialName);
+        CredentialDataCache cache = CredentialDataCache.getInstance();
+        mData = cache.get(mCredentialName);
+        if (mData == null) {
+            mData = CredentialData.loadCredentialData(mContext, mCredentialName);
+            if (mData != null) {
+                cache.put(mCredentialName, mData);
+            }
+        }
         return mData != null;
     }
 
     static byte[] delete(Context context, String credentialName) {
+        CredentialDataCache.getInstance().invalidate(credentialName);
         return CredentialData.delete(context, credentialName, null);
     }
 
     @Override
     public @NonNull byte[] delete(@NonNull byte[] challenge)  {
+        CredentialDataCache.getInstance().invalidate(mCredentialName);
         return CredentialData.delete(mContext, mCredentialName, challenge);
     }
 
@@ -322,17 +325,13 @@ class SoftwareIdentityCredential extends IdentityCredential {
             return;
         }
         try {
-            KeyStore ks = KeyStore.getInstance("AndroidKeyStore");
-            ks.load(null);
-            KeyStore.Entry entry = ks.getEntry(aliasForCryptoObject, null);
+            KeyStore.Entry entry = KeyStoreCache.getEntry(aliasForCryptoObject);
             SecretKey perReaderSessionKey = ((KeyStore.SecretKeyEntry) entry).getSecretKey();
             Cipher perReaderSessionCipher = Cipher.getInstance("AES/GCM/NoPadding");
             perReaderSessionCipher.init(Cipher.ENCRYPT_MODE, perReaderSessionKey);
             mCryptoObject = new BiometricPrompt.CryptoObject(perReaderSessionCipher);
-        } catch (CertificateException
-                | NoSuchPaddingException
+        } catch (NoSuchPaddingException
                 | InvalidKeyException
-                | IOException
                 | NoSuchAlgorithmException
                 | KeyStoreException
                 | UnrecoverableEntryException e) {
@@ -350,7 +349,8 @@ class SoftwareIdentityCredential extends IdentityCredential {
         mAuthKeyAndStaticData = mData.selectAuthenticationKey(
                 mAllowUsingExhaustedKeys,
                 mAllowUsingExpiredKeys,
-                mIncrementKeyUsageCount);
+                mIncrementKeyUsageCount,
+                AuthKeyPool.getPolicy(mAuthKeySelectionPolicy));
         if (mAuthKeyAndStaticData == null) {
             throw new NoAuthenticationKeyAvailableException(
                     "No authentication key available for signing");
@@ -359,6 +359,8 @@ class SoftwareIdentityCredential extends IdentityCredential {
 
     boolean mAllowUsingExhaustedKeys = true;
     boolean mAllowUsingExpiredKeys = false;
+    @CredentialDataRequest.AuthenticationKeySelectionPolicy int mAuthKeySelectionPolicy =
+            CredentialDataRequest.AUTHENTICATION_KEY_SELECTION_LEAST_USED;
 
     @SuppressWarnings("deprecation")
     @Override
@@ -378,6 +380,11 @@ class SoftwareIdentityCredential extends IdentityCredential {
         mIncrementKeyUsageCount = incrementKeyUsageCount;
     }
 
+    void setAuthenticationKeySelectionPolicy(
+            @CredentialDataRequest.AuthenticationKeySelectionPolicy int policy) {
+        mAuthKeySelectionPolicy = policy;
+    }
+
 
     @Override
     @Nullable
@@ -453,80 +460,146 @@ class SoftwareIdentityCredential extends IdentityCredential {
             InvalidReaderSignatureException, InvalidRequestMessageException,
             EphemeralPublicKeyNotFoundException {
 
-        if (mPresentationSession == null) {
-            if (mSessionTranscript != null && !hasEphemeralKeyInSessionTranscript(
-                    mSessionTranscript)) {
-                throw new EphemeralPublicKeyNotFoundException(
-                        "Did not find ephemeral public key X and Y coordinates in "
-                                + "SessionTranscript (make sure leading zeroes are not used)"
-                                + ". Session Transcript: " + Util.toHex(mSessionTranscript));
-            }
-        }
-
+        checkEphemeralKeyInSessionTranscript();
         HashMap<String, Collection<String>> requestMessageMap = parseRequestMessage(requestMessage);
+        Collection<X509Certificate> readerCertChain =
+                checkReaderSignature(requestMessage, readerSignature);
 
-        // Check reader signature, if requested.
-        Collection<X509Certificate> readerCertChain = null;
-        if (readerSignature != null) {
-            if (mSessionTranscript == null) {
-                throw new InvalidReaderSignatureException(
-                        "readerSignature non-null but sessionTranscript was null");
-            }
-            if (requestMessage == null) {
-                throw new InvalidReaderSignatureException(
-                        "readerSignature non-null but requestMessage was null");
-            }
+        SimpleResultData.Builder resultBuilder = new SimpleResultData.Builder();
+        java.util.Map<String, java.util.Map<String, byte[]>> deviceNameSpaces =
+                new LinkedHashMap<>();
 
-            DataItem readerSignatureItem = Util.cborDecode(readerSignature);
-            readerCertChain = Util.coseSign1GetX5Chain(readerSignatureItem);
-            if (readerCertChain.size() < 1) {
-                throw new InvalidReaderSignatureException("No x5chain element in reader signature");
-            }
-            if (!Util.validateCertificateChain(readerCertChain)) {
+        retrieveValues(requestMessage,
+                requestMessageMap,
+                readerCertChain,
+                entriesToRequest,
+                resultBuilder,
+                deviceNameSpaces);
+
+        signDeviceNameSpaces(resultBuilder, deviceNameSpaces);
+        return resultBuilder.build();
+    }
+
+    /**
+     * Retrieves both the device-signed and the issuer-signed entries for
+     * {@link PresentationSession#getCredentialData(String, CredentialDataRequest)}.
+     *
+     * <p>This is equivalent to calling {@link #getEntries(byte[], java.util.Map, byte[])} for
+     * each of the two sets of entries, except that the request message is parsed and the
+     * reader signature is checked only once and that only the DeviceNameSpaces containing
+     * the device-signed entries is signed, since the signature and DeviceNameSpaces for the
+     * issuer-signed entries are never returned to the application.
+     *
+     * <p>If {@code verifiedReaderAuthentication} was checked against the given request message
+     * and the session transcript of this credential, the reader signature isn't checked again.
+     * Otherwise {@code readerSignature} is checked as usual.
+     */
+    @SuppressWarnings("deprecation")
+    @NonNull CredentialDataResult getCredentialData(
+            @Nullable byte[] requestMessage,
+            @NonNull java.util.Map<String, Collection<String>> deviceSignedEntriesToRequest,
+            @NonNull java.util.Map<String, Collection<String>> issuerSignedEntriesToRequest,
+            @Nullable byte[] readerSignature,
+            @Nullable VerifiedReaderAuthentication verifiedReaderAuthentication)
+            throws NoAuthenticationKeyAvailableException,
+            InvalidReaderSignatureException, InvalidRequestMessageException,
+            EphemeralPublicKeyNotFoundException {
+
+        checkEphemeralKeyInSessionTranscript();
+        HashMap<String, Collection<String>> requestMessageMap = parseRequestMessage(requestMessage);
+        Collection<X509Certificate> readerCertChain = null;
+        if (verifiedReaderAuthentication != null
+                && requestMessage != null
+                && mSessionTranscript != null
+                && verifiedReaderAuthentication.matches(requestMessage, mSessionTranscript)) {
+            if (!verifiedReaderAuthentication.isCertificateChainValid()) {
                 throw new InvalidReaderSignatureException("Error validating certificate chain");
             }
-            PublicKey readerTopmostPublicKey = readerCertChain.iterator().next().getPublicKey();
-
-            byte[] readerAuthentication = Util.cborEncode(new CborBuilder()
-                    .addArray()
-                    .add("ReaderAuthentication")
-                    .add(Util.cborDecode(mSessionTranscript))
-                    .add(Util.cborBuildTaggedByteString(requestMessage))
-                    .end()
-                    .build().get(0));
-
-            byte[] readerAuthenticationBytes =
-                    Util.cborEncode(Util.cborBuildTaggedByteString(readerAuthentication));
-            if (!Util.coseSign1CheckSignature(
-                    Util.cborDecode(readerSignature),
-                    readerAuthenticationBytes,
-                    readerTopmostPublicKey)) {
-                throw new InvalidReaderSignatureException("Reader signature check failed");
-            }
+            readerCertChain = verifiedReaderAuthentication.getReaderCertificateChain();
+        } else {
+            readerCertChain = checkReaderSignature(requestMessage, readerSignature);
         }
 
-        SimpleResultData.Builder resultBuilder = new SimpleResultData.Builder();
-
-        CborBuilder deviceNameSpaceBuilder = new CborBuilder();
-        MapBuilder<CborBuilder> deviceNameSpacesMapBuilder = deviceNameSpaceBuilder.addMap();
-
+        SimpleResultData.Builder deviceSignedBuilder = new SimpleResultData.Builder();
+        java.util.Map<String, java.util.Map<String, byte[]>> deviceNameSpaces =
+                new LinkedHashMap<>();
+        retrieveValues(requestMessage,
+                requestMessageMap,
+                readerCertChain,
+                deviceSignedEntriesToRequest,
+                deviceSignedBuilder,
+                deviceNameSpaces);
+        signDeviceNameSpaces(deviceSignedBuilder, deviceNameSpaces);
 
+        SimpleResultData.Builder issuerSignedBuilder = new SimpleResultData.Builder();
         retrieveValues(requestMessage,
                 requestMessageMap,
                 readerCertChain,
-                entriesToRequest,
-                resultBuilder,
-                deviceNameSpacesMapBuilder);
+                issuerSignedEntriesToRequest,
+                issuerSignedBuilder,
+                null);
 
-        ByteArrayOutputStream adBaos = new ByteArrayOutputStream();
-        CborEncoder adEncoder = new CborEncoder(adBaos);
-        DataItem deviceNameSpace = deviceNameSpaceBuilder.build().get(0);
-        try {
-            adEncoder.encode(deviceNameSpace);
-        } catch (CborException e) {
-            throw new RuntimeException("Error encoding deviceNameSpace", e);
+        return new SimpleCredentialDataResult(deviceSignedBuilder.build(),
+                issuerSignedBuilder.build());
+    }
+
+    private void checkEphemeralKeyInSessionTranscript()
+            throws EphemeralPublicKeyNotFoundException {
+        if (mPresentationSession == null) {
+            if (mSessionTranscript != null && !hasEphemeralKeyInSessionTranscript(
+                    mSessionTranscript)) {
+                throw new EphemeralPublicKeyNotFoundException(
+                        "Did not find ephemeral public key X and Y coordinates in "
+                                + "SessionTranscript (make sure leading zeroes are not used)"
+                                + ". Session Transcript: " + Util.toHex(mSessionTranscript));
+            }
         }
-        byte[] authenticatedData = adBaos.toByteArray();
+    }
+
+    // Checks the reader signature, if requested, and returns the reader certificate chain
+    // or null if there is no reader signature.
+    private @Nullable Collection<X509Certificate> checkReaderSignature(
+            @Nullable byte[] requestMessage,
+            @Nullable byte[] readerSignature) throws InvalidReaderSignatureException {
+        if (readerSignature == null) {
+            return null;
+        }
+        if (mSessionTranscript == null) {
+            throw new InvalidReaderSignatureException(
+                    "readerSignature non-null but sessionTranscript was null");
+        }
+        if (requestMessage == null) {
+            throw new InvalidReaderSignatureException(
+                    "readerSignature non-null but requestMessage was null");
+        }
+
+        DataItem readerSignatureItem = Util.cborDecode(readerSignature);
+        Collection<X509Certificate> readerCertChain =
+                Util.coseSign1GetX5Chain(readerSignatureItem);
+        if (readerCertChain.size() < 1) {
+            throw new InvalidReaderSignatureException("No x5chain element in reader signature");
+        }
+        if (!Util.validateCertificateChain(readerCertChain)) {
+            throw new InvalidReaderSignatureException("Error validating certificate chain");
+        }
+        PublicKey readerTopmostPublicKey =
+                CertificateCache.getPublicKey(readerCertChain.iterator().next());
+
+        byte[] readerAuthenticationBytes =
+                Util.buildReaderAuthenticationBytes(mSessionTranscript, requestMessage);
+        if (!Util.coseSign1CheckSignature(
+                readerSignatureItem,
+                readerAuthenticationBytes,
+                readerTopmostPublicKey)) {
+            throw new InvalidReaderSignatureException("Reader signature check failed");
+        }
+        return readerCertChain;
+    }
+
+    private void signDeviceNameSpaces(SimpleResultData.Builder resultBuilder,
+            java.util.Map<String, java.util.Map<String, byte[]>> deviceNameSpaces)
+            throws NoAuthenticationKeyAvailableException {
+        byte[] authenticatedData = Util.cborEncodeDeviceNameSpaces(deviceNameSpaces);
         resultBuilder.setAuthenticatedData(authenticatedData);
 
         // If the sessionTranscript is available, create the ECDSA signature
@@ -544,17 +617,8 @@ class SoftwareIdentityCredential extends IdentityCredential {
 
             resultBuilder.setStaticAuthenticationData(mAuthKeyAndStaticData.second);
 
-            byte[] deviceAuthentication = Util.cborEncode(new CborBuilder()
-                    .addArray()
-                    .add("DeviceAuthentication")
-                    .add(Util.cborDecode(mSessionTranscript))
-                    .add(mData.getDocType())
-                    .add(Util.cborBuildTaggedByteString(authenticatedData))
-                    .end()
-                    .build().get(0));
-
-            byte[] deviceAuthenticationBytes =
-                    Util.cborEncode(Util.cborBuildTaggedByteString(deviceAuthentication));
+            byte[] deviceAuthenticationBytes = Util.buildDeviceAuthenticationBytes(
+                    mSessionTranscript, mData.getDocType(), authenticatedData);
 
             try {
                 Signature authKeySignature = Signature.getInstance("SHA256withECDSA");
@@ -569,8 +633,6 @@ class SoftwareIdentityCredential extends IdentityCredential {
                 throw new RuntimeException("Error signing DeviceAuthentication CBOR", e);
             }
         }
-
-        return resultBuilder.build();
     }
 
     private void retrieveValues(
@@ -579,47 +641,57 @@ class SoftwareIdentityCredential extends IdentityCredential {
             Collection<X509Certificate> readerCertChain,
             java.util.Map<String, Collection<String>> entriesToRequest,
             SimpleResultData.Builder resultBuilder,
-            MapBuilder<CborBuilder> deviceNameSpacesMapBuilder) {
+            java.util.Map<String, java.util.Map<String, byte[]>> deviceNameSpaces) {
 
-        for (String namespaceName : entriesToRequest.keySet()) {
-            Collection<String> entriesToRequestInNamespace = entriesToRequest.get(namespaceName);
-
-            PersonalizationData.NamespaceData loadedNamespace = mData.lookupNamespaceData(
-                    namespaceName);
+        try {
+            for (String namespaceName : entriesToRequest.keySet()) {
+                Collection<String> entriesToRequestInNamespace =
+                        entriesToRequest.get(namespaceName);
 
-            Collection<String> requestMessageNamespace = requestMessageMap.get(namespaceName);
+                PersonalizationData.NamespaceData loadedNamespace = mData.lookupNamespaceData(
+                        namespaceName);
 
-            retrieveValuesForNamespace(resultBuilder,
-                    deviceNameSpacesMapBuilder,
-                    entriesToRequestInNamespace,
-                    requestMessage,
-                    requestMessageNamespace,
-                    readerCertChain,
-                    namespaceName,
-                    loadedNamespace);
+                Collection<String> requestMessageNamespace =
+                        requestMessageMap.get(namespaceName);
+
+                retrieveValuesForNamespace(resultBuilder,
+                        deviceNameSpaces,
+                        entriesToRequestInNamespace,
+                        requestMessage,
+                        requestMessageNamespace,
+                        readerCertChain,
+                        namespaceName,
+                        loadedNamespace);
+            }
+        } finally {
+            // User authentication may have changed by the next retrieval.
+            mAccessControlChecker.finishRetrieval();
         }
     }
 
     @SuppressWarnings("deprecation")
     private void retrieveValuesForNamespace(
             SimpleResultData.Builder resultBuilder,
-            MapBuilder<CborBuilder> deviceNameSpacesMapBuilder,
+            java.util.Map<String, java.util.Map<String, byte[]>> deviceNameSpaces,
             Collection<String> entriesToRequestInNamespace,
             byte[] requestMessage,
             Collection<String> requestMessageNamespace,
             Collection<X509Certificate> readerCertChain,
             String namespaceName,
             PersonalizationData.NamespaceData loadedNamespace) {
-        MapBuilder<MapBuilder<CborBuilder>> deviceNamespaceBuilder = null;
+        java.util.Map<String, byte[]> deviceNamespace = null;
 
         for (String requestedEntryName : entriesToRequestInNamespace) {
 
-            byte[] value = null;
+            // The value is only read once the entry is known to be returned, for credentials
+            // loaded from disk this involves reading and decrypting it.
+            Collection<AccessControlProfileId> accessControlProfileIds = null;
             if (loadedNamespace != null) {
-                value = loadedNamespace.getEntryValue(requestedEntryName);
+                accessControlProfileIds =
+                        loadedNamespace.getAccessControlProfileIds(requestedEntryName);
             }
 
-            if (value == null) {
+            if (accessControlProfileIds == null) {
                 resultBuilder.addErrorStatus(namespaceName,
                         requestedEntryName,
                         ResultData.STATUS_NO_SUCH_ENTRY);
@@ -636,87 +708,42 @@ class SoftwareIdentityCredential extends IdentityCredential {
                 }
             }
 
-            Collection<AccessControlProfileId> accessControlProfileIds =
-                    loadedNamespace.getAccessControlProfileIds(requestedEntryName);
-
             @ResultData.Status
-            int status = checkAccess(accessControlProfileIds, readerCertChain);
+            int status = mAccessControlChecker.checkAccess(accessControlProfileIds,
+                    readerCertChain);
             if (status != ResultData.STATUS_OK) {
                 resultBuilder.addErrorStatus(namespaceName, requestedEntryName, status);
                 continue;
             }
 
+            byte[] value = loadedNamespace.getEntryValue(requestedEntryName);
             resultBuilder.addEntry(namespaceName, requestedEntryName, value);
-            if (deviceNamespaceBuilder == null) {
-                deviceNamespaceBuilder = deviceNameSpacesMapBuilder.putMap(
-                        namespaceName);
-            }
-            DataItem dataItem = Util.cborDecode(value);
-            deviceNamespaceBuilder.put(new UnicodeString(requestedEntryName), dataItem);
-        }
-    }
-
-    @SuppressWarnings("deprecation")
-    @ResultData.Status
-    private int checkAccessSingleProfile(AccessControlProfile profile,
-            Collection<X509Certificate> readerCertChain) {
-
-        final boolean perPresentationAuthObtained = didUserAuth();
-
-        Log.d(TAG, "checkAccessSingleProfile id " + profile.mAccessControlProfileId.getId()
-            + " user_auth " + profile.isUserAuthenticationRequired()
-            + " perPresentationAuthObtained " + perPresentationAuthObtained);
-        if (profile.isUserAuthenticationRequired()) {
-            if (!mData.checkUserAuthentication(profile.getAccessControlProfileId(),
-                    perPresentationAuthObtained)) {
-                return ResultData.STATUS_USER_AUTHENTICATION_FAILED;
-            }
-        }
-
-        X509Certificate profileCert = profile.getReaderCertificate();
-        if (profileCert != null) {
-            if (readerCertChain == null) {
-                return ResultData.STATUS_READER_AUTHENTICATION_FAILED;
-            }
-
-            // Need to check if the cert required by the profile is in the given chain.
-            boolean foundMatchingCert = false;
-            byte[] profilePublicKeyEncoded = profileCert.getPublicKey().getEncoded();
-            for (X509Certificate readerCert : readerCertChain) {
-                byte[] readerCertPublicKeyEncoded = readerCert.getPublicKey().getEncoded();
-                if (Arrays.equals(profilePublicKeyEncoded, readerCertPublicKeyEncoded)) {
-                    foundMatchingCert = true;
-                    break;
-                }
+            if (deviceNameSpaces == null) {
+                // The caller doesn't need DeviceNameSpaces.
+                continue;
             }
-            if (!foundMatchingCert) {
-                return ResultData.STATUS_READER_AUTHENTICATION_FAILED;
+            if (deviceNamespace == null) {
+                deviceNamespace = new LinkedHashMap<>();
+                deviceNameSpaces.put(namespaceName, deviceNamespace);
             }
+            // The encoded value is written into DeviceNameSpaces as-is.
+            deviceNamespace.put(requestedEntryName, value);
         }
-
-        // Neither user auth nor reader auth required. This means access is always granted.
-        return ResultData.STATUS_OK;
     }
 
-    @SuppressWarnings("deprecation")
-    @ResultData.Status
-    private int checkAccess(Collection<AccessControlProfileId> accessControlProfileIds,
-            Collection<X509Certificate> readerCertChain) {
-        // Access is granted if at least one of the profiles grants access.
-        //
-        // If an item is configured without any profiles, access is denied.
-        //
-        @ResultData.Status int lastStatus = ResultData.STATUS_NO_ACCESS_CONTROL_PROFILES;
-
-        for (AccessControlProfileId id : accessControlProfileIds) {
-            AccessControlProfile profile = mData.getAccessControlProfile(id);
-            lastStatus = checkAccessSingleProfile(profile, readerCertChain);
-            if (lastStatus == ResultData.STATUS_OK) {
-                return lastStatus;
-            }
-        }
-        return lastStatus;
-    }
+    // Remembers which access control profiles the reader certificate chain satisfies, and
+    // which ones user authentication satisfies for the duration of a retrieveValues() call.
+    //
+    private final AccessControlChecker mAccessControlChecker = new AccessControlChecker(
+            id -> mData.getAccessControlProfile(id),
+            profile -> {
+                final boolean perPresentationAuthObtained = didUserAuth();
+                Log.d(TAG, "checkUserAuthentication id "
+                        + profile.getAccessControlProfileId().getId()
+                        + " perPresentationAuthObtained " + perPresentationAuthObtained);
+                return mData.checkUserAuthentication(profile.getAccessControlProfileId(),
+                        perPresentationAuthObtained);
+            });
 
     @Override
     public void setAvailableAuthenticationKeys(int keyCount, int maxUsesPerKey) {
@@ -729,6 +756,17 @@ class SoftwareIdentityCredential extends IdentityCredential {
         return mData.getAuthKeysNeedingCertification();
     }
 
+    @Override
+    @NonNull Collection<X509Certificate> getAuthKeysNeedingCertification(
+            @NonNull Calendar renewIfExpiringBefore) {
+        return mData.getAuthKeysNeedingCertification(renewIfExpiringBefore);
+    }
+
+    @Override
+    int getNumAvailableAuthenticationKeys(@NonNull Calendar validUntil) {
+        return mData.getNumAvailableAuthKeys(validUntil);
+    }
+
     @SuppressWarnings("deprecation")
     @Override
     public void storeStaticAuthenticationData(@NonNull X509Certificate authenticationKey,
@@ -745,6 +783,13 @@ class SoftwareIdentityCredential extends IdentityCredential {
         mData.storeStaticAuthenticationData(authenticationKey, expirationDate, staticAuthData);
     }
 
+    @Override
+    public void storeStaticAuthenticationData(
+            @NonNull Collection<AuthenticationKeyCertification> certifications)
+            throws UnknownAuthenticationKeyException {
+        mData.storeStaticAuthenticationData(certifications);
+    }
+
 
     @Override
     public @NonNull
@@ -752,6 +797,11 @@ class SoftwareIdentityCredential extends IdentityCredential {
         return mData.getAuthKeyUseCounts();
     }
 
+    @Override
+    public @NonNull AuthenticationKeyMetrics getAuthenticationKeyMetrics() {
+        return mData.getAuthKeyMetrics();
+    }
+
     @Override
     public @NonNull byte[] update(@NonNull PersonalizationData personalizationData) {
         try {
@@ -784,6 +834,7 @@ class SoftwareIdentityCredential extends IdentityCredential {
                     personalizationData,
                     proofOfProvisioningSha256,
                     true);
+            CredentialDataCache.getInstance().invalidate(mCredentialName);
             // Configure with same settings as old object.
             //
             mData.setAvailableAuthenticationKeys(authKeyCount, authMaxUsesPerKey);
@@ -26,7 +26,6 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.biometric.BiometricPrompt;
 
-import java.io.IOException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.KeyPair;
@@ -37,7 +36,6 @@ import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.PublicKey;
 import java.security.UnrecoverableEntryException;
-import java.security.cert.CertificateException;
 import java.security.spec.ECGenParameterSpec;
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -106,38 +104,57 @@ class SoftwarePresentationSession extends PresentationSession {
                                                             @NonNull CredentialDataRequest request)
             throws NoAuthenticationKeyAvailableException, InvalidReaderSignatureException,
             InvalidRequestMessageException, EphemeralPublicKeyNotFoundException {
+        long numKeyStoreRoundTrips = KeyStoreCache.getNumRoundTrips();
         try {
             // Cache the IdentityCredential to satisfy the property that AuthKey usage counts are
             // incremented on only the _first_ getCredentialData() call.
             //
-            SoftwareIdentityCredential credential = mCredentialCache.get(credentialName);
+            SoftwareIdentityCredential credential;
+            synchronized (mCredentialCache) {
+                credential = mCredentialCache.get(credentialName);
+            }
             if (credential == null) {
                 credential = new SoftwareIdentityCredential(mContext, credentialName, mCipherSuite,
                         this);
                 if (!credential.loadData()) {
                     return null;
                 }
-                mCredentialCache.put(credentialName, credential);
 
                 credential.setAllowUsingExhaustedKeys(request.isAllowUsingExhaustedKeys());
                 credential.setAllowUsingExpiredKeys(request.isAllowUsingExpiredKeys());
                 credential.setIncrementKeyUsageCount(request.isIncrementUseCount());
+                credential.setAuthenticationKeySelectionPolicy(
+                        request.getAuthenticationKeySelectionPolicy());
                 credential.setSessionTranscript(mSessionTranscript);
-            }
-
-            ResultData deviceSignedResult = credential.getEntries(
-                    request.getRequestMessage(),
-                    request.getDeviceSignedEntriesToRequest(),
-                    request.getReaderSignature());
 
-            // By design this second getEntries() call consumes the same auth-key.
+                // Another thread may have loaded the same credential in the meantime.
+                synchronized (mCredentialCache) {
+                    SoftwareIdentityCredential existing = mCredentialCache.get(credentialName);
+                    if (existing != null) {
+                        credential = existing;
+                    } else {
+                        mCredentialCache.put(credentialName, credential);
+                    }
+                }
+            }
 
-            ResultData issuerSignedResult = credential.getEntries(
-                    request.getRequestMessage(),
-                    request.getIssuerSignedEntriesToRequest(),
-                    request.getReaderSignature());
+            // The request message is parsed, the reader signature checked, and the
+            // DeviceNameSpaces signed only once for both the device-signed and issuer-signed
+            // entries.
+            CredentialDataResult result;
+            synchronized (credential) {
+                result = credential.getCredentialData(
+                        request.getRequestMessage(),
+                        request.getDeviceSignedEntriesToRequest(),
+                        request.getIssuerSignedEntriesToRequest(),
+                        request.getReaderSignature(),
+                        request.getVerifiedReaderAuthentication());
+            }
 
-            return new SimpleCredentialDataResult(deviceSignedResult, issuerSignedResult);
+            Log.d(TAG, "getCredentialData " + credentialName + " used "
+                    + (KeyStoreCache.getNumRoundTrips() - numKeyStoreRoundTrips)
+                    + " Android Keystore round-trips");
+            return result;
 
         } catch (CipherSuiteNotSupportedException e) {
             throw new IllegalStateException("Unexpected CipherSuiteNotSupportedException", e);
@@ -147,10 +164,8 @@ class SoftwarePresentationSession extends PresentationSession {
     @SuppressWarnings("deprecation")
     private SecretKey getAuthPerPresentationKey(String alias) {
         try {
-            KeyStore ks = KeyStore.getInstance("AndroidKeyStore");
-            ks.load(null);
-            ks.deleteEntry(alias);
-            KeyStore.Entry entry = ks.getEntry(alias, null);
+            KeyStoreCache.deleteEntry(alias);
+            KeyStore.Entry entry = KeyStoreCache.getEntry(alias);
             if (entry != null) {
                 return ((KeyStore.SecretKeyEntry) entry).getSecretKey();
             }
@@ -168,15 +183,13 @@ class SoftwarePresentationSession extends PresentationSession {
                     .setUserAuthenticationValidityDurationSeconds(-1); // Auth for every use
             kg.init(builder.build());
             kg.generateKey();
-            entry = ks.getEntry(alias, null);
+            entry = KeyStoreCache.getEntry(alias);
             if (entry != null) {
                 Log.d(TAG, "Created key with alias " + alias);
                 return ((KeyStore.SecretKeyEntry) entry).getSecretKey();
             }
             throw new IllegalStateException("Error getting secretKey after creating it");
-        } catch (CertificateException
-                | IOException
-                | NoSuchAlgorithmException
+        } catch (NoSuchAlgorithmException
                 | KeyStoreException
                 | UnrecoverableEntryException
                 | NoSuchProviderException
@@ -198,7 +211,7 @@ class SoftwarePresentationSession extends PresentationSession {
     // This returns a new CryptoObject every time.
     //
     @Override
-    public @NonNull BiometricPrompt.CryptoObject getCryptoObject() {
+    public synchronized @NonNull BiometricPrompt.CryptoObject getCryptoObject() {
         try {
             SecretKey authPerPresentationKey =
                     getAuthPerPresentationKey(KEY_FOR_AUTH_PER_PRESENTATION_ALIAS);
@@ -216,9 +229,11 @@ class SoftwarePresentationSession extends PresentationSession {
     }
 
     // Called by SoftwareIdentityCredential to determine if the user successfully authenticated
-    // for the CryptoObject returned to the application by getCryptoObject() above.
+    // for the CryptoObject returned to the application by getCryptoObject() above. This is
+    // synchronized since credentials may be processed concurrently, see
+    // PresentationSession.getCredentialData(Map, Executor), and the check uses up the Cipher.
     //
-    boolean isPerReaderSessionAuthSatisfied() {
+    synchronized boolean isPerReaderSessionAuthSatisfied() {
         if (!mPerReaderSessionAuthSatisfiedCalculated) {
             mPerReaderSessionAuthSatisfied = calculatePerReaderSessionAuthSatisfied();
             mPerReaderSessionAuthSatisfiedCalculated = true;
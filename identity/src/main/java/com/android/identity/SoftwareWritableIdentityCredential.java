@@ -23,7 +23,6 @@ import android.security.keystore.KeyProperties;
 import androidx.annotation.NonNull;
 
 import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
@@ -34,7 +33,6 @@ import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.PrivateKey;
 import java.security.cert.Certificate;
-import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -88,10 +86,8 @@ class SoftwareWritableIdentityCredential extends WritableIdentityCredential {
         String aliasForCredential = CredentialData.getAliasFromCredentialName(mCredentialName);
 
         try {
-            KeyStore ks = KeyStore.getInstance("AndroidKeyStore");
-            ks.load(null);
-            if (ks.containsAlias(aliasForCredential)) {
-                ks.deleteEntry(aliasForCredential);
+            if (KeyStoreCache.containsAlias(aliasForCredential)) {
+                KeyStoreCache.deleteEntry(aliasForCredential);
             }
 
             // TODO: We most likely want to constrain the life of CredentialKey (through
@@ -116,7 +112,8 @@ class SoftwareWritableIdentityCredential extends WritableIdentityCredential {
             kpg.initialize(builder.build());
             mKeyPair = kpg.generateKeyPair();
 
-            Certificate[] certificates = ks.getCertificateChain(aliasForCredential);
+            Certificate[] certificates =
+                    KeyStoreCache.getKeyStore().getCertificateChain(aliasForCredential);
             mCertificates = new ArrayList<>();
             for (Certificate certificate : certificates) {
                 mCertificates.add((X509Certificate) certificate);
@@ -124,9 +121,7 @@ class SoftwareWritableIdentityCredential extends WritableIdentityCredential {
         } catch (InvalidAlgorithmParameterException
                 | NoSuchAlgorithmException
                 | NoSuchProviderException
-                | CertificateException
-                | KeyStoreException
-                | IOException e) {
+                | KeyStoreException e) {
             throw new RuntimeException("Error creating CredentialKey", e);
         }
         return mCertificates;
@@ -203,6 +198,7 @@ class SoftwareWritableIdentityCredential extends WritableIdentityCredential {
             byte[] proofOfProvisioningSha256 = MessageDigest.getInstance("SHA-256").digest(
                     proofOfProvisioning);
 
+            CredentialDataCache.getInstance().invalidate(mCredentialName);
             CredentialData.createCredentialData(
                     mContext,
                     mDocType,
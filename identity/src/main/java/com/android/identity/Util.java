@@ -24,6 +24,7 @@ import android.icu.util.GregorianCalendar;
 import android.icu.util.TimeZone;
 import android.security.keystore.KeyProperties;
 import android.util.Log;
+import android.util.Pair;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -43,7 +44,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
-import java.security.AlgorithmParameters;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.KeyFactory;
@@ -51,7 +51,6 @@ import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.PrivateKey;
@@ -70,16 +69,21 @@ import java.security.spec.ECPoint;
 import java.security.spec.ECPrivateKeySpec;
 import java.security.spec.ECPublicKeySpec;
 import java.security.spec.InvalidKeySpecException;
-import java.security.spec.InvalidParameterSpecException;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.crypto.KeyAgreement;
 import javax.crypto.Mac;
@@ -119,7 +123,7 @@ class Util {
     private static final long COSE_ALG_ECDSA_384 = -35;
     private static final long COSE_ALG_ECDSA_512 = -36;
     private static final long COSE_ALG_HMAC_256_256 = 5;
-    private static final long CBOR_SEMANTIC_TAG_ENCODED_CBOR = 24;
+    static final long CBOR_SEMANTIC_TAG_ENCODED_CBOR = 24;
     private static final long COSE_KEY_KTY = 1;
     private static final long COSE_KEY_TYPE_EC2 = 2;
     private static final long COSE_KEY_EC2_CRV = -1;
@@ -331,7 +335,25 @@ class Util {
             throw new IllegalArgumentException("Passed in data is not tagged with tag 0");
         }
         String dateString = ((co.nstant.in.cbor.model.UnicodeString) di).getString();
+        return parseDateTimeString(dateString);
+    }
 
+    /**
+     * Like {@link #cborDecodeDateTime(DataItem)} but operates on a {@link CborSlice}.
+     */
+    static @NonNull
+    Calendar cborDecodeDateTime(@NonNull CborSlice slice) {
+        if (slice.getMajorType() != CborSlice.MAJOR_TYPE_UNICODE_STRING) {
+            throw new IllegalArgumentException("Passed in data is not a Unicode-string");
+        }
+        if (slice.getTag() != 0) {
+            throw new IllegalArgumentException("Passed in data is not tagged with tag 0");
+        }
+        return parseDateTimeString(slice.getString());
+    }
+
+    private static @NonNull
+    Calendar parseDateTimeString(@NonNull String dateString) {
         // Manually parse the timezone
         TimeZone parsedTz = TimeZone.getTimeZone("UTC");
         java.util.TimeZone parsedTz2 = java.util.TimeZone.getTimeZone("UTC");
@@ -401,7 +423,7 @@ class Util {
                 //
                 // Check the previous certificate was signed by this one.
                 try {
-                    prevCertificate.verify(certificate.getPublicKey());
+                    prevCertificate.verify(CertificateCache.getPublicKey(certificate));
                 } catch (CertificateException
                         | InvalidKeyException
                         | NoSuchAlgorithmException
@@ -444,7 +466,7 @@ class Util {
             @NonNull final byte[] info, int size) {
         Mac mac = null;
         try {
-            mac = Mac.getInstance(macAlgorithm);
+            mac = CryptoPool.getMac(macAlgorithm);
         } catch (NoSuchAlgorithmException e) {
             throw new IllegalStateException("No such algorithm: " + macAlgorithm, e);
         }
@@ -667,8 +689,7 @@ class Util {
             @Nullable byte[] additionalData,
             @Nullable Collection<X509Certificate> certificateChain) {
         try {
-            Signature s = Signature.getInstance(algorithm);
-            s.initSign(key);
+            Signature s = CryptoPool.getSignatureForSigning(algorithm, key);
             return coseSign1Sign(s, data, additionalData, certificateChain);
         } catch (NoSuchAlgorithmException | InvalidKeyException e) {
             throw new IllegalStateException("Caught exception", e);
@@ -716,6 +737,36 @@ class Util {
         }
         byte[] coseSignature = ((co.nstant.in.cbor.model.ByteString) items.get(3)).getBytes();
 
+        return coseSign1CheckSignature(encodedProtectedHeaders, payload, coseSignature,
+                detachedContent, publicKey);
+    }
+
+    /**
+     * Like {@link #coseSign1CheckSignature(DataItem, byte[], PublicKey)} but operates on a
+     * {@link CborSlice}.
+     */
+    static boolean coseSign1CheckSignature(@NonNull CborSlice coseSign1,
+            @Nullable byte[] detachedContent, @NonNull PublicKey publicKey) {
+        List<CborSlice> items = coseSign1GetItems(coseSign1);
+        if (items.get(0).getMajorType() != CborSlice.MAJOR_TYPE_BYTE_STRING) {
+            throw new IllegalArgumentException("Item 0 (protected headers) is not a byte-string");
+        }
+        byte[] encodedProtectedHeaders = items.get(0).getByteString();
+        byte[] payload = coseSign1GetData(coseSign1);
+        if (items.get(3).getMajorType() != CborSlice.MAJOR_TYPE_BYTE_STRING) {
+            throw new IllegalArgumentException("Item 3 (signature) is not a byte-string");
+        }
+        byte[] coseSignature = items.get(3).getByteString();
+
+        return coseSign1CheckSignature(encodedProtectedHeaders, payload, coseSignature,
+                detachedContent, publicKey);
+    }
+
+    private static boolean coseSign1CheckSignature(@NonNull byte[] encodedProtectedHeaders,
+            @NonNull byte[] payload,
+            @NonNull byte[] coseSignature,
+            @Nullable byte[] detachedContent,
+            @NonNull PublicKey publicKey) {
         byte[] derSignature = signatureCoseToDer(coseSignature);
 
         int dataLen = payload.length;
@@ -744,9 +795,7 @@ class Util {
             // Use BouncyCastle provider for verification since it supports a lot more curves than
             // the default provider, including the brainpool curves
             //
-            Signature verifier = Signature.getInstance(signature,
-                    new org.bouncycastle.jce.provider.BouncyCastleProvider());
-            verifier.initVerify(publicKey);
+            Signature verifier = CryptoPool.getSignatureForVerification(signature, publicKey);
             verifier.update(toBeSigned);
             return verifier.verify(derSignature);
         } catch (SignatureException | NoSuchAlgorithmException | InvalidKeyException e) {
@@ -801,8 +850,7 @@ class Util {
 
         byte[] mac;
         try {
-            Mac m = Mac.getInstance("HmacSHA256");
-            m.init(key);
+            Mac m = CryptoPool.getMac("HmacSHA256", key);
             m.update(toBeMACed);
             mac = m.doFinal();
         } catch (NoSuchAlgorithmException | InvalidKeyException e) {
@@ -834,6 +882,21 @@ class Util {
         return castTo(ByteString.class, tagItem).getBytes();
     }
 
+    /**
+     * Like {@link #coseMac0GetTag(DataItem)} but operates on a {@link CborSlice}.
+     */
+    static @NonNull
+    byte[] coseMac0GetTag(@NonNull CborSlice coseMac0) {
+        if (coseMac0.getMajorType() != CborSlice.MAJOR_TYPE_ARRAY) {
+            throw new IllegalArgumentException("Data item is not an array");
+        }
+        List<CborSlice> items = coseMac0.getArrayItems();
+        if (items.size() < 4) {
+            throw new IllegalArgumentException("coseMac0 have less than 4 elements");
+        }
+        return items.get(3).getByteString();
+    }
+
     /**
      * Brute-force but good enough since users will only pass relatively small amounts of data.
      */
@@ -940,6 +1003,47 @@ class Util {
         return payload;
     }
 
+    // Returns the items of a COSE_Sign1 or COSE_Mac0 array.
+    private static @NonNull
+    List<CborSlice> coseSign1GetItems(@NonNull CborSlice coseSign1) {
+        if (coseSign1.getMajorType() != CborSlice.MAJOR_TYPE_ARRAY) {
+            throw new IllegalArgumentException("Data item is not an array");
+        }
+        List<CborSlice> items = coseSign1.getArrayItems();
+        if (items.size() < 4) {
+            throw new IllegalArgumentException("Expected at least four items in COSE_Sign1 array");
+        }
+        return items;
+    }
+
+    /**
+     * Like {@link #coseSign1GetData(DataItem)} but operates on a {@link CborSlice}.
+     */
+    static @NonNull
+    byte[] coseSign1GetData(@NonNull CborSlice coseSign1) {
+        CborSlice payload = coseSign1GetPayload(coseSign1);
+        if (payload == null) {
+            return new byte[0];
+        }
+        return payload.getByteString();
+    }
+
+    /**
+     * Gets a view of the payload byte-string of a COSE_Sign1.
+     *
+     * @return the byte-string or {@code null} if the payload is nil.
+     */
+    static @Nullable
+    CborSlice coseSign1GetPayload(@NonNull CborSlice coseSign1) {
+        CborSlice payload = coseSign1GetItems(coseSign1).get(2);
+        if (payload.isNull()) {
+            return null;
+        } else if (payload.getMajorType() != CborSlice.MAJOR_TYPE_BYTE_STRING) {
+            throw new IllegalArgumentException("Item 2 (payload) is not nil or byte-string");
+        }
+        return payload;
+    }
+
     /**
      * Returns the empty collection if no x5chain is included in the structure.
      *
@@ -963,16 +1067,13 @@ class Util {
         DataItem x5chainItem = map.get(new UnsignedInteger(COSE_LABEL_X5CHAIN));
         if (x5chainItem != null) {
             try {
-                CertificateFactory factory = CertificateFactory.getInstance("X.509");
                 if (x5chainItem instanceof ByteString) {
-                    ByteArrayInputStream certBais = new ByteArrayInputStream(
-                            castTo(ByteString.class, x5chainItem).getBytes());
-                    ret.add((X509Certificate) factory.generateCertificate(certBais));
+                    byte[] certBytes = castTo(ByteString.class, x5chainItem).getBytes();
+                    ret.add(CertificateCache.getCertificate(certBytes, 0, certBytes.length));
                 } else if (x5chainItem instanceof Array) {
                     for (DataItem certItem : castTo(Array.class, x5chainItem).getDataItems()) {
-                        ByteArrayInputStream certBais = new ByteArrayInputStream(
-                                castTo(ByteString.class, certItem).getBytes());
-                        ret.add((X509Certificate) factory.generateCertificate(certBais));
+                        byte[] certBytes = castTo(ByteString.class, certItem).getBytes();
+                        ret.add(CertificateCache.getCertificate(certBytes, 0, certBytes.length));
                     }
                 } else {
                     throw new IllegalArgumentException("Unexpected type for x5chain value");
@@ -984,6 +1085,39 @@ class Util {
         return ret;
     }
 
+    /**
+     * Like {@link #coseSign1GetX5Chain(DataItem)} but operates on a {@link CborSlice}.
+     */
+    static @NonNull
+    List<X509Certificate> coseSign1GetX5Chain(@NonNull CborSlice coseSign1) {
+        ArrayList<X509Certificate> ret = new ArrayList<>();
+        CborSlice unprotectedHeaders = coseSign1GetItems(coseSign1).get(1);
+        if (unprotectedHeaders.getMajorType() != CborSlice.MAJOR_TYPE_MAP) {
+            throw new IllegalArgumentException("Item 1 (unprotected headers) is not a map");
+        }
+        CborSlice x5chainItem = unprotectedHeaders.findMapValue(COSE_LABEL_X5CHAIN);
+        if (x5chainItem != null) {
+            try {
+                List<CborSlice> certItems;
+                if (x5chainItem.getMajorType() == CborSlice.MAJOR_TYPE_BYTE_STRING) {
+                    certItems = Collections.singletonList(x5chainItem);
+                } else if (x5chainItem.getMajorType() == CborSlice.MAJOR_TYPE_ARRAY) {
+                    certItems = x5chainItem.getArrayItems();
+                } else {
+                    throw new IllegalArgumentException("Unexpected type for x5chain value");
+                }
+                for (CborSlice certItem : certItems) {
+                    ret.add(CertificateCache.getCertificate(certItem.getBuffer(),
+                            certItem.getByteStringOffset(),
+                            certItem.getByteStringLength()));
+                }
+            } catch (CertificateException e) {
+                throw new IllegalArgumentException("Unexpected error", e);
+            }
+        }
+        return ret;
+    }
+
     static @NonNull
     DataItem cborBuildCoseKey(@NonNull PublicKey key) {
         ECPublicKey ecKey = (ECPublicKey) key;
@@ -1003,6 +1137,82 @@ class Util {
         return item;
     }
 
+    /**
+     * Like {@link #cborBuildCoseKey(PublicKey)} but returns the encoded <code>COSE_Key</code>,
+     * written directly without building a {@link DataItem}.
+     */
+    static @NonNull
+    byte[] cborEncodeCoseKey(@NonNull PublicKey key) {
+        ECPublicKey ecKey = (ECPublicKey) key;
+        ECPoint w = ecKey.getW();
+        // X and Y are always positive so for interop we remove any leading zeroes
+        // inserted by the BigInteger encoder.
+        byte[] x = stripLeadingZeroes(w.getAffineX().toByteArray());
+        byte[] y = stripLeadingZeroes(w.getAffineY().toByteArray());
+        // Keys are in canonical order: 1, -1, -2, -3.
+        int size = CborWriter.sizeOfHead(4)
+                + CborWriter.sizeOfNumber(COSE_KEY_KTY)
+                + CborWriter.sizeOfNumber(COSE_KEY_TYPE_EC2)
+                + CborWriter.sizeOfNumber(COSE_KEY_EC2_CRV)
+                + CborWriter.sizeOfNumber(COSE_KEY_EC2_CRV_P256)
+                + CborWriter.sizeOfNumber(COSE_KEY_EC2_X)
+                + CborWriter.sizeOfByteString(x.length)
+                + CborWriter.sizeOfNumber(COSE_KEY_EC2_Y)
+                + CborWriter.sizeOfByteString(y.length);
+        return new CborWriter(size)
+                .writeMapHead(4)
+                .writeNumber(COSE_KEY_KTY).writeNumber(COSE_KEY_TYPE_EC2)
+                .writeNumber(COSE_KEY_EC2_CRV).writeNumber(COSE_KEY_EC2_CRV_P256)
+                .writeNumber(COSE_KEY_EC2_X).writeByteString(x)
+                .writeNumber(COSE_KEY_EC2_Y).writeByteString(y)
+                .toByteArray();
+    }
+
+    /**
+     * Encodes <code>DeviceNameSpaces</code> from already encoded data element values.
+     *
+     * <p>The values are written out verbatim, without decoding them, and the result is the
+     * same as building the map with {@link co.nstant.in.cbor.CborBuilder} and encoding it
+     * with {@link #cborEncode(DataItem)}. Values which aren't known to be in canonical form
+     * are re-encoded so this holds for them too.
+     *
+     * @param deviceNameSpaces a map from namespace names to maps from data element names to
+     *                         encoded data element values.
+     * @return the encoded <code>DeviceNameSpaces</code>.
+     */
+    static @NonNull
+    byte[] cborEncodeDeviceNameSpaces(
+            @NonNull java.util.Map<String, java.util.Map<String, byte[]>> deviceNameSpaces) {
+        List<String> namespaceNames = CborWriter.canonicalKeyOrder(deviceNameSpaces.keySet());
+        List<List<String>> elementNames = new ArrayList<>(namespaceNames.size());
+        List<byte[]> values = new ArrayList<>();
+        int size = CborWriter.sizeOfHead(namespaceNames.size());
+        for (String namespaceName : namespaceNames) {
+            java.util.Map<String, byte[]> elements = deviceNameSpaces.get(namespaceName);
+            List<String> names = CborWriter.canonicalKeyOrder(elements.keySet());
+            elementNames.add(names);
+            size += CborWriter.sizeOfString(namespaceName) + CborWriter.sizeOfHead(names.size());
+            for (String name : names) {
+                byte[] value = elements.get(name);
+                if (!CborSlice.of(value).isCanonical()) {
+                    value = cborEncode(cborDecode(value));
+                }
+                values.add(value);
+                size += CborWriter.sizeOfString(name) + value.length;
+            }
+        }
+        CborWriter writer = new CborWriter(size).writeMapHead(namespaceNames.size());
+        int valueIndex = 0;
+        for (int n = 0; n < namespaceNames.size(); n++) {
+            List<String> names = elementNames.get(n);
+            writer.writeString(namespaceNames.get(n)).writeMapHead(names.size());
+            for (String name : names) {
+                writer.writeString(name).writeEncoded(values.get(valueIndex++));
+            }
+        }
+        return writer.toByteArray();
+    }
+
     static boolean cborMapHasKey(@NonNull DataItem map, @NonNull String key) {
         DataItem item = castTo(Map.class, map).get(new UnicodeString(key));
         return item != null;
@@ -1134,23 +1344,53 @@ class Util {
 
         BigInteger x = new BigInteger(1, encodedX);
         BigInteger y = new BigInteger(1, encodedY);
+        return getPublicKeyFromIntegers(x, y);
+    }
 
-        try {
-            AlgorithmParameters params = AlgorithmParameters.getInstance("EC");
-            params.init(new ECGenParameterSpec("prime256v1"));
-            ECParameterSpec ecParameters = params.getParameterSpec(ECParameterSpec.class);
-
-            ECPoint ecPoint = new ECPoint(x, y);
-            ECPublicKeySpec keySpec = new ECPublicKeySpec(ecPoint, ecParameters);
-            KeyFactory kf = KeyFactory.getInstance("EC");
-            ECPublicKey ecPublicKey = (ECPublicKey) kf.generatePublic(keySpec);
-            return ecPublicKey;
-
-        } catch (NoSuchAlgorithmException
-                | InvalidParameterSpecException
-                | InvalidKeySpecException e) {
-            throw new IllegalStateException("Unexpected error", e);
+    /**
+     * Like {@link #coseKeyDecode(DataItem)} but operates on a {@link CborSlice}.
+     */
+    static @NonNull
+    PublicKey coseKeyDecode(@NonNull CborSlice coseKey) {
+        // Collect the fields in a single pass over the map.
+        CborSlice ktySlice = null;
+        CborSlice crvSlice = null;
+        CborSlice xSlice = null;
+        CborSlice ySlice = null;
+        for (Pair<CborSlice, CborSlice> entry : coseKey.getMapEntries()) {
+            int keyMajorType = entry.first.getMajorType();
+            if (keyMajorType != CborSlice.MAJOR_TYPE_UNSIGNED_INTEGER
+                    && keyMajorType != CborSlice.MAJOR_TYPE_NEGATIVE_INTEGER) {
+                continue;
+            }
+            long key = entry.first.getLong();
+            if (key == COSE_KEY_KTY) {
+                ktySlice = entry.second;
+            } else if (key == COSE_KEY_EC2_CRV) {
+                crvSlice = entry.second;
+            } else if (key == COSE_KEY_EC2_X) {
+                xSlice = entry.second;
+            } else if (key == COSE_KEY_EC2_Y) {
+                ySlice = entry.second;
+            }
+        }
+        if (ktySlice == null || crvSlice == null || xSlice == null || ySlice == null) {
+            throw new IllegalArgumentException("COSE_Key is missing kty, crv, x, or y");
+        }
+        long kty = ktySlice.getLong();
+        if (kty != COSE_KEY_TYPE_EC2) {
+            throw new IllegalArgumentException("Expected COSE_KEY_TYPE_EC2, got " + kty);
         }
+        long crv = crvSlice.getLong();
+        if (crv != COSE_KEY_EC2_CRV_P256) {
+            throw new IllegalArgumentException("Expected COSE_KEY_EC2_CRV_P256, got " + crv);
+        }
+        byte[] encodedX = xSlice.getByteString();
+        byte[] encodedY = ySlice.getByteString();
+
+        BigInteger x = new BigInteger(1, encodedX);
+        BigInteger y = new BigInteger(1, encodedY);
+        return getPublicKeyFromIntegers(x, y);
     }
 
     static @NonNull
@@ -1159,15 +1399,14 @@ class Util {
             @NonNull PrivateKey ephemeralReaderPrivateKey,
             @NonNull byte[] encodedSessionTranscript) {
         try {
-            KeyAgreement ka = KeyAgreement.getInstance("ECDH");
-            ka.init(ephemeralReaderPrivateKey);
+            KeyAgreement ka = CryptoPool.getKeyAgreement("ECDH", ephemeralReaderPrivateKey);
             ka.doPhase(authenticationPublicKey, true);
             byte[] sharedSecret = ka.generateSecret();
 
             byte[] sessionTranscriptBytes =
                     Util.cborEncode(Util.cborBuildTaggedByteString(encodedSessionTranscript));
 
-            byte[] salt = MessageDigest.getInstance("SHA-256").digest(sessionTranscriptBytes);
+            byte[] salt = CryptoPool.getMessageDigest("SHA-256").digest(sessionTranscriptBytes);
             byte[] info = new byte[]{'E', 'M', 'a', 'c', 'K', 'e', 'y'};
             byte[] derivedKey = computeHkdf("HmacSha256", sharedSecret, salt, info, 32);
 
@@ -1179,6 +1418,57 @@ class Util {
         }
     }
 
+    /**
+     * Encodes <code>DeviceAuthenticationBytes</code> as defined in ISO/IEC 18013-5
+     * section 9.1.3.4, that is <code>#6.24(bstr .cbor DeviceAuthentication)</code>.
+     *
+     * <p>The passed-in SessionTranscript and DeviceNameSpaces are used verbatim.
+     */
+    static @NonNull
+    byte[] buildDeviceAuthenticationBytes(
+            @NonNull byte[] encodedSessionTranscript,
+            @NonNull String docType,
+            @NonNull byte[] encodedDeviceNameSpaces) {
+        int deviceAuthenticationSize = CborWriter.sizeOfHead(4)
+                + CborWriter.sizeOfString("DeviceAuthentication")
+                + encodedSessionTranscript.length
+                + CborWriter.sizeOfString(docType)
+                + CborWriter.sizeOfTaggedEncodedCbor(encodedDeviceNameSpaces.length);
+        return new CborWriter(CborWriter.sizeOfTaggedEncodedCbor(deviceAuthenticationSize))
+                .writeTag(CBOR_SEMANTIC_TAG_ENCODED_CBOR)
+                .writeByteStringHead(deviceAuthenticationSize)
+                .writeArrayHead(4)
+                .writeString("DeviceAuthentication")
+                .writeEncoded(encodedSessionTranscript)
+                .writeString(docType)
+                .writeTaggedEncodedCbor(encodedDeviceNameSpaces)
+                .toByteArray();
+    }
+
+    /**
+     * Encodes <code>ReaderAuthenticationBytes</code> as defined in ISO/IEC 18013-5
+     * section 9.1.4, that is <code>#6.24(bstr .cbor ReaderAuthentication)</code>.
+     *
+     * <p>The passed-in SessionTranscript and ItemsRequest are used verbatim.
+     */
+    static @NonNull
+    byte[] buildReaderAuthenticationBytes(
+            @NonNull byte[] encodedSessionTranscript,
+            @NonNull byte[] encodedItemsRequest) {
+        int readerAuthenticationSize = CborWriter.sizeOfHead(3)
+                + CborWriter.sizeOfString("ReaderAuthentication")
+                + encodedSessionTranscript.length
+                + CborWriter.sizeOfTaggedEncodedCbor(encodedItemsRequest.length);
+        return new CborWriter(CborWriter.sizeOfTaggedEncodedCbor(readerAuthenticationSize))
+                .writeTag(CBOR_SEMANTIC_TAG_ENCODED_CBOR)
+                .writeByteStringHead(readerAuthenticationSize)
+                .writeArrayHead(3)
+                .writeString("ReaderAuthentication")
+                .writeEncoded(encodedSessionTranscript)
+                .writeTaggedEncodedCbor(encodedItemsRequest)
+                .toByteArray();
+    }
+
     static @NonNull
     String cborPrettyPrint(@NonNull DataItem dataItem) {
         StringBuilder sb = new StringBuilder();
@@ -1570,16 +1860,13 @@ class Util {
     static @NonNull
     PrivateKey getPrivateKeyFromInteger(@NonNull BigInteger s) {
         try {
-            AlgorithmParameters params = AlgorithmParameters.getInstance("EC");
-            params.init(new ECGenParameterSpec("prime256v1"));
-            ECParameterSpec ecParameters = params.getParameterSpec(ECParameterSpec.class);
+            ECParameterSpec ecParameters = CryptoPool.getP256Parameters();
 
             ECPrivateKeySpec privateKeySpec = new ECPrivateKeySpec(s, ecParameters);
-            KeyFactory keyFactory = KeyFactory.getInstance("EC");
+            KeyFactory keyFactory = CryptoPool.getKeyFactory("EC");
             return keyFactory.generatePrivate(privateKeySpec);
 
         } catch (NoSuchAlgorithmException
-                | InvalidParameterSpecException
                 | InvalidKeySpecException e) {
             throw new IllegalStateException(e);
         }
@@ -1589,17 +1876,14 @@ class Util {
     PublicKey getPublicKeyFromIntegers(@NonNull BigInteger x,
             @NonNull BigInteger y) {
         try {
-            AlgorithmParameters params = AlgorithmParameters.getInstance("EC");
-            params.init(new ECGenParameterSpec("prime256v1"));
-            ECParameterSpec ecParameters = params.getParameterSpec(ECParameterSpec.class);
+            ECParameterSpec ecParameters = CryptoPool.getP256Parameters();
 
             ECPoint ecPoint = new ECPoint(x, y);
             ECPublicKeySpec keySpec = new ECPublicKeySpec(ecPoint, ecParameters);
-            KeyFactory kf = KeyFactory.getInstance("EC");
+            KeyFactory kf = CryptoPool.getKeyFactory("EC");
             ECPublicKey ecPublicKey = (ECPublicKey) kf.generatePublic(keySpec);
             return ecPublicKey;
         } catch (NoSuchAlgorithmException
-                | InvalidParameterSpecException
                 | InvalidKeySpecException e) {
             throw new IllegalStateException("Unexpected error", e);
         }
@@ -1627,18 +1911,10 @@ class Util {
         return data;
     }
 
-    // TODO: Maybe return List<DataItem> instead of reencoding.
-    //
     static @NonNull
     List<byte[]> extractDeviceRetrievalMethods(
             @NonNull byte[] encodedDeviceEngagement) {
-        List<byte[]> ret = new ArrayList<>();
-        DataItem deviceEngagement = Util.cborDecode(encodedDeviceEngagement);
-        List<DataItem> methods = Util.cborMapExtractArray(deviceEngagement, 2);
-        for (DataItem method : methods) {
-            ret.add(Util.cborEncode(method));
-        }
-        return ret;
+        return DeviceEngagement.decode(encodedDeviceEngagement).getDeviceRetrievalMethods();
     }
 
     static long getDeviceRetrievalMethodType(@NonNull byte[] encodeDeviceRetrievalMethod) {
@@ -1646,6 +1922,81 @@ class Util {
         return ((co.nstant.in.cbor.model.Number) di.get(0)).getValue().longValue();
     }
 
+    /**
+     * Runs tasks, possibly concurrently, and returns their results in the same order as the
+     * tasks.
+     *
+     * <p>If {@code executor} is {@code null} the tasks are run one after another on the calling
+     * thread. Otherwise they're submitted to {@code executor} and the calling thread also runs
+     * tasks which haven't been started yet, so this doesn't deadlock if called from a task
+     * running on a bounded executor.
+     *
+     * <p>Errors are reported deterministically: if one or more tasks fail, the exception thrown
+     * is the one from the first failing task in list order, independently of which task
+     * finished first. Runtime exceptions and errors are rethrown as-is, checked exceptions are
+     * wrapped in {@link IllegalStateException}.
+     *
+     * @param executor the executor to use or {@code null} to run sequentially.
+     * @param tasks the tasks to run.
+     * @return the results, in the order of {@code tasks}.
+     */
+    static @NonNull <T> List<T> invokeAll(@Nullable Executor executor,
+            @NonNull List<? extends Callable<T>> tasks) {
+        List<T> results = new ArrayList<>(tasks.size());
+        if (executor == null || tasks.size() < 2) {
+            for (Callable<T> task : tasks) {
+                try {
+                    results.add(task.call());
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IllegalStateException("Error running task", e);
+                }
+            }
+            return results;
+        }
+
+        List<FutureTask<T>> futures = new ArrayList<>(tasks.size());
+        for (Callable<T> task : tasks) {
+            futures.add(new FutureTask<>(task));
+        }
+        // The first task is always run on the calling thread.
+        for (int n = 1; n < futures.size(); n++) {
+            try {
+                executor.execute(futures.get(n));
+            } catch (RejectedExecutionException e) {
+                // It'll be run on the calling thread below.
+            }
+        }
+        try {
+            for (FutureTask<T> future : futures) {
+                // This is a no-op if the task is already running or done.
+                future.run();
+                try {
+                    results.add(future.get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for task", e);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    } else if (cause instanceof Error) {
+                        throw (Error) cause;
+                    }
+                    throw new IllegalStateException("Error running task", cause);
+                }
+            }
+        } finally {
+            if (results.size() < futures.size()) {
+                for (FutureTask<T> future : futures) {
+                    future.cancel(false);
+                }
+            }
+        }
+        return results;
+    }
+
     static @NonNull KeyPair createEphemeralKeyPair() {
         try {
             KeyPairGenerator kpg = KeyPairGenerator.getInstance(KeyProperties.KEY_ALGORITHM_EC);
@@ -1662,11 +2013,7 @@ class Util {
     static @NonNull
     X509Certificate signPublicKeyWithPrivateKey(@NonNull String keyToSignAlias,
             @NonNull String keyToSignWithAlias) {
-        KeyStore ks = null;
         try {
-            ks = KeyStore.getInstance("AndroidKeyStore");
-            ks.load(null);
-
             /* First note that KeyStore.getCertificate() returns a self-signed X.509 certificate
              * for the key in question. As per RFC 5280, section 4.1 an X.509 certificate has the
              * following structure:
@@ -1681,10 +2028,11 @@ class Util {
              * signatureAlgorithm and signatureValue and combine it with tbsCertificate. We don't
              * need a full-blown ASN.1/DER encoder to do this.
              */
-            X509Certificate selfSignedCert = (X509Certificate) ks.getCertificate(keyToSignAlias);
+            X509Certificate selfSignedCert =
+                    (X509Certificate) KeyStoreCache.getCertificate(keyToSignAlias);
             byte[] tbsCertificate = selfSignedCert.getTBSCertificate();
 
-            KeyStore.Entry keyToSignWithEntry = ks.getEntry(keyToSignWithAlias, null);
+            KeyStore.Entry keyToSignWithEntry = KeyStoreCache.getEntry(keyToSignWithAlias);
             Signature s = Signature.getInstance("SHA256withECDSA");
             s.initSign(((KeyStore.PrivateKeyEntry) keyToSignWithEntry).getPrivateKey());
             s.update(tbsCertificate);
@@ -274,6 +274,7 @@ public class Utility {
         Calendar validToDate = Calendar.getInstance();
         validToDate.add(Calendar.MONTH, 12);
 
+        List<AuthenticationKeyCertification> certifications = new ArrayList<>();
         for (X509Certificate authKeyCert : authKeysNeedCert) {
             PublicKey authKey = authKeyCert.getPublicKey();
 
@@ -376,12 +377,13 @@ public class Utility {
             //
             byte[] staticAuthData = encodeStaticAuthData(
                     issuerSignedMapping, encodedIssuerAuth);
-            c.storeStaticAuthenticationData(authKeyCert,
+            certifications.add(new AuthenticationKeyCertification(authKeyCert,
                     validToDate,
-                    staticAuthData);
+                    staticAuthData));
 
         } // for each authkey
 
+        c.storeStaticAuthenticationData(certifications);
     }
 
 
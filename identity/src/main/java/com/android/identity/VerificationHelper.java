@@ -45,7 +45,6 @@ import java.util.OptionalInt;
 import java.util.concurrent.Executor;
 
 import co.nstant.in.cbor.CborBuilder;
-import co.nstant.in.cbor.model.DataItem;
 import co.nstant.in.cbor.model.SimpleValue;
 
 /**
@@ -487,9 +486,8 @@ public class VerificationHelper {
         }, mDeviceResponseListenerExecutor);
 
         try {
-            DataItem deDataItem = Util.cborDecode(mDeviceEngagement);
-            DataItem eDeviceKeyBytesDataItem = Util.cborMapExtractArray(deDataItem, 1).get(1);
-            byte[] encodedEDeviceKeyBytes = Util.cborEncode(eDeviceKeyBytesDataItem);
+            byte[] encodedEDeviceKeyBytes =
+                    DeviceEngagement.decode(mDeviceEngagement).getEncodedEDeviceKeyBytes();
             mDataTransport.setEDeviceKeyBytes(encodedEDeviceKeyBytes);
             mDataTransport.connect(address);
         } catch (Exception e) {
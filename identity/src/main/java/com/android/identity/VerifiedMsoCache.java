@@ -0,0 +1,193 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import android.icu.util.Calendar;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * A cache of verified <code>MobileSecurityObject</code>s, for use with
+ * {@link DeviceResponseParser#setVerifiedMsoCache(VerifiedMsoCache)}.
+ *
+ * <p>A reader is often presented with the same document many times while its MSO is valid.
+ * Verifying the issuer signature and parsing the certificate chain and the MSO is the most
+ * expensive part of parsing a document so the result of this is kept in this cache, keyed by
+ * the SHA-256 digest of the bytes of <code>IssuerAuth</code>. On subsequent presentations of
+ * the same <code>IssuerAuth</code> only the digest needs to be computed.
+ *
+ * <p>Only MSOs for which the issuer signature was successfully verified are cached and an MSO
+ * is evicted once the current time is past its <code>validUntil</code> date. Additionally the
+ * least recently used MSO is evicted when the maximum number of entries is reached.
+ *
+ * <p>Note that the cache doesn't affect what's returned by {@link DeviceResponseParser}. In
+ * particular, checking that the MSO is currently valid is still the responsibility of the
+ * application.
+ *
+ * <p>This class is thread-safe and a single instance can be shared by multiple
+ * {@link DeviceResponseParser} instances.
+ */
+public final class VerifiedMsoCache {
+
+    static final class Entry {
+        final String mDocType;
+        final PublicKey mDeviceKey;
+        final Map<String, Map<Long, byte[]>> mDigestMapping;
+        final List<X509Certificate> mIssuerCertificateChain;
+        final Calendar mValidityInfoSigned;
+        final Calendar mValidityInfoValidFrom;
+        final Calendar mValidityInfoValidUntil;
+        final Calendar mValidityInfoExpectedUpdate;
+
+        Entry(@NonNull String docType,
+                @NonNull PublicKey deviceKey,
+                @NonNull Map<String, Map<Long, byte[]>> digestMapping,
+                @NonNull List<X509Certificate> issuerCertificateChain,
+                @NonNull Calendar validityInfoSigned,
+                @NonNull Calendar validityInfoValidFrom,
+                @NonNull Calendar validityInfoValidUntil,
+                @Nullable Calendar validityInfoExpectedUpdate) {
+            mDocType = docType;
+            mDeviceKey = deviceKey;
+            mDigestMapping = Collections.unmodifiableMap(digestMapping);
+            mIssuerCertificateChain = Collections.unmodifiableList(issuerCertificateChain);
+            mValidityInfoSigned = validityInfoSigned;
+            mValidityInfoValidFrom = validityInfoValidFrom;
+            mValidityInfoValidUntil = validityInfoValidUntil;
+            mValidityInfoExpectedUpdate = validityInfoExpectedUpdate;
+        }
+    }
+
+    private final int mMaxEntries;
+    private final LongSupplier mClock;
+    private final LinkedHashMap<ByteBuffer, Entry> mEntries;
+    private long mNumHits;
+    private long mNumMisses;
+
+    /**
+     * Creates a new cache.
+     *
+     * @param maxEntries the maximum number of MSOs to keep in the cache.
+     * @exception IllegalArgumentException if {@code maxEntries} isn't positive.
+     */
+    public VerifiedMsoCache(int maxEntries) {
+        this(maxEntries, System::currentTimeMillis);
+    }
+
+    VerifiedMsoCache(int maxEntries, @NonNull LongSupplier clock) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+        mMaxEntries = maxEntries;
+        mClock = clock;
+        mEntries = new LinkedHashMap<ByteBuffer, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Entry> eldest) {
+                return size() > mMaxEntries;
+            }
+        };
+    }
+
+    /**
+     * Computes the key used for the given <code>IssuerAuth</code>.
+     */
+    static @NonNull byte[] computeKey(@NonNull CborSlice issuerAuth) {
+        MessageDigest digester;
+        try {
+            digester = CryptoPool.getMessageDigest("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Failed creating digester", e);
+        }
+        digester.update(issuerAuth.getBuffer(), issuerAuth.getEncodedOffset(),
+                issuerAuth.getEncodedLength());
+        return digester.digest();
+    }
+
+    synchronized @Nullable Entry get(@NonNull byte[] key) {
+        ByteBuffer bufferKey = ByteBuffer.wrap(key);
+        Entry entry = mEntries.get(bufferKey);
+        if (entry != null && isExpired(entry)) {
+            mEntries.remove(bufferKey);
+            entry = null;
+        }
+        if (entry == null) {
+            mNumMisses++;
+        } else {
+            mNumHits++;
+        }
+        return entry;
+    }
+
+    synchronized void put(@NonNull byte[] key, @NonNull Entry entry) {
+        if (isExpired(entry)) {
+            return;
+        }
+        mEntries.put(ByteBuffer.wrap(key), entry);
+    }
+
+    private boolean isExpired(@NonNull Entry entry) {
+        return mClock.getAsLong() >= entry.mValidityInfoValidUntil.getTimeInMillis();
+    }
+
+    /**
+     * Removes all MSOs from the cache.
+     */
+    public synchronized void clear() {
+        mEntries.clear();
+    }
+
+    /**
+     * Gets the number of MSOs currently in the cache.
+     *
+     * <p>This may include MSOs which have expired but not yet been evicted.
+     *
+     * @return the number of MSOs in the cache.
+     */
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Gets the number of times a verified MSO was found in the cache.
+     *
+     * @return the number of cache hits.
+     */
+    public synchronized long getNumHits() {
+        return mNumHits;
+    }
+
+    /**
+     * Gets the number of times a verified MSO wasn't found in the cache.
+     *
+     * @return the number of cache misses.
+     */
+    public synchronized long getNumMisses() {
+        return mNumMisses;
+    }
+}
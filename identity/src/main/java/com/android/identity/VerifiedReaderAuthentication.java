@@ -0,0 +1,98 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import androidx.annotation.NonNull;
+
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A reader signature which has already been checked by this library.
+ *
+ * <p>Instances of this class can only be obtained from
+ * {@link DeviceRequestParser.DocumentRequest#getVerifiedReaderAuthentication()} and represent
+ * a <code>ReaderAuth</code> <code>COSE_Sign1</code> whose signature over the
+ * <code>ReaderAuthentication</code> CBOR, made of the <code>SessionTranscript</code> and
+ * <code>ItemsRequest</code> given to the parser, was made by the leaf certificate of the
+ * reader certificate chain.
+ *
+ * <p>Passing this to {@link CredentialDataRequest.Builder#setVerifiedReaderAuthentication(
+ * VerifiedReaderAuthentication)} allows the credential to skip checking the reader signature
+ * again, as long as the request message and session transcript used match the ones the
+ * signature was checked against.
+ */
+public final class VerifiedReaderAuthentication {
+    private final byte[] mEncodedReaderAuth;
+    private final byte[] mEncodedSessionTranscript;
+    private final byte[] mEncodedItemsRequest;
+    private final List<X509Certificate> mReaderCertificateChain;
+
+    private boolean mCertificateChainValidated;
+    private boolean mCertificateChainValid;
+
+    VerifiedReaderAuthentication(@NonNull byte[] encodedReaderAuth,
+            @NonNull byte[] encodedSessionTranscript,
+            @NonNull byte[] encodedItemsRequest,
+            @NonNull List<X509Certificate> readerCertificateChain) {
+        // The parser hands out the same arrays and list to the application, so copy them to
+        // make sure what was verified can't be changed afterwards.
+        mEncodedReaderAuth = encodedReaderAuth.clone();
+        mEncodedSessionTranscript = encodedSessionTranscript.clone();
+        mEncodedItemsRequest = encodedItemsRequest.clone();
+        mReaderCertificateChain =
+                Collections.unmodifiableList(new ArrayList<>(readerCertificateChain));
+    }
+
+    /**
+     * Gets the bytes of the <code>ReaderAuth</code> CBOR.
+     *
+     * @return the bytes of <code>ReaderAuth</code>.
+     */
+    public @NonNull byte[] getReaderAuth() {
+        return mEncodedReaderAuth.clone();
+    }
+
+    /**
+     * Gets the X509 certificate chain for the reader which signed the request.
+     *
+     * @return A X.509 certificate chain.
+     */
+    public @NonNull List<X509Certificate> getReaderCertificateChain() {
+        return mReaderCertificateChain;
+    }
+
+    // Returns whether the signature was checked against the given request message and
+    // session transcript.
+    boolean matches(@NonNull byte[] requestMessage, @NonNull byte[] sessionTranscript) {
+        return Arrays.equals(mEncodedItemsRequest, requestMessage)
+                && Arrays.equals(mEncodedSessionTranscript, sessionTranscript);
+    }
+
+    // The parser doesn't check the certificate chain so this is done the first time it's
+    // needed and remembered for later credentials.
+    synchronized boolean isCertificateChainValid() {
+        if (!mCertificateChainValidated) {
+            mCertificateChainValid = Util.validateCertificateChain(mReaderCertificateChain);
+            mCertificateChainValidated = true;
+        }
+        return mCertificateChainValid;
+    }
+}